@@ -15,7 +15,6 @@ import org.exist.dom.QName;
 import org.exist.security.PermissionDeniedException;
 import org.exist.source.Source;
 import org.exist.source.SourceFactory;
-import org.exist.storage.NativeBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.BasicFunction;
@@ -95,7 +94,7 @@ public class MetadataFunctions extends BasicFunction {
             doc = context.getBroker().getXMLResource(docUri, Lock.READ_LOCK);
             if (doc instanceof BinaryDocument) {
                 //resolve real filesystem path of binary file
-                File binaryFile = ((NativeBroker) context.getBroker()).getCollectionBinaryFileFsPath(docUri);
+                File binaryFile = context.getBroker().getBinaryFile((BinaryDocument) doc);
                 if (!binaryFile.exists()) {
                     throw new XPathException("Binary Document at " + docUri.toString() + " does not exist.");
                 }
@@ -105,6 +104,8 @@ public class MetadataFunctions extends BasicFunction {
             }
         } catch (PermissionDeniedException pde) {
             throw new XPathException("Could not access binary document: " + pde.getMessage(), pde);
+        } catch (IOException ioe) {
+            throw new XPathException("Could not access binary document: " + ioe.getMessage(), ioe);
         } finally {
             if (doc != null) {
                 doc.getUpdateLock().release(Lock.READ_LOCK);
@@ -0,0 +1,220 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.indexing.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.ReaderUtil;
+import org.apache.lucene.util.SortedVIntList;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.DocumentSet;
+
+/**
+ * Restricts a lucene search to the documents in a {@link DocumentSet}, so hits in
+ * other documents are skipped while scoring instead of being collected and
+ * discarded afterwards.
+ *
+ * The set of lucene documents matching the filter is cached per index segment.
+ * Filters are equal if they contain the same eXist document ids, so repeated queries
+ * on the same collection reuse the cached sets. As a segment never changes, a cached
+ * set stays valid until the segment is dropped.
+ *
+ * Use {@link #create(DocumentSet, IndexReader)}, which does not filter document sets
+ * containing most of the indexed documents.
+ */
+public class DocumentSetFilter extends Filter {
+
+    private static final long serialVersionUID = -6405843126339036702L;
+
+    /** maximum number of document sets cached per segment */
+    private static final int MAX_CACHED = 8;
+
+    /** share of the indexed documents above which a document set is not filtered */
+    private static final double MAX_COVERAGE = 0.8;
+
+    private static final Map<Object, Map<DocumentSetFilter, DocIdSet>> cache =
+        new WeakHashMap<Object, Map<DocumentSetFilter, DocIdSet>>();
+
+    /** the distinct eXist document ids of each segment, sorted */
+    private static final Map<Object, int[]> segmentDocIds = new WeakHashMap<Object, int[]>();
+
+    private final int[] docIds;
+    private final int hashCode;
+
+    /**
+     * Returns a filter restricting a search to the given documents, or null if they
+     * make up most of the documents in the index. Filtering would then skip few hits,
+     * but the document ids of nearly the whole database had to be sorted for each query
+     * and the cached sets, whose key changes with every stored document, rebuilt.
+     * Hits outside the document set are dropped when processing the hits anyway.
+     */
+    public static DocumentSetFilter create(DocumentSet docs, IndexReader reader) throws IOException {
+        final List<IndexReader> segments = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders(segments, reader);
+        final List<int[]> indexed = new ArrayList<int[]>(segments.size());
+        int indexedCount = 0;
+        for (IndexReader segment : segments) {
+            int[] docIds = getSegmentDocIds(segment);
+            indexed.add(docIds);
+            indexedCount += docIds.length;
+        }
+        final double threshold = indexedCount * MAX_COVERAGE;
+        if (docs.getDocumentCount() < threshold)
+            return new DocumentSetFilter(docs);
+        int covered = 0;
+        for (int[] docIds : indexed) {
+            for (int docId : docIds) {
+                if (docs.contains(docId) && ++covered >= threshold)
+                    return null;
+            }
+        }
+        return new DocumentSetFilter(docs);
+    }
+
+    private static int[] getSegmentDocIds(IndexReader segment) throws IOException {
+        final Object key = segment.getCoreCacheKey();
+        synchronized (segmentDocIds) {
+            int[] docIds = segmentDocIds.get(key);
+            if (docIds == null) {
+                docIds = FieldCache.DEFAULT.getInts(segment, LuceneIndexWorker.FIELD_DOC_ID,
+                    FieldCache.NUMERIC_UTILS_INT_PARSER).clone();
+                Arrays.sort(docIds);
+                int distinct = 0;
+                for (int i = 0; i < docIds.length; i++) {
+                    if (distinct == 0 || docIds[i] != docIds[distinct - 1])
+                        docIds[distinct++] = docIds[i];
+                }
+                docIds = Arrays.copyOf(docIds, distinct);
+                segmentDocIds.put(key, docIds);
+            }
+            return docIds;
+        }
+    }
+
+    DocumentSetFilter(DocumentSet docs) {
+        docIds = new int[docs.getDocumentCount()];
+        int i = 0;
+        for (Iterator<DocumentImpl> it = docs.getDocumentIterator(); it.hasNext() && i < docIds.length; )
+            docIds[i++] = it.next().getDocId();
+        Arrays.sort(docIds);
+        hashCode = Arrays.hashCode(docIds);
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+        final Object key = reader.getCoreCacheKey();
+        synchronized (cache) {
+            Map<DocumentSetFilter, DocIdSet> sets = cache.get(key);
+            if (sets != null) {
+                DocIdSet set = sets.get(this);
+                if (set != null)
+                    return set;
+            }
+        }
+        DocIdSet set = createDocIdSet(reader);
+        synchronized (cache) {
+            Map<DocumentSetFilter, DocIdSet> sets = cache.get(key);
+            if (sets == null) {
+                sets = new CachedSets();
+                cache.put(key, sets);
+            }
+            sets.put(this, set);
+        }
+        return set;
+    }
+
+    private DocIdSet createDocIdSet(IndexReader reader) throws IOException {
+        final int maxDoc = reader.maxDoc();
+        OpenBitSet bits = new OpenBitSet(maxDoc);
+        if (docIds.length < maxDoc / 64) {
+            // few documents: look up the lucene documents of each of them
+            TermDocs termDocs = reader.termDocs();
+            try {
+                for (int docId : docIds) {
+                    termDocs.seek(new Term(LuceneIndexWorker.FIELD_DOC_ID, NumericUtils.intToPrefixCoded(docId)));
+                    while (termDocs.next())
+                        bits.fastSet(termDocs.doc());
+                }
+            } finally {
+                termDocs.close();
+            }
+        } else {
+            // many documents: check the cached document id of every lucene document
+            NodeFieldCache.Segment segment = NodeFieldCache.getSegment(reader);
+            for (int i = 0; i < maxDoc; i++) {
+                if (Arrays.binarySearch(docIds, segment.getDocId(i)) >= 0)
+                    bits.fastSet(i);
+            }
+        }
+        // sparse sets are kept in compressed form
+        if (bits.cardinality() < maxDoc / 64)
+            return new SortedVIntList(bits.iterator());
+        return bits;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof DocumentSetFilter))
+            return false;
+        DocumentSetFilter other = (DocumentSetFilter) obj;
+        return hashCode == other.hashCode && Arrays.equals(docIds, other.docIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * The sets of a segment, least recently used first.
+     */
+    private static class CachedSets extends LinkedHashMap<DocumentSetFilter, DocIdSet> {
+
+        private static final long serialVersionUID = 2810263437195815404L;
+
+        CachedSets() {
+            super(MAX_CACHED, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DocumentSetFilter, DocIdSet> eldest) {
+            return size() > MAX_CACHED;
+        }
+    }
+}
@@ -46,12 +46,31 @@ public class LuceneIndex extends AbstractIndex implements RawBackupSupport {
 
     protected IndexWriter cachedWriter = null;
     protected int writerUseCount = 0;
-    protected IndexReader cachedReader = null;
-    protected int readerUseCount = 0;
     protected IndexReader cachedWritingReader = null;
     protected int writingReaderUseCount = 0;
+
+    /**
+     * Near-real-time reader opened from the cached writer. Readers are
+     * reference counted: each call to {@link #getReader()} or {@link #getSearcher()}
+     * increments the count, the release methods decrement it. The index itself
+     * holds one reference on the current reader, which is dropped when the
+     * reader is replaced, so older readers stay usable until they are released.
+     */
+    protected IndexReader cachedReader = null;
     protected IndexSearcher cachedSearcher = null;
-    protected int searcherUseCount = 0;
+
+    /** set if the index has been changed since the current reader was opened */
+    protected boolean readerStale = true;
+
+    /** set if the current reader was opened from the cached writer */
+    private boolean readerFromWriter = false;
+
+    /**
+     * Serializes commits, which are done without holding the index monitor, with
+     * closing the writer. Whenever both are needed, the commit lock has to be
+     * acquired before the index monitor.
+     */
+    private final Object commitLock = new Object();
 
     protected boolean singleWriter = false;
 
@@ -112,22 +131,31 @@ public class LuceneIndex extends AbstractIndex implements RawBackupSupport {
     }
 
     @Override
-    public synchronized void close() throws DBException {
-        try {
-            if (cachedWriter != null) {
-            	commit();
-                cachedWriter.close();
-                cachedWriter = null;
+    public void close() throws DBException {
+        synchronized (commitLock) {
+            synchronized (this) {
+                try {
+                    closeReader();
+                    if (cachedWriter != null) {
+                        commit();
+                        cachedWriter.close();
+                        cachedWriter = null;
+                    }
+                    directory.close();
+                } catch (IOException e) {
+                    throw new DBException("Caught exception while closing lucene indexes: " + e.getMessage());
+                }
             }
-            directory.close();
-        } catch (IOException e) {
-            throw new DBException("Caught exception while closing lucene indexes: " + e.getMessage());
         }
     }
 
+    /**
+     * Commit pending changes to disk. Called on every major sync of the
+     * database, i.e. at checkpoints. Readers do not require a commit, so
+     * queries are not blocked while the commit is running.
+     */
     @Override
-    public synchronized void sync() throws DBException {
-        //Nothing special to do
+    public void sync() throws DBException {
         commit();
     }
 
@@ -186,20 +214,24 @@ public class LuceneIndex extends AbstractIndex implements RawBackupSupport {
         if (cachedWriter != null) {
             writerUseCount++;
         } else {
-            final IndexWriterConfig idxWriterConfig = new IndexWriterConfig(LUCENE_VERSION_IN_USE, defaultAnalyzer);
-            idxWriterConfig.setRAMBufferSizeMB(bufferSize);
-            
-            /**
-             With Lucene 2.9.4 we had auto-commit = true set on the IndexWriter constructor here,
-             now we have to commit ourselves, this is done manually in releaseWriter()
-             */
-            cachedWriter = new IndexWriter(directory, idxWriterConfig);
+            openWriter();
             writerUseCount = 1;
         }
         notifyAll();
         return cachedWriter;
     }
 
+    private void openWriter() throws IOException {
+        final IndexWriterConfig idxWriterConfig = new IndexWriterConfig(LUCENE_VERSION_IN_USE, defaultAnalyzer);
+        idxWriterConfig.setRAMBufferSizeMB(bufferSize);
+
+        /**
+         With Lucene 2.9.4 we had auto-commit = true set on the IndexWriter constructor here,
+         now we have to commit ourselves, this is done in sync() and close()
+         */
+        cachedWriter = new IndexWriter(directory, idxWriterConfig);
+    }
+
     protected synchronized void releaseWriter(IndexWriter writer) {
         if (writer == null)
             return;
@@ -207,77 +239,127 @@ public class LuceneIndex extends AbstractIndex implements RawBackupSupport {
             throw new IllegalStateException("IndexWriter was not obtained from getWriter().");
 
         needsCommit = true;
+        readerStale = true;
         writerUseCount--;
         notifyAll();
-
-        waitForReadersAndReopen();
     }
 
     protected void commit() {
-    	if (!needsCommit) {
-            return;
-        }
-        try {
-            if(LOG.isDebugEnabled()) {
-                LOG.debug("Committing lucene index");
+        synchronized (commitLock) {
+            final IndexWriter writer;
+            synchronized (this) {
+                if (!needsCommit || cachedWriter == null) {
+                    return;
+                }
+                writer = cachedWriter;
+                needsCommit = false;
             }
-            
-        	if (cachedWriter != null) {
-                cachedWriter.commit();
+            try {
+                if(LOG.isDebugEnabled()) {
+                    LOG.debug("Committing lucene index");
+                }
+                // the writer cannot be closed while we hold the commit lock
+                writer.commit();
+            } catch(CorruptIndexException cie) {
+                LOG.error("Detected corrupt Lucence index on writer release and commit: " + cie.getMessage(), cie);
+            } catch(IOException ioe) {
+                LOG.error("Detected Lucence index issue on writer release and commit: " + ioe.getMessage(), ioe);
             }
-            needsCommit = false;
-        } catch(CorruptIndexException cie) {
-            LOG.error("Detected corrupt Lucence index on writer release and commit: " + cie.getMessage(), cie);
-        } catch(IOException ioe) {
-            LOG.error("Detected Lucence index issue on writer release and commit: " + ioe.getMessage(), ioe);
         }
     }
-    
+
+    /**
+     * Returns a near-real-time reader, which reflects all changes made through
+     * the cached writer, including uncommitted ones. The reader is reopened
+     * if the index has changed since it was last opened. The reader has to
+     * be passed to {@link #releaseReader(IndexReader)} when done.
+     */
     protected synchronized IndexReader getReader() throws IOException {
-    	commit();
-        if (cachedReader != null) {
-            readerUseCount++;
-        } else {
-            cachedReader = IndexReader.open(directory);
-            readerUseCount = 1;
-        }
+        refreshReader();
+        cachedReader.incRef();
         return cachedReader;
     }
 
     protected synchronized void releaseReader(IndexReader reader) {
         if (reader == null)
             return;
-        if (reader != cachedReader)
-            throw new IllegalStateException("IndexReader was not obtained from getReader().");
-        readerUseCount--;
-        notifyAll();
+        try {
+            reader.decRef();
+        } catch (IOException e) {
+            LOG.warn("Exception while closing lucene index reader: " + e.getMessage(), e);
+        }
     }
 
-    protected synchronized IndexReader getWritingReader() throws IOException {
-        while (writerUseCount > 0) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                //Nothing special to do
-            }
-        }
+    /**
+     * Reopen the cached reader if the index has been modified. If a writer is open,
+     * the reader is obtained from it, which does not require a commit. Otherwise all
+     * changes have been committed and the reader is opened on the directory.
+     */
+    private void refreshReader() throws IOException {
+        if (cachedReader != null && !readerStale)
+            return;
+        IndexReader newReader;
         if (cachedWriter != null) {
-        	try {
-                cachedWriter.close();
-            } catch (IOException e) {
-                LOG.warn("Exception while closing lucene index: " + e.getMessage(), e);
-            } finally {
-                cachedWriter = null;
-            }
-        }
-        if (cachedWritingReader != null) {
-            writingReaderUseCount++;
+            newReader = cachedReader == null || !readerFromWriter ? IndexReader.open(cachedWriter, true) :
+                IndexReader.openIfChanged(cachedReader, cachedWriter, true);
+            readerFromWriter = true;
+            readerStale = false;
         } else {
-            cachedWritingReader = IndexReader.open(directory, false);
-            writingReaderUseCount = 1;
+            newReader = cachedReader == null || readerFromWriter ? IndexReader.open(directory) :
+                IndexReader.openIfChanged(cachedReader);
+            readerFromWriter = false;
+            // changes made through an active writing reader become visible when it is released
+            readerStale = writingReaderUseCount > 0;
+        }
+        if (newReader != null) {
+            closeReader();
+            cachedReader = newReader;
+            cachedSearcher = new IndexSearcher(cachedReader);
+        }
+    }
+
+    private void closeReader() throws IOException {
+        if (cachedReader == null)
+            return;
+        // drop our own reference. The reader is closed once all users released it.
+        final IndexReader reader = cachedReader;
+        cachedReader = null;
+        cachedSearcher = null;
+        reader.decRef();
+    }
+
+    protected IndexReader getWritingReader() throws IOException {
+        synchronized (commitLock) {
+            synchronized (this) {
+                while (writerUseCount > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        //Nothing special to do
+                    }
+                }
+                if (cachedWriter != null) {
+                    // closing the writer commits all changes
+                    try {
+                        cachedWriter.close();
+                        needsCommit = false;
+                    } catch (IOException e) {
+                        LOG.warn("Exception while closing lucene index: " + e.getMessage(), e);
+                    } finally {
+                        cachedWriter = null;
+                        readerStale = true;
+                    }
+                }
+                if (cachedWritingReader != null) {
+                    writingReaderUseCount++;
+                } else {
+                    cachedWritingReader = IndexReader.open(directory, false);
+                    writingReaderUseCount = 1;
+                }
+                notifyAll();
+                return cachedWritingReader;
+            }
         }
-        notifyAll();
-        return cachedWritingReader;
     }
 
     protected synchronized void releaseWritingReader(IndexReader reader) {
@@ -295,55 +377,24 @@ public class LuceneIndex extends AbstractIndex implements RawBackupSupport {
                 cachedWritingReader = null;
             }
         }
+        readerStale = true;
         notifyAll();
-
-        waitForReadersAndReopen();
-    }
-
-    private void waitForReadersAndReopen() {
-        while (readerUseCount > 0 || searcherUseCount > 0) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                //Nothing special to do
-            }
-        }
-        reopenReaders();
-    }
-
-    private void reopenReaders() {
-        if (cachedReader == null)
-            return;
-        try {
-        	cachedReader.close();
-        	cachedReader = null;
-        	if (cachedSearcher != null)
-        		cachedSearcher.close();
-        	cachedSearcher = null;
-        } catch (IOException e) {
-            LOG.warn("Exception while refreshing lucene index: " + e.getMessage(), e);
-        }
     }
 
+    /**
+     * Returns a searcher on the current near-real-time reader. The searcher
+     * has to be passed to {@link #releaseSearcher(IndexSearcher)} when done.
+     */
     protected synchronized IndexSearcher getSearcher() throws IOException {
-    	commit();
-        if (cachedSearcher != null) {
-            searcherUseCount++;
-        } else {
-            cachedSearcher = new IndexSearcher(getReader());
-            readerUseCount--;
-            searcherUseCount = 1;
-        }
+        refreshReader();
+        cachedReader.incRef();
         return cachedSearcher;
     }
 
     protected synchronized void releaseSearcher(IndexSearcher searcher) {
         if (searcher == null)
             return;
-        if (searcher != cachedSearcher)
-            throw new IllegalStateException("IndexSearcher was not obtained from getWritingReader().");
-        searcherUseCount--;
-        notifyAll();
+        releaseReader(searcher.getIndexReader());
     }
 
 	@Override
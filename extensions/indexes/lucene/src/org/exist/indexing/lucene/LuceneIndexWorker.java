@@ -23,6 +23,7 @@ package org.exist.indexing.lucene;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -56,7 +57,6 @@ import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -69,6 +69,7 @@ import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.util.BitVector;
 import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.PriorityQueue;
 import org.apache.lucene.util.ReaderUtil;
 import org.apache.lucene.util.Version;
 
@@ -98,6 +99,7 @@ import org.exist.indexing.lucene.PlainTextIndexConfig.PlainTextField;
 import org.exist.memtree.MemTreeBuilder;
 import org.exist.memtree.NodeImpl;
 import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
 import org.exist.storage.ElementValue;
@@ -130,6 +132,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
     public static final String OPTION_PHRASE_SLOP = "phrase-slop";
     public static final String OPTION_LEADING_WILDCARD = "leading-wildcard";
     public static final String OPTION_FILTER_REWRITE = "filter-rewrite";
+    public static final String OPTION_MAX_HITS = "max-hits";
     public static final String DEFAULT_OPERATOR_OR = "or";
     
     static final Logger LOG = Logger.getLogger(LuceneIndexWorker.class);
@@ -431,6 +434,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         qnames = getDefinedIndexes(qnames);
         NodeSet resultSet = new NewArrayNodeSet();
         boolean returnAncestor = axis == NodeSet.ANCESTOR;
+        int maxHits = getMaxHits(options);
         IndexSearcher searcher = null;
         try {
             searcher = index.getSearcher();
@@ -441,7 +445,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 setOptions(options, parser);
                 Query query = parser.parse(queryStr);
                 searchAndProcess(contextId, qname, docs, contextSet, resultSet,
-                    returnAncestor, searcher, query, context.getWatchDog());
+                    returnAncestor, searcher, query, maxHits, context.getWatchDog());
             }
         } finally {
             index.releaseSearcher(searcher);
@@ -480,6 +484,26 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         }
     }
 
+    /**
+     * Returns the maximum number of hits to return as given by option
+     * {@link #OPTION_MAX_HITS}, or 0 if all hits should be returned.
+     */
+    private static int getMaxHits(Properties options) throws ParseException {
+        if (options == null)
+            return 0;
+        String option = options.getProperty(OPTION_MAX_HITS);
+        if (option == null)
+            return 0;
+        try {
+            int maxHits = Integer.parseInt(option.trim());
+            if (maxHits < 1)
+                throw new ParseException("value for option " + OPTION_MAX_HITS + " needs to be a positive number");
+            return maxHits;
+        } catch (NumberFormatException e) {
+            throw new ParseException("value for option " + OPTION_MAX_HITS + " needs to be a number");
+        }
+    }
+
     /**
      * Query the index. Returns a node set containing all matching nodes. Each node
      * in the node set has a {@link org.exist.indexing.lucene.LuceneIndexWorker.LuceneMatch}
@@ -504,6 +528,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         qnames = getDefinedIndexes(qnames);
         NodeSet resultSet = new NewArrayNodeSet();
         boolean returnAncestor = axis == NodeSet.ANCESTOR;
+        int maxHits = getMaxHits(options);
         IndexSearcher searcher = null;
         try {
             searcher = index.getSearcher();
@@ -513,7 +538,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 Query query = queryTranslator.parse(field, queryRoot, analyzer, options);
                 if (query != null) {
 	                searchAndProcess(contextId, qname, docs, contextSet, resultSet,
-                        returnAncestor, searcher, query, context.getWatchDog());
+                        returnAncestor, searcher, query, maxHits, context.getWatchDog());
                 }
             }
         } finally {
@@ -527,6 +552,12 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             throws IOException, XPathException {
         NodeSet resultSet = new NewArrayNodeSet();
         boolean returnAncestor = axis == NodeSet.ANCESTOR;
+        int maxHits;
+        try {
+            maxHits = getMaxHits(options);
+        } catch (ParseException e) {
+            throw new XPathException(e.getMessage());
+        }
         IndexSearcher searcher = null;
         try {
             searcher = index.getSearcher();
@@ -534,7 +565,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             Query query = queryTranslator.parse(field, queryRoot, analyzer, options);
             if (query != null) {
                 searchAndProcess(contextId, null, docs, contextSet, resultSet,
-                    returnAncestor, searcher, query, context.getWatchDog());
+                    returnAncestor, searcher, query, maxHits, context.getWatchDog());
             }
         } finally {
             index.releaseSearcher(searcher);
@@ -542,12 +573,26 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         return resultSet;
     }
 
+    /**
+     * Run the query, restricted to the documents in docs, and add the matching nodes
+     * to the result set. If maxHits is greater than 0, only the maxHits best scoring
+     * lucene documents are processed.
+     */
     private void searchAndProcess(int contextId, QName qname, DocumentSet docs,
             NodeSet contextSet, NodeSet resultSet, boolean returnAncestor,
-            IndexSearcher searcher, Query query, XQueryWatchDog watchDog) throws IOException, TerminatedException {
-        LuceneHitCollector collector = new LuceneHitCollector();
-        searcher.search(query, collector);
-        processHits(collector.getDocs(), searcher, contextId, qname, docs, contextSet, resultSet, returnAncestor, query, watchDog);
+            IndexSearcher searcher, Query query, int maxHits, XQueryWatchDog watchDog) throws IOException, TerminatedException {
+        Filter filter = docs == null ? null : DocumentSetFilter.create(docs, searcher.getIndexReader());
+        List<ScoreDoc> hits;
+        if (maxHits > 0) {
+            TopHitsCollector collector = new TopHitsCollector(maxHits);
+            searcher.search(query, filter, collector);
+            hits = collector.getDocs();
+        } else {
+            LuceneHitCollector collector = new LuceneHitCollector(true);
+            searcher.search(query, filter, collector);
+            hits = collector.getDocs();
+        }
+        processHits(hits, searcher, contextId, qname, docs, contextSet, resultSet, returnAncestor, query, watchDog);
     }
 
     public NodeSet queryField(XQueryContext context, int contextId, DocumentSet docs, NodeSet contextSet,
@@ -564,7 +609,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             setOptions(options, parser);
             Query query = parser.parse(queryString);
             searchAndProcess(contextId, null, docs, contextSet, resultSet,
-                returnAncestor, searcher, query, context.getWatchDog());
+                returnAncestor, searcher, query, getMaxHits(options), context.getWatchDog());
         } finally {
             index.releaseSearcher(searcher);
         }
@@ -577,16 +622,15 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
      */
     private void processHits(List<ScoreDoc> hits, IndexSearcher searcher, int contextId, QName qname, DocumentSet docs, NodeSet contextSet,
                              NodeSet resultSet, boolean returnAncestor, Query query, XQueryWatchDog watchDog) throws TerminatedException {
+        NodeIdFactory nodeFactory = index.getBrokerPool().getNodeFactory();
         for (ScoreDoc scoreDoc : hits) {
             watchDog.proceed(null);
             try {
-                Document doc = searcher.doc(scoreDoc.doc, NODE_FIELD_SELECTOR);
-                String fDocId = doc.get(FIELD_DOC_ID);
-                int docId = Integer.parseInt(fDocId);
-                DocumentImpl storedDocument = docs.getDoc(docId);
+                NodeHit hit = (NodeHit) scoreDoc;
+                DocumentImpl storedDocument = docs.getDoc(hit.getDocId());
                 if (storedDocument == null)
                     continue;
-                NodeId nodeId = readNodeId(doc);
+                NodeId nodeId = hit.getNodeId(searcher, nodeFactory);
                 NodeProxy storedNode = new NodeProxy(storedDocument, nodeId);
                 if (qname != null)
                 	storedNode.setNodeType(qname.getNameType() == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE);
@@ -749,7 +793,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             String[] fields = LuceneUtil.extractFields(query, searcher.getIndexReader());
 
             // Setup collector for results
-            LuceneHitCollector collector = new LuceneHitCollector();
+            LuceneHitCollector collector = new LuceneHitCollector(false);
             
             // Perform actual search
             searcher.search(query, collector);
@@ -914,9 +958,14 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         private List<ScoreDoc> docs = new ArrayList<ScoreDoc>();
         private int docBase;
         private Scorer scorer;
+        private final boolean mapNodes;
+        private NodeFieldCache.Segment segment = null;
 
-        private LuceneHitCollector() {
-            //Nothing special to do
+        /**
+         * @param mapNodes if true, the hits are collected as {@link NodeHit}s
+         */
+        private LuceneHitCollector(boolean mapNodes) {
+            this.mapNodes = mapNodes;
         }
 
         public List<ScoreDoc> getDocs() {
@@ -959,6 +1008,8 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         @Override
         public void setNextReader(IndexReader indexReader, int docBase) throws IOException {
             this.docBase = docBase;
+            if (mapNodes)
+                segment = NodeFieldCache.getSegment(indexReader);
         }
 
         @Override
@@ -970,13 +1021,124 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         public void collect(int doc) {
             try {
                 float score = scorer.score();
-                docs.add(new ScoreDoc(doc + docBase, score));
+                if (mapNodes)
+                    docs.add(new NodeHit(segment, doc, docBase, score));
+                else
+                    docs.add(new ScoreDoc(doc + docBase, score));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Collects the best scoring hits only, using a priority queue bounded
+     * by the maximum number of hits. A hit which scores lower than the worst
+     * hit in a full queue is dropped without creating an object for it.
+     */
+    private static class TopHitsCollector extends Collector {
+
+        private final HitQueue queue;
+        private int docBase;
+        private Scorer scorer;
+        private NodeFieldCache.Segment segment = null;
+
+        private TopHitsCollector(int maxHits) {
+            queue = new HitQueue(maxHits);
+        }
+
+        /**
+         * Returns the collected hits ordered by lucene document.
+         */
+        public List<ScoreDoc> getDocs() {
+            ScoreDoc[] docs = new ScoreDoc[queue.size()];
+            for (int i = docs.length - 1; i >= 0; i--)
+                docs[i] = queue.pop();
+            Arrays.sort(docs, new Comparator<ScoreDoc>() {
+
+                public int compare(ScoreDoc scoreDoc, ScoreDoc scoreDoc1) {
+                    return scoreDoc.doc < scoreDoc1.doc ? -1 : (scoreDoc.doc == scoreDoc1.doc ? 0 : 1);
+                }
+            });
+            return Arrays.asList(docs);
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void setNextReader(IndexReader indexReader, int docBase) throws IOException {
+            this.docBase = docBase;
+            segment = NodeFieldCache.getSegment(indexReader);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return false;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            float score = scorer.score();
+            // documents are collected in order, so a hit with the same score
+            // as the worst one in the queue does not compete
+            if (queue.size() == queue.maxSize && score <= queue.top().score)
+                return;
+            queue.insertWithOverflow(new NodeHit(segment, doc, docBase, score));
+        }
+    }
+
+    private static class HitQueue extends PriorityQueue<NodeHit> {
+
+        private final int maxSize;
+
+        private HitQueue(int maxSize) {
+            this.maxSize = maxSize;
+            initialize(maxSize);
+        }
+
+        @Override
+        protected boolean lessThan(NodeHit hit1, NodeHit hit2) {
+            if (hit1.score == hit2.score)
+                return hit1.doc > hit2.doc;
+            return hit1.score < hit2.score;
+        }
+    }
+
+    /**
+     * A hit which resolves the eXist document and node id through the
+     * {@link NodeFieldCache} of its segment. Only if the segment does not contain
+     * the node id, it is read from the stored fields.
+     */
+    private static class NodeHit extends ScoreDoc {
+
+        private static final long serialVersionUID = 6871589528293884488L;
+
+        private final NodeFieldCache.Segment segment;
+        private final int segmentDoc;
+
+        private NodeHit(NodeFieldCache.Segment segment, int segmentDoc, int docBase, float score) {
+            super(segmentDoc + docBase, score);
+            this.segment = segment;
+            this.segmentDoc = segmentDoc;
+        }
+
+        int getDocId() {
+            return segment.getDocId(segmentDoc);
+        }
+
+        NodeId getNodeId(IndexSearcher searcher, NodeIdFactory nodeFactory) throws IOException {
+            if (segment.hasNodeId(segmentDoc))
+                return segment.getNodeId(segmentDoc, nodeFactory);
+            Document luceneDoc = searcher.doc(doc, NODE_FIELD_SELECTOR);
+            byte[] temp = luceneDoc.getBinaryValue(FIELD_NODE_ID);
+            int units = ByteConversion.byteToShort(temp, 0);
+            return nodeFactory.createFromData(units, temp, 2);
+        }
+    }
+
     private NodeId readNodeId(Document doc) {
         byte[] temp = doc.getBinaryValue(FIELD_NODE_ID);
         int units = ByteConversion.byteToShort(temp, 0);
@@ -1151,14 +1313,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
     private Occurrences[] scanIndexByNodes(List<QName> qnames, DocumentSet docs, NodeSet nodes, String start, String end, long max) {
         TreeMap<String, Occurrences> map = new TreeMap<String, Occurrences>();
 
-        FieldSelector selector = new FieldSelector() {
-            private static final long serialVersionUID = 3270211696620175721L;
-            public FieldSelectorResult accept(String field) {
-                if (field.equals(FIELD_NODE_ID))
-                    return FieldSelectorResult.LOAD_AND_BREAK;
-                return FieldSelectorResult.NO_LOAD;
-            }
-        };
+        NodeIdFactory nodeFactory = index.getBrokerPool().getNodeFactory();
         IndexSearcher searcher = null;
         try {
             searcher = index.getSearcher();
@@ -1166,17 +1321,15 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             for (Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
                 DocumentImpl doc = i.next();
                 Query query = new TermQuery(new Term(FIELD_DOC_ID, NumericUtils.intToPrefixCoded(doc.getDocId())));
-                DocumentCollector collector = new DocumentCollector(searcher.maxDoc());
+                DocumentCollector collector = new DocumentCollector();
                 searcher.search(query, collector);
 
-                DocIdSetIterator iter = collector.docs.iterator();
-                int next;
-                while ((next = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                for (NodeHit hit : collector.hits) {
+                    int next = hit.doc;
                     NodeId nodeId = null;
                     if (nodes != null) {
-                        // load document to check if the current node is in the passed context set, if any
-                        Document luceneDoc = searcher.doc(next, selector);
-                        nodeId = readNodeId(luceneDoc);
+                        // check if the current node is in the passed context set, if any
+                        nodeId = hit.getNodeId(searcher, nodeFactory);
                     }
                     if (nodeId == null || nodes.get(doc, nodeId) != null) {
                         for (QName qname : qnames) {
@@ -1222,11 +1375,12 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
     private static class DocumentCollector extends Collector {
 
-        OpenBitSet docs;
+        List<NodeHit> hits = new ArrayList<NodeHit>();
         int base = 0;
+        NodeFieldCache.Segment segment = null;
 
-        private DocumentCollector(int size) {
-            docs = new OpenBitSet(size);
+        private DocumentCollector() {
+            //Nothing special to do
         }
 
         @Override
@@ -1236,12 +1390,13 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
         @Override
         public void collect(int doc) throws IOException {
-            docs.set(base + doc);
+            hits.add(new NodeHit(segment, doc, base, 0));
         }
 
         @Override
         public void setNextReader(IndexReader indexReader, int base) throws IOException {
             this.base = base;
+            this.segment = NodeFieldCache.getSegment(indexReader);
         }
 
         @Override
@@ -1300,6 +1455,9 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             writer.setMaxFieldLength(Integer.MAX_VALUE);
             NumericField fDocId = new NumericField(FIELD_DOC_ID, Field.Store.YES, true);
             Field fNodeId = new Field(FIELD_NODE_ID, new byte [] { 0 }, Field.Store.YES);
+            NodeFieldCache.NodePayloadStream nodePayload = new NodeFieldCache.NodePayloadStream();
+            Field fNodePayload = new Field(NodeFieldCache.FIELD_NODE_PAYLOAD, nodePayload);
+            fNodePayload.setOmitNorms(true);
             for (PendingDoc pending : nodesToWrite) {
                 Document doc = new Document();
                 if (pending.idxConf.getBoost() > 0)
@@ -1323,9 +1481,11 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 	contentField = encodeQName(pending.qname);
                 fDocId.setIntValue(currentDoc.getDocId());
                 fNodeId.setValue(data);
+                nodePayload.setNodeId(data);
 
                 doc.add(fDocId);
                 doc.add(fNodeId);
+                doc.add(fNodePayload);
                 doc.add(new Field(contentField, pending.text.toString(), Field.Store.NO, Field.Index.ANALYZED,
                     Field.TermVector.YES));
 
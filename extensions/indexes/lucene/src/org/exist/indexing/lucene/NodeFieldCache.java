@@ -0,0 +1,175 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.indexing.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Payload;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.FieldCache;
+import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
+import org.exist.util.ByteConversion;
+
+/**
+ * Memory resident cache of the eXist document id and node id of every lucene
+ * document in an index segment. Mapping a hit to a node thus does not require
+ * to load the stored fields of the lucene document.
+ *
+ * The document ids are read from the field cache. The node ids are stored as
+ * payload of a single term, which is added to every lucene document by
+ * {@link LuceneIndexWorker}, so they can be read sequentially with one pass
+ * over the term's positions. The cache is built once per segment and dropped
+ * when the segment is no longer used.
+ */
+public class NodeFieldCache {
+
+    /** the field containing the node id payload */
+    public static final String FIELD_NODE_PAYLOAD = "nodePayload";
+
+    private static final Term PAYLOAD_TERM = new Term(FIELD_NODE_PAYLOAD, "n");
+
+    private static final Map<Object, Segment> segments = new WeakHashMap<Object, Segment>();
+
+    /**
+     * Returns the cache for the given segment reader, building it if necessary.
+     *
+     * @param reader an atomic reader, as passed to a collector
+     */
+    public static Segment getSegment(IndexReader reader) throws IOException {
+        final Object key = reader.getCoreCacheKey();
+        synchronized (segments) {
+            Segment segment = segments.get(key);
+            if (segment == null) {
+                segment = new Segment(reader);
+                segments.put(key, segment);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * The document and node ids of one segment.
+     */
+    public static class Segment {
+
+        private final int[] docIds;
+        private final int[] offsets;
+        private byte[] data;
+
+        private Segment(IndexReader reader) throws IOException {
+            docIds = FieldCache.DEFAULT.getInts(reader, LuceneIndexWorker.FIELD_DOC_ID,
+                FieldCache.NUMERIC_UTILS_INT_PARSER);
+            offsets = new int[reader.maxDoc()];
+            Arrays.fill(offsets, -1);
+            data = new byte[Math.max(16, reader.maxDoc() * 8)];
+            int length = 0;
+            final TermPositions positions = reader.termPositions(PAYLOAD_TERM);
+            try {
+                while (positions.next()) {
+                    positions.nextPosition();
+                    if (!positions.isPayloadAvailable())
+                        continue;
+                    final int len = positions.getPayloadLength();
+                    if (length + len > data.length)
+                        data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+                    positions.getPayload(data, length);
+                    offsets[positions.doc()] = length;
+                    length += len;
+                }
+            } finally {
+                positions.close();
+            }
+            if (length < data.length)
+                data = Arrays.copyOf(data, length);
+        }
+
+        /**
+         * Returns the eXist document id of a lucene document.
+         */
+        public int getDocId(int doc) {
+            return docIds[doc];
+        }
+
+        /**
+         * Returns true if the node id of the lucene document is cached. Segments
+         * written by older versions of the index do not contain the payload.
+         */
+        public boolean hasNodeId(int doc) {
+            return offsets[doc] >= 0;
+        }
+
+        /**
+         * Returns the node id of a lucene document or null if it is not cached.
+         */
+        public NodeId getNodeId(int doc, NodeIdFactory factory) {
+            final int offset = offsets[doc];
+            if (offset < 0)
+                return null;
+            final int units = ByteConversion.byteToShort(data, offset);
+            return factory.createFromData(units, data, offset + 2);
+        }
+    }
+
+    /**
+     * Token stream producing the single term of the payload field, which
+     * carries the serialized node id.
+     */
+    static class NodePayloadStream extends TokenStream {
+
+        private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
+        private final PayloadAttribute payloadAttr = addAttribute(PayloadAttribute.class);
+        private byte[] nodeId;
+        private boolean done = false;
+
+        /**
+         * @param nodeId the node id, serialized as in the stored node id field
+         */
+        void setNodeId(byte[] nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (done)
+                return false;
+            clearAttributes();
+            termAttr.setEmpty().append(PAYLOAD_TERM.text());
+            payloadAttr.setPayload(new Payload(nodeId));
+            done = true;
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            done = false;
+        }
+    }
+}
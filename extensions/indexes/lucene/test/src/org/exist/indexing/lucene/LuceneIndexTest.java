@@ -2,6 +2,9 @@ package org.exist.indexing.lucene;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
@@ -17,6 +20,7 @@ import org.exist.dom.DefaultDocumentSet;
 import org.exist.dom.DocumentSet;
 import org.exist.dom.MutableDocumentSet;
 import org.exist.dom.QName;
+import org.exist.numbering.NodeId;
 import org.exist.indexing.OrderedValuesIndex;
 import org.exist.indexing.QNamedKeysIndex;
 import org.exist.security.xacml.AccessContext;
@@ -26,18 +30,23 @@ import org.exist.storage.ElementValue;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.storage.txn.Txn;
 import org.exist.test.TestConstants;
+import org.exist.util.ByteConversion;
 import org.exist.util.Configuration;
 import org.exist.util.ConfigurationHelper;
 import org.exist.util.MimeTable;
 import org.exist.util.MimeType;
 import org.exist.util.Occurrences;
 import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
 import org.exist.xquery.XQuery;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.CompiledXQuery;
 import org.exist.xquery.value.Sequence;
 import org.exist.xupdate.Modification;
 import org.exist.xupdate.XUpdateProcessor;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -67,6 +76,13 @@ public class LuceneIndexTest {
             "   <item id='3'><description>Cabinet</description>\n<condition>bad</condition></item>" +
             "</test>";
 
+    private static String XML_TOP_HITS =
+            "<test>" +
+            "   <item id='a'><description>table chair chair</description></item>" +
+            "   <item id='b'><description>table table chair</description></item>" +
+            "   <item id='c'><description>chair chair chair</description></item>" +
+            "</test>";
+
     private static String XML3 =
             "<section>" +
             "   <head>TITLE IN UPPERCASE LETTERS</head>" +
@@ -559,6 +575,153 @@ public class LuceneIndexTest {
         }
     }
 
+    @Test
+    public void nearRealTime() {
+        System.out.println("Test visibility of uncommitted changes ...");
+        configureAndStore(COLLECTION_CONFIG1, XML1, "nrt1.xml");
+        DBBroker broker = null;
+        LuceneIndex index = null;
+        IndexSearcher searcher = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            assertNotNull(broker);
+            index = (LuceneIndex) pool.getIndexManager().getIndexByName("lucene-index");
+            assertNotNull(index);
+
+            // keep a searcher open while the index is modified
+            searcher = index.getSearcher();
+            final int numDocs = searcher.getIndexReader().numDocs();
+
+            configureAndStore(null, XML3, "nrt2.xml");
+
+            XQuery xquery = broker.getXQueryService();
+            assertNotNull(xquery);
+            Sequence seq = xquery.execute("/section[ft:query(head, 'uppercase')]", null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(1, seq.getItemCount());
+
+            // the old searcher still sees the previous state of the index
+            assertEquals(numDocs, searcher.getIndexReader().numDocs());
+            index.releaseSearcher(searcher);
+            searcher = null;
+
+            seq = xquery.execute("/section[ft:query(head, 'title')]", null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(2, seq.getItemCount());
+            System.out.println("Test PASSED.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (searcher != null)
+                index.releaseSearcher(searcher);
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void nodeFieldCache() {
+        System.out.println("Test mapping of hits to nodes ...");
+        configureAndStore(COLLECTION_CONFIG2, XML2, "cache1.xml");
+        configureAndStore(null, XML2, "cache2.xml");
+        DBBroker broker = null;
+        LuceneIndex index = null;
+        IndexSearcher searcher = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            assertNotNull(broker);
+            index = (LuceneIndex) pool.getIndexManager().getIndexByName("lucene-index");
+            assertNotNull(index);
+
+            // the cached ids must match the stored fields
+            searcher = index.getSearcher();
+            for (IndexReader reader : searcher.getSubReaders()) {
+                NodeFieldCache.Segment segment = NodeFieldCache.getSegment(reader);
+                assertSame(segment, NodeFieldCache.getSegment(reader));
+                for (int i = 0; i < reader.maxDoc(); i++) {
+                    if (reader.isDeleted(i))
+                        continue;
+                    Document doc = reader.document(i);
+                    assertEquals(Integer.parseInt(doc.get(LuceneIndexWorker.FIELD_DOC_ID)), segment.getDocId(i));
+                    byte[] data = doc.getBinaryValue(LuceneIndexWorker.FIELD_NODE_ID);
+                    NodeId expected = pool.getNodeFactory().createFromData(ByteConversion.byteToShort(data, 0), data, 2);
+                    assertTrue(expected.equals(segment.getNodeId(i, pool.getNodeFactory())));
+                }
+            }
+            index.releaseSearcher(searcher);
+            searcher = null;
+
+            XQuery xquery = broker.getXQueryService();
+            assertNotNull(xquery);
+            Sequence seq = xquery.execute("string-join(collection('" + TestConstants.TEST_COLLECTION_URI +
+                "')//item[ft:query(description, 'table')]/@id, ' ')", null, AccessContext.TEST);
+            assertEquals("2 2", seq.getStringValue());
+            seq = xquery.execute("doc('" + TestConstants.TEST_COLLECTION_URI + "/cache2.xml')//item[ft:query(., 'cabinet')]/@id",
+                null, AccessContext.TEST);
+            assertEquals("3", seq.getStringValue());
+            System.out.println("Test PASSED.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (searcher != null)
+                index.releaseSearcher(searcher);
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void maxHits() {
+        System.out.println("Test max-hits option and document filter ...");
+        DocumentSet docs = configureAndStore(COLLECTION_CONFIG2, XML_TOP_HITS, "top1.xml");
+        configureAndStore(null, XML_TOP_HITS, "top2.xml");
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            assertNotNull(broker);
+            assertTrue(new DocumentSetFilter(docs).equals(new DocumentSetFilter(docs)));
+            LuceneIndex index = (LuceneIndex) pool.getIndexManager().getIndexByName("lucene-index");
+            IndexSearcher searcher = index.getSearcher();
+            try {
+                assertNotNull(DocumentSetFilter.create(docs, searcher.getIndexReader()));
+                // no need to filter if the set contains all indexed documents
+                DocumentSet all = root.allDocs(broker, new DefaultDocumentSet(), true);
+                assertNull(DocumentSetFilter.create(all, searcher.getIndexReader()));
+            } finally {
+                index.releaseSearcher(searcher);
+            }
+
+            XQuery xquery = broker.getXQueryService();
+            assertNotNull(xquery);
+            String doc = "doc('" + TestConstants.TEST_COLLECTION_URI + "/top1.xml')";
+            Sequence seq = xquery.execute("string-join(" + doc + "//item[ft:query(description, 'table')]/@id, ' ')",
+                null, AccessContext.TEST);
+            assertEquals("a b", seq.getStringValue());
+            seq = xquery.execute("string-join(" + doc + "//item[ft:query(description, 'table', " +
+                "<options><max-hits>1</max-hits></options>)]/@id, ' ')", null, AccessContext.TEST);
+            assertEquals("b", seq.getStringValue());
+            seq = xquery.execute("string-join(" + doc + "//item[ft:query(description, 'table', " +
+                "<options><max-hits>5</max-hits></options>)]/@id, ' ')", null, AccessContext.TEST);
+            assertEquals("a b", seq.getStringValue());
+            seq = xquery.execute("count(collection('" + TestConstants.TEST_COLLECTION_URI + "')//item[ft:query(description, " +
+                "'table chair', <options><max-hits>4</max-hits></options>)])", null, AccessContext.TEST);
+            assertEquals("4", seq.getStringValue());
+            try {
+                xquery.execute(doc + "//item[ft:query(description, 'table', <options><max-hits>0</max-hits></options>)]",
+                    null, AccessContext.TEST);
+                fail("max-hits must be positive");
+            } catch (XPathException e) {
+                // expected
+            }
+            System.out.println("Test PASSED.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
     @Test
     public void dropSingleDoc() {
         System.out.println("Test removal of single document ...");
@@ -25,6 +25,9 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -399,6 +402,204 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         return result;
     }
 
+    /**
+     * Searches the given string as a whole. Instead of searching each n-gram separately and
+     * joining the results, the posting lists of the n-grams covering the string are intersected,
+     * starting with the shortest list: only the nodes found in it are decoded from the other lists,
+     * documents not containing any of these nodes are skipped using the length stored with each
+     * document entry. A node matches if its offsets show the n-grams adjacent to each other.
+     *
+     * The lists are read as streams: only their first pages are loaded to compare their lengths.
+     * The other pages of a list are read when it is intersected with the candidates, and not at all
+     * once no candidate is left.
+     *
+     * The string has to be at least n characters long.
+     */
+    public NodeSet searchString(int contextId, DocumentSet docs, List<QName> qnames, String query,
+            XQueryContext context, NodeSet contextSet, int axis) throws XPathException {
+        if (qnames == null || qnames.isEmpty())
+            qnames = getDefinedIndexes(context.getBroker(), docs);
+        final String[] tokens = tokenize(query);
+        final int n = getN();
+        final int last = tokens.length - n;
+        // every n-th n-gram plus the last one cover the whole string
+        final Map<String, int[]> grams = new TreeMap<String, int[]>();
+        final StringBuilder term = new StringBuilder(query.length());
+        for (int i = 0; i < tokens.length; i++) {
+            term.appendCodePoint(tokens[i].codePointAt(0));
+            if ((i % n != 0 && i != last) || i > last)
+                continue;
+            int offset = query.offsetByCodePoints(0, i);
+            int[] positions = grams.get(tokens[i]);
+            if (positions == null) {
+                positions = new int[] { offset };
+            } else {
+                positions = Arrays.copyOf(positions, positions.length + 1);
+                positions[positions.length - 1] = offset;
+            }
+            grams.put(tokens[i], positions);
+        }
+        final String matchTerm = term.toString();
+        final NodeSet result = new ExtArrayNodeSet(docs.getDocumentCount(), 250);
+        for (Iterator<org.exist.collections.Collection> iter = docs.getCollectionIterator(); iter.hasNext();) {
+            final int collectionId = iter.next().getId();
+            for (int i = 0; i < qnames.size(); i++) {
+                QName qname = qnames.get(i);
+                final Lock lock = index.db.getLock();
+                try {
+                    lock.acquire(Lock.READ_LOCK);
+                    List<Postings> postings = new ArrayList<Postings>(grams.size());
+                    for (Map.Entry<String, int[]> gram : grams.entrySet()) {
+                        NGramQNameKey key = new NGramQNameKey(collectionId, qname, index.getBrokerPool().getSymbols(), gram.getKey());
+                        VariableByteInput is = index.db.getAsStream(key);
+                        // an n-gram not occurring in the collection: no need to read the others
+                        if (is == null) {
+                            postings = null;
+                            break;
+                        }
+                        postings.add(new Postings(is, gram.getValue()));
+                    }
+                    if (postings == null)
+                        continue;
+                    Collections.sort(postings);
+                    Map<Integer, Candidates> candidates = readCandidates(postings.get(0), docs, context);
+                    for (int j = 1; j < postings.size() && !candidates.isEmpty(); j++) {
+                        intersect(candidates, postings.get(j), context);
+                    }
+                    for (Candidates docCandidates : candidates.values()) {
+                        docCandidates.addMatches(contextId, matchTerm, contextSet, axis == NodeSet.ANCESTOR, result, context);
+                    }
+                } catch (LockException e) {
+                    LOG.warn("Failed to acquire lock for '" + index.db.getFile().getName() + "'", e);
+                } catch (IOException e) {
+                    LOG.error(e.getMessage() + " in '" + index.db.getFile().getName() + "'", e);
+                } finally {
+                    lock.release(Lock.READ_LOCK);
+                }
+            }
+        }
+
+        result.iterate(); // ensure result is ready to use
+
+        return result;
+    }
+
+    /**
+     * Reads the nodes of the shortest posting list, which are the candidates
+     * for a match of the whole string.
+     */
+    private Map<Integer, Candidates> readCandidates(Postings postings, DocumentSet docs, XQueryContext context)
+            throws IOException, XPathException {
+        final Map<Integer, Candidates> candidates = new HashMap<Integer, Candidates>();
+        final VariableByteInput is = postings.getInput();
+        while (is.available() > 0) {
+            int storedDocId = is.readInt();
+            is.readByte();
+            int occurrences = is.readInt();
+            int length = is.readFixedInt();
+            DocumentImpl storedDocument = docs.getDoc(storedDocId);
+            if (storedDocument == null) {
+                is.skipBytes(length);
+                continue;
+            }
+            Candidates docCandidates = candidates.get(storedDocId);
+            if (docCandidates == null) {
+                docCandidates = new Candidates(storedDocument, occurrences);
+                candidates.put(storedDocId, docCandidates);
+            }
+            NodeId previous = null;
+            for (int m = 0; m < occurrences; m++) {
+                NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromStream(previous, is);
+                previous = nodeId;
+                docCandidates.add(nodeId, readOffsets(is));
+                context.proceed();
+            }
+        }
+        for (Iterator<Candidates> i = candidates.values().iterator(); i.hasNext(); ) {
+            if (!i.next().init(postings.positions))
+                i.remove();
+        }
+        return candidates;
+    }
+
+    /**
+     * Removes the candidates which are not followed or preceded by the n-gram
+     * of the given posting list at the expected offsets.
+     */
+    private void intersect(Map<Integer, Candidates> candidates, Postings postings, XQueryContext context)
+            throws IOException, XPathException {
+        final VariableByteInput is = postings.getInput();
+        while (is.available() > 0) {
+            int storedDocId = is.readInt();
+            is.readByte();
+            int occurrences = is.readInt();
+            int length = is.readFixedInt();
+            Candidates docCandidates = candidates.get(storedDocId);
+            if (docCandidates == null) {
+                is.skipBytes(length);
+                continue;
+            }
+            // node ids are sorted within a document entry: merge them with the candidates
+            int next = 0;
+            NodeId previous = null;
+            for (int m = 0; m < occurrences; m++) {
+                NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromStream(previous, is);
+                previous = nodeId;
+                int freq = is.readInt();
+                next = docCandidates.find(nodeId, next);
+                if (next < docCandidates.count && docCandidates.nodeIds[next].equals(nodeId)) {
+                    docCandidates.collect(next, readOffsets(is, freq));
+                } else
+                    is.skip(freq);
+                context.proceed();
+            }
+        }
+        for (Iterator<Candidates> i = candidates.values().iterator(); i.hasNext(); ) {
+            if (!i.next().retain(postings.positions))
+                i.remove();
+        }
+    }
+
+    private static int[] readOffsets(VariableByteInput is) throws IOException {
+        return readOffsets(is, is.readInt());
+    }
+
+    private static int[] readOffsets(VariableByteInput is, int freq) throws IOException {
+        int[] offsets = new int[freq];
+        for (int n = 0; n < freq; n++) {
+            offsets[n] = is.readInt();
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the start offsets of the string for which the n-gram occurs at all
+     * its positions in the string. If starts is null, all offsets of the n-gram
+     * are tried.
+     */
+    private static int[] matchStarts(int[] starts, int[] offsets, int[] positions) {
+        Arrays.sort(offsets);
+        if (starts == null) {
+            starts = new int[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                starts[i] = offsets[i] - positions[0];
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < starts.length; i++) {
+            int start = starts[i];
+            boolean matches = start >= 0;
+            for (int j = 0; j < positions.length && matches; j++) {
+                matches = Arrays.binarySearch(offsets, start + positions[j]) >= 0;
+            }
+            if (matches)
+                starts[count++] = start;
+        }
+        if (count == 0)
+            return null;
+        return count == starts.length ? starts : Arrays.copyOf(starts, count);
+    }
+
     /**
      * Check index configurations for all collection in the given DocumentSet and return
      * a list of QNames, which have indexes defined on them.
@@ -930,6 +1131,182 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         }
     }
 
+    /**
+     * The posting list of an n-gram and the positions of the n-gram
+     * in the search string.
+     */
+    private static class Postings implements Comparable<Postings> {
+
+        private final VariableByteInput input;
+        private final int[] positions;
+        private final int length;
+
+        public Postings(VariableByteInput input, int[] positions) throws IOException {
+            this.input = input;
+            this.positions = positions;
+            // the bytes available in the first page: the exact length of a list stored in a
+            // single page, while lists spanning several pages fill more than half a page
+            // and thus come after them
+            this.length = input.available();
+        }
+
+        public VariableByteInput getInput() {
+            return input;
+        }
+
+        @Override
+        public int compareTo(Postings other) {
+            return length - other.length;
+        }
+    }
+
+    /**
+     * The nodes of a document which may contain the search string, sorted by node id,
+     * and the offsets at which the string may start in each of them.
+     */
+    private static class Candidates {
+
+        private final DocumentImpl document;
+        private NodeId[] nodeIds;
+        private int[][] offsets;
+        private int[][] starts;
+        private int count = 0;
+
+        public Candidates(DocumentImpl document, int sizeHint) {
+            this.document = document;
+            nodeIds = new NodeId[Math.max(sizeHint, 1)];
+            offsets = new int[nodeIds.length][];
+        }
+
+        public void add(NodeId nodeId, int[] nodeOffsets) {
+            if (count == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            nodeIds[count] = nodeId;
+            offsets[count++] = nodeOffsets;
+        }
+
+        /**
+         * Sorts the nodes read from the shortest posting list and computes
+         * the possible start offsets.
+         *
+         * @return false if no candidate is left
+         */
+        public boolean init(int[] positions) {
+            // a document may have several entries if it was partially reindexed
+            if (!isSorted()) {
+                Integer[] order = new Integer[count];
+                for (int i = 0; i < count; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer i1, Integer i2) {
+                        return nodeIds[i1].compareTo(nodeIds[i2]);
+                    }
+                });
+                NodeId[] sortedIds = new NodeId[count];
+                int[][] sortedOffsets = new int[count][];
+                int sorted = 0;
+                for (int i = 0; i < count; i++) {
+                    NodeId nodeId = nodeIds[order[i]];
+                    if (sorted > 0 && sortedIds[sorted - 1].equals(nodeId)) {
+                        sortedOffsets[sorted - 1] = concat(sortedOffsets[sorted - 1], offsets[order[i]]);
+                    } else {
+                        sortedIds[sorted] = nodeId;
+                        sortedOffsets[sorted++] = offsets[order[i]];
+                    }
+                }
+                nodeIds = sortedIds;
+                offsets = sortedOffsets;
+                count = sorted;
+            }
+            starts = new int[count][];
+            return retain(positions);
+        }
+
+        /**
+         * Returns the index of the first candidate whose node id is not less than
+         * the given one, starting at index from.
+         */
+        public int find(NodeId nodeId, int from) {
+            while (from < count && nodeIds[from].compareTo(nodeId) < 0) {
+                from++;
+            }
+            return from;
+        }
+
+        public void collect(int candidate, int[] nodeOffsets) {
+            offsets[candidate] = offsets[candidate] == null ? nodeOffsets : concat(offsets[candidate], nodeOffsets);
+        }
+
+        /**
+         * Keeps the candidates for which the n-gram was found at the given positions
+         * relative to one of their start offsets.
+         *
+         * @return false if no candidate is left
+         */
+        public boolean retain(int[] positions) {
+            int retained = 0;
+            for (int i = 0; i < count; i++) {
+                int[] nodeStarts = offsets[i] == null ? null : matchStarts(starts[i], offsets[i], positions);
+                if (nodeStarts != null) {
+                    nodeIds[retained] = nodeIds[i];
+                    starts[retained++] = nodeStarts;
+                }
+                offsets[i] = null;
+            }
+            for (int i = retained; i < count; i++) {
+                nodeIds[i] = null;
+                starts[i] = null;
+            }
+            count = retained;
+            return count > 0;
+        }
+
+        public void addMatches(int contextId, String matchTerm, NodeSet contextSet, boolean returnAncestor,
+                NodeSet resultSet, XQueryContext context) throws XPathException {
+            for (int i = 0; i < count; i++) {
+                NodeProxy storedNode = new NodeProxy(document, nodeIds[i]);
+                NodeProxy resultNode = storedNode;
+                int sizeHint = Constants.NO_SIZE_HINT;
+                // if a context set is specified, we can directly check if the
+                // matching node is a descendant of one of the nodes
+                // in the context set.
+                if (contextSet != null) {
+                    sizeHint = contextSet.getSizeHint(document);
+                    if (returnAncestor) {
+                        resultNode = contextSet.parentWithChild(storedNode, false, true, NodeProxy.UNKNOWN_NODE_LEVEL);
+                        if (resultNode == null)
+                            continue;
+                    }
+                }
+                Match match = new NGramMatch(contextId, nodeIds[i], matchTerm, starts[i].length);
+                for (int start : starts[i]) {
+                    match.addOffset(start, matchTerm.length());
+                }
+                resultNode.addMatch(match);
+                resultSet.add(resultNode, sizeHint);
+                context.proceed();
+            }
+        }
+
+        private boolean isSorted() {
+            for (int i = 1; i < count; i++) {
+                if (nodeIds[i - 1].compareTo(nodeIds[i]) >= 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private static int[] concat(int[] a, int[] b) {
+            int[] c = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, c, a.length, b.length);
+            return c;
+        }
+    }
+
     private final class SearchCallback implements BTreeCallback {
 
         private final int contextId;
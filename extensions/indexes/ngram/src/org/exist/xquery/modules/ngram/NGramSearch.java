@@ -483,95 +483,20 @@ public class NGramSearch extends Function implements Optimizable {
     public NodeSet fixedStringSearch(
         final NGramIndexWorker index, final DocumentSet docs, final List<QName> qnames, final String query,
         final NodeSet nodeSet, final int axis) throws XPathException {
-        String[] ngrams = NGramSearch.getDistinctNGrams(query, index.getN());
+        int len = query.codePointCount(0, query.length());
 
         // Nothing to search for? The find nothing.
-        if (ngrams.length == 0)
+        if (len == 0)
             return new EmptyNodeSet();
 
-        String firstNgramm = ngrams[0];
-        LOG.trace("First NGRAM: " + firstNgramm);
-        NodeSet result = index.search(getExpressionId(), docs, qnames, firstNgramm, firstNgramm, context, nodeSet, axis);
-
-        for (int i = 1; i < ngrams.length; i++) {
-            String ngram = ngrams[i];
-            int len = ngram.codePointCount(0, ngram.length());
-            int fillSize = index.getN() - len;
-            String filledNgram = ngram;
-
-            // if this ngram is shorter than n,
-            // fill it up with characters from the previous ngram. too short
-            // ngrams lead to a considerable performance loss.
-            if (fillSize > 0) {
-                String filler = ngrams[i - 1];
-                StringBuilder buf = new StringBuilder();
-                int pos = filler.offsetByCodePoints(0, len);
-                for (int j = 0; j < fillSize; j++) {
-                    int codepoint = filler.codePointAt(pos);
-                    pos += Character.charCount(codepoint);
-                    buf.appendCodePoint(codepoint);
-                }
-                buf.append(ngram);
-                filledNgram = buf.toString();
-                LOG.debug("Filled: " + filledNgram);
-            }
-
-            NodeSet nodes = index.search(getExpressionId(), docs, qnames, filledNgram, ngram, context, nodeSet, axis);
-
-            final NodeSet nodesContainingFirstINgrams = result;
-
-            result = NodeSets.fmapNodes(nodes, new F<NodeProxy, NodeProxy>() {
-
-                @Override
-                public NodeProxy f(NodeProxy a) {
-                    NodeProxy before = nodesContainingFirstINgrams.get(a);
-                    if (before != null) {
-                        return getContinuousMatches(before, a);
-                    } else {
-                        return null;
-                    }
-                }
-            });
+        if (len < index.getN()) {
+            String ngram = NGramSearch.getDistinctNGrams(query, index.getN())[0];
+            return index.search(getExpressionId(), docs, qnames, ngram, ngram, context, nodeSet, axis);
         }
-        return result;
-	}
 
-    /**
-     * Finds all matches in head which are followed by matches in tail in the specified distance.
-     *
-     * @param head
-     *            a nodeset with matches
-     * @param tail
-     *            another nodeset with matches
-     * @return a nodeset containing all matches from the head which are directly followed by matches in the tail
-     */
-    private NodeProxy getContinuousMatches(final NodeProxy head, final NodeProxy tail) {
-        // NodeSet result = new ExtArrayNodeSet();
-        Match continuousMatch = null;
-        
-        Match headMatch = head.getMatches();
-        while (headMatch != null && continuousMatch == null) {
-            Match tailMatch = tail.getMatches();
-            while (tailMatch != null && continuousMatch == null) {
-                continuousMatch = headMatch.continuedBy(tailMatch);
-                tailMatch = tailMatch.getNextMatch();
-            	}
-            headMatch = headMatch.getNextMatch();
-            }
-        if (continuousMatch != null) {
-            NodeProxies.filterMatches(tail, new F<Match, Boolean>() {
-
-                @Override
-                public Boolean f(Match a) {
-                    return (a.getContextId() != getExpressionId());
-        }
-            });
-
-            tail.addMatch(continuousMatch);
-            return tail;
-        }
-        return null;
-    }
+        // longer strings are searched as a whole, intersecting the posting lists of their ngrams
+        return index.searchString(getExpressionId(), docs, qnames, query, context, nodeSet, axis);
+	}
     
     @Override
 	public int getDependencies() {
@@ -23,6 +23,7 @@
  */
 package org.exist.indexing.spatial;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.HashMap;
@@ -62,6 +63,17 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
      */
     protected Connection conn = null;
 
+    /**
+     * The native store of the geometries and their envelopes, which is used
+     * to answer spatial searches
+     */
+    protected SpatialStore store = null;
+
+    /**
+     * Whether a new native store has already been checked against the JDBC database
+     */
+    private boolean storeChecked = false;
+
     /**
      * The spatial operators to test spatial relationshipds beween geometries.
      * See http://www.vividsolutions.com/jts/bin/JTS%20Technical%20Specs.pdf (chapter 11).
@@ -100,9 +112,22 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
         return max_docs_in_context_to_refine_query;
     }
 
+    /**
+     * Returns the native store of the indexed geometries.
+     */
+    public SpatialStore getStore() {
+        return store;
+    }
+
     @Override
     public void open() throws DatabaseConfigurationException {
-        //Nothing particular to do : the connection will be opened on request      
+        //The connection will be opened on request
+        try {
+            store = new SpatialStore(pool, new File(getDataDir()));
+        } catch (DBException e) {
+            throw new DatabaseConfigurationException("Failed to open spatial index files in " + getDataDir() +
+                ": " + e.getMessage());
+        }
     }
 
     @Override
@@ -115,21 +140,30 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
             //Reset state
             worker.setDocument(null, StreamListener.UNKNOWN);
         }
+        store.close();
         shutdownDatabase();
     }
 
-    //Seems to never be used
     @Override
     public void sync() throws DBException {
-        //TODO : something useful here
-        /*
-        try {
-            if (conn != null)
-                conn.commit();
-        } catch (SQLException e) {
-            throw new DBException(e.getMessage());
+        store.sync();
+    }
+
+    /**
+     * Fills a new native store with the geometries of the JDBC database, which is
+     * not empty if the database was indexed by a version without the native store.
+     * Searches would otherwise silently find nothing until the next reindex.
+     * This is done once, by the first worker searching the index.
+     */
+    protected synchronized void checkStore(AbstractGMLJDBCIndexWorker worker) throws SpatialIndexException {
+        if (storeChecked)
+            return;
+        if (store.isNew()) {
+            int count = worker.copyGeometriesToStore();
+            if (count > 0)
+                LOG.info("Copied " + count + " geometries from the JDBC database into the native spatial store");
         }
-        */
+        storeChecked = true;
     }
 
     @Override
@@ -143,6 +177,7 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
             worker.setDocument(null, StreamListener.UNKNOWN);
         }
         removeIndexContent();
+        store.remove();
         shutdownDatabase();
         deleteDatabase();
     }
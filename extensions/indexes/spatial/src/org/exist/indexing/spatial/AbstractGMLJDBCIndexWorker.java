@@ -23,7 +23,9 @@
  */
 package org.exist.indexing.spatial;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKBWriter;
 import com.vividsolutions.jts.io.WKTReader;
@@ -37,7 +39,9 @@ import org.exist.indexing.IndexController;
 import org.exist.indexing.IndexWorker;
 import org.exist.indexing.MatchListener;
 import org.exist.indexing.StreamListener;
+import org.exist.indexing.spatial.AbstractGMLJDBCIndex.SpatialOperator;
 import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
 import org.exist.storage.IndexSpec;
 import org.exist.storage.NodePath;
@@ -47,6 +51,8 @@ import org.exist.util.Base64Encoder;
 import org.exist.util.DatabaseConfigurationException;
 import org.exist.util.Occurrences;
 import org.exist.util.serializer.Receiver;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.TerminatedException;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.AtomicValue;
@@ -84,7 +90,9 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 import java.util.TreeMap;
@@ -335,6 +343,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
                 srsGeometry = entry.getValue();
                 
                 try {
+                    storeGeometry(nodeId, srsGeometry);
                     saveGeometryNode(srsGeometry.getGeometry(), srsGeometry.getSRSName(), 
                             currentDoc, nodeId, ps);
                 } finally {
@@ -351,10 +360,39 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
+    /**
+     * Stores the geometry of a node, transformed to EPSG:4326, in the native
+     * spatial store.
+     */
+    private void storeGeometry(NodeId nodeId, SRSGeometry srsGeometry) throws SQLException {
+        try {
+            Geometry EPSG4326_geometry = transformGeometry(srsGeometry.getGeometry(), srsGeometry.getSRSName(), "EPSG:4326");
+            Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+            index.getStore().store(currentDoc.getDocId(), nodeId, envelope.getMinX(), envelope.getMaxX(),
+                envelope.getMinY(), envelope.getMaxY(), wkbWriter.write(EPSG4326_geometry));
+        } catch (SpatialIndexException e) {
+            //Transforms the exception into an SQLException.
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        } catch (IOException e) {
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        }
+    }
+
     private void dropDocumentNode(Connection conn) throws SQLException {
         if (currentNodeId == null)
             return;
         try {
+            try {
+                index.getStore().remove(currentDoc.getDocId(), currentNodeId);
+            } catch (IOException e) {
+                SQLException ee = new SQLException(e.getMessage());
+                ee.initCause(e);
+                throw ee;
+            }
             boolean removed = removeDocumentNode(currentDoc, currentNodeId, conn);
             if (!removed)
                 LOG.error("No data dropped for node " + currentNodeId.toString() + " from GML index");
@@ -370,6 +408,13 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
     private void removeDocument(Connection conn) throws SQLException {
         if (LOG.isDebugEnabled())
             LOG.debug("Dropping GML index for document " + currentDoc.getURI());
+        try {
+            index.getStore().removeDocument(currentDoc.getDocId());
+        } catch (IOException e) {
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        }
         int nodeCount = removeDocument(currentDoc, conn);
         if (LOG.isDebugEnabled())
             LOG.debug("Dropped " + nodeCount + " nodes from GML index");
@@ -385,6 +430,15 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         if (!isCollectionGMLAware)
             return;
 
+        try {
+            for (Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext();)
+                index.getStore().removeDocument(i.next().getDocId());
+        } catch (PermissionDeniedException e) {
+            LOG.error(e);
+        } catch (IOException e) {
+            LOG.error(e);
+        }
+
         Connection conn = null;
         try {
             conn = acquireConnection();
@@ -405,12 +459,156 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
-    public NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp)
+    /**
+     * Searches the native spatial store. Candidate nodes are selected by the
+     * envelope of their geometry, then the geometries of the candidates in the
+     * context are checked against the spatial operator.
+     *
+     * @param contextSet the context, or null to search the whole index
+     */
+    public NodeSet search(DBBroker broker, final NodeSet contextSet, Geometry EPSG4326_geometry, final int spatialOp)
             throws SpatialIndexException {
+        index.checkStore(this);
+        final Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+        int mode;
+        switch (spatialOp) {
+        //BBoxes are equal
+        case SpatialOperator.EQUALS:
+            mode = RTree.EQUALS;
+            break;
+        //Nothing much we can do with the BBox at this stage : select all geometries
+        case SpatialOperator.DISJOINT:
+            mode = RTree.INTERSECTS;
+            break;
+        //BBoxes intersect themselves
+        case SpatialOperator.INTERSECTS:
+        case SpatialOperator.TOUCHES:
+        case SpatialOperator.CROSSES:
+        case SpatialOperator.OVERLAPS:
+            mode = RTree.INTERSECTS;
+            break;
+        //BBox is fully within
+        case SpatialOperator.WITHIN:
+            mode = RTree.WITHIN;
+            break;
+        //BBox fully contains
+        case SpatialOperator.CONTAINS:
+            mode = RTree.CONTAINS;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
+        }
+        final DocumentSet docs;
+        if (contextSet != null)
+            docs = contextSet.getDocumentSet();
+        else {
+            //contextSet == null should be used to scan the whole index
+            try {
+                docs = broker.getCollection(XmldbURI.ROOT_COLLECTION_URI).allDocs(broker, new DefaultDocumentSet(), true);
+            } catch (PermissionDeniedException e) {
+                throw new SpatialIndexException(e);
+            }
+        }
+        final NodeSet result = new ExtArrayNodeSet();
+        final List<NodeProxy> candidates = new ArrayList<NodeProxy>();
+        try {
+            if (spatialOp == SpatialOperator.DISJOINT)
+                index.getStore().search(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE,
+                    mode, new SpatialStore.Callback() {
+                        public boolean found(int docId, NodeId nodeId, RTree.Entry bbox) {
+                            NodeProxy p = getContextNode(docs, contextSet, docId, nodeId);
+                            if (p != null) {
+                                //No BBox intersection : obviously disjoint
+                                if (bbox.getMaxX() < envelope.getMinX() || bbox.getMinX() > envelope.getMaxX() ||
+                                        bbox.getMaxY() < envelope.getMinY() || bbox.getMinY() > envelope.getMaxY())
+                                    result.add(p);
+                                else
+                                    candidates.add(p);
+                            }
+                            return true;
+                        }
+                    });
+            else
+                index.getStore().search(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(),
+                    mode, new SpatialStore.Callback() {
+                        public boolean found(int docId, NodeId nodeId, RTree.Entry bbox) {
+                            NodeProxy p = getContextNode(docs, contextSet, docId, nodeId);
+                            if (p != null)
+                                candidates.add(p);
+                            return true;
+                        }
+                    });
+            //Possible matches : check the geometries
+            for (NodeProxy p : candidates) {
+                byte[] wkb = index.getStore().getGeometry(p.getDocument().getDocId(), p.getNodeId());
+                if (wkb == null)
+                    continue;
+                Geometry geometry = wkbReader.read(wkb);
+                boolean geometryMatches = false;
+                switch (spatialOp) {
+                case SpatialOperator.EQUALS:
+                    geometryMatches = geometry.equals(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.DISJOINT:
+                    geometryMatches = geometry.disjoint(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.INTERSECTS:
+                    geometryMatches = geometry.intersects(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.TOUCHES:
+                    geometryMatches = geometry.touches(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.CROSSES:
+                    geometryMatches = geometry.crosses(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.WITHIN:
+                    geometryMatches = geometry.within(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.CONTAINS:
+                    geometryMatches = geometry.contains(EPSG4326_geometry);
+                    break;
+                case SpatialOperator.OVERLAPS:
+                    geometryMatches = geometry.overlaps(EPSG4326_geometry);
+                    break;
+                }
+                if (geometryMatches)
+                    result.add(p);
+            }
+        } catch (IOException e) {
+            throw new SpatialIndexException(e);
+        } catch (TerminatedException e) {
+            throw new SpatialIndexException(e);
+        } catch (ParseException e) {
+            //Very unlikely to happen though...
+            throw new SpatialIndexException(e);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(candidates.size() + " eligible geometries, " + result.getItemCount() + " selected");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the node if it is in the context, null otherwise.
+     */
+    private NodeProxy getContextNode(DocumentSet docs, NodeSet contextSet, int docId, NodeId nodeId) {
+        DocumentImpl doc = docs.getDoc(docId);
+        if (doc == null)
+            return null;
+        NodeProxy p = new NodeProxy(doc, nodeId);
+        //contextSet.contains(p) would have made more sense but there is a problem with
+        //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
+        if (contextSet != null && contextSet.get(p) == null)
+            return null;
+        return p;
+    }
+
+    public Geometry getGeometryForNode(DBBroker broker, NodeProxy p, boolean getEPSG4326) 
+            throws  SpatialIndexException {
         Connection conn = null;
-        try { 
+        try {
             conn = acquireConnection();
-            return search(broker, contextSet, EPSG4326_geometry, spatialOp, conn);
+            return getGeometryForNode(broker, p, getEPSG4326, conn);
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
         } finally {
@@ -424,12 +622,16 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
-    public Geometry getGeometryForNode(DBBroker broker, NodeProxy p, boolean getEPSG4326) 
-            throws  SpatialIndexException {
+    /**
+     * Copies the EPSG:4326 geometries of the JDBC database into the native store.
+     *
+     * @return the number of geometries copied
+     */
+    protected int copyGeometriesToStore() throws SpatialIndexException {
         Connection conn = null;
         try {
             conn = acquireConnection();
-            return getGeometryForNode(broker, p, getEPSG4326, conn);
+            return copyGeometriesToStore(broker, conn);
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
         } finally {
@@ -438,7 +640,6 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
                     releaseConnection(conn);
             } catch (SQLException e) {
                 LOG.error(e);
-                return null;
             }
         }
     }
@@ -544,10 +745,10 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
 
     protected abstract Geometry[] getGeometriesForNodes(DBBroker broker, NodeSet contextSet, boolean getEPSG4326, Connection conn) throws SQLException;
 
-    protected abstract NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException;
-
     protected abstract boolean checkIndex(DBBroker broker, Connection conn) throws SQLException, SpatialIndexException;
 
+    protected abstract int copyGeometriesToStore(DBBroker broker, Connection conn) throws SQLException;
+
     protected abstract Connection acquireConnection() throws SQLException;
 
     protected abstract void releaseConnection(Connection conn) throws SQLException;
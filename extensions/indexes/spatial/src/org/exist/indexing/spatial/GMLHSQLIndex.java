@@ -296,6 +296,7 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
 	        is.close();
 	        backup.closeEntry();
         }
+        store.backupToArchive(backup);
 	}
 	
 }
@@ -23,6 +23,7 @@
  */
 package org.exist.indexing.spatial;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -34,14 +35,13 @@ import java.util.TreeMap;
 import org.apache.log4j.Logger;
 import org.exist.collections.Collection;
 import org.exist.dom.DocumentImpl;
-import org.exist.dom.ExtArrayNodeSet;
 import org.exist.dom.NodeProxy;
 import org.exist.dom.NodeSet;
 import org.exist.dom.StoredNode;
-import org.exist.indexing.spatial.AbstractGMLJDBCIndex.SpatialOperator;
 import org.exist.numbering.DLN;
 import org.exist.numbering.NodeId;
 import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
 import org.exist.storage.DBBroker;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.XPathException;
@@ -191,170 +191,6 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         index.releaseConnection(this.broker);
     }
 
-    @Override
-    protected NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException {
-        String extraSelection = null;
-        String bboxConstraint = null;
-
-        //TODO : generate it in AbstractGMLJDBCIndexWorker
-        String docConstraint = "";
-        boolean refine_query_on_doc = false;
-        if (contextSet != null) {
-            if(contextSet.getDocumentSet().getDocumentCount() <= index.getMaxDocsInContextToRefineQuery()) {
-                refine_query_on_doc = true;
-                DocumentImpl doc;
-                Iterator<DocumentImpl> it = contextSet.getDocumentSet().getDocumentIterator();
-                doc  = it.next();
-                docConstraint = "(DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                while(it.hasNext()) {
-                    doc  = it.next();
-                    docConstraint = docConstraint + " OR (DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                }
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Refine query on documents is enabled.");
-                }
-            } else {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Refine query on documents is disabled.");
-                }
-            }
-        }
-
-        switch (spatialOp) {
-        //BBoxes are equal
-        case SpatialOperator.EQUALS:
-            bboxConstraint = "(EPSG4326_MINX = ? AND EPSG4326_MAXX = ?)" +
-                " AND (EPSG4326_MINY = ? AND EPSG4326_MAXY = ?)";
-            break;
-        //Nothing much we can do with the BBox at this stage
-        case SpatialOperator.DISJOINT:
-            //Retrieve the BBox though...
-            extraSelection = ", EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY";
-            break;
-        //BBoxes intersect themselves
-        case SpatialOperator.INTERSECTS:
-        case SpatialOperator.TOUCHES:
-        case SpatialOperator.CROSSES:
-        case SpatialOperator.OVERLAPS:
-            bboxConstraint = "(EPSG4326_MAXX >= ? AND EPSG4326_MINX <= ?)" +
-            " AND (EPSG4326_MAXY >= ? AND EPSG4326_MINY <= ?)";
-            break;
-        //BBox is fully within
-        case SpatialOperator.WITHIN:
-            bboxConstraint = "(EPSG4326_MINX >= ? AND EPSG4326_MAXX <= ?)" +
-            " AND (EPSG4326_MINY >= ? AND EPSG4326_MAXY <= ?)";
-            break;
-        //BBox fully contains
-        case SpatialOperator.CONTAINS: 
-            bboxConstraint = "(EPSG4326_MINX <= ? AND EPSG4326_MAXX >= ?)" +
-            " AND (EPSG4326_MINY <= ? AND EPSG4326_MAXY >= ?)";
-            break;
-        default:
-            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
-        }
-        PreparedStatement ps = conn.prepareStatement(
-            "SELECT EPSG4326_WKB, DOCUMENT_URI, NODE_ID_UNITS, NODE_ID" + (extraSelection == null ? "" : extraSelection) +
-            " FROM " + GMLHSQLIndex.TABLE_NAME + 
-            (bboxConstraint == null ? 
-                (refine_query_on_doc ? " WHERE " + docConstraint : "") : 
-                " WHERE " +	(refine_query_on_doc ? "(" + docConstraint + ") AND " :	"") + bboxConstraint) + ";"
-        );
-        if (bboxConstraint != null) {
-            ps.setDouble(1, EPSG4326_geometry.getEnvelopeInternal().getMinX());
-            ps.setDouble(2, EPSG4326_geometry.getEnvelopeInternal().getMaxX());
-            ps.setDouble(3, EPSG4326_geometry.getEnvelopeInternal().getMinY());
-            ps.setDouble(4, EPSG4326_geometry.getEnvelopeInternal().getMaxY());
-        }
-        ResultSet rs = null;
-        NodeSet result = null;
-        try { 
-            int disjointPostFiltered = 0;
-            rs = ps.executeQuery();
-            result = new ExtArrayNodeSet(); //new ExtArrayNodeSet(docs.getLength(), 250)
-            while (rs.next()) {
-                DocumentImpl doc = null;
-                try {
-                    doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(rs.getString("DOCUMENT_URI")));        			
-                } catch (PermissionDeniedException e) {
-                    LOG.debug(e);
-                    //Ignore since the broker has no right on the document
-                    continue;
-                }
-                //contextSet == null should be used to scan the whole index
-                if (contextSet == null || refine_query_on_doc || contextSet.getDocumentSet().contains(doc.getDocId())) {
-                    NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0); 
-                    NodeProxy p = new NodeProxy(doc, nodeId);
-                    //Node is in the context : check if it is accurate
-                    //contextSet.contains(p) would have made more sense but there is a problem with
-                    //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
-                    if (contextSet == null || contextSet.get(p) != null) {
-                        boolean geometryMatches = false;
-                        if (spatialOp == SpatialOperator.DISJOINT) {
-                            //No BBox intersection : obviously disjoint
-                            if (rs.getDouble("EPSG4326_MAXX") < EPSG4326_geometry.getEnvelopeInternal().getMinX() ||
-                                rs.getDouble("EPSG4326_MINX") > EPSG4326_geometry.getEnvelopeInternal().getMaxX() ||
-                                rs.getDouble("EPSG4326_MAXY") < EPSG4326_geometry.getEnvelopeInternal().getMinY() ||
-                                rs.getDouble("EPSG4326_MINY") > EPSG4326_geometry.getEnvelopeInternal().getMaxY()) {
-                                geometryMatches = true;
-                                disjointPostFiltered++;	
-                            }
-                        }
-                        //Possible match : check the geometry
-                        if (!geometryMatches) {	
-                            try {
-                                Geometry geometry = wkbReader.read(rs.getBytes("EPSG4326_WKB"));
-                                switch (spatialOp) {
-                                case SpatialOperator.EQUALS:
-                                    geometryMatches = geometry.equals(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.DISJOINT:
-                                    geometryMatches = geometry.disjoint(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.INTERSECTS:
-                                    geometryMatches = geometry.intersects(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.TOUCHES:
-                                    geometryMatches = geometry.touches(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.CROSSES:
-                                    geometryMatches = geometry.crosses(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.WITHIN:
-                                    geometryMatches = geometry.within(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.CONTAINS:
-                                    geometryMatches = geometry.contains(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.OVERLAPS:
-                                    geometryMatches = geometry.overlaps(EPSG4326_geometry);
-                                    break;
-                                }
-                            } catch (ParseException e) {
-                                //Transforms the exception into an SQLException.
-                                //Very unlikely to happen though...
-                                SQLException ee = new SQLException(e.getMessage());
-                                ee.initCause(e);
-                                throw ee;
-                            }
-                        }
-                        if (geometryMatches)
-                            result.add(p);
-                    }
-                }
-            }
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(rs.getRow() + " eligible geometries, " + result.getItemCount() + "selected" +
-                    (spatialOp == SpatialOperator.DISJOINT ? "(" + disjointPostFiltered + " post filtered)" : ""));
-            }
-            return result;
-        } finally {
-            if (rs != null)
-                rs.close();
-            if (ps != null)
-                ps.close();
-        }
-    }
-
     @Override
     protected Map<Geometry, String> getGeometriesForDocument(DocumentImpl doc, Connection conn) throws SQLException {       	
         PreparedStatement ps = conn.prepareStatement(
@@ -617,6 +453,58 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         }
     }
 
+    @Override
+    protected int copyGeometriesToStore(DBBroker broker, Connection conn) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT DOCUMENT_URI, NODE_ID_UNITS, NODE_ID, EPSG4326_WKB," +
+            " EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY" +
+            " FROM " + GMLHSQLIndex.TABLE_NAME + " ORDER BY DOCUMENT_URI;"
+        );
+        ResultSet rs = null;
+        //Copy the geometries of all the documents, whatever the permissions of the current user
+        Subject currentSubject = broker.getSubject();
+        try {
+            broker.setSubject(broker.getBrokerPool().getSecurityManager().getSystemSubject());
+            rs = ps.executeQuery();
+            int count = 0;
+            String uri = null;
+            DocumentImpl doc = null;
+            while (rs.next()) {
+                //Rows are sorted by document : only look up the document when it changes
+                if (!rs.getString("DOCUMENT_URI").equals(uri)) {
+                    uri = rs.getString("DOCUMENT_URI");
+                    try {
+                        doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(uri));
+                    } catch (PermissionDeniedException e) {
+                        //Should not happen with the system subject
+                        LOG.warn(e);
+                        doc = null;
+                    }
+                }
+                //Stale rows of removed documents are skipped
+                if (doc == null)
+                    continue;
+                NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0);
+                index.getStore().store(doc.getDocId(), nodeId,
+                    rs.getDouble("EPSG4326_MINX"), rs.getDouble("EPSG4326_MAXX"),
+                    rs.getDouble("EPSG4326_MINY"), rs.getDouble("EPSG4326_MAXY"),
+                    rs.getBytes("EPSG4326_WKB"));
+                count++;
+            }
+            return count;
+        } catch (IOException e) {
+            //Transforms the exception into an SQLException.
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        } finally {
+            broker.setSubject(currentSubject);
+            if (rs != null)
+                rs.close();
+            ps.close();
+        }
+    }
+
     @Override
     protected boolean checkIndex(DBBroker broker, Connection conn) throws SQLException {
         PreparedStatement ps = conn.prepareStatement(
@@ -0,0 +1,795 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.indexing.spatial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.Paged;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.util.ByteConversion;
+import org.exist.util.Lockable;
+import org.exist.xquery.TerminatedException;
+
+/**
+ * A paged R-tree over two dimensional envelopes. Each leaf entry associates an
+ * envelope with a binary key.
+ *
+ * An empty tree can be bulk loaded with the sort-tile-recursive (STR) algorithm,
+ * which packs the entries into nearly full nodes with little overlap, see
+ * {@link BulkLoader}. Entries are
+ * added and removed incrementally afterwards: a node which overflows is split along
+ * the axis with the larger spread of entry centers, empty nodes are removed from
+ * their parent.
+ *
+ * Nodes are written to their page as soon as they are modified, a limited number of
+ * decoded nodes is cached. The tree does not lock itself: callers have to acquire the
+ * lock returned by {@link #getLock()}.
+ */
+public class RTree extends Paged implements Lockable {
+
+    public final static short FILE_FORMAT_VERSION_ID = 1;
+
+    /** Search mode: the envelope of the entry intersects the search envelope */
+    public final static int INTERSECTS = 0;
+    /** Search mode: the envelope of the entry is within the search envelope */
+    public final static int WITHIN = 1;
+    /** Search mode: the envelope of the entry contains the search envelope */
+    public final static int CONTAINS = 2;
+    /** Search mode: the envelope of the entry equals the search envelope */
+    public final static int EQUALS = 3;
+
+    private final static byte LEAF = 1;
+    private final static byte BRANCH = 2;
+
+    private final static int ENVELOPE_LENGTH = 32;
+    private final static int BRANCH_ENTRY_LENGTH = ENVELOPE_LENGTH + 8;
+    private final static int NODE_HEADER_LENGTH = 3;
+
+    /** fill factor of the nodes created by a bulk load */
+    private final static double BULK_LOAD_FILL = 0.85;
+    /** number of entries a bulk load keeps in memory */
+    private final static int BULK_LOAD_CHUNK = 50000;
+
+    private final static int CACHE_SIZE = 512;
+
+    private final RTreeFileHeader fileHeader;
+    private final Lock lock;
+    private final int workSize;
+
+    private final Map<Long, Node> cache = new LinkedHashMap<Long, Node>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public RTree(BrokerPool pool, File file) throws DBException {
+        super(pool);
+        fileHeader = (RTreeFileHeader) getFileHeader();
+        fileHeader.setPageCount(0);
+        fileHeader.setTotalCount(0);
+        workSize = fileHeader.getWorkSize();
+        lock = new ReentrantReadWriteLock(file.getName());
+        setFile(file);
+        if (exists())
+            open(FILE_FORMAT_VERSION_ID);
+        else {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Creating R-tree file: " + file.getName());
+            create();
+        }
+    }
+
+    @Override
+    public short getFileVersion() {
+        return FILE_FORMAT_VERSION_ID;
+    }
+
+    public Lock getLock() {
+        return lock;
+    }
+
+    @Override
+    public boolean create() throws DBException {
+        if (!super.create())
+            return false;
+        try {
+            Node root = new Node(getFreePage().getPageNum(), true);
+            writeNode(root);
+            fileHeader.setRootPage(root.pageNum);
+            fileHeader.write();
+        } catch (IOException e) {
+            throw new DBException("Error while creating R-tree root: " + e.getMessage());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close() throws DBException {
+        flush();
+        clearCache();
+        return super.close();
+    }
+
+    @Override
+    public void closeAndRemove() {
+        clearCache();
+        super.closeAndRemove();
+    }
+
+    @Override
+    public FileHeader createFileHeader(int pageSize) {
+        return new RTreeFileHeader(pageSize);
+    }
+
+    @Override
+    public PageHeader createPageHeader() {
+        return new RTreePageHeader();
+    }
+
+    /**
+     * Returns the number of entries in the tree.
+     */
+    public long getEntryCount() {
+        return fileHeader.getRecordCount();
+    }
+
+    public boolean isEmpty() throws IOException {
+        Node root = getNode(fileHeader.getRootPage());
+        return root.leaf && root.entries.isEmpty();
+    }
+
+    /**
+     * Inserts an entry.
+     */
+    public void insert(Entry entry) throws IOException {
+        checkKey(entry);
+        try {
+            Node root = getNode(fileHeader.getRootPage());
+            Node sibling = insert(root, entry);
+            if (sibling != null)
+                growRoot(root, sibling);
+            fileHeader.incRecordCount();
+        } catch (IOException e) {
+            clearCache();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the entry with the given envelope and key.
+     *
+     * @return true if the entry was found
+     */
+    public boolean remove(Entry entry) throws IOException {
+        try {
+            Node root = getNode(fileHeader.getRootPage());
+            if (!remove(root, entry))
+                return false;
+            fileHeader.decRecordCount();
+            // shrink the tree while the root has a single child
+            while (!root.leaf && root.entries.size() == 1) {
+                Node child = getNode(root.entries.get(0).child);
+                freeNode(root);
+                root = child;
+                fileHeader.setRootPage(root.pageNum);
+            }
+            if (!root.leaf && root.entries.isEmpty()) {
+                root.leaf = true;
+                writeNode(root);
+            }
+            return true;
+        } catch (IOException e) {
+            clearCache();
+            throw e;
+        }
+    }
+
+    /**
+     * Reports all entries matching the search envelope in the given mode
+     * to the callback.
+     *
+     * @param search the search envelope, its key is ignored
+     * @param mode one of {@link #INTERSECTS}, {@link #WITHIN}, {@link #CONTAINS} or {@link #EQUALS}
+     * @param callback receives the matching entries
+     */
+    public void search(Entry search, int mode, Callback callback) throws IOException, TerminatedException {
+        List<Long> stack = new ArrayList<Long>();
+        stack.add(fileHeader.getRootPage());
+        while (!stack.isEmpty()) {
+            Node node = getNode(stack.remove(stack.size() - 1));
+            for (Entry entry : node.entries) {
+                if (node.leaf) {
+                    if (matches(entry, search, mode) && !callback.found(entry))
+                        return;
+                } else {
+                    boolean descend = mode == INTERSECTS || mode == WITHIN ?
+                        entry.intersects(search) : entry.contains(search);
+                    if (descend)
+                        stack.add(entry.child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the given entries into an empty tree, using the sort-tile-recursive
+     * algorithm.
+     */
+    public void bulkLoad(List<Entry> entries) throws IOException {
+        BulkLoader loader = startBulkLoad(Math.max(1, entries.size()));
+        for (Entry entry : entries)
+            loader.add(entry);
+        loader.finish();
+    }
+
+    /**
+     * Starts a bulk load of an empty tree. The entries are passed to the returned
+     * loader one at a time.
+     */
+    public BulkLoader startBulkLoad() throws IOException {
+        return startBulkLoad(BULK_LOAD_CHUNK);
+    }
+
+    BulkLoader startBulkLoad(int chunkSize) throws IOException {
+        if (!isEmpty())
+            throw new IOException("R-tree " + getFile().getName() + " is not empty");
+        return new BulkLoader(chunkSize);
+    }
+
+    private boolean matches(Entry entry, Entry search, int mode) {
+        switch (mode) {
+            case INTERSECTS:
+                return entry.intersects(search);
+            case WITHIN:
+                return search.contains(entry);
+            case CONTAINS:
+                return entry.contains(search);
+            case EQUALS:
+                return entry.sameEnvelope(search);
+            default:
+                throw new IllegalArgumentException("Unknown search mode: " + mode);
+        }
+    }
+
+    private void checkKey(Entry entry) throws IOException {
+        if (entry.key == null || ENVELOPE_LENGTH + 2 + entry.key.length > workSize / 4)
+            throw new IOException("Invalid key for R-tree " + getFile().getName());
+    }
+
+    private Node insert(Node node, Entry entry) throws IOException {
+        if (node.leaf)
+            node.entries.add(entry);
+        else {
+            Entry childEntry = chooseSubtree(node, entry);
+            Node child = getNode(childEntry.child);
+            Node sibling = insert(child, entry);
+            if (sibling == null)
+                childEntry.extend(entry);
+            else {
+                childEntry.setEnvelope(child.getBounds());
+                node.entries.add(sibling.getBounds());
+            }
+        }
+        if (node.getDataLength() > workSize)
+            return split(node);
+        writeNode(node);
+        return null;
+    }
+
+    /**
+     * Returns the entry of the child whose envelope needs the least
+     * enlargement to include the new entry.
+     */
+    private Entry chooseSubtree(Node node, Entry entry) {
+        Entry best = null;
+        double bestEnlargement = 0;
+        double bestArea = 0;
+        for (Entry candidate : node.entries) {
+            double area = candidate.area();
+            double enlargement = candidate.areaWith(entry) - area;
+            if (best == null || enlargement < bestEnlargement ||
+                    (enlargement == bestEnlargement && area < bestArea)) {
+                best = candidate;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    private void growRoot(Node root, Node sibling) throws IOException {
+        Node newRoot = new Node(getFreePage().getPageNum(), false);
+        newRoot.entries.add(root.getBounds());
+        newRoot.entries.add(sibling.getBounds());
+        writeNode(newRoot);
+        fileHeader.setRootPage(newRoot.pageNum);
+    }
+
+    /**
+     * Splits an overflowing node. The entries are sorted by their centers along the
+     * axis with the larger spread, the node keeps the first half of the data and the
+     * returned new node gets the rest. Both nodes are written.
+     */
+    private Node split(Node node) throws IOException {
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Entry entry : node.entries) {
+            minX = Math.min(minX, entry.centerX());
+            maxX = Math.max(maxX, entry.centerX());
+            minY = Math.min(minY, entry.centerY());
+            maxY = Math.max(maxY, entry.centerY());
+        }
+        Collections.sort(node.entries, maxX - minX >= maxY - minY ? X_ORDER : Y_ORDER);
+        int half = node.getDataLength() / 2;
+        int length = NODE_HEADER_LENGTH;
+        int splitPoint = 0;
+        while (splitPoint < node.entries.size() - 1) {
+            length += node.getEntryLength(node.entries.get(splitPoint));
+            if (length > half)
+                break;
+            splitPoint++;
+        }
+        if (splitPoint == 0)
+            splitPoint = 1;
+        Node sibling = new Node(getFreePage().getPageNum(), node.leaf);
+        List<Entry> moved = node.entries.subList(splitPoint, node.entries.size());
+        sibling.entries.addAll(moved);
+        moved.clear();
+        writeNode(node);
+        writeNode(sibling);
+        return sibling;
+    }
+
+    private boolean remove(Node node, Entry entry) throws IOException {
+        if (node.leaf) {
+            for (int i = 0; i < node.entries.size(); i++) {
+                Entry candidate = node.entries.get(i);
+                if (candidate.sameEnvelope(entry) && Arrays.equals(candidate.key, entry.key)) {
+                    node.entries.remove(i);
+                    writeNode(node);
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int i = 0; i < node.entries.size(); i++) {
+            Entry childEntry = node.entries.get(i);
+            if (!childEntry.contains(entry))
+                continue;
+            Node child = getNode(childEntry.child);
+            if (remove(child, entry)) {
+                if (child.entries.isEmpty()) {
+                    node.entries.remove(i);
+                    freeNode(child);
+                } else
+                    childEntry.setEnvelope(child.getBounds());
+                writeNode(node);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Packs the entries into a level of new nodes: the entries are sorted into
+     * vertical slices by the x coordinate of their centers, each slice is sorted by
+     * the y coordinate and cut into nodes.
+     */
+    private List<Node> pack(List<Entry> entries, boolean leaf) throws IOException {
+        int limit = (int) (workSize * BULK_LOAD_FILL);
+        long totalLength = 0;
+        for (Entry entry : entries)
+            totalLength += leaf ? leafEntryLength(entry) : BRANCH_ENTRY_LENGTH;
+        int perNode = Math.max(2, (int) ((limit - NODE_HEADER_LENGTH) / (totalLength / entries.size())));
+        int nodeCount = (entries.size() + perNode - 1) / perNode;
+        int slices = (int) Math.ceil(Math.sqrt(nodeCount));
+        int sliceSize = slices * perNode;
+
+        Collections.sort(entries, X_ORDER);
+        List<Node> nodes = new ArrayList<Node>(nodeCount);
+        for (int start = 0; start < entries.size(); start += sliceSize) {
+            List<Entry> slice = entries.subList(start, Math.min(start + sliceSize, entries.size()));
+            Collections.sort(slice, Y_ORDER);
+            Node node = null;
+            int length = 0;
+            for (Entry entry : slice) {
+                int entryLength = leaf ? leafEntryLength(entry) : BRANCH_ENTRY_LENGTH;
+                if (node != null && length + entryLength > limit) {
+                    writeNode(node);
+                    node = null;
+                }
+                if (node == null) {
+                    node = new Node(getFreePage().getPageNum(), leaf);
+                    nodes.add(node);
+                    length = NODE_HEADER_LENGTH;
+                }
+                node.entries.add(entry);
+                length += entryLength;
+            }
+            if (node != null)
+                writeNode(node);
+        }
+        return nodes;
+    }
+
+    private static int leafEntryLength(Entry entry) {
+        return ENVELOPE_LENGTH + 2 + entry.key.length;
+    }
+
+    private Node getNode(long pageNum) throws IOException {
+        Node node;
+        synchronized (cache) {
+            node = cache.get(pageNum);
+        }
+        if (node != null)
+            return node;
+        Page page = getPage(pageNum);
+        byte[] data = page.read();
+        if (data.length < NODE_HEADER_LENGTH)
+            throw new IOException("Invalid R-tree page " + pageNum + " in " + getFile().getName());
+        node = new Node(pageNum, data[0] == LEAF);
+        int count = ByteConversion.byteToShort(data, 1);
+        int offset = NODE_HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(
+                Double.longBitsToDouble(ByteConversion.byteToLong(data, offset)),
+                Double.longBitsToDouble(ByteConversion.byteToLong(data, offset + 8)),
+                Double.longBitsToDouble(ByteConversion.byteToLong(data, offset + 16)),
+                Double.longBitsToDouble(ByteConversion.byteToLong(data, offset + 24)));
+            offset += ENVELOPE_LENGTH;
+            if (node.leaf) {
+                int len = ByteConversion.byteToShort(data, offset);
+                offset += 2;
+                entry.key = new byte[len];
+                System.arraycopy(data, offset, entry.key, 0, len);
+                offset += len;
+            } else {
+                entry.child = ByteConversion.byteToLong(data, offset);
+                offset += 8;
+            }
+            node.entries.add(entry);
+        }
+        synchronized (cache) {
+            cache.put(pageNum, node);
+        }
+        return node;
+    }
+
+    private void writeNode(Node node) throws IOException {
+        byte[] data = new byte[node.getDataLength()];
+        data[0] = node.leaf ? LEAF : BRANCH;
+        ByteConversion.shortToByte((short) node.entries.size(), data, 1);
+        int offset = NODE_HEADER_LENGTH;
+        for (Entry entry : node.entries) {
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.minX), data, offset);
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.maxX), data, offset + 8);
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.minY), data, offset + 16);
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.maxY), data, offset + 24);
+            offset += ENVELOPE_LENGTH;
+            if (node.leaf) {
+                ByteConversion.shortToByte((short) entry.key.length, data, offset);
+                offset += 2;
+                System.arraycopy(entry.key, 0, data, offset, entry.key.length);
+                offset += entry.key.length;
+            } else {
+                ByteConversion.longToByte(entry.child, data, offset);
+                offset += 8;
+            }
+        }
+        Page page = getPage(node.pageNum);
+        page.getPageHeader().setStatus(node.leaf ? LEAF : BRANCH);
+        writeValue(page, data);
+        synchronized (cache) {
+            cache.put(node.pageNum, node);
+        }
+    }
+
+    private void freeNode(Node node) throws IOException {
+        synchronized (cache) {
+            cache.remove(node.pageNum);
+        }
+        unlinkPages(node.pageNum);
+    }
+
+    private void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private final static Comparator<Entry> X_ORDER = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return Double.compare(e1.minX + e1.maxX, e2.minX + e2.maxX);
+        }
+    };
+
+    private final static Comparator<Entry> Y_ORDER = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return Double.compare(e1.minY + e1.maxY, e2.minY + e2.maxY);
+        }
+    };
+
+    /**
+     * Bulk loads an empty tree with a bounded number of entries in memory. The
+     * entries are collected in chunks; the leaves of a full chunk are packed and
+     * written, only their bounds are kept. {@link #finish()} packs the upper levels
+     * from the bounds of all leaves.
+     *
+     * The leaves are only tiled within a chunk. This costs little if the entries
+     * are added in a spatially clustered order, e.g. document by document.
+     */
+    public final class BulkLoader {
+
+        private final int chunkSize;
+        private final List<Entry> chunk = new ArrayList<Entry>();
+        private final List<Entry> leaves = new ArrayList<Entry>();
+        private long count = 0;
+
+        private BulkLoader(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public void add(Entry entry) throws IOException {
+            checkKey(entry);
+            chunk.add(entry);
+            if (chunk.size() >= chunkSize)
+                packChunk();
+        }
+
+        /**
+         * Packs the remaining entries and the upper levels of the tree.
+         *
+         * @return the number of entries loaded
+         */
+        public long finish() throws IOException {
+            packChunk();
+            if (leaves.isEmpty())
+                return 0;
+            try {
+                List<Entry> level = leaves;
+                while (level.size() > 1) {
+                    List<Node> nodes = pack(level, false);
+                    level = new ArrayList<Entry>(nodes.size());
+                    for (Node node : nodes)
+                        level.add(node.getBounds());
+                }
+                Node oldRoot = getNode(fileHeader.getRootPage());
+                fileHeader.setRootPage(level.get(0).child);
+                freeNode(oldRoot);
+                fileHeader.setRecordCount(fileHeader.getRecordCount() + count);
+                fileHeader.write();
+            } catch (IOException e) {
+                clearCache();
+                throw e;
+            }
+            leaves.clear();
+            return count;
+        }
+
+        private void packChunk() throws IOException {
+            if (chunk.isEmpty())
+                return;
+            try {
+                for (Node node : pack(chunk, true))
+                    leaves.add(node.getBounds());
+            } catch (IOException e) {
+                clearCache();
+                throw e;
+            }
+            count += chunk.size();
+            chunk.clear();
+        }
+    }
+
+    /**
+     * Receives the entries found by a search.
+     */
+    public interface Callback {
+
+        /**
+         * @return false to stop the search
+         */
+        boolean found(Entry entry) throws TerminatedException;
+    }
+
+    /**
+     * An envelope with either a key (in a leaf) or the page of a child node.
+     */
+    public static class Entry {
+
+        private double minX;
+        private double maxX;
+        private double minY;
+        private double maxY;
+        private byte[] key = null;
+        private long child = Page.NO_PAGE;
+
+        public Entry(double minX, double maxX, double minY, double maxY) {
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+
+        public Entry(double minX, double maxX, double minY, double maxY, byte[] key) {
+            this(minX, maxX, minY, maxY);
+            this.key = key;
+        }
+
+        public double getMinX() {
+            return minX;
+        }
+
+        public double getMaxX() {
+            return maxX;
+        }
+
+        public double getMinY() {
+            return minY;
+        }
+
+        public double getMaxY() {
+            return maxY;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        boolean intersects(Entry other) {
+            return maxX >= other.minX && minX <= other.maxX && maxY >= other.minY && minY <= other.maxY;
+        }
+
+        boolean contains(Entry other) {
+            return minX <= other.minX && maxX >= other.maxX && minY <= other.minY && maxY >= other.maxY;
+        }
+
+        boolean sameEnvelope(Entry other) {
+            return minX == other.minX && maxX == other.maxX && minY == other.minY && maxY == other.maxY;
+        }
+
+        double centerX() {
+            return (minX + maxX) / 2;
+        }
+
+        double centerY() {
+            return (minY + maxY) / 2;
+        }
+
+        double area() {
+            return (maxX - minX) * (maxY - minY);
+        }
+
+        double areaWith(Entry other) {
+            return (Math.max(maxX, other.maxX) - Math.min(minX, other.minX)) *
+                (Math.max(maxY, other.maxY) - Math.min(minY, other.minY));
+        }
+
+        void extend(Entry other) {
+            minX = Math.min(minX, other.minX);
+            maxX = Math.max(maxX, other.maxX);
+            minY = Math.min(minY, other.minY);
+            maxY = Math.max(maxY, other.maxY);
+        }
+
+        void setEnvelope(Entry other) {
+            minX = other.minX;
+            maxX = other.maxX;
+            minY = other.minY;
+            maxY = other.maxY;
+        }
+    }
+
+    private final class Node {
+
+        private final long pageNum;
+        private boolean leaf;
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        private Node(long pageNum, boolean leaf) {
+            this.pageNum = pageNum;
+            this.leaf = leaf;
+        }
+
+        private int getEntryLength(Entry entry) {
+            return leaf ? leafEntryLength(entry) : BRANCH_ENTRY_LENGTH;
+        }
+
+        private int getDataLength() {
+            int length = NODE_HEADER_LENGTH;
+            for (Entry entry : entries)
+                length += getEntryLength(entry);
+            return length;
+        }
+
+        /**
+         * Returns a branch entry pointing to this node, with the envelope
+         * of all its entries.
+         */
+        private Entry getBounds() {
+            Entry bounds = null;
+            for (Entry entry : entries) {
+                if (bounds == null)
+                    bounds = new Entry(entry.minX, entry.maxX, entry.minY, entry.maxY);
+                else
+                    bounds.extend(entry);
+            }
+            if (bounds == null)
+                bounds = new Entry(0, 0, 0, 0);
+            bounds.child = pageNum;
+            return bounds;
+        }
+    }
+
+    private final class RTreeFileHeader extends FileHeader {
+
+        private long rootPage = 0;
+
+        private RTreeFileHeader(int pageSize) {
+            super(1024, pageSize);
+        }
+
+        @Override
+        public int read(byte[] buf) throws IOException {
+            int offset = super.read(buf);
+            rootPage = ByteConversion.byteToLong(buf, offset);
+            return offset + 8;
+        }
+
+        @Override
+        public int write(byte[] buf) throws IOException {
+            int offset = super.write(buf);
+            ByteConversion.longToByte(rootPage, buf, offset);
+            return offset + 8;
+        }
+
+        private long getRootPage() {
+            return rootPage;
+        }
+
+        private void setRootPage(long rootPage) {
+            this.rootPage = rootPage;
+            setDirty(true);
+        }
+    }
+
+    private final static class RTreePageHeader extends PageHeader {
+
+        private RTreePageHeader() {
+            super();
+        }
+    }
+}
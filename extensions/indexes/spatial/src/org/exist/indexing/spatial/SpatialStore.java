@@ -0,0 +1,338 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.indexing.spatial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.exist.backup.RawDataBackup;
+import org.exist.numbering.NodeId;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.btree.BTreeCallback;
+import org.exist.storage.btree.BTreeException;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.index.BFile;
+import org.exist.storage.io.VariableByteInput;
+import org.exist.storage.lock.Lock;
+import org.exist.util.ByteConversion;
+import org.exist.util.LockException;
+import org.exist.util.ReadOnlyException;
+import org.exist.xquery.TerminatedException;
+
+/**
+ * Native storage for the indexed geometries. The EPSG:4326 envelopes are kept in an
+ * {@link RTree}, the geometries themselves, as WKB, in a {@link BFile}. Both use the
+ * same key: the document id followed by the node id.
+ *
+ * Like the other secondary index files, both files are not journaled: they are
+ * rebuilt by reindexing when the database is repaired after a crash. If only the
+ * R-tree file is lost, it is bulk loaded from the geometry file when opened. If the
+ * geometry file is missing too, the store is new and has to be filled by the index,
+ * see {@link #isNew()}.
+ */
+public class SpatialStore {
+
+    private final static Logger LOG = Logger.getLogger(SpatialStore.class);
+
+    public final static String RTREE_FILE = "spatial_rtree.dbx";
+    public final static String GEOMETRIES_FILE = "spatial_geometries.dbx";
+
+    private final static int ENVELOPE_LENGTH = 32;
+
+    private final BrokerPool pool;
+    private final RTree rtree;
+    private final BFile geometries;
+    private final Lock lock;
+    private final boolean isNew;
+
+    public SpatialStore(BrokerPool pool, File dataDir) throws DBException {
+        this.pool = pool;
+        File rtreeFile = new File(dataDir, RTREE_FILE);
+        File geometriesFile = new File(dataDir, GEOMETRIES_FILE);
+        boolean rebuild = !rtreeFile.exists();
+        isNew = !geometriesFile.exists();
+        geometries = new BFile(pool, (byte) 0, false, geometriesFile,
+            pool.getCacheManager(), 1.4, 0.01, 0.07);
+        rtree = new RTree(pool, rtreeFile);
+        lock = rtree.getLock();
+        if (rebuild)
+            rebuild();
+    }
+
+    /**
+     * Returns true if the geometry file did not exist when the store was opened,
+     * e.g. for a database indexed by a version without the native store, whose
+     * geometries are only in the JDBC database.
+     */
+    public boolean isNew() {
+        return isNew;
+    }
+
+    /**
+     * Callback receiving the nodes found by a search.
+     */
+    public interface Callback {
+
+        /**
+         * @param envelope the envelope of the node's geometry
+         * @return false to stop the search
+         */
+        boolean found(int docId, NodeId nodeId, RTree.Entry envelope) throws TerminatedException;
+    }
+
+    /**
+     * Stores the geometry of a node, replacing the previous one.
+     *
+     * @param wkb the geometry in EPSG:4326, as WKB
+     */
+    public void store(int docId, NodeId nodeId, double minX, double maxX, double minY, double maxY,
+            byte[] wkb) throws IOException {
+        Value key = new Value(createKey(docId, nodeId));
+        byte[] data = new byte[ENVELOPE_LENGTH + wkb.length];
+        ByteConversion.longToByte(Double.doubleToLongBits(minX), data, 0);
+        ByteConversion.longToByte(Double.doubleToLongBits(maxX), data, 8);
+        ByteConversion.longToByte(Double.doubleToLongBits(minY), data, 16);
+        ByteConversion.longToByte(Double.doubleToLongBits(maxY), data, 24);
+        System.arraycopy(wkb, 0, data, ENVELOPE_LENGTH, wkb.length);
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            Value old = geometries.get(key);
+            if (old != null)
+                rtree.remove(getEnvelope(key, old));
+            if (geometries.put(key, data, true) == BFile.UNKNOWN_ADDRESS)
+                throw new IOException("Failed to store geometry in " + geometries.getFile().getName());
+            rtree.insert(new RTree.Entry(minX, maxX, minY, maxY, key.getData()));
+        } catch (ReadOnlyException e) {
+            throw new IOException("Failed to store geometry: " + e.getMessage());
+        } catch (LockException e) {
+            throw new IOException("Failed to acquire lock for " + rtree.getFile().getName());
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Removes the geometry of a node.
+     *
+     * @return true if the node had a geometry
+     */
+    public boolean remove(int docId, NodeId nodeId) throws IOException {
+        Value key = new Value(createKey(docId, nodeId));
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            Value old = geometries.get(key);
+            if (old == null)
+                return false;
+            rtree.remove(getEnvelope(key, old));
+            geometries.remove(key);
+            return true;
+        } catch (LockException e) {
+            throw new IOException("Failed to acquire lock for " + rtree.getFile().getName());
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Removes the geometries of all nodes of a document.
+     */
+    public void removeDocument(int docId) throws IOException {
+        byte[] prefix = new byte[4];
+        ByteConversion.intToByte(docId, prefix, 0);
+        IndexQuery query = new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(prefix));
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            List<Value> entries = geometries.findEntries(query);
+            for (int i = 0; i + 1 < entries.size(); i += 2)
+                rtree.remove(getEnvelope(entries.get(i), entries.get(i + 1)));
+            geometries.removeAll(null, query);
+        } catch (BTreeException e) {
+            throw new IOException("Failed to remove geometries of document " + docId + ": " + e.getMessage());
+        } catch (TerminatedException e) {
+            throw new IOException("Failed to remove geometries of document " + docId + ": " + e.getMessage());
+        } catch (LockException e) {
+            throw new IOException("Failed to acquire lock for " + rtree.getFile().getName());
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Reports the nodes whose envelope matches the search envelope to the callback.
+     *
+     * @param mode one of the search modes of {@link RTree}
+     */
+    public void search(double minX, double maxX, double minY, double maxY, int mode, final Callback callback)
+            throws IOException, TerminatedException {
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            rtree.search(new RTree.Entry(minX, maxX, minY, maxY), mode, new RTree.Callback() {
+                public boolean found(RTree.Entry entry) throws TerminatedException {
+                    byte[] key = entry.getKey();
+                    return callback.found(ByteConversion.byteToInt(key, 0), getNodeId(key), entry);
+                }
+            });
+        } catch (LockException e) {
+            throw new IOException("Failed to acquire lock for " + rtree.getFile().getName());
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
+    /**
+     * Returns the geometry of a node as WKB or null if the node has no geometry.
+     */
+    public byte[] getGeometry(int docId, NodeId nodeId) throws IOException {
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            Value value = geometries.get(new Value(createKey(docId, nodeId)));
+            if (value == null)
+                return null;
+            byte[] data = value.getData();
+            byte[] wkb = new byte[data.length - ENVELOPE_LENGTH];
+            System.arraycopy(data, ENVELOPE_LENGTH, wkb, 0, wkb.length);
+            return wkb;
+        } catch (LockException e) {
+            throw new IOException("Failed to acquire lock for " + rtree.getFile().getName());
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
+    /**
+     * Returns the number of stored geometries.
+     */
+    public long getGeometryCount() {
+        return rtree.getEntryCount();
+    }
+
+    public void sync() throws DBException {
+        geometries.flush();
+        rtree.flush();
+    }
+
+    public void close() throws DBException {
+        geometries.close();
+        rtree.close();
+    }
+
+    public void remove() {
+        geometries.closeAndRemove();
+        rtree.closeAndRemove();
+    }
+
+    public void backupToArchive(RawDataBackup backup) throws IOException {
+        OutputStream os = backup.newEntry(geometries.getFile().getName());
+        geometries.backupToStream(os);
+        backup.closeEntry();
+        os = backup.newEntry(rtree.getFile().getName());
+        rtree.backupToStream(os);
+        backup.closeEntry();
+    }
+
+    /**
+     * Bulk loads the R-tree from the stored geometries. Only the envelopes at the
+     * start of the values are read.
+     */
+    private void rebuild() throws DBException {
+        try {
+            EnvelopeLoader loader = new EnvelopeLoader(rtree.startBulkLoad());
+            geometries.query(new IndexQuery(IndexQuery.ANY, ""), loader);
+            if (loader.exception != null)
+                throw loader.exception;
+            long count = loader.loader.finish();
+            if (count == 0)
+                return;
+            rtree.flush();
+            LOG.info("Rebuilt " + rtree.getFile().getName() + " with " + count + " geometries");
+        } catch (IOException e) {
+            throw new DBException("Failed to rebuild " + rtree.getFile().getName() + ": " + e.getMessage());
+        } catch (BTreeException e) {
+            throw new DBException("Failed to rebuild " + rtree.getFile().getName() + ": " + e.getMessage());
+        } catch (TerminatedException e) {
+            throw new DBException("Failed to rebuild " + rtree.getFile().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] createKey(int docId, NodeId nodeId) {
+        byte[] key = new byte[6 + nodeId.size()];
+        ByteConversion.intToByte(docId, key, 0);
+        ByteConversion.shortToByte((short) nodeId.units(), key, 4);
+        nodeId.serialize(key, 6);
+        return key;
+    }
+
+    private static RTree.Entry getEnvelope(Value key, Value value) {
+        return getEnvelope(key.getData(), value.getData());
+    }
+
+    private static RTree.Entry getEnvelope(byte[] key, byte[] data) {
+        return new RTree.Entry(
+            Double.longBitsToDouble(ByteConversion.byteToLong(data, 0)),
+            Double.longBitsToDouble(ByteConversion.byteToLong(data, 8)),
+            Double.longBitsToDouble(ByteConversion.byteToLong(data, 16)),
+            Double.longBitsToDouble(ByteConversion.byteToLong(data, 24)),
+            key);
+    }
+
+    private NodeId getNodeId(byte[] key) {
+        int units = ByteConversion.byteToShort(key, 4);
+        return pool.getNodeFactory().createFromData(units, key, 6);
+    }
+
+    /**
+     * Reads the envelope of each geometry found and passes it to a bulk loader.
+     */
+    private class EnvelopeLoader implements BTreeCallback {
+
+        private final RTree.BulkLoader loader;
+        private final byte[] envelope = new byte[ENVELOPE_LENGTH];
+        private IOException exception = null;
+
+        private EnvelopeLoader(RTree.BulkLoader loader) {
+            this.loader = loader;
+        }
+
+        public boolean indexInfo(Value key, long pointer) throws TerminatedException {
+            try {
+                VariableByteInput is = geometries.getAsStream(pointer);
+                int read = 0;
+                while (read < ENVELOPE_LENGTH) {
+                    int count = is.read(envelope, read, ENVELOPE_LENGTH - read);
+                    if (count < 0)
+                        throw new IOException("Invalid geometry in " + geometries.getFile().getName());
+                    read += count;
+                }
+                loader.add(getEnvelope(key.getData(), envelope));
+                return true;
+            } catch (IOException e) {
+                exception = e;
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.indexing.spatial;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.exist.numbering.NodeId;
+import org.exist.storage.BrokerPool;
+import org.exist.util.ByteConversion;
+import org.exist.util.Configuration;
+import org.exist.xquery.TerminatedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the native R-tree and geometry store of the spatial index against
+ * a linear scan of the stored envelopes.
+ */
+public class SpatialStoreTest {
+
+    private static final int ENTRIES = 3000;
+
+    private BrokerPool pool;
+    private File dataDir;
+
+    @Test
+    public void insertAndRemove() throws Exception {
+        File file = new File(dataDir, "test_rtree.dbx");
+        RTree rtree = new RTree(pool, file);
+        try {
+            List<RTree.Entry> entries = createEntries(new Random(17));
+            for (RTree.Entry entry : entries)
+                rtree.insert(entry);
+            assertEquals(ENTRIES, rtree.getEntryCount());
+            checkSearches(rtree, entries, new Random(5));
+
+            // remove every second entry
+            List<RTree.Entry> remaining = new ArrayList<RTree.Entry>();
+            for (int i = 0; i < entries.size(); i++) {
+                if (i % 2 == 0)
+                    assertTrue(rtree.remove(entries.get(i)));
+                else
+                    remaining.add(entries.get(i));
+            }
+            assertFalse(rtree.remove(entries.get(0)));
+            assertEquals(remaining.size(), rtree.getEntryCount());
+            checkSearches(rtree, remaining, new Random(6));
+
+            // reopen
+            rtree.close();
+            rtree = new RTree(pool, file);
+            assertEquals(remaining.size(), rtree.getEntryCount());
+            checkSearches(rtree, remaining, new Random(7));
+
+            for (RTree.Entry entry : remaining)
+                assertTrue(rtree.remove(entry));
+            assertTrue(rtree.isEmpty());
+        } finally {
+            rtree.closeAndRemove();
+        }
+    }
+
+    @Test
+    public void bulkLoad() throws Exception {
+        RTree rtree = new RTree(pool, new File(dataDir, "test_rtree.dbx"));
+        try {
+            List<RTree.Entry> entries = createEntries(new Random(23));
+            rtree.bulkLoad(entries);
+            assertEquals(ENTRIES, rtree.getEntryCount());
+            checkSearches(rtree, entries, new Random(8));
+
+            // the packed tree accepts incremental updates
+            RTree.Entry entry = new RTree.Entry(1000, 1001, 1000, 1001, key(ENTRIES));
+            rtree.insert(entry);
+            entries.add(entry);
+            assertTrue(rtree.remove(entries.remove(0)));
+            checkSearches(rtree, entries, new Random(9));
+
+            try {
+                rtree.bulkLoad(entries);
+                fail("Bulk load into a non-empty tree should fail");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+        } finally {
+            rtree.closeAndRemove();
+        }
+    }
+
+    @Test
+    public void bulkLoadInChunks() throws Exception {
+        RTree rtree = new RTree(pool, new File(dataDir, "test_rtree.dbx"));
+        try {
+            List<RTree.Entry> entries = createEntries(new Random(29));
+            RTree.BulkLoader loader = rtree.startBulkLoad(ENTRIES / 7);
+            for (RTree.Entry entry : entries)
+                loader.add(entry);
+            assertEquals(ENTRIES, loader.finish());
+            assertEquals(ENTRIES, rtree.getEntryCount());
+            checkSearches(rtree, entries, new Random(10));
+        } finally {
+            rtree.closeAndRemove();
+        }
+    }
+
+    @Test
+    public void store() throws Exception {
+        NodeId nodeId = pool.getNodeFactory().createInstance().newChild().newChild();
+        NodeId otherId = nodeId.nextSibling();
+        byte[] wkb = new byte[] { 1, 2, 3 };
+
+        SpatialStore store = new SpatialStore(pool, dataDir);
+        try {
+            store.store(1, nodeId, 0, 1, 0, 1, wkb);
+            store.store(1, otherId, 5, 6, 5, 6, wkb);
+            store.store(2, nodeId, 0, 10, 0, 10, wkb);
+            // replace a geometry
+            store.store(1, otherId, 4.5, 5, 4.5, 5, new byte[] { 4 });
+            assertEquals(3, store.getGeometryCount());
+            assertEquals(4, store.getGeometry(1, otherId)[0]);
+            assertEquals(2, count(store, 4, 7));
+            assertEquals(1, count(store, 5.5, 6));
+
+            store.close();
+            // a missing R-tree is rebuilt from the stored geometries
+            assertTrue(new File(dataDir, SpatialStore.RTREE_FILE).delete());
+            store = new SpatialStore(pool, dataDir);
+            assertEquals(3, store.getGeometryCount());
+            assertEquals(2, count(store, 4, 7));
+
+            assertTrue(store.remove(2, nodeId));
+            assertFalse(store.remove(2, nodeId));
+            assertEquals(1, count(store, 4, 7));
+            store.removeDocument(1);
+            assertEquals(0, store.getGeometryCount());
+            assertEquals(0, count(store, -100, 100));
+            assertNull(store.getGeometry(1, nodeId));
+        } finally {
+            store.remove();
+        }
+    }
+
+    private int count(SpatialStore store, double min, double max) throws Exception {
+        final int[] count = new int[1];
+        store.search(min, max, min, max, RTree.INTERSECTS, new SpatialStore.Callback() {
+            public boolean found(int docId, NodeId nodeId, RTree.Entry envelope) {
+                count[0]++;
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    private void checkSearches(RTree rtree, List<RTree.Entry> entries, Random random) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            double size = random.nextDouble() * 40;
+            RTree.Entry search = new RTree.Entry(x, x + size, y, y + size);
+            for (int mode = RTree.INTERSECTS; mode <= RTree.CONTAINS; mode++)
+                assertEquals(scan(entries, search, mode), search(rtree, search, mode));
+        }
+        // every entry finds itself
+        for (int i = 0; i < entries.size(); i += 97) {
+            RTree.Entry entry = entries.get(i);
+            assertTrue(search(rtree, entry, RTree.EQUALS).contains(ByteConversion.byteToInt(entry.getKey(), 0)));
+        }
+    }
+
+    private Set<Integer> search(RTree rtree, RTree.Entry search, int mode) throws Exception {
+        final Set<Integer> found = new HashSet<Integer>();
+        rtree.search(search, mode, new RTree.Callback() {
+            public boolean found(RTree.Entry entry) throws TerminatedException {
+                assertTrue(found.add(ByteConversion.byteToInt(entry.getKey(), 0)));
+                return true;
+            }
+        });
+        return found;
+    }
+
+    private Set<Integer> scan(List<RTree.Entry> entries, RTree.Entry search, int mode) {
+        Set<Integer> found = new HashSet<Integer>();
+        for (RTree.Entry entry : entries) {
+            boolean matches;
+            if (mode == RTree.INTERSECTS)
+                matches = entry.intersects(search);
+            else if (mode == RTree.WITHIN)
+                matches = search.contains(entry);
+            else
+                matches = entry.contains(search);
+            if (matches)
+                found.add(ByteConversion.byteToInt(entry.getKey(), 0));
+        }
+        return found;
+    }
+
+    private List<RTree.Entry> createEntries(Random random) {
+        List<RTree.Entry> entries = new ArrayList<RTree.Entry>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            // mostly small features, some large ones
+            double width = random.nextInt(10) == 0 ? random.nextDouble() * 60 : random.nextDouble();
+            double height = random.nextInt(10) == 0 ? random.nextDouble() * 30 : random.nextDouble();
+            entries.add(new RTree.Entry(x, x + width, y, y + height, key(i)));
+        }
+        return entries;
+    }
+
+    private static byte[] key(int i) {
+        // keys of varying length
+        byte[] key = new byte[4 + i % 13];
+        ByteConversion.intToByte(i, key, 0);
+        return key;
+    }
+
+    @Before
+    public void startDB() throws Exception {
+        Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        dataDir = new File((String) config.getProperty(BrokerPool.PROPERTY_DATA_DIR));
+    }
+
+    @After
+    public void stopDB() {
+        BrokerPool.stopAll(false);
+    }
+}
@@ -1,75 +1,480 @@
 package org.exist.xquery.modules.cache;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.NodeProxy;
+import org.exist.dom.StoredNode;
+import org.exist.management.Agent;
+import org.exist.management.AgentFactory;
+import org.exist.memtree.NodeImpl;
+import org.exist.numbering.NodeId;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.UpdateListener;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xquery.XPathException;
 import org.exist.xquery.value.*;
 
 /**
  * Static Global cache model
- * 
+ *
+ * Each cache is bounded by its {@link CacheConfig}: entries expire after their time to live
+ * or time to idle and the least recently (or least frequently) used entries are evicted once
+ * the maximum number of entries or the maximum weight is exceeded. The weight of an entry
+ * is the number of items in its value, where in-memory nodes count as the number of nodes
+ * of their documents, each document once.
+ *
+ * Entries holding stored nodes are dropped when the documents of the nodes are modified. A cache
+ * may also watch collections, in which case any modification of a document in these collections
+ * clears the cache. Statistics of every cache are published via JMX.
+ *
  * @author Evgeny Gazdovsky <gazdovsky@gmail.com>
  * @version 1.0
  */
-public class Cache extends HashMap<String, Sequence> {
-	
-	private static final long serialVersionUID = 2560835928124595024L;
+public class Cache {
+
+    private final static Logger logger = Logger.getLogger(Cache.class);
+
+    /** number of least recently used entries inspected to select an entry to evict by frequency */
+    private final static int LFU_SAMPLE = 16;
+
+    /** minimum interval between scans for expired entries */
+    private final static long MIN_PURGE_INTERVAL = 1000;
+
+    private final static Map<String, Cache> globalCache = new ConcurrentHashMap<String, Cache>();
+
+    private static volatile CacheConfig defaultConfig = new CacheConfig();
+
+    /** the update listeners registered with each database instance */
+    private final static Map<BrokerPool, Notifier> notifiers = new WeakHashMap<BrokerPool, Notifier>();
+
+    private final String name;
+    private CacheConfig config;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<Integer, Set<String>> keysByDocument = new HashMap<Integer, Set<String>>();
+    private long weight = 0;
+    private long lastPurge = System.currentTimeMillis();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
 
-	private static HashMap<String, Cache> globalCache = new HashMap<String, Cache>();
-	
     public Cache(String name) {
-    	super();
-    	globalCache.put(name, this);
-    }
-    
-	public static Cache getInstance(String name){
-		Cache cache = globalCache.get(name);
-		if (cache == null){
-			cache = new Cache(name);
-		}
-		return cache;
-	}
-	
-	public Sequence put(String key, Sequence value){
-		Sequence v = super.put(key, value); 
-		return (v==null) ? Sequence.EMPTY_SEQUENCE : v;
-	}
-	
-	public static Sequence put(String name, String key, Sequence value){
-		return getInstance(name).put(key, value);
-	}
-	
-	public Sequence get(String key){
-		Sequence v = super.get(key); 
-		return (v==null) ? Sequence.EMPTY_SEQUENCE : v;
-	}
-	
-	public static Sequence get(String name, String key){
-		return getInstance(name).get(key);
-	}
+        this(name, defaultConfig);
+    }
 
-    public static Sequence keys(String name) {
+    public Cache(String name, CacheConfig config) {
+        this.name = name;
+        this.config = config;
+        globalCache.put(name, this);
+        registerStatistics(name);
+    }
+
+    public static Cache getInstance(String name) {
+        synchronized (globalCache) {
+            Cache cache = globalCache.get(name);
+            if (cache == null) {
+                cache = new Cache(name);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the cache with the given name, creating it if necessary, and
+     * applies the configuration to it.
+     */
+    public static Cache getInstance(String name, CacheConfig config) {
+        synchronized (globalCache) {
+            Cache cache = globalCache.get(name);
+            if (cache == null) {
+                cache = new Cache(name, config);
+            } else {
+                cache.configure(config);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the cache with the given name, or null if it does not exist.
+     */
+    static Cache lookup(String name) {
+        return globalCache.get(name);
+    }
+
+    /**
+     * Sets the configuration of caches created without explicit configuration.
+     */
+    public static void setDefaultConfig(CacheConfig config) {
+        defaultConfig = config;
+    }
+
+    /**
+     * Registers the caches with the database instance: modifications of documents will
+     * invalidate cache entries and the cache statistics are published via JMX.
+     */
+    public static void attach(BrokerPool pool) {
+        synchronized (notifiers) {
+            if (notifiers.containsKey(pool)) {
+                return;
+            }
+            Notifier notifier = new Notifier(pool.getId());
+            notifiers.put(pool, notifier);
+            pool.getNotificationService().subscribe(notifier);
+            for (String name : globalCache.keySet()) {
+                notifier.register(name);
+            }
+        }
+    }
+
+    private static void registerStatistics(String name) {
+        synchronized (notifiers) {
+            for (Notifier notifier : notifiers.values()) {
+                notifier.register(name);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized CacheConfig getConfig() {
+        return config;
+    }
+
+    public synchronized void configure(CacheConfig config) {
+        this.config = config;
+        purgeExpired(System.currentTimeMillis(), true);
+        evict();
+    }
+
+    public synchronized Sequence put(String key, Sequence value) {
+        long now = System.currentTimeMillis();
+        purgeExpired(now, false);
+        Entry old = removeEntry(key);
+        Entry entry = new Entry(value, now);
+        entries.put(key, entry);
+        weight += entry.weight;
+        for (int docId : entry.docIds) {
+            Set<String> keys = keysByDocument.get(docId);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                keysByDocument.put(docId, keys);
+            }
+            keys.add(key);
+        }
+        evict();
+        return (old == null || isExpired(old, now)) ? Sequence.EMPTY_SEQUENCE : old.value;
+    }
+
+    public static Sequence put(String name, String key, Sequence value) {
+        return getInstance(name).put(key, value);
+    }
+
+    public synchronized Sequence get(String key) {
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && isExpired(entry, now)) {
+            removeEntry(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        hits++;
+        entry.hits++;
+        entry.accessed = now;
+        return entry.value;
+    }
+
+    public static Sequence get(String name, String key) {
+        return getInstance(name).get(key);
+    }
+
+    public synchronized Sequence keys() {
+        purgeExpired(System.currentTimeMillis(), true);
         ValueSequence keys = new ValueSequence();
-        for (String key : getInstance(name).keySet()) {
+        for (String key : entries.keySet()) {
             keys.add(new StringValue(key));
         }
         return keys;
     }
 
-	public Sequence remove(String key){
-		Sequence v = super.remove(key); 
-		return (v==null) ? Sequence.EMPTY_SEQUENCE : v;
-	}
-	
-	public static Sequence remove(String name, String key){
-		return getInstance(name).remove(key);
-	}
-	
-	public static void clear(String name){
-		getInstance(name).clear();
-	}
-	
-	public static void clearGlobal(){
-		globalCache.clear();
-	}
-	
+    public static Sequence keys(String name) {
+        return getInstance(name).keys();
+    }
+
+    public synchronized Sequence remove(String key) {
+        Entry entry = removeEntry(key);
+        return (entry == null || isExpired(entry, System.currentTimeMillis())) ?
+            Sequence.EMPTY_SEQUENCE : entry.value;
+    }
+
+    public static Sequence remove(String name, String key) {
+        return getInstance(name).remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        keysByDocument.clear();
+        weight = 0;
+    }
+
+    public static void clear(String name) {
+        getInstance(name).clear();
+    }
+
+    public static void clearGlobal() {
+        synchronized (globalCache) {
+            for (Cache cache : globalCache.values()) {
+                cache.clear();
+            }
+            globalCache.clear();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Drops the entries affected by a modification of the given document.
+     */
+    private synchronized void invalidate(DocumentImpl document) {
+        if (config.watches(document.getCollection().getURI())) {
+            if (!entries.isEmpty()) {
+                invalidations += entries.size();
+                clear();
+            }
+            return;
+        }
+        Set<String> keys = keysByDocument.get(document.getDocId());
+        if (keys == null) {
+            return;
+        }
+        for (String key : new ArrayList<String>(keys)) {
+            removeEntry(key);
+            invalidations++;
+        }
+    }
+
+    private Entry removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        weight -= entry.weight;
+        for (int docId : entry.docIds) {
+            Set<String> keys = keysByDocument.get(docId);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByDocument.remove(docId);
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts entries until the cache is within its limits.
+     */
+    private void evict() {
+        int maxEntries = config.getMaxEntries();
+        long maxWeight = config.getMaxWeight();
+        while (!entries.isEmpty() &&
+                ((maxEntries > 0 && entries.size() > maxEntries) || (maxWeight > 0 && weight > maxWeight))) {
+            Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+            Map.Entry<String, Entry> victim = i.next();
+            if (config.getEviction() == CacheConfig.Eviction.LFU) {
+                for (int n = 1; n < LFU_SAMPLE && i.hasNext(); n++) {
+                    Map.Entry<String, Entry> next = i.next();
+                    if (!i.hasNext()) {
+                        //Spare the most recently used entry: it may just have been added and not read yet
+                        break;
+                    }
+                    if (next.getValue().hits < victim.getValue().hits) {
+                        victim = next;
+                    }
+                }
+            }
+            removeEntry(victim.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes the expired entries. Unless forced, the entries are scanned at most
+     * once per half of the shortest expiry time.
+     */
+    private void purgeExpired(long now, boolean force) {
+        long ttl = config.getTimeToLive();
+        long tti = config.getTimeToIdle();
+        if (ttl == 0 && tti == 0) {
+            return;
+        }
+        long interval = Math.max(MIN_PURGE_INTERVAL,
+            Math.min(ttl == 0 ? Long.MAX_VALUE : ttl, tti == 0 ? Long.MAX_VALUE : tti) / 2);
+        if (!force && now - lastPurge < interval) {
+            return;
+        }
+        lastPurge = now;
+        List<String> expired = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                expired.add(entry.getKey());
+            }
+        }
+        for (String key : expired) {
+            removeEntry(key);
+            expirations++;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        long ttl = config.getTimeToLive();
+        long tti = config.getTimeToIdle();
+        return (ttl > 0 && now - entry.created > ttl) || (tti > 0 && now - entry.accessed > tti);
+    }
+
+    private static class Entry {
+
+        private final Sequence value;
+        private final long created;
+        private long accessed;
+        private int hits = 0;
+        private final long weight;
+        private final int[] docIds;
+
+        private Entry(Sequence value, long now) {
+            this.value = value;
+            this.created = now;
+            this.accessed = now;
+            long w = 0;
+            Set<Integer> docs = new HashSet<Integer>();
+            //Nodes of the same fragment share its document
+            Set<org.exist.memtree.DocumentImpl> fragments =
+                Collections.newSetFromMap(new IdentityHashMap<org.exist.memtree.DocumentImpl, Boolean>());
+            try {
+                for (SequenceIterator i = value.iterate(); i.hasNext(); ) {
+                    Item item = i.nextItem();
+                    if (item instanceof NodeImpl) {
+                        org.exist.memtree.DocumentImpl fragment = ((NodeImpl) item).getDocument();
+                        if (fragments.add(fragment)) {
+                            w += fragment.getSize();
+                        }
+                        continue;
+                    }
+                    w++;
+                    if (item instanceof NodeProxy) {
+                        docs.add(((NodeProxy) item).getDocument().getDocId());
+                    }
+                }
+            } catch (XPathException e) {
+                logger.warn("Unable to inspect cached value: " + e.getMessage(), e);
+            }
+            this.weight = w;
+            this.docIds = new int[docs.size()];
+            int n = 0;
+            for (int docId : docs) {
+                docIds[n++] = docId;
+            }
+        }
+    }
+
+    /**
+     * Listens to the document modifications of a database instance and registers
+     * the statistics of the caches with its JMX agent.
+     */
+    private static class Notifier implements UpdateListener {
+
+        private final String instanceId;
+        private final Set<String> registered = new HashSet<String>();
+
+        private Notifier(String instanceId) {
+            this.instanceId = instanceId;
+        }
+
+        private void register(String name) {
+            if (!registered.add(name)) {
+                return;
+            }
+            final Agent agent = AgentFactory.getInstance();
+            try {
+                agent.addMBean(instanceId, "org.exist.management." + instanceId + ":type=XQueryCache,name=" +
+                    ObjectName.quote(name), new CacheStatistics(name));
+            } catch (final DatabaseConfigurationException e) {
+                logger.warn("Exception while registering cache mbean.", e);
+            }
+        }
+
+        public void documentUpdated(DocumentImpl document, int event) {
+            for (Cache cache : globalCache.values()) {
+                cache.invalidate(document);
+            }
+        }
+
+        public void nodeMoved(NodeId oldNodeId, StoredNode newNode) {
+            //Cached node proxies of the document may point to the old address
+            documentUpdated(newNode.getDocument(), UpdateListener.UPDATE);
+        }
+
+        public void unsubscribe() {
+            //Nothing to do
+        }
+
+        public void debug() {
+            logger.debug("Cache update listener for instance " + instanceId);
+        }
+    }
 }
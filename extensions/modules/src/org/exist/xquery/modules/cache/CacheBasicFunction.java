@@ -48,6 +48,13 @@ public abstract class CacheBasicFunction extends BasicFunction {
 		super(context, signature);
 	}
 
+	@Override
+	public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+		//Let modifications of documents in this database invalidate cache entries
+		Cache.attach(context.getBroker().getBrokerPool());
+		return super.eval(contextSequence, contextItem);
+	}
+
 	private final static Properties OUTPUT_PROPERTIES = new Properties();
     static {
         OUTPUT_PROPERTIES.setProperty(OutputKeys.INDENT, "no");
@@ -0,0 +1,204 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery.modules.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.DayTimeDurationValue;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Limits and expiry settings of a {@link Cache}. A limit of 0 means unlimited.
+ *
+ * The settings are read from the attributes of a configuration element, e.g.
+ *
+ * <pre>
+ * &lt;cache max-entries="1000" time-to-live="PT1H" time-to-idle="PT10M" eviction="lru"&gt;
+ *     &lt;watch collection="/db/apps/site/data"/&gt;
+ * &lt;/cache&gt;
+ * </pre>
+ *
+ * or from the parameters of the module in conf.xml, which apply to caches created
+ * without explicit configuration.
+ */
+public class CacheConfig {
+
+    private final static Logger logger = Logger.getLogger(CacheConfig.class);
+
+    public final static String MAX_ENTRIES = "max-entries";
+    public final static String MAX_WEIGHT = "max-weight";
+    public final static String TIME_TO_LIVE = "time-to-live";
+    public final static String TIME_TO_IDLE = "time-to-idle";
+    public final static String EVICTION = "eviction";
+    public final static String WATCH = "watch";
+
+    public enum Eviction {
+        /** evict the least recently used entry */
+        LRU,
+        /** evict the least frequently used among the least recently used entries */
+        LFU
+    }
+
+    private int maxEntries = 0;
+    private long maxWeight = 0;
+    private long timeToLive = 0;
+    private long timeToIdle = 0;
+    private Eviction eviction = Eviction.LRU;
+    private List<String> watched = Collections.emptyList();
+
+    public CacheConfig() {
+        //Unlimited
+    }
+
+    /**
+     * Reads the configuration from the attributes and the <code>watch</code>
+     * child elements of the given element.
+     */
+    public static CacheConfig parse(Element element) throws XPathException {
+        CacheConfig config = new CacheConfig();
+        String[] names = { MAX_ENTRIES, MAX_WEIGHT, TIME_TO_LIVE, TIME_TO_IDLE, EVICTION };
+        for (String name : names) {
+            if (element.hasAttribute(name)) {
+                config.set(name, element.getAttribute(name));
+            }
+        }
+        List<String> watched = new ArrayList<String>();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && WATCH.equals(child.getLocalName())) {
+                String collection = ((Element) child).getAttribute("collection");
+                String path = null;
+                try {
+                    path = XmldbURI.create(collection).toCollectionPathURI().getCollectionPath();
+                } catch (IllegalArgumentException e) {
+                    //Reported below
+                }
+                if (path == null || path.length() == 0) {
+                    throw new XPathException("Invalid collection on " + WATCH + " element: " + collection);
+                }
+                if (path.length() > 1 && path.endsWith("/")) {
+                    path = path.substring(0, path.length() - 1);
+                }
+                watched.add(path);
+            }
+        }
+        if (!watched.isEmpty()) {
+            config.watched = watched;
+        }
+        return config;
+    }
+
+    /**
+     * Reads the configuration from the parameters of the module. Invalid values
+     * are logged and ignored.
+     */
+    public static CacheConfig parse(Map<String, List<? extends Object>> parameters) {
+        CacheConfig config = new CacheConfig();
+        if (parameters == null) {
+            return config;
+        }
+        String[] names = { MAX_ENTRIES, MAX_WEIGHT, TIME_TO_LIVE, TIME_TO_IDLE, EVICTION };
+        for (String name : names) {
+            List<? extends Object> values = parameters.get(name);
+            if (values == null || values.isEmpty()) {
+                continue;
+            }
+            try {
+                config.set(name, values.get(0).toString());
+            } catch (XPathException e) {
+                logger.warn("Ignoring cache module parameter: " + e.getMessage());
+            }
+        }
+        return config;
+    }
+
+    private void set(String name, String value) throws XPathException {
+        value = value.trim();
+        try {
+            if (MAX_ENTRIES.equals(name)) {
+                maxEntries = Integer.parseInt(value);
+            } else if (MAX_WEIGHT.equals(name)) {
+                maxWeight = Long.parseLong(value);
+            } else if (TIME_TO_LIVE.equals(name)) {
+                timeToLive = new DayTimeDurationValue(value).getValueInMilliseconds();
+            } else if (TIME_TO_IDLE.equals(name)) {
+                timeToIdle = new DayTimeDurationValue(value).getValueInMilliseconds();
+            } else if (EVICTION.equals(name)) {
+                eviction = Eviction.valueOf(value.toUpperCase());
+            }
+        } catch (NumberFormatException e) {
+            throw new XPathException("Invalid value for cache option " + name + ": " + value);
+        } catch (IllegalArgumentException e) {
+            throw new XPathException("Invalid value for cache option " + name + ": " + value);
+        }
+        if (maxEntries < 0 || maxWeight < 0 || timeToLive < 0 || timeToIdle < 0) {
+            throw new XPathException("Invalid value for cache option " + name + ": " + value);
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Returns the maximum age of an entry in milliseconds.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds an entry is kept
+     * without being read.
+     */
+    public long getTimeToIdle() {
+        return timeToIdle;
+    }
+
+    public Eviction getEviction() {
+        return eviction;
+    }
+
+    /**
+     * Returns true if modifications of documents in the given collection
+     * invalidate the cache.
+     */
+    public boolean watches(XmldbURI collection) {
+        String path = collection.getCollectionPath();
+        for (String watchedPath : watched) {
+            if (path.equals(watchedPath) || path.startsWith(watchedPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -23,16 +23,17 @@ package org.exist.xquery.modules.cache;
 
 import org.apache.log4j.Logger;
 import org.exist.dom.QName;
-import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.JavaObjectValue;
+import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
 import org.exist.xquery.value.Type;
+import org.w3c.dom.Element;
 
 /**
  * Global cache module. Get function
@@ -40,7 +41,7 @@ import org.exist.xquery.value.Type;
  * @author Evgeny Gazdovsky <gazdovsky@gmail.com>
  * @version 1.0
  */
-public class CacheFunction extends BasicFunction {
+public class CacheFunction extends CacheBasicFunction {
 
     private final static Logger logger = Logger.getLogger(CacheFunction.class);
 
@@ -52,6 +53,21 @@ public class CacheFunction extends BasicFunction {
 					new FunctionParameterSequenceType("name", Type.STRING, Cardinality.ONE, "The name of the cache to get/create") 
 				}, 
 		        new FunctionParameterSequenceType("java-object", Type.JAVA_OBJECT, Cardinality.ONE, "the Java cache object with the given name.")
+			),
+		new FunctionSignature(
+				new QName("cache", CacheModule.NAMESPACE_URI, CacheModule.PREFIX),
+				"Get/create a cache using the specified name and configure its limits. " +
+				"The attributes max-entries and max-weight limit the number of entries and their total weight, " +
+				"which is the number of items, an in-memory node counting as the number of nodes in its document. " +
+				"The least recently used entries are evicted first, unless the attribute eviction is set to 'lfu'. " +
+				"Entries expire after time-to-live or after time-to-idle without being read (xs:dayTimeDuration). " +
+				"Modifying a document in the collection of a child element watch/@collection clears the cache. " +
+				"Example: <cache max-entries='1000' time-to-live='PT1H'><watch collection='/db/data'/></cache>",
+				new SequenceType[] { 
+					new FunctionParameterSequenceType("name", Type.STRING, Cardinality.ONE, "The name of the cache to get/create"),
+					new FunctionParameterSequenceType("config", Type.ELEMENT, Cardinality.ONE, "The configuration of the cache")
+				}, 
+		        new FunctionParameterSequenceType("java-object", Type.JAVA_OBJECT, Cardinality.ONE, "the Java cache object with the given name.")
 			) 
 	};
 
@@ -65,6 +81,16 @@ public class CacheFunction extends BasicFunction {
 			logger.debug("Get/create cache [" + name + "]");
 		}
 		
+		if (args.length == 2) {
+			Element element = (Element) ((NodeValue) args[1].itemAt(0)).getNode();
+			CacheConfig config;
+			try {
+				config = CacheConfig.parse(element);
+			} catch (XPathException e) {
+				throw new XPathException(this, e.getMessage());
+			}
+			return new JavaObjectValue(Cache.getInstance(name, config));
+		}
 		return new JavaObjectValue(Cache.getInstance(name));
 	}
 }
\ No newline at end of file
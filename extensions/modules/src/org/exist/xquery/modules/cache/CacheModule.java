@@ -45,14 +45,20 @@ public class CacheModule extends AbstractInternalModule {
         new FunctionDef(PutFunction.signatures[0], PutFunction.class),
         new FunctionDef(GetFunction.signatures[0], GetFunction.class),
         new FunctionDef(CacheFunction.signatures[0], CacheFunction.class),
+        new FunctionDef(CacheFunction.signatures[1], CacheFunction.class),
         new FunctionDef(ClearFunction.signatures[0], ClearFunction.class),
         new FunctionDef(ClearFunction.signatures[1], ClearFunction.class),
         new FunctionDef(RemoveFunction.signatures[0], RemoveFunction.class),
         new FunctionDef(ListFunction.signature, ListFunction.class)
     };
 
+    /**
+     * The parameters max-entries, max-weight, time-to-live, time-to-idle and eviction
+     * configure the caches created without explicit configuration, see {@link CacheConfig}.
+     */
     public CacheModule(Map<String, List<? extends Object>> parameters) {
         super(functions, parameters);
+        Cache.setDefaultConfig(CacheConfig.parse(parameters));
     }
 
     @Override
@@ -0,0 +1,102 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery.modules.cache;
+
+/**
+ * JMX view of a {@link Cache}. The cache is looked up by name, so the statistics
+ * remain available if the cache is cleared globally and created again.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+    private final String name;
+
+    public CacheStatistics(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getSize() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getWeight() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getWeight();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getConfig().getMaxEntries();
+    }
+
+    @Override
+    public long getMaxWeight() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getConfig().getMaxWeight();
+    }
+
+    @Override
+    public long getHits() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public long getEvictions() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    @Override
+    public long getExpirations() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getExpirations();
+    }
+
+    @Override
+    public long getInvalidations() {
+        final Cache cache = Cache.lookup(name);
+        return cache == null ? 0 : cache.getInvalidations();
+    }
+
+    @Override
+    public void clear() {
+        final Cache cache = Cache.lookup(name);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+}
@@ -23,7 +23,6 @@ package org.exist.xquery.modules.cache;
 
 import org.apache.log4j.Logger;
 import org.exist.dom.QName;
-import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
@@ -40,7 +39,7 @@ import org.exist.xquery.value.Type;
  * @author Evgeny Gazdovsky <gazdovsky@gmail.com>
  * @version 1.0
  */
-public class ClearFunction extends BasicFunction {
+public class ClearFunction extends CacheBasicFunction {
 
     private final static Logger logger = Logger.getLogger(ClearFunction.class);
 
@@ -8,7 +8,6 @@ import org.exist.memtree.MemTreeBuilder;
 import org.exist.repo.Deployment;
 import org.exist.repo.PackageLoader;
 import org.exist.security.PermissionDeniedException;
-import org.exist.storage.NativeBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
@@ -177,7 +176,7 @@ public class Deploy extends BasicFunction {
             if (doc.getResourceType() != DocumentImpl.BINARY_FILE)
                 throw new XPathException(this, EXPathErrorCode.EXPDY001, path + " is not a valid .xar", new StringValue(path));
 
-            File file = ((NativeBroker)context.getBroker()).getCollectionBinaryFileFsPath(doc.getURI());
+            File file = context.getBroker().getBinaryFile((BinaryDocument) doc);
             RepoPackageLoader loader = null;
             if (repoURI != null)
                 loader = new RepoPackageLoader(repoURI);
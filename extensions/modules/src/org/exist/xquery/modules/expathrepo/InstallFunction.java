@@ -1,6 +1,7 @@
 package org.exist.xquery.modules.expathrepo;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -12,7 +13,6 @@ import org.exist.repo.ExistPkgInfo;
 import org.exist.repo.ExistRepository;
 import org.exist.security.PermissionDeniedException;
 import org.exist.repo.ClasspathHelper;
-import org.exist.storage.NativeBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.BasicFunction;
@@ -83,7 +83,7 @@ public class InstallFunction extends BasicFunction {
         		BinaryDocument doc = null;
         		try {
         			doc = _getDocument(pkgOrPath);
-        			File file = ((NativeBroker)context.getBroker()).getCollectionBinaryFileFsPath(doc.getURI());
+        			File file = context.getBroker().getBinaryFile(doc);
         			LOG.debug("Installing file: " + file.getAbsolutePath());
         			pkg = parent_repo.installPackage(file, force, interact);
                     repo.reportAction(ExistRepository.Action.INSTALL, pkg.getName());
@@ -98,6 +98,8 @@ public class InstallFunction extends BasicFunction {
             // TODO: expath libs do not provide a way to see if there were any XQuery modules installed at all
             context.getBroker().getBrokerPool().getXQueryPool().clear();
             removed = BooleanValue.TRUE;
+        } catch (IOException ex) {
+            throw new XPathException(this, "Cannot read package " + pkgOrPath + ": " + ex.getMessage(), ex);
         } catch (PackageException ex ) {
         	logger.debug(ex.getMessage(), ex);
             return removed;
@@ -0,0 +1,101 @@
+package org.exist.xquery.modules.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+public class CacheConfigTest {
+
+    @Test
+    public void unlimitedByDefault() {
+        CacheConfig config = new CacheConfig();
+        assertEquals(0, config.getMaxEntries());
+        assertEquals(0, config.getMaxWeight());
+        assertEquals(0, config.getTimeToLive());
+        assertEquals(0, config.getTimeToIdle());
+        assertEquals(CacheConfig.Eviction.LRU, config.getEviction());
+        assertFalse(config.watches(XmldbURI.create("/db")));
+    }
+
+    @Test
+    public void parseElement() throws Exception {
+        CacheConfig config = CacheConfig.parse(parse(
+            "<cache max-entries='100' max-weight='5000' time-to-live='PT1H' time-to-idle='PT10M' eviction='lfu'>" +
+                "<watch collection='/db/apps/site/data/'/>" +
+                "<watch collection='xmldb:exist:///db/system/config'/>" +
+            "</cache>"));
+        assertEquals(100, config.getMaxEntries());
+        assertEquals(5000, config.getMaxWeight());
+        assertEquals(3600000, config.getTimeToLive());
+        assertEquals(600000, config.getTimeToIdle());
+        assertEquals(CacheConfig.Eviction.LFU, config.getEviction());
+
+        assertTrue(config.watches(XmldbURI.create("/db/apps/site/data")));
+        assertTrue(config.watches(XmldbURI.create("/db/apps/site/data/2013")));
+        assertTrue(config.watches(XmldbURI.create("/db/system/config/db")));
+        assertFalse(config.watches(XmldbURI.create("/db/apps/site")));
+        assertFalse(config.watches(XmldbURI.create("/db/apps/site/database")));
+    }
+
+    @Test
+    public void parseInvalidElement() throws Exception {
+        String[] invalid = {
+            "<cache max-entries='many'/>",
+            "<cache max-weight='-1'/>",
+            "<cache time-to-live='1 hour'/>",
+            "<cache eviction='fifo'/>",
+            "<cache><watch/></cache>"
+        };
+        for (String xml : invalid) {
+            try {
+                CacheConfig.parse(parse(xml));
+                fail("Expected an error for " + xml);
+            } catch (XPathException e) {
+                //Expected
+            }
+        }
+    }
+
+    @Test
+    public void parseParameters() {
+        Map<String, List<? extends Object>> parameters = new HashMap<String, List<? extends Object>>();
+        parameters.put(CacheConfig.MAX_ENTRIES, values("10"));
+        parameters.put(CacheConfig.TIME_TO_IDLE, values("PT30S"));
+        //Invalid values are ignored
+        parameters.put(CacheConfig.MAX_WEIGHT, values("heavy"));
+        CacheConfig config = CacheConfig.parse(parameters);
+        assertEquals(10, config.getMaxEntries());
+        assertEquals(0, config.getMaxWeight());
+        assertEquals(30000, config.getTimeToIdle());
+
+        config = CacheConfig.parse((Map<String, List<? extends Object>>) null);
+        assertEquals(0, config.getMaxEntries());
+    }
+
+    private static List<? extends Object> values(String value) {
+        List<String> values = new ArrayList<String>();
+        values.add(value);
+        return values;
+    }
+
+    private static Element parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getDocumentElement();
+    }
+}
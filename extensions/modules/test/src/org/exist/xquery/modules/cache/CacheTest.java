@@ -0,0 +1,240 @@
+package org.exist.xquery.modules.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.NodeProxy;
+import org.exist.memtree.MemTreeBuilder;
+import org.exist.numbering.NodeId;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
+import org.exist.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.AttributesImpl;
+
+public class CacheTest {
+
+    private final static XmldbURI SOURCE = TestConstants.TEST_COLLECTION_URI.append("source");
+    private final static XmldbURI TARGET = TestConstants.TEST_COLLECTION_URI.append("target");
+    private final static XmldbURI DOC_NAME = XmldbURI.create("test.xml");
+
+    private BrokerPool pool = null;
+    private DBBroker broker = null;
+
+    @Test
+    public void putGetRemove() {
+        Cache cache = new Cache("putGetRemove");
+        Sequence value = new StringValue("value");
+        assertSame(Sequence.EMPTY_SEQUENCE, cache.put("key", value));
+        assertSame(value, cache.get("key"));
+        assertSame(Sequence.EMPTY_SEQUENCE, cache.get("other"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        assertSame(value, cache.remove("key"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertSame(Cache.getInstance("putGetRemove"), cache);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        Cache cache = new Cache("evictLeastRecentlyUsed", config("<cache max-entries='2'/>"));
+        cache.put("a", new IntegerValue(1));
+        cache.put("b", new IntegerValue(2));
+        cache.get("a");
+        cache.put("c", new IntegerValue(3));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertSame(Sequence.EMPTY_SEQUENCE, cache.get("b"));
+        assertEquals(1, cache.get("a").getItemCount());
+        assertEquals(1, cache.get("c").getItemCount());
+    }
+
+    @Test
+    public void evictLeastFrequentlyUsed() throws Exception {
+        Cache cache = new Cache("evictLeastFrequentlyUsed", config("<cache max-entries='2' eviction='lfu'/>"));
+        cache.put("a", new IntegerValue(1));
+        cache.put("b", new IntegerValue(2));
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        //a is the least recently used, but b the least frequently used entry
+        cache.get("a");
+        cache.get("b");
+        cache.put("c", new IntegerValue(3));
+        assertEquals(2, cache.size());
+        assertSame(Sequence.EMPTY_SEQUENCE, cache.get("b"));
+        assertEquals(1, cache.get("a").getItemCount());
+    }
+
+    @Test
+    public void evictByWeight() throws Exception {
+        Cache cache = new Cache("evictByWeight", config("<cache max-weight='5'/>"));
+        ValueSequence value = new ValueSequence();
+        for (int i = 0; i < 3; i++) {
+            value.add(new IntegerValue(i));
+        }
+        cache.put("a", value);
+        assertEquals(3, cache.getWeight());
+        cache.put("b", value);
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.getWeight());
+        assertSame(Sequence.EMPTY_SEQUENCE, cache.get("a"));
+    }
+
+    @Test
+    public void weightOfInMemoryNodes() {
+        MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        builder.startElement("", "items", "items", new AttributesImpl());
+        for (int i = 0; i < 10; i++) {
+            builder.startElement("", "item", "item", new AttributesImpl());
+            builder.endElement();
+        }
+        builder.endElement();
+        builder.endDocument();
+        org.exist.memtree.DocumentImpl doc = builder.getDocument();
+
+        //document node, items and 10 item elements
+        ValueSequence value = new ValueSequence();
+        value.add((org.exist.memtree.NodeImpl) doc.getDocumentElement());
+        value.add((org.exist.memtree.NodeImpl) doc.getDocumentElement().getFirstChild());
+        value.add((org.exist.memtree.NodeImpl) doc.getDocumentElement().getFirstChild().getNextSibling());
+        Cache cache = new Cache("weightOfInMemoryNodes");
+        cache.put("nodes", value);
+        assertEquals(doc.getSize(), cache.getWeight());
+
+        value.add(new StringValue("value"));
+        cache.put("nodes", value);
+        assertEquals(doc.getSize() + 1, cache.getWeight());
+    }
+
+    @Test
+    public void expireAfterTimeToLive() throws Exception {
+        Cache cache = new Cache("expireAfterTimeToLive", config("<cache time-to-live='PT0.05S'/>"));
+        cache.put("a", new IntegerValue(1));
+        assertEquals(1, cache.get("a").getItemCount());
+        Thread.sleep(100);
+        assertSame(Sequence.EMPTY_SEQUENCE, cache.get("a"));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidateOnCollectionRemoval() throws Exception {
+        startDB();
+        DocumentImpl doc = storeDocument(SOURCE);
+        Cache cache = new Cache("invalidateOnCollectionRemoval");
+        cache.put("node", new NodeProxy(doc, NodeId.DOCUMENT_NODE));
+
+        TransactionManager transact = pool.getTransactionManager();
+        Txn transaction = transact.beginTransaction();
+        broker.removeCollection(transaction, broker.getCollection(SOURCE));
+        transact.commit(transaction);
+
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void invalidateOnDocumentMove() throws Exception {
+        startDB();
+        DocumentImpl doc = storeDocument(SOURCE);
+        Collection target = createCollection(TARGET);
+        Cache cache = new Cache("invalidateOnDocumentMove");
+        cache.put("node", new NodeProxy(doc, NodeId.DOCUMENT_NODE));
+        Cache watching = new Cache("invalidateOnDocumentMove.watch",
+            config("<cache><watch collection='" + TARGET + "'/></cache>"));
+        watching.put("value", new StringValue("value"));
+
+        TransactionManager transact = pool.getTransactionManager();
+        Txn transaction = transact.beginTransaction();
+        broker.moveResource(transaction, doc, target, DOC_NAME);
+        transact.commit(transaction);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, watching.size());
+    }
+
+    @Test
+    public void invalidateOnCollectionMove() throws Exception {
+        startDB();
+        storeDocument(SOURCE);
+        Collection target = createCollection(TARGET);
+        Cache watching = new Cache("invalidateOnCollectionMove",
+            config("<cache><watch collection='" + SOURCE + "'/></cache>"));
+        watching.put("value", new StringValue("value"));
+
+        TransactionManager transact = pool.getTransactionManager();
+        Txn transaction = transact.beginTransaction();
+        broker.moveCollection(transaction, broker.getCollection(SOURCE), target, XmldbURI.create("moved"));
+        transact.commit(transaction);
+
+        assertEquals(0, watching.size());
+    }
+
+    private static CacheConfig config(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return CacheConfig.parse(factory.newDocumentBuilder().parse(
+            new InputSource(new StringReader(xml))).getDocumentElement());
+    }
+
+    private void startDB() throws Exception {
+        Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        Cache.attach(pool);
+    }
+
+    private Collection createCollection(XmldbURI uri) throws Exception {
+        TransactionManager transact = pool.getTransactionManager();
+        Txn transaction = transact.beginTransaction();
+        Collection collection = broker.getOrCreateCollection(transaction, uri);
+        broker.saveCollection(transaction, collection);
+        transact.commit(transaction);
+        return collection;
+    }
+
+    private DocumentImpl storeDocument(XmldbURI uri) throws Exception {
+        Collection collection = createCollection(uri);
+        TransactionManager transact = pool.getTransactionManager();
+        Txn transaction = transact.beginTransaction();
+        String xml = "<test><item>1</item></test>";
+        IndexInfo info = collection.validateXMLResource(transaction, broker, DOC_NAME, xml);
+        collection.store(transaction, broker, info, xml, false);
+        transact.commit(transaction);
+        return info.getDocument();
+    }
+
+    @After
+    public void tearDown() {
+        Cache.clearGlobal();
+        if (pool != null) {
+            pool.release(broker);
+            TestUtils.cleanupDB();
+            BrokerPool.stopAll(false);
+            pool = null;
+        }
+    }
+}
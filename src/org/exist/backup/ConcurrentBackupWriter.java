@@ -0,0 +1,41 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.backup;
+
+import java.io.IOException;
+
+
+/**
+ * A {@link BackupWriter} which can receive the data of different collections from several threads at the same time.
+ */
+public interface ConcurrentBackupWriter extends BackupWriter
+{
+    /**
+     * Create a writer for use by a single thread. Each segment keeps track of its own current collection, so segments can
+     * write different collections concurrently. All segments have to be closed before the parent writer is used again.
+     *
+     * @return  a new segment writing into the same backup
+     *
+     * @throws  IOException
+     */
+    BackupWriter newSegment() throws IOException;
+}
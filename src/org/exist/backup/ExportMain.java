@@ -50,6 +50,7 @@ public class ExportMain
     private final static int                  NO_CHECK_OPT      = 'n';
     private final static int                  DIRECT_ACCESS_OPT = 'D';
     private final static int                  ZIP_OPT           = 'z';
+    private final static int                  THREADS_OPT       = 't';
 
     private final static CLOptionDescriptor[] OPTIONS           = new CLOptionDescriptor[] {
         new CLOptionDescriptor( "help", CLOptionDescriptor.ARGUMENT_DISALLOWED, HELP_OPT, "print help on command line options and exit." ),
@@ -59,7 +60,8 @@ public class ExportMain
         new CLOptionDescriptor( "export", CLOptionDescriptor.ARGUMENT_DISALLOWED, EXPORT_OPT, "export database contents while preserving as much data as possible" ),
         new CLOptionDescriptor( "incremental", CLOptionDescriptor.ARGUMENT_DISALLOWED, INCREMENTAL_OPT, "create incremental backup (use with --export|-x)" ),
         new CLOptionDescriptor( "nocheck", CLOptionDescriptor.ARGUMENT_DISALLOWED, NO_CHECK_OPT, "do not run a consistency check. Just export the data." ),
-        new CLOptionDescriptor( "zip", CLOptionDescriptor.ARGUMENT_DISALLOWED, ZIP_OPT, "write output to a ZIP instead of a file system directory" )
+        new CLOptionDescriptor( "zip", CLOptionDescriptor.ARGUMENT_DISALLOWED, ZIP_OPT, "write output to a ZIP instead of a file system directory" ),
+        new CLOptionDescriptor( "threads", CLOptionDescriptor.ARGUMENT_REQUIRED, THREADS_OPT, "the number of threads used to export collections (use with --export|-x)" )
     };
 
     protected static BrokerPool startDB( String configFile )
@@ -100,6 +102,7 @@ public class ExportMain
         boolean        direct       = false;
         boolean        zip          = false;
         boolean        nocheck      = false;
+        int            threads      = 1;
         String         exportTarget = "export/";
         String         dbConfig     = null;
 
@@ -149,6 +152,17 @@ public class ExportMain
                     nocheck = true;
                     break;
                 }
+
+                case THREADS_OPT: {
+                    try {
+                        threads = Integer.parseInt( option.getArgument() );
+                    }
+                    catch( final NumberFormatException e ) {
+                        System.err.println( "ERROR: --threads requires a number" );
+                        return;
+                    }
+                    break;
+                }
             }
         }
 
@@ -183,6 +197,7 @@ public class ExportMain
                     dir.mkdirs();
                 }
                 final SystemExport sysexport = new SystemExport( broker, new Callback(), null, direct );
+                sysexport.setThreads( threads );
                 sysexport.export( exportTarget, incremental, true, errors );
             }
         }
@@ -39,7 +39,7 @@ import org.exist.xmldb.XmldbURI;
 /**
  * Implementation of BackupWriter that writes to the file system.
  */
-public class FileSystemWriter implements BackupWriter
+public class FileSystemWriter implements ConcurrentBackupWriter
 {
 	private File		 rootDir;
     private File         currentDir;
@@ -66,6 +66,19 @@ public class FileSystemWriter implements BackupWriter
         rootDir = file;
     }
 
+
+    private FileSystemWriter( File rootDir, File currentDir )
+    {
+        this.rootDir    = rootDir;
+        this.currentDir = currentDir;
+    }
+
+
+    public BackupWriter newSegment()
+    {
+        return( new FileSystemWriter( rootDir, currentDir ) );
+    }
+
     public void newCollection( String name )
     {
     	File file;
@@ -75,7 +88,8 @@ public class FileSystemWriter implements BackupWriter
             file = new File( currentDir, name );
     	}
 
-        if( file.exists() ) {
+        // another segment may be writing into a sub directory
+        if( file.exists() && !file.isDirectory() ) {
             file.delete();
         }
         file.mkdirs();
@@ -32,6 +32,9 @@ import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
 import org.exist.security.internal.AccountImpl;
 import org.exist.stax.EmbeddedXMLStreamReader;
+import org.exist.EXistException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.DataBackup;
 import org.exist.storage.NativeBroker;
@@ -40,7 +43,9 @@ import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.Value;
 import org.exist.storage.index.CollectionStore;
 import org.exist.storage.io.VariableByteInput;
+import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.util.LockException;
 import org.exist.util.UTF8;
 import org.exist.util.serializer.AttrList;
 import org.exist.util.serializer.Receiver;
@@ -65,6 +70,14 @@ import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -76,6 +89,7 @@ import java.util.*;
  * <li>Documents which are intact but belong to a destroyed collection will be stored into a special collection /db/__lost_and_found__.</li>
  * <li>Damaged documents are detected by ConsistencyCheck and are removed from the backup.</li>
  * <li>The format of the exported data is compatible with backups generated via the standard backup tool (Java admin client).</li>
+ * <li>Collections can be exported by several threads in parallel, see {@link #setThreads(int)}.</li>
  * </ul>
  *
  * <p>The class should be used in combination with {@link ConsistencyCheck}. The error lists returned by ConsistencyCheck can be passed to {@link
@@ -102,6 +116,7 @@ public class SystemExport
     private boolean                 directAccess            = false;
     private ProcessMonitor.Monitor  monitor                 = null;
     private BackupHandler bh = null;
+    private int                     threads                 = 1;
 
     {
         defaultOutputProperties.setProperty( OutputKeys.INDENT, "no" );
@@ -125,6 +140,19 @@ public class SystemExport
     	bh = broker.getDatabase().getPluginsManager().getBackupHandler(LOG);
     }
 
+    /**
+     * Set the number of threads used to export collections. Each thread uses its own broker and writes complete collections,
+     * including their __contents__.xml descriptor, into the backup. With a single thread (the default), the collections are
+     * exported in the order in which they are stored.
+     *
+     * @param  threads  the number of threads
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = Math.max( 1, threads );
+    }
+
+
     public File export( String targetDir, boolean incremental, boolean zip, List<ErrorReport> errorList )
     {
         return( export( targetDir, incremental, -1, zip, errorList ) );
@@ -212,10 +240,17 @@ public class SystemExport
 //            FileUtils.forceDelete(repoBackup);
 
             final Date date = ( prevBackup == null ) ? null : prevBackup.getDate();
-            final CollectionCallback cb   = new CollectionCallback( output, date, prevBackup, errorList, true );
-            broker.getCollectionsFailsafe( cb );
+            DocumentSet docs;
 
-            exportOrphans( output, cb.getDocs(), errorList );
+            if( ( threads > 1 ) && ( output instanceof ConcurrentBackupWriter ) ) {
+                docs = exportParallel( (ConcurrentBackupWriter)output, date, prevBackup, errorList );
+            } else {
+                final CollectionCallback cb   = new CollectionCallback( output, date, prevBackup, errorList, true );
+                broker.getCollectionsFailsafe( cb );
+                docs = cb.getDocs();
+            }
+
+            exportOrphans( output, docs, errorList );
 
             output.close();
             return( backupFile );
@@ -345,6 +380,7 @@ public class SystemExport
     /**
      * Export a collection. Write out the collection metadata and save the resources stored in the collection.
      *
+     * @param   broker      the broker of the current thread
      * @param   current     the collection
      * @param   output      the output writer
      * @param   date
@@ -356,7 +392,7 @@ public class SystemExport
      * @throws  SAXException
      * @throws  TerminatedException  DOCUMENT ME!
      */
-    private void export( BackupHandler bh, Collection current, BackupWriter output, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList, MutableDocumentSet docs ) throws IOException, SAXException, TerminatedException, PermissionDeniedException
+    private void export( DBBroker broker, BackupHandler bh, Collection current, BackupWriter output, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList, MutableDocumentSet docs ) throws IOException, SAXException, TerminatedException, PermissionDeniedException
     {
 //        if( callback != null ) {
 //            callback.startCollection( current.getURI().toString() );
@@ -417,7 +453,7 @@ public class SystemExport
                 if( doc.getFileURI().equalsInternal( CONTENTS_URI ) || doc.getFileURI().equalsInternal( LOST_URI ) ) {
                     continue; // skip __contents__.xml documents
                 }
-                exportDocument( bh, output, date, prevBackup, serializer, docsCount, count, doc );
+                exportDocument( broker, bh, output, date, prevBackup, serializer, docsCount, count, doc );
                 docs.add( doc, false );
             }
 
@@ -444,7 +480,7 @@ public class SystemExport
                 // Check which collections and resources have been deleted since
                 // the
                 // last backup
-                final CheckDeletedHandler check = new CheckDeletedHandler( current, serializer );
+                final CheckDeletedHandler check = new CheckDeletedHandler( broker, current, serializer );
 
                 try {
                     prevBackup.parse( check );
@@ -469,7 +505,7 @@ public class SystemExport
     }
 
 
-    private void exportDocument( BackupHandler bh, BackupWriter output, Date date, BackupDescriptor prevBackup, SAXSerializer serializer, int docsCount, int count, DocumentImpl doc ) throws IOException, SAXException, TerminatedException
+    private void exportDocument( DBBroker broker, BackupHandler bh, BackupWriter output, Date date, BackupDescriptor prevBackup, SAXSerializer serializer, int docsCount, int count, DocumentImpl doc ) throws IOException, SAXException, TerminatedException
     {
         if( callback != null ) {
             callback.startDocument( doc.getFileURI().toString(), count, docsCount );
@@ -493,7 +529,7 @@ public class SystemExport
                     // write resource to contentSerializer
                     final SAXSerializer  contentSerializer = (SAXSerializer)SerializerPool.getInstance().borrowObject( SAXSerializer.class );
                     contentSerializer.setOutput( writer, defaultOutputProperties );
-                    writeXML( doc, contentSerializer );
+                    writeXML( broker, doc, contentSerializer );
                     SerializerPool.getInstance().returnObject( contentSerializer );
                     writer.flush();
                 }
@@ -587,10 +623,11 @@ public class SystemExport
     /**
      * Serialize a document to XML, based on {@link XMLStreamReader}.
      *
+     * @param  broker    the broker of the current thread
      * @param  doc       the document to serialize
      * @param  receiver  the output handler
      */
-    private void writeXML( DocumentImpl doc, Receiver receiver )
+    private void writeXML( DBBroker broker, DocumentImpl doc, Receiver receiver )
     {
         try {
             EmbeddedXMLStreamReader   reader;
@@ -683,6 +720,85 @@ public class SystemExport
     }
 
 
+    /**
+     * Export the collections using several threads. The collection store is locked while it is scanned, so the records of all
+     * collections are collected first and the worker threads read the collections and their documents afterwards. Every worker
+     * uses its own broker and its own segment of the backup writer.
+     *
+     * @param   output      the backup writer
+     * @param   date        the date of the previous backup or null
+     * @param   prevBackup  the previous backup or null
+     * @param   errorList   a list of {@link org.exist.backup.ErrorReport} objects as returned by methods in {@link ConsistencyCheck}
+     *
+     * @return  a document set containing all exported documents
+     *
+     * @throws  IOException
+     * @throws  TerminatedException
+     */
+    private DocumentSet exportParallel( ConcurrentBackupWriter output, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList ) throws IOException, TerminatedException
+    {
+        final CollectionRecords records = new CollectionRecords();
+        broker.getCollectionsFailsafe( records );
+
+        final BrokerPool pool = broker.getBrokerPool();
+
+        // every worker needs a broker, and the calling thread holds one already
+        final int                    workerCount = Math.max( 1, Math.min( Math.min( threads, pool.getMax() - 1 ), records.uris.size() ) );
+        final AtomicInteger          next        = new AtomicInteger( 0 );
+        final AtomicInteger          done        = new AtomicInteger( 0 );
+        final MutableDocumentSet     docs        = new DefaultDocumentSet();
+        final ExecutorService        executor    = Executors.newFixedThreadPool( workerCount, new ExportThreadFactory( pool ) );
+        final List<Future<DocumentSet>> results  = new ArrayList<Future<DocumentSet>>( workerCount );
+
+        LOG.info( "Exporting " + records.uris.size() + " collections using " + workerCount + " threads" );
+
+        try {
+
+            for( int i = 0; i < workerCount; i++ ) {
+                results.add( executor.submit( new ExportWorker( output.newSegment(), records, next, done, date, prevBackup, errorList ) ) );
+            }
+            TerminatedException terminated = null;
+
+            for( final Future<DocumentSet> result : results ) {
+
+                try {
+                    docs.addAll( result.get() );
+                }
+                catch( final ExecutionException e ) {
+
+                    if( e.getCause() instanceof TerminatedException ) {
+                        terminated = (TerminatedException)e.getCause();
+                    } else if( e.getCause() instanceof IOException ) {
+                        throw( (IOException)e.getCause() );
+                    } else {
+                        reportError( "Caught exception while exporting collections: " + e.getCause().getMessage(), e.getCause() );
+                    }
+                }
+                catch( final InterruptedException e ) {
+                    throw( new TerminatedException( "system export interrupted" ) );
+                }
+            }
+
+            if( terminated != null ) {
+                throw( terminated );
+            }
+        }
+        finally {
+            // stop workers which are still waiting for the next collection
+            next.set( Integer.MAX_VALUE );
+            executor.shutdown();
+
+            try {
+                executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            }
+            catch( final InterruptedException e ) {
+                //ignore
+            }
+        }
+        return( docs );
+    }
+
+
     public static File getUniqueFile( String base, String extension, String dir )
     {
         final String filename = base + '-' + DataBackup.creationDateFormat.format( Calendar.getInstance().getTime() );
@@ -777,7 +893,7 @@ public class SystemExport
                         lastPercentage = percentage;
                         jmxAgent.updateStatus( broker.getBrokerPool(), percentage );
                     }
-                    export( bh, collection, writer, date, bd, errors, docs );
+                    export( broker, bh, collection, writer, date, bd, errors, docs );
                 }
             }
             catch( final TerminatedException e ) {
@@ -800,6 +916,147 @@ public class SystemExport
     }
 
 
+    /**
+     * Collects the names and storage addresses of all collection records.
+     */
+    private static class CollectionRecords implements BTreeCallback
+    {
+        private final List<String> uris     = new ArrayList<String>();
+        private final List<Long>   pointers = new ArrayList<Long>();
+
+        public boolean indexInfo( Value value, long pointer ) throws TerminatedException
+        {
+            final String uri = UTF8.decode( value.data(), value.start() + CollectionStore.CollectionKey.OFFSET_VALUE, value.getLength() - CollectionStore.CollectionKey.OFFSET_VALUE ).toString();
+
+            if( CollectionStore.NEXT_COLLECTION_ID_KEY.equals( uri ) || CollectionStore.NEXT_DOC_ID_KEY.equals( uri ) || CollectionStore.FREE_COLLECTION_ID_KEY.equals( uri ) || CollectionStore.FREE_DOC_ID_KEY.equals( uri ) ) {
+                return( true );
+            }
+            uris.add( uri );
+            pointers.add( Long.valueOf( pointer ) );
+            return( true );
+        }
+    }
+
+
+    /**
+     * Exports collections until all collections have been taken by one of the workers. Returns the documents it has exported.
+     */
+    private class ExportWorker implements Callable<DocumentSet>
+    {
+        private final BackupWriter       writer;
+        private final CollectionRecords  records;
+        private final AtomicInteger      next;
+        private final AtomicInteger      done;
+        private final Date               date;
+        private final BackupDescriptor   prevBackup;
+        private final List<ErrorReport>  errors;
+        private final MutableDocumentSet docs     = new DefaultDocumentSet();
+        private final Agent              jmxAgent = AgentFactory.getInstance();
+
+        private ExportWorker( BackupWriter writer, CollectionRecords records, AtomicInteger next, AtomicInteger done, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList )
+        {
+            this.writer     = writer;
+            this.records    = records;
+            this.next       = next;
+            this.done       = done;
+            this.date       = date;
+            this.prevBackup = prevBackup;
+            this.errors     = errorList;
+        }
+
+        public DocumentSet call() throws IOException, TerminatedException, EXistException
+        {
+            final BrokerPool pool         = broker.getBrokerPool();
+            final Subject    subject      = broker.getSubject();
+            DBBroker         workerBroker = null;
+
+            try {
+                workerBroker = pool.get( subject );
+                final CollectionStore store = (CollectionStore)( (NativeBroker)workerBroker ).getStorage( NativeBroker.COLLECTIONS_DBX_ID );
+                int                   index;
+
+                while( ( index = next.getAndIncrement() ) < records.uris.size() ) {
+                    final String uri = records.uris.get( index );
+
+                    try {
+
+                        if( callback != null ) {
+                            callback.startCollection( uri );
+                        }
+                        final Collection collection = readCollection( workerBroker, store, uri, records.pointers.get( index ).longValue() );
+                        BackupDescriptor bd         = null;
+
+                        if( prevBackup != null ) {
+                            bd = prevBackup.getBackupDescriptor( uri );
+                        }
+                        export( workerBroker, bh, collection, writer, date, bd, errors, docs );
+                    }
+                    catch( final TerminatedException e ) {
+                        reportError( "Terminating system export upon request", e );
+
+                        // stop the other workers and rethrow
+                        next.set( Integer.MAX_VALUE );
+                        throw( e );
+                    }
+                    catch( final IOException e ) {
+                        next.set( Integer.MAX_VALUE );
+                        throw( e );
+                    }
+                    catch( final Exception e ) {
+                        reportError( "Caught exception while scanning collections: " + uri, e );
+                    }
+                    final int percentage = 100 * ( done.incrementAndGet() + 1 ) / ( records.uris.size() + 1 );
+
+                    if( jmxAgent != null ) {
+                        jmxAgent.updateStatus( pool, percentage );
+                    }
+                }
+            }
+            finally {
+                writer.close();
+                pool.release( workerBroker );
+            }
+            return( docs );
+        }
+
+
+        private Collection readCollection( DBBroker workerBroker, CollectionStore store, String uri, long pointer ) throws IOException, PermissionDeniedException, LockException
+        {
+            final Lock lock = store.getLock();
+            lock.acquire( Lock.READ_LOCK );
+
+            try {
+                final Collection        collection = new Collection( workerBroker, XmldbURI.createInternal( uri ) );
+                final VariableByteInput istream    = store.getAsStream( pointer );
+                collection.read( workerBroker, istream );
+                return( collection );
+            }
+            finally {
+                lock.release( Lock.READ_LOCK );
+            }
+        }
+    }
+
+
+    private static class ExportThreadFactory implements ThreadFactory
+    {
+        private final BrokerPool    pool;
+        private final AtomicInteger id = new AtomicInteger( 0 );
+
+        private ExportThreadFactory( BrokerPool pool )
+        {
+            this.pool = pool;
+        }
+
+        public Thread newThread( Runnable r )
+        {
+            final Thread thread = new Thread( r, "export-" + pool.getId() + "-" + id.incrementAndGet() );
+            thread.setDaemon( true );
+            return( thread );
+        }
+    }
+
+
     private class DocumentCallback implements BTreeCallback
     {
         private DocumentSet      exportedDocs;
@@ -853,7 +1110,7 @@ public class SystemExport
                         doc.setFileURI( XmldbURI.createInternal( fileURI ) );
                         writtenDocs.add( fileURI );
                     }
-                    exportDocument( bh, output, date, prevBackup, serializer, 0, 0, doc );
+                    exportDocument( broker, bh, output, date, prevBackup, serializer, 0, 0, doc );
                 }
                 catch( final Exception e ) {
                     reportError( "Caught an exception while scanning documents: " + e.getMessage(), e );
@@ -866,11 +1123,13 @@ public class SystemExport
 
     private class CheckDeletedHandler extends DefaultHandler
     {
+        private DBBroker      broker;
         private Collection    collection;
         private SAXSerializer serializer;
 
-        private CheckDeletedHandler( Collection collection, SAXSerializer serializer )
+        private CheckDeletedHandler( DBBroker broker, Collection collection, SAXSerializer serializer )
         {
+            this.broker     = broker;
             this.collection = collection;
             this.serializer = serializer;
         }
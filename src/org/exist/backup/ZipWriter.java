@@ -27,12 +27,20 @@ import java.util.Properties;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
 
 /**
  * Implementation of BackupWriter that writes to a zip file.
+ *
+ * <p>Segments created by {@link #newSegment()} buffer each entry until it is complete and then append it to the archive
+ * while holding a lock on the zip stream, so several threads can export collections into the same archive.</p>
  */
-public class ZipWriter implements BackupWriter
+public class ZipWriter implements ConcurrentBackupWriter
 {
+    /** entries of a segment which are larger than this are buffered in a temporary file */
+    private final static int SEGMENT_BUFFER_THRESHOLD = 1024 * 1024;
+
     private String          currentPath;
     private ZipOutputStream out;
     private StringWriter    contents;
@@ -84,21 +92,13 @@ public class ZipWriter implements BackupWriter
 
     public void newCollection( String name )
     {
-        if( name.startsWith( "/" ) ) {
-            currentPath = name;
-        } else {
-            currentPath = currentPath + '/' + name;
-        }
+        currentPath = changeCollection( currentPath, name );
     }
 
 
     public void closeCollection()
     {
-        final int p = currentPath.lastIndexOf( '/' );
-
-        if( p > 0 ) {
-            currentPath = currentPath.substring( 0, p );
-        }
+        currentPath = parentCollection( currentPath );
     }
 
 
@@ -139,6 +139,66 @@ public class ZipWriter implements BackupWriter
         out.closeEntry();
     }
 
+    public BackupWriter newSegment()
+    {
+        return( new Segment() );
+    }
+
+
+    private void writeEntry( String name, byte[] data ) throws IOException
+    {
+        synchronized( out ) {
+            out.putNextEntry( new ZipEntry( name ) );
+            out.write( data );
+            out.closeEntry();
+            dataWritten = true;
+        }
+    }
+
+
+    private void writeEntry( String name, File file ) throws IOException
+    {
+        final FileInputStream is = new FileInputStream( file );
+
+        try {
+            synchronized( out ) {
+                out.putNextEntry( new ZipEntry( name ) );
+                final byte[] buf = new byte[65536];
+                int          len;
+
+                while( ( len = is.read( buf ) ) > 0 ) {
+                    out.write( buf, 0, len );
+                }
+                out.closeEntry();
+                dataWritten = true;
+            }
+        }
+        finally {
+            is.close();
+        }
+    }
+
+
+    private static String changeCollection( String currentPath, String name )
+    {
+        if( name.startsWith( "/" ) ) {
+            return( name );
+        }
+        return( currentPath + '/' + name );
+    }
+
+
+    private static String parentCollection( String currentPath )
+    {
+        final int p = currentPath.lastIndexOf( '/' );
+
+        if( p > 0 ) {
+            return( currentPath.substring( 0, p ) );
+        }
+        return( currentPath );
+    }
+
+
     private String mkRelative( String path )
     {
         if( ( path.length() > 0 ) && ( path.charAt( 0 ) == '/' ) ) {
@@ -146,4 +206,85 @@ public class ZipWriter implements BackupWriter
         }
         return( path );
     }
+
+    /**
+     * Writer used by one export thread. Entries are written to the archive as a whole when they are closed.
+     */
+    private class Segment implements BackupWriter
+    {
+        private String                   segmentPath = currentPath;
+        private StringWriter             segmentContents;
+        private String                   entryName;
+        private DeferredFileOutputStream entry;
+
+        public Writer newContents() throws IOException
+        {
+            segmentContents = new StringWriter();
+            return( segmentContents );
+        }
+
+
+        public void closeContents() throws IOException
+        {
+            writeEntry( mkRelative( segmentPath ) + "/__contents__.xml", segmentContents.toString().getBytes( "UTF-8" ) );
+            segmentContents = null;
+        }
+
+
+        public OutputStream newEntry( String name ) throws IOException
+        {
+            entryName = mkRelative( segmentPath ) + '/' + name;
+            entry     = new DeferredFileOutputStream( SEGMENT_BUFFER_THRESHOLD, "export", ".tmp", null );
+            return( entry );
+        }
+
+
+        public void closeEntry() throws IOException
+        {
+            entry.close();
+
+            try {
+                if( entry.isInMemory() ) {
+                    writeEntry( entryName, entry.getData() );
+                } else {
+                    writeEntry( entryName, entry.getFile() );
+                }
+            }
+            finally {
+                if( !entry.isInMemory() ) {
+                    entry.getFile().delete();
+                }
+                entry = null;
+            }
+        }
+
+
+        public void newCollection( String name )
+        {
+            segmentPath = changeCollection( segmentPath, name );
+        }
+
+
+        public void closeCollection()
+        {
+            segmentPath = parentCollection( segmentPath );
+        }
+
+
+        public void close() throws IOException
+        {
+        }
+
+
+        public void setProperties( Properties properties ) throws IOException
+        {
+            throw( new IOException( "Backup properties have to be set on the archive, not on a segment" ) );
+        }
+
+
+        public void addToRoot( String name, File file ) throws IOException
+        {
+            throw( new IOException( "Additional files have to be added to the archive, not to a segment" ) );
+        }
+    }
 }
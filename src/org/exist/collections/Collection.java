@@ -1912,6 +1912,10 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
                     broker.removeXMLResource(transaction, oldDoc);
                 }
             }
+            // the content is recorded under the id of the resource
+            if (blob.getDocId() == DocumentImpl.UNKNOWN_DOCUMENT_ID) {
+                blob.setDocId(broker.getNextResourceId(transaction, this));
+            }
             broker.storeBinaryResource(transaction, blob, is);
             addDocument(transaction, broker, blob, oldDoc);
             broker.storeXMLResource(transaction, blob);
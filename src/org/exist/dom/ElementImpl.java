@@ -471,11 +471,13 @@ public class ElementImpl extends NamedNode implements Element, ElementAtExist {
             //May help getReindexRoot() to make some useful things
             broker.getIndexController().setDocument(ownerDocument);
             final StoredNode reindexRoot = broker.getIndexController().getReindexRoot(this, path);
-            broker.getIndexController().setMode(StreamListener.STORE);
             if (reindexRoot == null) {
+                broker.getIndexController().setMode(StreamListener.STORE);
                 listener = broker.getIndexController().getStreamListener();
             } else {
-                broker.getIndexController().reindex(transaction, reindexRoot, StreamListener.STORE);
+                // drop the index entries of the root, they are recreated below
+                broker.getIndexController().reindex(transaction, reindexRoot, StreamListener.REMOVE_SOME_NODES);
+                broker.getIndexController().setMode(StreamListener.STORE);
             }
             if (children == 0) {
                 // no children: append a new child
@@ -1207,11 +1209,13 @@ public class ElementImpl extends NamedNode implements Element, ElementAtExist {
             //May help getReindexRoot() to make some useful things
             broker.getIndexController().setDocument(ownerDocument);
             final StoredNode reindexRoot = broker.getIndexController().getReindexRoot(this, path, true);
-            broker.getIndexController().setMode(StreamListener.STORE);
             if (reindexRoot == null) {
+                broker.getIndexController().setMode(StreamListener.STORE);
                 listener = broker.getIndexController().getStreamListener();
             } else {
-                broker.getIndexController().reindex(transaction, reindexRoot, StreamListener.STORE);
+                // drop the index entries of the root, they are recreated below
+                broker.getIndexController().reindex(transaction, reindexRoot, StreamListener.REMOVE_SOME_NODES);
+                broker.getIndexController().setMode(StreamListener.STORE);
             }
             final StoredNode following = (StoredNode) refChild;
             final StoredNode previous = (StoredNode) following.getPreviousSibling();
@@ -1258,11 +1262,13 @@ public class ElementImpl extends NamedNode implements Element, ElementAtExist {
             //May help getReindexRoot() to make some useful things
             broker.getIndexController().setDocument(ownerDocument);
             final StoredNode reindexRoot = broker.getIndexController().getReindexRoot(this, path, true);
-            broker.getIndexController().setMode(StreamListener.STORE);
             if (reindexRoot == null) {
+                broker.getIndexController().setMode(StreamListener.STORE);
                 listener = broker.getIndexController().getStreamListener();
             } else {
-                broker.getIndexController().reindex(transaction, reindexRoot, StreamListener.STORE);
+                // drop the index entries of the root, they are recreated below
+                broker.getIndexController().reindex(transaction, reindexRoot, StreamListener.REMOVE_SOME_NODES);
+                broker.getIndexController().setMode(StreamListener.STORE);
             }
             final StoredNode previous = (StoredNode) refChild;
             final StoredNode following = (StoredNode) previous.getNextSibling();
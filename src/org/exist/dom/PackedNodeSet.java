@@ -0,0 +1,838 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2013 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.dom;
+
+import org.exist.numbering.DLN;
+import org.exist.numbering.NodeId;
+import org.exist.util.hashtable.Int2ObjectHashMap;
+import org.exist.xquery.Constants;
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.w3c.dom.Node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A node set which stores its nodes in a compact, columnar form instead of
+ * keeping a {@link NodeProxy} for every node.
+ *
+ * The node ids of all nodes are stored as packed DLN bits in a single byte array.
+ * Internal addresses and node types are kept in primitive arrays and the document
+ * is stored once for every run of nodes belonging to the same document. A node
+ * proxy is only created if a node is accessed, e.g. by an iterator, and it is not
+ * kept by the set. Accessing the same node twice thus returns two different
+ * node proxies. Context or match information added to the returned node proxies
+ * is not retained by the set.
+ *
+ * The structural joins, i.e. {@link #selectParentChild(NodeSet, int, int)} and
+ * {@link #selectAncestorDescendant(NodeSet, int, boolean, int, boolean)}, compare
+ * the packed node ids directly and only create node proxies for the selected nodes.
+ * The remaining axes are evaluated on a {@link NewArrayNodeSet}, which is created
+ * on first use.
+ *
+ * The set is used for the nodes read from the structural index, which arrive
+ * in document order. Nodes can be added in any order though: the set is sorted and
+ * duplicates are removed before it is accessed.
+ */
+public class PackedNodeSet extends AbstractNodeSet implements ExtNodeSet {
+
+    private final static int INITIAL_SIZE = 64;
+
+    // average number of bytes of a node id, used to size the nodeIds array
+    private final static int NODE_ID_SIZE = 4;
+
+    private DocumentImpl documents[] = new DocumentImpl[16];
+    // index of the first node of each document
+    private int documentOffsets[] = new int[16];
+    private int documentCount = 0;
+
+    private byte nodeIds[];
+    // offset of the node id of each node in nodeIds. The last entry points
+    // to the end of the used part of nodeIds.
+    private int nodeIdOffsets[];
+    // number of bits used by each node id
+    private short nodeIdUnits[];
+    private long addresses[];
+    private byte nodeTypes[];
+
+    private int size = 0;
+
+    private boolean isSorted = true;
+
+    private int state = 0;
+
+    //  used to keep track of the type of added items.
+    private int itemType = Type.ANY_TYPE;
+
+    // the nodes of this set as node proxies, used by the axes which are not
+    // evaluated on the packed node ids
+    private NewArrayNodeSet materialized = null;
+
+    public PackedNodeSet() {
+        this(INITIAL_SIZE);
+    }
+
+    /**
+     * Creates a new <code>PackedNodeSet</code> instance.
+     *
+     * @param initialArraySize the expected number of nodes
+     */
+    public PackedNodeSet(int initialArraySize) {
+        if (initialArraySize < 1)
+            {initialArraySize = 1;}
+        nodeIds = new byte[initialArraySize * NODE_ID_SIZE];
+        nodeIdOffsets = new int[initialArraySize + 1];
+        nodeIdUnits = new short[initialArraySize];
+        addresses = new long[initialArraySize];
+        nodeTypes = new byte[initialArraySize];
+    }
+
+    /**
+     * Add a node given by its packed node id.
+     *
+     * @param doc the document the node belongs to
+     * @param data array containing the node id as written by {@link NodeId#serialize(byte[], int)}
+     * @param offset offset of the node id in data
+     * @param units number of bits used by the node id
+     * @param nodeType the DOM node type of the node
+     * @param address the internal address of the node or {@link StoredNode#UNKNOWN_NODE_IMPL_ADDRESS}
+     */
+    public void add(DocumentImpl doc, byte[] data, int offset, int units, short nodeType, long address) {
+        final int length = (units + 7) / 8;
+        ensureCapacity(length);
+        final int start = nodeIdOffsets[size];
+        System.arraycopy(data, offset, nodeIds, start, length);
+        nodeIdOffsets[size + 1] = start + length;
+        nodeIdUnits[size] = (short) units;
+        addresses[size] = address;
+        nodeTypes[size] = (byte) nodeType;
+        if (documentCount == 0 || documents[documentCount - 1].getDocId() != doc.getDocId()) {
+            if (documentCount > 0 && documents[documentCount - 1].getDocId() > doc.getDocId())
+                {isSorted = false;}
+            ensureDocCapacity();
+            documents[documentCount] = doc;
+            documentOffsets[documentCount++] = size;
+        } else if (isSorted && compare(size - 1, nodeIds, start, units) >= 0) {
+            // out of order or a duplicate
+            isSorted = false;
+        }
+        ++size;
+        checkItemType(NodeProxy.nodeType2XQuery(nodeType));
+        materialized = null;
+        setHasChanged();
+    }
+
+    /**
+     * Add a node. Only the document, node id, node type and internal address of the
+     * node are stored. The context and match information of the node proxy is not kept.
+     */
+    public void add(NodeProxy proxy) {
+        final NodeId nodeId = proxy.getNodeId();
+        final byte data[] = new byte[nodeId.size()];
+        nodeId.serialize(data, 0);
+        add(proxy.getDocument(), data, 0, nodeId.units(), proxy.getNodeType(), proxy.getInternalAddress());
+    }
+
+    public void addAll(NodeSet other) {
+        for (final NodeProxy node : other) {
+            add(node);
+        }
+    }
+
+    private void ensureCapacity(int nodeIdLength) {
+        if (size == addresses.length) {
+            final int nsize = size << 1;
+            int offsets[] = new int[nsize + 1];
+            System.arraycopy(nodeIdOffsets, 0, offsets, 0, size + 1);
+            nodeIdOffsets = offsets;
+            short units[] = new short[nsize];
+            System.arraycopy(nodeIdUnits, 0, units, 0, size);
+            nodeIdUnits = units;
+            long addr[] = new long[nsize];
+            System.arraycopy(addresses, 0, addr, 0, size);
+            addresses = addr;
+            byte types[] = new byte[nsize];
+            System.arraycopy(nodeTypes, 0, types, 0, size);
+            nodeTypes = types;
+        }
+        final int used = nodeIdOffsets[size];
+        if (used + nodeIdLength > nodeIds.length) {
+            final byte temp[] = new byte[Math.max(nodeIds.length << 1, used + nodeIdLength)];
+            System.arraycopy(nodeIds, 0, temp, 0, used);
+            nodeIds = temp;
+        }
+    }
+
+    private void ensureDocCapacity() {
+        if (documentCount == documents.length) {
+            final int nlen = documentCount << 1;
+            final DocumentImpl docs[] = new DocumentImpl[nlen];
+            System.arraycopy(documents, 0, docs, 0, documentCount);
+            documents = docs;
+            final int offsets[] = new int[nlen];
+            System.arraycopy(documentOffsets, 0, offsets, 0, documentCount);
+            documentOffsets = offsets;
+        }
+    }
+
+    private void checkItemType(int type) {
+        if(itemType == Type.NODE || itemType == type) {
+            return;
+        }
+        if(itemType == Type.ANY_TYPE) {
+            itemType = type;
+        } else {
+            itemType = Type.NODE;
+        }
+    }
+
+    public int getItemType() {
+        return itemType;
+    }
+
+    private void setHasChanged() {
+        state = (state == Integer.MAX_VALUE ? 0 : state + 1);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean hasChanged(int previousState) {
+        return state != previousState;
+    }
+
+    /**
+     * Compares the node id of the node at pos with the given packed node id.
+     */
+    private int compare(int pos, byte[] data, int offset, int units) {
+        return DLN.compare(nodeIds, nodeIdOffsets[pos], nodeIdUnits[pos], data, offset, units);
+    }
+
+    /**
+     * Returns the relation of the node at pos to the given packed node id,
+     * see {@link DLN#computeRelation(byte[], int, int, byte[], int, int)}.
+     */
+    private int computeRelation(int pos, byte[] ancestor, int units) {
+        return DLN.computeRelation(nodeIds, nodeIdOffsets[pos], nodeIdUnits[pos], ancestor, 0, units);
+    }
+
+    private int getEnd(int docIdx) {
+        return docIdx + 1 < documentCount ? documentOffsets[docIdx + 1] : size;
+    }
+
+    private int findDoc(DocumentImpl doc) {
+        final int docId = doc.getDocId();
+        int low = 0;
+        int high = documentCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midVal = documents[mid].getDocId();
+            if (midVal < docId)
+                {low = mid + 1;}
+            else if (midVal > docId)
+                {high = mid - 1;}
+            else
+                {return mid;} // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+
+    /**
+     * Find the node with the given node id in the document at docIdx.
+     *
+     * @return the position of the node or -1 if it was not found
+     */
+    private int find(int docIdx, byte[] data, int units) {
+        int low = documentOffsets[docIdx];
+        int high = getEnd(docIdx) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(mid, data, 0, units);
+            if (cmp == 0) {
+                return mid;
+            }
+            if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int find(DocumentImpl doc, NodeId nodeId) {
+        sort();
+        final int docIdx = findDoc(doc);
+        if (docIdx < 0)
+            {return -1;}
+        return find(docIdx, serialize(nodeId, null), nodeId.units());
+    }
+
+    private static byte[] serialize(NodeId nodeId, byte[] buffer) {
+        final int length = nodeId.size();
+        if (buffer == null || buffer.length < length)
+            {buffer = new byte[length];}
+        nodeId.serialize(buffer, 0);
+        return buffer;
+    }
+
+    private NodeId getNodeId(DocumentImpl doc, int pos) {
+        final int units = nodeIdUnits[pos];
+        final NodeId nodeId = doc.getBrokerPool().getNodeFactory().createFromData(units, nodeIds, nodeIdOffsets[pos]);
+        if (units == NodeId.DOCUMENT_NODE.units() && nodeId.equals(NodeId.DOCUMENT_NODE))
+            {return NodeId.DOCUMENT_NODE;}
+        return nodeId;
+    }
+
+    /**
+     * Create a node proxy for the node at pos.
+     */
+    private NodeProxy getNode(int docIdx, int pos) {
+        final DocumentImpl doc = documents[docIdx];
+        return new NodeProxy(doc, getNodeId(doc, pos), nodeTypes[pos], addresses[pos]);
+    }
+
+    private int getDocIndex(int pos) {
+        int low = 0;
+        int high = documentCount - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (documentOffsets[mid] <= pos)
+                {low = mid;}
+            else
+                {high = mid - 1;}
+        }
+        return low;
+    }
+
+    /**
+     * Sort the nodes in document order and remove duplicates.
+     */
+    public void sort() {
+        if (isSorted)
+            {return;}
+        final DocumentImpl docs[] = new DocumentImpl[size];
+        for (int d = 0; d < documentCount; d++) {
+            Arrays.fill(docs, documentOffsets[d], getEnd(d), documents[d]);
+        }
+        final Integer order[] = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                final int i1 = o1.intValue();
+                final int i2 = o2.intValue();
+                final int docId1 = docs[i1].getDocId();
+                final int docId2 = docs[i2].getDocId();
+                if (docId1 != docId2)
+                    {return docId1 < docId2 ? -1 : 1;}
+                return PackedNodeSet.this.compare(i1, nodeIds, nodeIdOffsets[i2], nodeIdUnits[i2]);
+            }
+        });
+        final byte newIds[] = new byte[nodeIds.length];
+        final int newOffsets[] = new int[nodeIdOffsets.length];
+        final short newUnits[] = new short[nodeIdUnits.length];
+        final long newAddresses[] = new long[addresses.length];
+        final byte newTypes[] = new byte[nodeTypes.length];
+        documentCount = 0;
+        int count = 0;
+        int last = -1;
+        for (int j = 0; j < size; j++) {
+            final int i = order[j].intValue();
+            if (last > -1 && docs[last].getDocId() == docs[i].getDocId() &&
+                    compare(last, nodeIds, nodeIdOffsets[i], nodeIdUnits[i]) == 0)
+                {continue;} // duplicate
+            if (last < 0 || docs[last].getDocId() != docs[i].getDocId()) {
+                ensureDocCapacity();
+                documents[documentCount] = docs[i];
+                documentOffsets[documentCount++] = count;
+            }
+            final int length = nodeIdOffsets[i + 1] - nodeIdOffsets[i];
+            System.arraycopy(nodeIds, nodeIdOffsets[i], newIds, newOffsets[count], length);
+            newOffsets[count + 1] = newOffsets[count] + length;
+            newUnits[count] = nodeIdUnits[i];
+            newAddresses[count] = addresses[i];
+            newTypes[count] = nodeTypes[i];
+            ++count;
+            last = i;
+        }
+        nodeIds = newIds;
+        nodeIdOffsets = newOffsets;
+        nodeIdUnits = newUnits;
+        addresses = newAddresses;
+        nodeTypes = newTypes;
+        size = count;
+        isSorted = true;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean hasOne() {
+        sort();
+        return size == 1;
+    }
+
+    public int getLength() {
+        sort();
+        return size;
+    }
+
+    public int getItemCount() {
+        sort();
+        return size;
+    }
+
+    public Node item(int pos) {
+        final NodeProxy p = get(pos);
+        return p == null ? null : p.getNode();
+    }
+
+    public NodeProxy get(int pos) {
+        sort();
+        if (pos < 0 || pos >= size)
+            {return null;}
+        return getNode(getDocIndex(pos), pos);
+    }
+
+    public Item itemAt(int pos) {
+        return get(pos);
+    }
+
+    public boolean contains(NodeProxy proxy) {
+        return find(proxy.getDocument(), proxy.getNodeId()) > -1;
+    }
+
+    public NodeProxy get(NodeProxy proxy) {
+        return get(proxy.getDocument(), proxy.getNodeId());
+    }
+
+    public NodeProxy get(DocumentImpl doc, NodeId nodeId) {
+        final int pos = find(doc, nodeId);
+        if (pos < 0)
+            {return null;}
+        return new NodeProxy(documents[findDoc(doc)], nodeId, nodeTypes[pos], addresses[pos]);
+    }
+
+    public int getSizeHint(DocumentImpl doc) {
+        sort();
+        final int idx = findDoc(doc);
+        return idx < 0 ? Constants.NO_SIZE_HINT : getEnd(idx) - documentOffsets[idx];
+    }
+
+    public DocumentSet getDocumentSet() {
+        sort();
+        final DefaultDocumentSet docs = new DefaultDocumentSet(documentCount);
+        for (int i = 0; i < documentCount; i++) {
+            docs.add(documents[i], false);
+        }
+        return docs;
+    }
+
+    public NodeSetIterator iterator() {
+        sort();
+        return new PackedIterator();
+    }
+
+    public SequenceIterator iterate() throws XPathException {
+        sort();
+        return new PackedIterator();
+    }
+
+    public SequenceIterator unorderedIterator() throws XPathException {
+        sort();
+        return new PackedIterator();
+    }
+
+    public ByDocumentIterator iterateByDocument() {
+        sort();
+        return new PackedDocIterator();
+    }
+
+    public void setSorted(DocumentImpl document, boolean sorted) {
+        // has to be ignored for this node set implementation
+    }
+
+    public void nodeMoved(NodeId oldNodeId, StoredNode newNode) {
+        final int pos = find((DocumentImpl) newNode.getOwnerDocument(), oldNodeId);
+        if (pos < 0)
+            {return;}
+        final NodeId newId = newNode.getNodeId();
+        final int length = newId.size();
+        final int oldLength = nodeIdOffsets[pos + 1] - nodeIdOffsets[pos];
+        if (length != oldLength) {
+            // shift the node ids following the moved node
+            final int used = nodeIdOffsets[size];
+            final byte temp[] = new byte[Math.max(nodeIds.length, used - oldLength + length)];
+            System.arraycopy(nodeIds, 0, temp, 0, nodeIdOffsets[pos]);
+            System.arraycopy(nodeIds, nodeIdOffsets[pos + 1], temp, nodeIdOffsets[pos] + length,
+                used - nodeIdOffsets[pos + 1]);
+            nodeIds = temp;
+            for (int i = pos + 1; i <= size; i++) {
+                nodeIdOffsets[i] += length - oldLength;
+            }
+        }
+        newId.serialize(nodeIds, nodeIdOffsets[pos]);
+        nodeIdUnits[pos] = (short) newId.units();
+        addresses[pos] = newNode.getInternalAddress();
+        materialized = null;
+        // the node may have moved relative to its siblings
+        isSorted = false;
+        sort();
+    }
+
+    /**
+     * Returns the nodes of this set as node proxies.
+     */
+    private NewArrayNodeSet materialize() {
+        sort();
+        if (materialized == null) {
+            materialized = new NewArrayNodeSet(size);
+            for (int d = 0; d < documentCount; d++) {
+                final int end = getEnd(d);
+                for (int i = documentOffsets[d]; i < end; i++) {
+                    materialized.add(getNode(d, i));
+                }
+            }
+        }
+        return materialized;
+    }
+
+    public NodeSet selectParentChild(NodeSet al, int mode, int contextId) {
+        sort();
+        if (al instanceof VirtualNodeSet)
+            {return super.selectParentChild(al, mode, contextId);}
+        return getDescendantsInSet(al, true, false, mode, contextId, true);
+    }
+
+    public NodeSet selectAncestorDescendant(NodeSet al, int mode, boolean includeSelf,
+            int contextId, boolean copyMatches) {
+        sort();
+        if (al instanceof VirtualNodeSet)
+            {return super.selectAncestorDescendant(al, mode, includeSelf, contextId, copyMatches);}
+        return getDescendantsInSet(al, false, includeSelf, mode, contextId, copyMatches);
+    }
+
+    public NodeSet selectAncestors(NodeSet al, boolean includeSelf, int contextId) {
+        return materialize().selectAncestors(al, includeSelf, contextId);
+    }
+
+    public NodeSet selectPrecedingSiblings(NodeSet contextSet, int contextId) {
+        return materialize().selectPrecedingSiblings(contextSet, contextId);
+    }
+
+    public NodeSet selectFollowingSiblings(NodeSet contextSet, int contextId) {
+        return materialize().selectFollowingSiblings(contextSet, contextId);
+    }
+
+    public NodeSet selectPreceding(NodeSet pl, int contextId) throws XPathException {
+        return materialize().selectPreceding(pl, contextId);
+    }
+
+    public NodeSet selectPreceding(NodeSet pl, int position, int contextId) throws XPathException {
+        return materialize().selectPreceding(pl, position, contextId);
+    }
+
+    public NodeSet selectFollowing(NodeSet fl, int contextId) throws XPathException {
+        return materialize().selectFollowing(fl, contextId);
+    }
+
+    public NodeSet selectFollowing(NodeSet fl, int position, int contextId) throws XPathException {
+        return materialize().selectFollowing(fl, position, contextId);
+    }
+
+    /**
+     * Find all nodes in this set which are children or descendants of a node in al.
+     * Works like {@link NewArrayNodeSet#getDescendantsInSet(NodeSet, boolean, boolean, int, int, boolean)},
+     * but compares the packed node ids. The node id of each parent is serialized
+     * once and node proxies are only created for the nodes found.
+     */
+    public NodeSet getDescendantsInSet(NodeSet al, boolean childOnly,
+            boolean includeSelf, int mode, int contextId, boolean copyMatches) {
+        sort();
+        final NodeSet result = new NewArrayNodeSet();
+        // a node may be the descendant of several nodes in al. The same node proxy
+        // has to be used for all of them to keep the context of each.
+        final Int2ObjectHashMap<NodeProxy> selected =
+            mode == NodeSet.DESCENDANT && !childOnly ? new Int2ObjectHashMap<NodeProxy>() : null;
+        byte parentData[] = null;
+        for (final NodeProxy parent : al) {
+            final int docIdx = findDoc(parent.getDocument());
+            if (docIdx < 0)
+                {continue;}
+            final NodeId parentId = parent.getNodeId();
+            final int start = documentOffsets[docIdx];
+            final int end = getEnd(docIdx);
+            // document nodes are treated specially
+            if (parentId == NodeId.DOCUMENT_NODE) {
+                for (int i = start; i < end; i++) {
+                    boolean add;
+                    if (childOnly) {
+                        add = DLN.getLevelCount(nodeIds, nodeIdOffsets[i], nodeIdUnits[i], 0) == 1;
+                    } else if (includeSelf) {
+                        add = true;
+                    } else {
+                        add = getNodeId(documents[docIdx], i) != NodeId.DOCUMENT_NODE;
+                    }
+                    if (add)
+                        {select(result, selected, docIdx, i, parent, mode, contextId, copyMatches);}
+                }
+            } else {
+                parentData = serialize(parentId, parentData);
+                final int parentUnits = parentId.units();
+                // do a binary search to pick some node in the range of valid
+                // child ids
+                int low = start;
+                int high = end - 1;
+                int mid = low;
+                while (low <= high) {
+                    mid = (low + high) >>> 1;
+                    if (computeRelation(mid, parentData, parentUnits) > -1) {
+                        break;	// found a child node, break out.
+                    }
+                    if (compare(mid, parentData, 0, parentUnits) > 0) {
+                        high = mid - 1;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                if (low > high)
+                    {continue;} // no node found
+                // find the first child node in the range
+                while (mid > start && compare(mid - 1, parentData, 0, parentUnits) > -1) {
+                    --mid;
+                }
+                // walk through the range of child nodes we found
+                for (int i = mid; i < end; i++) {
+                    final int relation = computeRelation(i, parentData, parentUnits);
+                    if (relation < 0)
+                        {break;}
+                    boolean add = true;
+                    if (childOnly) {
+                        add = relation == NodeId.IS_CHILD;
+                    } else if (relation == NodeId.IS_SELF) {
+                        add = includeSelf;
+                    }
+                    if (add)
+                        {select(result, selected, docIdx, i, parent, mode, contextId, copyMatches);}
+                }
+            }
+        }
+        return result;
+    }
+
+    private void select(NodeSet result, Int2ObjectHashMap<NodeProxy> selected, int docIdx, int pos,
+            NodeProxy parent, int mode, int contextId, boolean copyMatches) {
+        NodeProxy node = selected == null ? null : selected.get(pos);
+        if (node == null) {
+            node = getNode(docIdx, pos);
+            if (selected != null)
+                {selected.put(pos, node);}
+        }
+        switch (mode) {
+        case NodeSet.DESCENDANT :
+            if (Expression.NO_CONTEXT_ID != contextId) {
+                node.deepCopyContext(parent, contextId);
+            } else {
+                node.copyContext(parent);
+            }
+            if (copyMatches)
+                {node.addMatches(parent);}
+            result.add(node);
+            break;
+        case NodeSet.ANCESTOR :
+            if (Expression.NO_CONTEXT_ID != contextId) {
+                parent.deepCopyContext(node, contextId);
+            } else {
+                parent.copyContext(node);
+            }
+            result.add(parent, 1);
+            break;
+        }
+    }
+
+    public NodeProxy hasDescendantsInSet(DocumentImpl doc, NodeId ancestorId,
+            boolean includeSelf, int contextId, boolean copyMatches) {
+        sort();
+        final int docIdx = findDoc(doc);
+        if (docIdx < 0)
+            {return null;}
+        final byte ancestorData[] = serialize(ancestorId, null);
+        final int ancestorUnits = ancestorId.units();
+        final int start = documentOffsets[docIdx];
+        final int end = getEnd(docIdx);
+        // do a binary search to pick some node in the range of valid child ids
+        int low = start;
+        int high = end - 1;
+        int mid = 0;
+        while (low <= high) {
+            mid = (low + high) >>> 1;
+            if (computeRelation(mid, ancestorData, ancestorUnits) > -1) {
+                break; // found a child node, break out.
+            }
+            if (compare(mid, ancestorData, 0, ancestorUnits) > 0) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (low > high) {
+            return null; // no node found
+        }
+        // find the first child node in the range
+        while (mid > start && compare(mid - 1, ancestorData, 0, ancestorUnits) >= 0) {
+            --mid;
+        }
+        final NodeProxy ancestor = new NodeProxy(documents[docIdx], ancestorId, Node.ELEMENT_NODE);
+        // we need to check if self should be included
+        boolean foundOne = false;
+        for (int i = mid; i < end; i++) {
+            final int relation = computeRelation(i, ancestorData, ancestorUnits);
+            if (relation < 0)
+                {break;}
+            if (relation != NodeId.IS_SELF || includeSelf) {
+                final NodeProxy node = getNode(docIdx, i);
+                if (Expression.NO_CONTEXT_ID != contextId) {
+                    ancestor.deepCopyContext(node, contextId);
+                } else {
+                    ancestor.copyContext(node);
+                }
+                foundOne = true;
+            }
+        }
+        return foundOne ? ancestor : null;
+    }
+
+    private class PackedIterator implements NodeSetIterator, SequenceIterator {
+
+        int docIdx = 0;
+        int pos = 0;
+        // the node at pos, if it was already created by peekNode
+        NodeProxy current = null;
+
+        public void setPosition(NodeProxy proxy) {
+            current = null;
+            docIdx = findDoc(proxy.getDocument());
+            if (docIdx > -1) {
+                final NodeId nodeId = proxy.getNodeId();
+                pos = find(docIdx, serialize(nodeId, null), nodeId.units());
+                if (pos > -1)
+                    {return;}
+            }
+            docIdx = 0;
+            pos = -1;
+        }
+
+        public boolean hasNext() {
+            return pos < size && pos > -1;
+        }
+
+        public NodeProxy next() {
+            final NodeProxy next = peekNode();
+            if (next != null) {
+                ++pos;
+                current = null;
+            }
+            return next;
+        }
+
+        public NodeProxy peekNode() {
+            if (pos == size || pos < 0) {
+                pos = -1;
+                return null;
+            }
+            if (current == null) {
+                while (getEnd(docIdx) <= pos) {
+                    ++docIdx;
+                }
+                current = getNode(docIdx, pos);
+            }
+            return current;
+        }
+
+        public Item nextItem() {
+            return next();
+        }
+
+        public void remove() {
+        }
+    }
+
+    private class PackedDocIterator implements ByDocumentIterator {
+
+        int docIdx = -1;
+        int pos = 0;
+        int end = 0;
+        NodeProxy next = null;
+
+        public void nextDocument(DocumentImpl document) {
+            docIdx = findDoc(document);
+            next = null;
+            if (docIdx > -1) {
+                pos = documentOffsets[docIdx];
+                end = getEnd(docIdx);
+                next = getNode(docIdx, pos);
+            }
+        }
+
+        public boolean hasNextNode() {
+            return next != null;
+        }
+
+        public NodeProxy nextNode() {
+            if (next == null)
+                {return null;}
+            final NodeProxy n = next;
+            next = ++pos < end ? getNode(docIdx, pos) : null;
+            return n;
+        }
+
+        public NodeProxy peekNode() {
+            return next;
+        }
+
+        public void setPosition(NodeProxy proxy) {
+            next = null;
+            docIdx = findDoc(proxy.getDocument());
+            if (docIdx > -1) {
+                final NodeId nodeId = proxy.getNodeId();
+                final int found = find(docIdx, serialize(nodeId, null), nodeId.units());
+                if (found > -1) {
+                    pos = found;
+                    end = getEnd(docIdx);
+                    next = getNode(docIdx, pos);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "PackedNodeSet#" + super.toString();
+    }
+}
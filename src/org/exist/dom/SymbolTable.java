@@ -383,7 +383,7 @@ public class SymbolTable {
         }
     }
 
-    public void backupSymbolsTo(OutputStream os) throws IOException {
+    public synchronized void backupSymbolsTo(OutputStream os) throws IOException {
         final FileInputStream fis = new FileInputStream(this.getFile());
         final byte[] buf = new byte[1024];
         int len;
@@ -396,6 +396,7 @@ public class SymbolTable {
     public void backupToArchive(RawDataBackup backup) throws IOException {
         final OutputStream os = backup.newEntry(getFile().getName());
         backupSymbolsTo(os);
+        backup.closeEntry();
     }
 
     public void flush() throws EXistException {
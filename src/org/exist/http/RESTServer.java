@@ -39,6 +39,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.TreeSet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.XMLConstants;
@@ -78,12 +79,15 @@ import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.source.URLSource;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.BulkLoader;
 import org.exist.storage.DBBroker;
+import org.exist.storage.ElementValue;
 import org.exist.storage.XQueryPool;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.EXistOutputKeys;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.serializers.Serializer.HttpContext;
+import org.exist.storage.serializers.XIncludeFilter;
 import org.exist.storage.txn.TransactionException;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.storage.txn.Txn;
@@ -115,6 +119,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
@@ -133,6 +138,8 @@ public class RESTServer {
 
     protected final static Logger LOG = Logger.getLogger(RESTServer.class);
     public final static String SERIALIZATION_METHOD_PROPERTY = "output-as";
+    private final static String ZIP_CONTENT_TYPE = "application/zip";
+    private final static QName XINCLUDE_QNAME = new QName("include", XIncludeFilter.XINCLUDE_NS);
     // Should we not obey the instance's defaults? /ljo
     protected final static Properties defaultProperties = new Properties();
 
@@ -173,15 +180,34 @@ public class RESTServer {
     //EXQuery Request Module details
     private String xqueryContextExqueryRequestAttribute = null;
     private Constructor cstrHttpServletRequestAdapter = null;
+
+    // cache for serialized documents, null if disabled
+    private ResponseCache responseCache = null;
     
     // Constructor
     public RESTServer(final BrokerPool pool, final String formEncoding,
             final String containerEncoding, final boolean useDynamicContentType, final boolean safeMode) {
+        this(pool, formEncoding, containerEncoding, useDynamicContentType, safeMode, 0);
+    }
+
+    /**
+     * @param responseCacheSize the maximum number of bytes of serialized documents
+     *  to cache in memory, 0 to disable the cache. A single document may use a
+     *  tenth of the cache at most.
+     */
+    public RESTServer(final BrokerPool pool, final String formEncoding,
+            final String containerEncoding, final boolean useDynamicContentType, final boolean safeMode,
+            final long responseCacheSize) {
         this.formEncoding = formEncoding;
         this.containerEncoding = containerEncoding;
         this.useDynamicContentType = useDynamicContentType;
         this.safeMode = safeMode;
         this.sessionManager = new SessionManager(pool);
+
+        if (responseCacheSize > 0) {
+            responseCache = new ResponseCache(responseCacheSize, (int) Math.min(responseCacheSize / 10, Integer.MAX_VALUE));
+            pool.getNotificationService().subscribe(responseCache);
+        }
         
         //get (optiona) EXQuery Request Module details
         try {
@@ -704,6 +730,12 @@ public class RESTServer {
             }
         }
 
+        // a zip archive posted to a collection: bulk load its entries
+        if (ZIP_CONTENT_TYPE.equals(requestType)) {
+            doBulkLoad(broker, request, response, pathUri);
+            return;
+        }
+
         // content type != application/x-www-form-urlencoded
         if (requestType == null || !requestType.equals(MimeType.URL_ENCODED_TYPE.getName())) {
             // third, normal POST: read the request content and check if
@@ -993,6 +1025,61 @@ public class RESTServer {
         }
     }
 
+    /**
+     * Bulk loads the entries of a zip archive posted to a collection, see
+     * {@link BulkLoader}. The number of documents stored within one transaction
+     * can be set with the parameter _batch. Responds with an exist:bulk-load
+     * element which reports the number of documents stored and the time taken.
+     */
+    private void doBulkLoad(final DBBroker broker, final HttpServletRequest request,
+            final HttpServletResponse response, final XmldbURI path)
+            throws BadRequestException, PermissionDeniedException, IOException, NotFoundException {
+        final Collection collection = broker.getCollection(path);
+        if (collection == null) {
+            throw new NotFoundException("Collection " + path + " not found");
+        }
+        int batchSize = BulkLoader.DEFAULT_BATCH_SIZE;
+        final String option = request.getParameter(Batch.queryStringKey());
+        if (option != null) {
+            try {
+                batchSize = Integer.parseInt(option);
+            } catch (final NumberFormatException e) {
+                throw new BadRequestException("Parameter " + Batch.queryStringKey() + " should be an integer");
+            }
+        }
+        final BulkLoader loader = new BulkLoader(broker, batchSize);
+        try {
+            final InputStream is = request.getInputStream();
+            try {
+                loader.storeZip(collection, is);
+            } finally {
+                is.close();
+            }
+            loader.finish();
+        } catch (final TriggerException e) {
+            throw new PermissionDeniedException(e.getMessage());
+        } catch (final SAXException e) {
+            throw new BadRequestException("Parsing exception: " + e.getMessage());
+        } catch (final LockException e) {
+            throw new PermissionDeniedException(e.getMessage());
+        } catch (final EXistException e) {
+            throw new BadRequestException("Internal error: " + e.getMessage());
+        } finally {
+            try {
+                loader.finish();
+            } catch (final EXistException e) {
+                LOG.warn("Failed to finish bulk load: " + e.getMessage(), e);
+            }
+        }
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setContentType(MimeType.XML_TYPE.getName() + "; charset=UTF-8");
+        final Writer writer = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+        writer.write("<exist:bulk-load xmlns:exist=\"" + Namespaces.EXIST_NS + "\" documents=\"" +
+            loader.getLoaded() + "\" time=\"" + loader.getTime() + "\" documents-per-second=\"" +
+            Math.round(loader.getDocumentsPerSecond()) + "\"/>");
+        writer.flush();
+    }
+
     /**
      * Handles PUT requests. The request content is stored as a new resource at
      * the specified location. If the resource already exists, it is overwritten
@@ -1644,39 +1731,33 @@ public class RESTServer {
         final long lastModified = metadata.getLastModified();
         setCreatedAndLastModifiedHeaders(response, metadata.getCreated(), lastModified);
 
-
-        /**
-         * HTTP 1.1 RFC 2616 Section 14.25 *
-         */
-        //handle If-Modified-Since request header
-        try {
-            final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
-            if (ifModifiedSince > -1) {
-
-                /*
-                 a) A date which is later than the server's
-                 current time is invalid.
-                 */
-                if (ifModifiedSince <= System.currentTimeMillis()) {
-
-                    /*
-                     b) If the variant has been modified since the If-Modified-Since
-                     date, the response is exactly the same as for a normal GET.
-                     */
-                    if (lastModified <= ifModifiedSince) {
-
-                        /*
-                         c) If the variant has not been modified since a valid If-
-                         Modified-Since date, the server SHOULD return a 304 (Not
-                         Modified) response.
-                         */
-                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-                        return;
-                    }
+        // the output of a stylesheet or of expanded XIncludes depends on other
+        // resources and on the permissions of the user reading them: it has no
+        // entity tag, is never answered with 304 Not Modified and never cached
+        final boolean selfContained = !dependsOnOtherResources(resource, broker, stylesheet, outputProperties);
+
+        // the serialization parameters and the user: the ETag and the cached
+        // response depend on them
+        final String variant = getVariant(stylesheet, encoding, asMimeType, outputProperties) +
+            ";user=" + broker.getSubject().getName();
+        if (selfContained) {
+            final String etag = getETag(resource, lastModified, variant);
+            response.setHeader("ETag", etag);
+
+            /**
+             * HTTP 1.1 RFC 2616 Section 14.26 *
+             */
+            //handle If-None-Match request header, If-Modified-Since is ignored if present
+            final String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                if (matchesETag(ifNoneMatch, etag)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
                 }
+            } else if (isNotModifiedSince(request, lastModified)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
             }
-        } catch (final IllegalArgumentException iae) {
-            LOG.warn("Illegal If-Modified-Since HTTP Header sent on request, ignoring. " + iae.getMessage(), iae);
         }
 
         if (resource.getResourceType() == DocumentImpl.BINARY_FILE) {
@@ -1704,6 +1785,18 @@ public class RESTServer {
         } else {
             // xml resource
 
+            if (responseCache != null && selfContained) {
+                final ResponseCache.Entry cached = responseCache.get(resource, variant);
+                if (cached != null) {
+                    response.setContentType(cached.getContentType());
+                    response.setContentLength(cached.getLength());
+                    final OutputStream os = response.getOutputStream();
+                    cached.write(os);
+                    os.flush();
+                    return;
+                }
+            }
+
             SAXSerializer sax = null;
             final Serializer serializer = broker.getSerializer();
             serializer.reset();
@@ -1755,7 +1848,16 @@ public class RESTServer {
                     outputProperties.setProperty("omit-xml-declaration", "no");
                 }
 
-                final OutputStreamWriter writer = new OutputStreamWriter(response.getOutputStream(), encoding);
+                // the output of a stylesheet may depend on other resources and the request,
+                // so it is never cached
+                ResponseCache.CapturingOutputStream capture = null;
+                OutputStream os = response.getOutputStream();
+                if (responseCache != null && selfContained && !serializer.isStylesheetApplied()) {
+                    capture = responseCache.capture(os);
+                    os = capture;
+                }
+
+                final OutputStreamWriter writer = new OutputStreamWriter(os, encoding);
                 sax.setOutput(writer, outputProperties);
                 serializer.setSAXHandlers(sax, sax);
 
@@ -1763,6 +1865,11 @@ public class RESTServer {
 
                 writer.flush();
                 writer.close();
+
+                if (capture != null && capture.getContent() != null) {
+                    responseCache.put(resource, variant, lastModified, asMimeType + "; charset=" + encoding,
+                        capture.getContent());
+                }
             } catch (final SAXException saxe) {
                 LOG.warn(saxe);
                 throw new BadRequestException("Error while serializing XML: " + saxe.getMessage());
@@ -1777,6 +1884,117 @@ public class RESTServer {
         }
     }
 
+    /**
+     * Checks if the serialized resource depends on other resources: if a
+     * stylesheet is applied to it or if it contains XIncludes, which are
+     * expanded.
+     */
+    private boolean dependsOnOtherResources(final DocumentImpl resource, final DBBroker broker,
+            final String stylesheet, final Properties outputProperties) {
+        if (resource.getResourceType() == DocumentImpl.BINARY_FILE) {
+            return false;
+        }
+        if (stylesheet != null) {
+            return true;
+        }
+        if ("yes".equals(outputProperties.getProperty(EXistOutputKeys.PROCESS_XSL_PI))) {
+            final NodeList children = resource.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                final Node child = children.item(i);
+                if (child.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE
+                        && "xml-stylesheet".equals(((ProcessingInstruction) child).getTarget())) {
+                    return true;
+                }
+            }
+        }
+        if ("no".equals(outputProperties.getProperty(EXistOutputKeys.EXPAND_XINCLUDES))) {
+            return false;
+        }
+        final MutableDocumentSet docs = new DefaultDocumentSet();
+        docs.add(resource);
+        return !broker.getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT, docs,
+            XINCLUDE_QNAME, null).isEmpty();
+    }
+
+    /**
+     * HTTP 1.1 RFC 2616 Section 14.25
+     *
+     * @return true if a valid If-Modified-Since header was sent and the
+     *  resource has not been modified since
+     */
+    private boolean isNotModifiedSince(final HttpServletRequest request, final long lastModified) {
+        try {
+            final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            if (ifModifiedSince > -1) {
+
+                /*
+                 a) A date which is later than the server's
+                 current time is invalid.
+                 */
+                if (ifModifiedSince <= System.currentTimeMillis()) {
+
+                    /*
+                     b) If the variant has been modified since the If-Modified-Since
+                     date, the response is exactly the same as for a normal GET.
+                     */
+                    if (lastModified <= ifModifiedSince) {
+
+                        /*
+                         c) If the variant has not been modified since a valid If-
+                         Modified-Since date, the server SHOULD return a 304 (Not
+                         Modified) response.
+                         */
+                        return true;
+                    }
+                }
+            }
+        } catch (final IllegalArgumentException iae) {
+            LOG.warn("Illegal If-Modified-Since HTTP Header sent on request, ignoring. " + iae.getMessage(), iae);
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the value of an If-None-Match header, i.e. "*" or a list
+     * of entity tags, matches the given entity tag. Weak tags are compared
+     * like strong ones.
+     */
+    private static boolean matchesETag(final String ifNoneMatch, final String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || etag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The entity tag of a resource is made from its document id, last
+     * modification time and a hash of the serialization parameters.
+     */
+    private static String getETag(final DocumentImpl resource, final long lastModified, final String variant) {
+        return "\"" + Integer.toHexString(resource.getDocId()) + '-' + Long.toHexString(lastModified) +
+            '-' + Integer.toHexString(variant.hashCode()) + "\"";
+    }
+
+    /**
+     * Returns a string describing all parameters which affect the serialization
+     * of a resource.
+     */
+    private static String getVariant(final String stylesheet, final String encoding, final String asMimeType,
+            final Properties outputProperties) {
+        final StringBuilder variant = new StringBuilder();
+        variant.append(stylesheet).append(';').append(encoding).append(';').append(asMimeType);
+        for (final String key : new TreeSet<String>(outputProperties.stringPropertyNames())) {
+            variant.append(';').append(key).append('=').append(outputProperties.getProperty(key));
+        }
+        return variant.toString();
+    }
+
     /**
      * @param response
      * @param encoding
@@ -283,6 +283,17 @@ enum RESTServerParameter {
      */
     Encoding,
 
+    /**
+     * Can be used in the Query String of a POST request which sends a
+     * zip archive to a collection, to specify the number of documents
+     * stored within one transaction by the bulk loader.
+     * 
+     * Contexts: POST
+     * 
+     * The value of the parameter should be a number greater than zero.
+     */
+    Batch,
+
     /**
      * Enclose is a synonym for Wrap.
      * See Wrap.
@@ -0,0 +1,249 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.StoredNode;
+import org.exist.numbering.NodeId;
+import org.exist.storage.UpdateListener;
+
+/**
+ * A bounded in-memory cache of serialized documents returned by the REST
+ * server. Entries are keyed by document id and a string describing the
+ * serialization parameters and the user, and are only returned as long as the
+ * last modification time of the document did not change. Documents whose output
+ * depends on other resources, through a stylesheet or XIncludes, are not cached.
+ *
+ * The cache is registered with the {@link org.exist.storage.NotificationService}
+ * and drops the entries of a document as soon as it is updated or removed. If the
+ * total size of the cached content exceeds the configured maximum, the least
+ * recently used entries are removed.
+ */
+public class ResponseCache implements UpdateListener {
+
+    private final static Logger LOG = Logger.getLogger(ResponseCache.class);
+
+    private final long maxSize;
+    private final int maxEntrySize;
+    private long size = 0;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+    /**
+     * @param maxSize the maximum number of bytes kept in the cache
+     * @param maxEntrySize responses larger than this number of bytes are not cached
+     */
+    public ResponseCache(long maxSize, int maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Returns the cached serialization of the document, or null if there is none
+     * or the document was modified after it had been cached.
+     */
+    public synchronized Entry get(DocumentImpl document, String variant) {
+        final Key key = new Key(document.getDocId(), variant);
+        final Entry entry = entries.get(key);
+        if (entry == null)
+            {return null;}
+        if (entry.lastModified != document.getMetadata().getLastModified()) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(DocumentImpl document, String variant, long lastModified,
+            String contentType, byte[] content) {
+        if (content.length > maxEntrySize)
+            {return;}
+        final Key key = new Key(document.getDocId(), variant);
+        remove(key);
+        entries.put(key, new Entry(lastModified, contentType, content));
+        size += content.length;
+        final Iterator<Entry> i = entries.values().iterator();
+        while (size > maxSize && i.hasNext()) {
+            size -= i.next().content.length;
+            i.remove();
+        }
+    }
+
+    /**
+     * Returns an output stream which passes all data to the given stream and
+     * keeps a copy as long as it does not get larger than the maximum entry size.
+     */
+    public CapturingOutputStream capture(OutputStream os) {
+        return new CapturingOutputStream(os, maxEntrySize);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private void remove(Key key) {
+        final Entry old = entries.remove(key);
+        if (old != null)
+            {size -= old.content.length;}
+    }
+
+    @Override
+    public synchronized void documentUpdated(DocumentImpl document, int event) {
+        final int docId = document.getDocId();
+        for (final Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<Key, Entry> next = i.next();
+            if (next.getKey().docId == docId) {
+                size -= next.getValue().content.length;
+                i.remove();
+            }
+        }
+    }
+
+    @Override
+    public void nodeMoved(NodeId oldNodeId, StoredNode newNode) {
+        // not relevant
+    }
+
+    @Override
+    public void unsubscribe() {
+        clear();
+    }
+
+    @Override
+    public synchronized void debug() {
+        LOG.debug("ResponseCache: " + entries.size() + " entries, " + size + " bytes");
+    }
+
+    public static class Entry {
+
+        private final long lastModified;
+        private final String contentType;
+        private final byte[] content;
+
+        private Entry(long lastModified, String contentType, byte[] content) {
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public void write(OutputStream os) throws IOException {
+            os.write(content);
+        }
+
+        public int getLength() {
+            return content.length;
+        }
+    }
+
+    private static class Key {
+
+        private final int docId;
+        private final String variant;
+
+        private Key(int docId, String variant) {
+            this.docId = docId;
+            this.variant = variant;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                {return false;}
+            final Key other = (Key) obj;
+            return docId == other.docId && variant.equals(other.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return docId * 31 + variant.hashCode();
+        }
+    }
+
+    public static class CapturingOutputStream extends OutputStream {
+
+        private final OutputStream os;
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private CapturingOutputStream(OutputStream os, int limit) {
+            this.os = os;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            os.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+
+        /**
+         * Returns the data written to the stream or null if it was too large.
+         */
+        public byte[] getContent() {
+            return copy == null ? null : copy.toByteArray();
+        }
+
+        private void checkLimit() {
+            if (copy.size() > limit)
+                {copy = null;}
+        }
+    }
+}
@@ -75,9 +75,19 @@ public class EXistServlet extends AbstractExistHttpServlet {
             useDynamicContentType = "no";
         }
 
+        long responseCacheSize = 0;
+        final String responseCacheParam = config.getInitParameter("response-cache-size");
+        if (responseCacheParam != null) {
+            try {
+                responseCacheSize = Long.parseLong(responseCacheParam) * 1024 * 1024;
+            } catch (final NumberFormatException e) {
+                getLog().warn("Illegal value for response-cache-size: " + responseCacheParam);
+            }
+        }
+
         // Instantiate REST Server
         srvREST = new RESTServer(getPool(), getFormEncoding(), getContainerEncoding(), useDynamicContentType.equalsIgnoreCase("yes")
-                || useDynamicContentType.equalsIgnoreCase("true"), isInternalOnly());
+                || useDynamicContentType.equalsIgnoreCase("true"), isInternalOnly(), responseCacheSize);
 
         // Instantiate SOAP Server
         srvSOAP = new SOAPServer(getFormEncoding(), getContainerEncoding());
@@ -25,6 +25,7 @@ import java.io.StringWriter;
 import java.util.Map;
 import javax.management.openmbean.*;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.BrokerQueueStatistics;
 import org.exist.storage.DBBroker;
 
 public class Database implements DatabaseMBean {
@@ -41,6 +42,24 @@ public class Database implements DatabaseMBean {
     
     private static String[] indexNames = { "owner" };
 
+    private static String[] queueItemNames = {
+        "caller", "count", "timeouts", "totalWait", "maxWait",
+        "lt1ms", "lt10ms", "lt100ms", "lt1s", "lt10s", "ge10s"};
+
+    private static String[] queueItemDescriptions = {
+        "Name of the user requesting a broker",
+        "Number of brokers obtained",
+        "Number of requests which timed out",
+        "Total time spent waiting (ms)",
+        "Maximum time spent waiting (ms)",
+        "Requests waiting less than 1 ms",
+        "Requests waiting less than 10 ms",
+        "Requests waiting less than 100 ms",
+        "Requests waiting less than 1 s",
+        "Requests waiting less than 10 s",
+        "Requests waiting 10 s or more"
+    };
+
     private final BrokerPool pool;
 
     public Database(BrokerPool pool) {
@@ -72,6 +91,49 @@ public class Database implements DatabaseMBean {
     	return pool.total();
     }
     
+    @Override
+    public int getReservedBrokers() {
+        return pool.getReservedBrokers();
+    }
+
+    @Override
+    public int getWaitingBrokerRequests() {
+        return pool.countWaitingRequests();
+    }
+
+    @Override
+    public TabularData getBrokerQueueTimes() {
+        final OpenType<?>[] itemTypes = new OpenType<?>[queueItemNames.length];
+        itemTypes[0] = SimpleType.STRING;
+        for (int i = 1; i < itemTypes.length; i++) {
+            itemTypes[i] = SimpleType.LONG;
+        }
+        try {
+            final CompositeType infoType = new CompositeType("queueTimes", "Time spent waiting for a broker.",
+                    queueItemNames, queueItemDescriptions, itemTypes);
+            final TabularType tabularType = new TabularType("brokerQueueTimes", "Broker wait times per caller", infoType,
+                    new String[] { "caller" });
+            final TabularDataSupport data = new TabularDataSupport(tabularType);
+            for (final Map.Entry<String, BrokerQueueStatistics.Histogram> entry : pool.getQueueStatistics().getHistograms().entrySet()) {
+                final BrokerQueueStatistics.Histogram histogram = entry.getValue();
+                final Object[] itemValues = new Object[queueItemNames.length];
+                itemValues[0] = entry.getKey();
+                itemValues[1] = histogram.getCount();
+                itemValues[2] = histogram.getTimeouts();
+                itemValues[3] = histogram.getTotalTime();
+                itemValues[4] = histogram.getMaxTime();
+                for (int i = 0; i <= BrokerQueueStatistics.BOUNDS.length; i++) {
+                    itemValues[5 + i] = histogram.getBucket(i);
+                }
+                data.put(new CompositeDataSupport(infoType, queueItemNames, itemValues));
+            }
+            return data;
+        } catch (final OpenDataException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     @Override
     public TabularData getActiveBrokersMap() {
         final OpenType<?>[] itemTypes = { SimpleType.STRING, SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING };
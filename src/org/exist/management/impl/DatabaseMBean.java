@@ -34,6 +34,12 @@ public interface DatabaseMBean {
     int getActiveBrokers();
 
     int getTotalBrokers();
+
+    int getReservedBrokers();
+
+    int getWaitingBrokerRequests();
+
+    TabularData getBrokerQueueTimes();
     
     long getReservedMem();
 
@@ -0,0 +1,102 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.management.impl;
+
+import java.io.File;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.HotBackup;
+
+/**
+ * Reports the progress and throughput of online backups created by
+ * {@link HotBackup} and allows to start a backup.
+ */
+public class HotBackupReport implements HotBackupReportMBean {
+
+    private final static Logger LOG = Logger.getLogger(HotBackupReport.class);
+
+    private final BrokerPool pool;
+
+    public HotBackupReport(BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    public String getStatus() {
+        return getBackup().isRunning() ? "running" : "idle";
+    }
+
+    public Date getLastBackupStart() {
+        return getBackup().getLastStart();
+    }
+
+    public Date getLastBackupEnd() {
+        return getBackup().getLastEnd();
+    }
+
+    public String getLastBackupDirectory() {
+        final File dir = getBackup().getLastDirectory();
+        return dir == null ? null : dir.getAbsolutePath();
+    }
+
+    public String getLastError() {
+        return getBackup().getLastError();
+    }
+
+    public int getBackupCount() {
+        return getBackup().getBackupCount();
+    }
+
+    public long getBytesCopied() {
+        return getBackup().getBytesCopied();
+    }
+
+    public long getThroughput() {
+        return getBackup().getThroughput();
+    }
+
+    /**
+     * Start a backup in a background thread.
+     *
+     * @param outputDir the directory to write the backup to. A relative path is
+     *                  interpreted relative to the data directory.
+     */
+    public void triggerBackup(final String outputDir) {
+        final Thread thread = new Thread("HotBackup") {
+            public void run() {
+                try {
+                    getBackup().backup(new File(outputDir == null || outputDir.length() == 0 ? "backup" : outputDir));
+                } catch (final EXistException e) {
+                    LOG.warn(e.getMessage(), e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private HotBackup getBackup() {
+        return pool.getHotBackup();
+    }
+}
@@ -103,6 +103,9 @@ public class JMXAgent implements Agent {
             addMBean(instance.getId(), "org.exist.management." + instance.getId() + ".tasks:type=SanityReport",
                     new SanityReport(instance));
             
+            addMBean(instance.getId(), "org.exist.management." + instance.getId() + ".tasks:type=HotBackup",
+                    new HotBackupReport(instance));
+
             addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=DiskUsage",
                     new DiskUsage(instance));
 
@@ -339,6 +339,92 @@ public class DLN extends DLNBase implements NodeId {
         return (a1len - a2len);
     }
 
+    /**
+     * Compares two node ids given by their binary encoding, e.g. as stored
+     * in a {@link org.exist.dom.PackedNodeSet}. The result is the same as
+     * comparing the corresponding DLNs with {@link #compareTo(NodeId)}.
+     *
+     * @param a data containing the first node id
+     * @param aOffset start offset of the first node id
+     * @param aUnits number of bits used by the first node id
+     * @param b data containing the second node id
+     * @param bOffset start offset of the second node id
+     * @param bUnits number of bits used by the second node id
+     */
+    public static int compare(final byte[] a, final int aOffset, final int aUnits,
+            final byte[] b, final int bOffset, final int bUnits) {
+        final int a1len = (aUnits + 7) / 8;
+        final int a2len = (bUnits + 7) / 8;
+        final int limit = a1len <= a2len ? a1len : a2len;
+        for(int i = 0; i < limit; i++) {
+            final byte b1 = a[aOffset + i];
+            final byte b2 = b[bOffset + i];
+            if(b1 != b2) {
+                return (b1 & 0xFF) - (b2 & 0xFF);
+            }
+        }
+        return (a1len - a2len);
+    }
+
+    /**
+     * Computes the relation of two node ids given by their binary encoding.
+     * The result is the same as calling {@link #computeRelation(NodeId)} on the
+     * corresponding DLNs. The ancestor must not be the document node.
+     *
+     * @return {@link NodeId#IS_SELF}, {@link NodeId#IS_CHILD}, {@link NodeId#IS_DESCENDANT}
+     *  or -1 if the node is not a descendant-or-self of the ancestor
+     */
+    public static int computeRelation(final byte[] data, final int offset, final int units,
+            final byte[] ancestor, final int aOffset, final int aUnits) {
+        if (aUnits > units) {
+            return -1;
+        }
+        // same as startsWith
+        final int bytes = (aUnits - 1) / 8;
+        final int remaining = (aUnits - 1) % 8;
+        for (int i = 0; i < bytes; i++) {
+            if (data[offset + i] != ancestor[aOffset + i]) {
+                return -1;
+            }
+        }
+        if ((data[offset + bytes] & BIT_MASK[remaining]) != (ancestor[aOffset + bytes] & BIT_MASK[remaining])) {
+            return -1;
+        }
+        if (units == aUnits) {
+            return IS_SELF;
+        }
+        // the next bit has to be a level separator
+        if ((data[offset + (aUnits >> UNIT_SHIFT)] & (1 << ((7 - aUnits) & 7))) != 0) {
+            return -1;
+        }
+        return getLevelCount(data, offset, units, aUnits + 1) == 1 ? IS_CHILD : IS_DESCENDANT;
+    }
+
+    /**
+     * Returns the number of levels of a node id given by its binary encoding,
+     * counting from the bit at startBit. See {@link DLNBase#getLevelCount(int)}.
+     */
+    public static int getLevelCount(final byte[] data, final int offset, final int units, final int startBit) {
+        final int bitIndex = units - 1;
+        int bit = startBit;
+        int count = 0;
+        while (bit > -1 && bit <= bitIndex) {
+            int unitsUsed = 1;
+            while ((data[offset + (bit >> UNIT_SHIFT)] & (1 << ((7 - bit++) & 7))) != 0) {
+                ++unitsUsed;
+            }
+            bit += bitWidth(unitsUsed);
+            if (bit < bitIndex) {
+                if ((data[offset + (bit >> UNIT_SHIFT)] & (1 << ((7 - bit++) & 7))) == LEVEL_SEPARATOR) {
+                    ++count;
+                }
+            } else {
+                ++count;
+            }
+        }
+        return count;
+    }
+
     @Override
     public boolean after(final NodeId other, final boolean isFollowing) {
         if (compareTo(other) > 0) {
@@ -1,9 +1,9 @@
 package org.exist.repo;
 
+import org.exist.dom.BinaryDocument;
 import org.exist.dom.DocumentImpl;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
-import org.exist.storage.NativeBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.xmldb.XmldbURI;
 
@@ -45,7 +45,7 @@ public class RepoBackup {
             if (doc.getResourceType() != DocumentImpl.BINARY_FILE)
                 {throw new IOException(docPath + " is not a binary resource");}
 
-            final File file = ((NativeBroker)broker).getCollectionBinaryFileFsPath(doc.getURI());
+            final File file = broker.getBinaryFile((BinaryDocument) doc);
             final File directory = ExistRepository.getRepositoryDir(broker.getConfiguration());
             unzip(file, directory);
         } finally {
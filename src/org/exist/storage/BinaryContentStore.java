@@ -0,0 +1,417 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import org.apache.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.BinaryDocument;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.index.BinaryReferenceStore;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.journal.Loggable;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.LockException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed storage for binary resources.
+ *
+ * The content of a binary resource is stored once in the <code>fs.blobs</code>
+ * directory, in a file named after the SHA-256 digest of the content.
+ * {@link BinaryReferenceStore} records the digest of every resource and counts
+ * the resources referring to each digest. As it is journaled like the other
+ * storage files, recovery and the raw backup keep the references consistent.
+ * Storing content which is already known, or copying a resource, just adds a
+ * reference. The file is moved into the journal's backup directory when its
+ * last reference is removed.
+ *
+ * Content is never written in place: it goes to a new file in the
+ * <code>fs.tmp</code> directory, which is renamed once its digest is known.
+ * Resources stored before the content store was introduced have no digest.
+ * They remain in the <code>fs</code> directory, which is managed by
+ * {@link NativeBroker}.
+ */
+public class BinaryContentStore {
+
+    private final static Logger LOG = Logger.getLogger(BinaryContentStore.class);
+
+    public final static String BLOB_DIR = "fs.blobs";
+    public final static String TEMP_DIR = "fs.tmp";
+
+    public final static String CONFIG_KEY = "db-connection.binary-content";
+
+    private final static String DIGEST_ALGORITHM = "SHA-256";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    /** maximum number of bytes handed to a single transfer call */
+    private final static long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    /** size of the buffer used while computing the digest of new content */
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final BrokerPool pool;
+    private final File dir;
+    private final File tempDir;
+    private final File backupDir;
+    private final BinaryReferenceStore references;
+
+    public BinaryContentStore(BrokerPool pool, byte id, String dataDir, File backupDir, Configuration config)
+            throws DBException, EXistException {
+        this.pool = pool;
+        this.backupDir = backupDir;
+        dir = new File(dataDir, BLOB_DIR);
+        if (!dir.exists() && !dir.mkdir()) {
+            throw new EXistException("Cannot make binary content directory: " + dir);
+        }
+        tempDir = new File(dataDir, TEMP_DIR);
+        if (tempDir.exists()) {
+            // left over from an interrupted write
+            final File[] files = tempDir.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    if (!file.delete()) {
+                        LOG.warn("Cannot delete temporary file " + file);
+                    }
+                }
+            }
+        } else if (!tempDir.mkdir()) {
+            throw new EXistException("Cannot make temporary binary directory: " + tempDir);
+        }
+        references = new BinaryReferenceStore(pool, id, dataDir);
+        config.setProperty(CONFIG_KEY, this);
+    }
+
+    public BinaryReferenceStore getReferences() {
+        return references;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns the file holding the content of the resource, or null if the
+     * resource was not stored by content. The file may be shared with other
+     * resources and must not be modified.
+     */
+    public File getFile(BinaryDocument doc) throws IOException {
+        final byte[] digest = getDigest(doc);
+        return digest == null ? null : getBlobFile(digest);
+    }
+
+    /**
+     * Store the content read from the input stream as content of the resource,
+     * replacing its previous content. If the stream was obtained from
+     * {@link #openStream(BinaryDocument, File)} and nothing has been read from
+     * it yet, a reference to the content is added instead of storing it again.
+     *
+     * @param broker the broker used for journaling
+     * @param transaction the current transaction
+     * @param doc the resource
+     * @param is the content
+     * @throws IOException
+     */
+    public void store(DBBroker broker, Txn transaction, BinaryDocument doc, InputStream is) throws IOException {
+        if (is instanceof BlobInputStream && ((BlobInputStream) is).isUnread()) {
+            final byte[] digest = ((BlobInputStream) is).getDigest();
+            if (digest != null && addReference(broker, transaction, doc, digest, null)) {
+                return;
+            }
+        }
+        final MessageDigest md = newDigest();
+        final File temp = createTempFile();
+        try {
+            final FileOutputStream os = new FileOutputStream(temp);
+            try {
+                final ReadableByteChannel in = is instanceof FileInputStream ?
+                    ((FileInputStream) is).getChannel() : Channels.newChannel(is);
+                write(in, os.getChannel(), md);
+            } finally {
+                os.close();
+            }
+            addReference(broker, transaction, doc, md.digest(), temp);
+        } finally {
+            deleteTemp(temp);
+        }
+    }
+
+    /**
+     * Remove the reference of the resource to its content.
+     *
+     * @return false if the resource was not stored by content
+     */
+    public boolean remove(DBBroker broker, Txn transaction, BinaryDocument doc) throws IOException {
+        final Lock lock = references.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            final byte[] digest = references.removeDigest(transaction, doc.getDocId());
+            if (digest == null) {
+                return false;
+            }
+            removeReference(broker, transaction, digest);
+            return true;
+        } catch (final LockException e) {
+            throw new IOException("Failed to acquire lock on " + references.getFile().getName(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Open the content of the resource for reading. The returned stream can be
+     * passed to {@link #store(DBBroker, Txn, BinaryDocument, InputStream)} to
+     * share the content.
+     *
+     * @param doc the resource
+     * @param file the file holding the content, as returned by {@link #getFile(BinaryDocument)}
+     *             or the file of a resource which was not stored by content
+     */
+    public InputStream openStream(BinaryDocument doc, File file) throws IOException {
+        return new BlobInputStream(file, getDigest(doc));
+    }
+
+    /**
+     * Write the content of the file to the output stream.
+     */
+    public void read(File file, OutputStream os) throws IOException {
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final FileChannel in = is.getChannel();
+            final WritableByteChannel out = os instanceof FileOutputStream ?
+                ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                final long count = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    public boolean flush() throws DBException {
+        final Lock lock = references.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            return references.flush();
+        } catch (final LockException e) {
+            LOG.warn("Failed to acquire lock on " + references.getFile().getName(), e);
+            return false;
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    public void printStatistics() {
+        references.printStatistics();
+    }
+
+    public void close() throws DBException {
+        references.close();
+    }
+
+    private byte[] getDigest(BinaryDocument doc) throws IOException {
+        final Lock lock = references.getLock();
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            return references.getDigest(doc.getDocId());
+        } catch (final LockException e) {
+            throw new IOException("Failed to acquire lock on " + references.getFile().getName(), e);
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
+    /**
+     * Let the resource refer to the content with the given digest.
+     *
+     * @param content a file with the content, which is moved into the store if
+     *                the content is new, or null to only refer to known content
+     * @return false if content is null and the digest is unknown
+     */
+    private boolean addReference(DBBroker broker, Txn transaction, BinaryDocument doc, byte[] digest,
+            File content) throws IOException {
+        final Lock lock = references.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            if (content == null && references.getReferenceCount(digest) == 0) {
+                return false;
+            }
+            final File blob = getBlobFile(digest);
+            if (references.addReference(transaction, digest) == 1 && !blob.exists()) {
+                final File parent = blob.getParentFile();
+                if (!parent.exists() && !parent.mkdir()) {
+                    throw new IOException("Cannot make binary content directory: " + parent);
+                }
+                if (!content.renameTo(blob)) {
+                    throw new IOException("Cannot move binary content to " + blob);
+                }
+            }
+            final byte[] old = references.setDigest(transaction, doc.getDocId(), digest);
+            if (old != null) {
+                removeReference(broker, transaction, old);
+            }
+            return true;
+        } catch (final LockException e) {
+            throw new IOException("Failed to acquire lock on " + references.getFile().getName(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Remove a reference to the content with the given digest. The caller
+     * holds the write lock on the references.
+     */
+    private void removeReference(DBBroker broker, Txn transaction, byte[] digest) throws IOException {
+        if (references.removeReference(transaction, digest) > 0) {
+            return;
+        }
+        final File blob = getBlobFile(digest);
+        if (!blob.exists()) {
+            return;
+        }
+        // keep the content until the next checkpoint, so the removal can be undone
+        final File txnDir = new File(new File(backupDir, "txn." + transaction.getId()), BLOB_DIR);
+        if (!txnDir.exists() && !txnDir.mkdirs()) {
+            throw new IOException("Cannot make transaction filesystem directory: " + txnDir);
+        }
+        File backup = new File(txnDir, blob.getName());
+        for (int i = 1; backup.exists(); i++) {
+            backup = new File(txnDir, blob.getName() + "." + i);
+        }
+        if (!blob.renameTo(backup)) {
+            throw new IOException("Cannot move file " + blob + " for delete journal to " + backup);
+        }
+        final Journal journal = pool.getTransactionManager().getJournal();
+        if (journal != null) {
+            final Loggable loggable = new RenameBinaryLoggable(broker, transaction, blob, backup);
+            try {
+                journal.writeToLog(loggable);
+            } catch (final TransactionException e) {
+                LOG.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private File getBlobFile(byte[] digest) {
+        final String name = toHex(digest);
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+
+    private File createTempFile() throws IOException {
+        return File.createTempFile("binary", TEMP_SUFFIX, tempDir);
+    }
+
+    private static void deleteTemp(File temp) {
+        if (temp.exists() && !temp.delete()) {
+            LOG.warn("Cannot delete temporary file " + temp);
+        }
+    }
+
+    /**
+     * Copy the content into the file channel. Every byte has to pass the
+     * digest, so new content is copied through a buffer instead of being
+     * transferred between the channels.
+     */
+    private static void write(ReadableByteChannel in, FileChannel out, MessageDigest md) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (in.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            md.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(DIGEST_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        final char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[i * 2] = HEX[(data[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[data[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Input stream on the content of a resource, which remembers the digest
+     * of the content so it can be shared instead of copied.
+     */
+    public static class BlobInputStream extends FileInputStream {
+
+        private final byte[] digest;
+
+        public BlobInputStream(File file, byte[] digest) throws FileNotFoundException {
+            super(file);
+            this.digest = digest;
+        }
+
+        /**
+         * Returns the digest of the content, or null if the content is not
+         * stored by content.
+         */
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        public boolean isUnread() {
+            try {
+                return getChannel().position() == 0;
+            } catch (final IOException e) {
+                return false;
+            }
+        }
+    }
+}
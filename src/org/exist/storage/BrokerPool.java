@@ -134,6 +134,8 @@ public class BrokerPool extends Observable implements Database {
     public final static String MAX_CONNECTIONS_ATTRIBUTE = "max";
     public final static String SYNC_PERIOD_ATTRIBUTE = "sync-period";
     public final static String SHUTDOWN_DELAY_ATTRIBUTE = "wait-before-shutdown";
+    public final static String WAIT_TIMEOUT_ATTRIBUTE = "wait-timeout";
+    public final static String RESERVED_BROKERS_ATTRIBUTE = "reserved";
     public final static String NODES_BUFFER_ATTRIBUTE = "nodesBuffer";
 
     //Various configuration property keys (set by the configuration manager)
@@ -143,6 +145,8 @@ public class BrokerPool extends Observable implements Database {
     public final static String PROPERTY_MAX_CONNECTIONS = "db-connection.pool.max";
     public final static String PROPERTY_SYNC_PERIOD = "db-connection.pool.sync-period";
     public final static String PROPERTY_SHUTDOWN_DELAY = "wait-before-shutdown";
+    public final static String PROPERTY_WAIT_TIMEOUT = "db-connection.pool.wait-timeout";
+    public final static String PROPERTY_RESERVED_BROKERS = "db-connection.pool.reserved";
     public static final String DISK_SPACE_MIN_PROPERTY = "db-connection.diskSpaceMin";
 
     //TODO : move elsewhere ?
@@ -450,6 +454,25 @@ public class BrokerPool extends Observable implements Database {
 	 * The number of active brokers for the database instance 
 	 */	
 	private MapRWLock<Thread, DBBroker> activeBrokers = new MapRWLock<Thread, DBBroker>( new IdentityHashMap<Thread, DBBroker>() );
+
+	/**
+	 * Threads waiting for a broker, in order of arrival
+	 */
+	private final LinkedList<BrokerRequest> waitingRequests = new LinkedList<BrokerRequest>();
+
+	/**
+	 * The number of brokers which can only be obtained by dba users and system tasks
+	 */
+	@ConfigurationFieldAsAttribute("reserved")
+	private int reservedBrokers = 0;
+
+	/**
+	 * The maximum time (in ms) to wait for a broker. A negative value means: wait forever
+	 */
+	@ConfigurationFieldAsAttribute("wait-timeout")
+	private long waitTimeout = -1;
+
+	private final BrokerQueueStatistics queueStatistics = new BrokerQueueStatistics();
 		
 	/**
      * The configuration object for the database instance
@@ -561,6 +584,11 @@ public class BrokerPool extends Observable implements Database {
 	 */
 	private ProcessMonitor processMonitor;
 
+    /**
+     * Creates online backups of the data files and collects their statistics.
+     */
+    private HotBackup hotBackup;
+
     /**
      * Global performance stats to gather function execution statistics
      * from all queries running on this database instance.
@@ -650,6 +678,25 @@ public class BrokerPool extends Observable implements Database {
 		//TODO : sanity check : minBrokers shall be lesser than or equal to maxBrokers
 		//TODO : sanity check : minBrokers shall be positive
 		LOG.info("database instance '" + instanceName + "' will have between " + nf.format(this.minBrokers) + " and " + nf.format(this.maxBrokers) + " brokers");
+
+		anInteger = (Integer) conf.getProperty(PROPERTY_RESERVED_BROKERS);
+		if (anInteger != null)
+			{this.reservedBrokers = anInteger.intValue();}
+		if (this.reservedBrokers < 0)
+			{this.reservedBrokers = 0;}
+		if (this.reservedBrokers >= this.maxBrokers) {
+			LOG.warn("database instance '" + instanceName + "': cannot reserve " + this.reservedBrokers + " of " +
+				this.maxBrokers + " brokers");
+			this.reservedBrokers = this.maxBrokers - 1;
+		}
+		if (this.reservedBrokers > 0)
+			{LOG.info("database instance '" + instanceName + "' will reserve " + nf.format(this.reservedBrokers) + " brokers for dba users and system tasks");}
+
+		aLong = (Long) conf.getProperty(PROPERTY_WAIT_TIMEOUT);
+		if (aLong != null)
+			{this.waitTimeout = aLong.longValue();}
+		if (this.waitTimeout > 0)
+			{LOG.info("database instance '" + instanceName + "' will wait at most " + nf.format(this.waitTimeout) + " ms for a broker");}
 		
 		//TODO : use the periodicity of a SystemTask (see below)
 		aLong = (Long) conf.getProperty(PROPERTY_SYNC_PERIOD);
@@ -830,6 +877,7 @@ public class BrokerPool extends Observable implements Database {
         			//REFACTOR : construct then... configure
         			processMonitor = new ProcessMonitor(maxShutdownWait);
         			xqueryStats = new PerformanceStats(this);
+        			hotBackup = new HotBackup(this);
 
         			//REFACTOR : construct then... configure
         			xmlReaderPool = new XMLReaderPool(conf, new XMLReaderObjectFactory(this), 5, 0);
@@ -1266,6 +1314,24 @@ public class BrokerPool extends Observable implements Database {
 	public int total() {
 		return brokersCount;
 	}
+
+	/**
+	 * Returns the number of brokers which are kept back for dba users and system tasks.
+	 */
+	public int getReservedBrokers() {
+		return reservedBrokers;
+	}
+
+	/**
+	 * Returns the number of threads currently waiting for a broker.
+	 */
+	public synchronized int countWaitingRequests() {
+		return waitingRequests.size();
+	}
+
+	public BrokerQueueStatistics getQueueStatistics() {
+		return queueStatistics;
+	}
 	
 	/**
 	 * Returns whether the database instance has been configured.
@@ -1428,6 +1494,10 @@ public class BrokerPool extends Observable implements Database {
     	return processMonitor;
     }
 
+    public HotBackup getHotBackup() {
+        return hotBackup;
+    }
+
     /**
      * Returns the global profiler used to gather execution statistics
      * from all XQueries running on this db instance.
@@ -1560,11 +1630,30 @@ public class BrokerPool extends Observable implements Database {
 	}
 
     /** Returns an active broker for the database instance.
+     * Dba users may obtain one of the reserved brokers.
+     *
 	 * @return The broker
 	 * @throws EXistException If the instance is not available (stopped or not configured)
+	 *  or no broker became available within the configured wait timeout
 	 */
     //TODO : rename as getBroker ? getInstance (when refactored) ?
 	public DBBroker get(Subject user) throws EXistException {
+		return get(user, user != null && user.hasDbaRole());
+	}
+
+	/**
+	 * Returns an active broker for running system maintenance tasks. The broker may be one
+	 * of the reserved brokers, so system tasks cannot be starved by other requests.
+	 * Like {@link #getBroker()}, the subject of the broker is not set to a privileged user.
+	 *
+	 * @return The broker
+	 * @throws EXistException If the instance is not available (stopped or not configured)
+	 */
+	public DBBroker getSystemBroker() throws EXistException {
+		return get(null, true);
+	}
+
+	private DBBroker get(Subject user, boolean privileged) throws EXistException {
 		if (!isInstanceConfigured()) {		
 			throw new EXistException("database instance '" + instanceName + "' is not available");
 		}
@@ -1588,32 +1677,44 @@ public class BrokerPool extends Observable implements Database {
 		}
 		
 		//No active broker : get one ASAP
-	
-        while (serviceModeUser != null && user != null && !user.equals(serviceModeUser)) {
+		final String caller = user == null ? "guest" : user.getName();
+		final long start = System.currentTimeMillis();
+        synchronized(this) {
+            while (serviceModeUser != null && user != null && !user.equals(serviceModeUser)) {
+                try {
+                    LOG.debug("Db instance is in service mode. Waiting for db to become available again ...");
+                    wait();
+                } catch (final InterruptedException e) {
+                }
+            }
+
+            final BrokerRequest request = new BrokerRequest(privileged);
+            waitingRequests.addLast(request);
             try {
-                LOG.debug("Db instance is in service mode. Waiting for db to become available again ...");
-                wait();
-            } catch (final InterruptedException e) {
+                //Wait until we are the first request in the queue which may take a broker
+                while (nextGrantedRequest() != request) {
+                    long wait = 0;
+                    if (waitTimeout > 0) {
+                        wait = waitTimeout - (System.currentTimeMillis() - start);
+                        if (wait <= 0) {
+                            queueStatistics.timeout(caller);
+                            throw new EXistException("database instance '" + instanceName + "': timed out after " +
+                                waitTimeout + " ms waiting for a broker to become available");
+                        }
+                    }
+                    LOG.debug("waiting for a broker to become available");
+                    try {
+                        this.wait(wait);
+                    } catch (final InterruptedException e) {
+                    }
+                }
+            } finally {
+                waitingRequests.remove(request);
             }
-        }
 
-        synchronized(this) {
-            //Are there any available brokers ?
-			if (inactiveBrokers.isEmpty()) {
-				//There are no available brokers. If allowed... 
-				if (brokersCount < maxBrokers)
-					//... create one
-					{createBroker();}
-				else
-					//... or wait until there is one available
-					while (inactiveBrokers.isEmpty()) {
-						LOG.debug("waiting for a broker to become available");
-						try {
-							this.wait();
-						} catch (final InterruptedException e) {
-						}
-					}
-			}
+			//There are no available brokers. If allowed, create one
+			if (inactiveBrokers.isEmpty())
+				{createBroker();}
 			broker = inactiveBrokers.pop();
 			//activate the broker
 			activeBrokers.put(Thread.currentThread(), broker);
@@ -1626,10 +1727,37 @@ public class BrokerPool extends Observable implements Database {
                 {broker.setSubject(user);}
             else
                 {broker.setSubject(securityManager.getGuestSubject());}
-            //Inform the other threads that we have a new-comer
-            // TODO: do they really need to be informed here???????
+            //Inform the other threads: the next request in the queue may be able to proceed
             this.notifyAll();
-			return broker;
+		}
+		queueStatistics.record(caller, System.currentTimeMillis() - start);
+		return broker;
+	}
+
+	/**
+	 * Returns the first waiting request which may obtain a broker now, or null if
+	 * no broker is available. Requests are served in order of arrival, except
+	 * that a request which has to leave the reserved brokers untouched does not
+	 * block privileged requests behind it.
+	 */
+	private BrokerRequest nextGrantedRequest() {
+		final int free = inactiveBrokers.size() + (maxBrokers - brokersCount);
+		if (free <= 0)
+			{return null;}
+		final boolean unreserved = activeBrokers.size() < maxBrokers - reservedBrokers;
+		for (final BrokerRequest request : waitingRequests) {
+			if (request.privileged || unreserved)
+				{return request;}
+		}
+		return null;
+	}
+
+	private final static class BrokerRequest {
+
+		final boolean privileged;
+
+		BrokerRequest(boolean privileged) {
+			this.privileged = privileged;
 		}
 	}
 
@@ -0,0 +1,129 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the time callers spent waiting for a broker in {@link BrokerPool#get(org.exist.security.Subject)}.
+ * A histogram is kept for every caller, i.e. for every user name requesting a broker.
+ */
+public class BrokerQueueStatistics {
+
+    /**
+     * Upper bounds (exclusive, in milliseconds) of the histogram buckets.
+     * The last bucket collects all wait times above the highest bound.
+     */
+    public final static long[] BOUNDS = { 1, 10, 100, 1000, 10000 };
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Record a successful broker acquisition.
+     *
+     * @param caller the name of the caller
+     * @param waitTime the time spent waiting for the broker in milliseconds
+     */
+    public void record(String caller, long waitTime) {
+        getHistogram(caller).add(waitTime);
+    }
+
+    /**
+     * Record a broker request which timed out.
+     *
+     * @param caller the name of the caller
+     */
+    public void timeout(String caller) {
+        getHistogram(caller).timeouts.incrementAndGet();
+    }
+
+    public Map<String, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    public void reset() {
+        histograms.clear();
+    }
+
+    private Histogram getHistogram(String caller) {
+        Histogram histogram = histograms.get(caller);
+        if (histogram == null) {
+            histogram = new Histogram();
+            final Histogram previous = histograms.putIfAbsent(caller, histogram);
+            if (previous != null)
+                {histogram = previous;}
+        }
+        return histogram;
+    }
+
+    public static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+
+        void add(long waitTime) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && waitTime >= BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalTime.addAndGet(waitTime);
+            long max = maxTime.get();
+            while (waitTime > max && !maxTime.compareAndSet(max, waitTime)) {
+                max = maxTime.get();
+            }
+        }
+
+        /**
+         * Returns the number of acquisitions whose wait time fell into the given bucket.
+         * Bucket <code>i</code> counts wait times below {@link BrokerQueueStatistics#BOUNDS}[i].
+         */
+        public long getBucket(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalTime() {
+            return totalTime.get();
+        }
+
+        public long getMaxTime() {
+            return maxTime.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.BinaryDocument;
+import org.exist.dom.DocumentImpl;
+import org.exist.memtree.SAXAdapter;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.util.MimeTable;
+import org.exist.util.MimeType;
+import org.exist.xmldb.XmldbURI;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Loads a large number of documents into the database. Compared to storing
+ * every document separately, the loader:
+ *
+ * <ul>
+ * <li>parses every document only once: the document is read into an in-memory
+ * tree, which is then passed to both, the validation and the storage phase of the
+ * {@link Collection},</li>
+ * <li>stores the documents in batches, committing one transaction per batch.</li>
+ * </ul>
+ *
+ * The indexes are updated while a document is stored, as for a single document.
+ * Building them after the load instead would read every document a second time
+ * from the dom file, while the index workers still write the entries of one
+ * document at a time. Since the document ids are assigned in ascending order, the
+ * entries of new documents are appended to the index keys of the same name anyway.
+ *
+ * The broker passed to the loader must not be used for other tasks until
+ * {@link #finish()} has been called, which commits the last batch.
+ *
+ * If a document cannot be stored, an exception is thrown, but the loader remains
+ * usable: the documents stored before are part of the current batch and will be
+ * committed.
+ */
+public class BulkLoader {
+
+    private final static Logger LOG = Logger.getLogger(BulkLoader.class);
+
+    public final static int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DBBroker broker;
+    private final TransactionManager transact;
+    private final int batchSize;
+
+    private Txn transaction = null;
+    private int inBatch = 0;
+
+    private final long start;
+    private int loaded = 0;
+    private long time = 0;
+    private boolean finished = false;
+
+    /**
+     * @param broker the broker used to store the documents
+     * @param batchSize the number of documents stored within one transaction
+     */
+    public BulkLoader(DBBroker broker, int batchSize) {
+        this.broker = broker;
+        this.transact = broker.getBrokerPool().getTransactionManager();
+        this.batchSize = Math.max(1, batchSize);
+        this.start = System.currentTimeMillis();
+    }
+
+    /**
+     * Parse an XML document and store it into the given collection. An existing
+     * document with the same name is replaced.
+     *
+     * @param collection the target collection
+     * @param docName the name of the document
+     * @param source the XML source
+     * @param mimeType the mime type of the document, null to use the default
+     * @return the new document
+     */
+    public DocumentImpl store(Collection collection, XmldbURI docName, InputSource source, String mimeType)
+            throws EXistException, PermissionDeniedException, SAXException, IOException, LockException,
+            TriggerException {
+        checkFinished();
+        final Document tree = parse(source);
+        final Txn txn = getTransaction();
+        final IndexInfo info;
+        collection.getLock().acquire(Lock.WRITE_LOCK);
+        try {
+            info = collection.validateXMLResource(txn, broker, docName, tree);
+            if (mimeType != null)
+                {info.getDocument().getMetadata().setMimeType(mimeType);}
+        } finally {
+            collection.release(Lock.WRITE_LOCK);
+        }
+        collection.store(txn, broker, info, tree, false);
+        loaded++;
+        nextInBatch();
+        return info.getDocument();
+    }
+
+    /**
+     * Store all entries of a zip archive into the given collection. The directories
+     * contained in the archive are stored as sub-collections. Entries are parsed as
+     * XML if their mime type, as determined by the file name, is an XML type, all
+     * others are stored as binary resources.
+     *
+     * @param collection the target collection
+     * @param is the zip archive
+     * @return the number of resources stored
+     */
+    public int storeZip(Collection collection, InputStream is)
+            throws EXistException, PermissionDeniedException, SAXException, IOException, LockException,
+            TriggerException {
+        checkFinished();
+        final ZipInputStream zis = new ZipInputStream(is);
+        int count = 0;
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (entry.isDirectory())
+                {continue;}
+            final XmldbURI path = XmldbURI.create(entry.getName());
+            final XmldbURI docName = path.lastSegment();
+            final Collection target = getCollection(collection, path.removeLastSegment());
+            MimeType mime = MimeTable.getInstance().getContentTypeFor(docName);
+            if (mime == null)
+                {mime = MimeType.BINARY_TYPE;}
+            if (mime.isXMLType()) {
+                store(target, docName, new InputSource(new CloseShieldInputStream(zis)), mime.getName());
+            } else {
+                final long size = entry.getSize();
+                final BinaryDocument blob = target.addBinaryResource(getTransaction(), broker, docName,
+                    new CloseShieldInputStream(zis), mime.getName(), size);
+                if (size < 0) {
+                    // the size of an entry followed by a data descriptor is known once it has been read
+                    blob.setContentLength(entry.getSize());
+                    broker.storeXMLResource(getTransaction(), blob);
+                }
+                loaded++;
+                nextInBatch();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Commit the last batch.
+     */
+    public void finish() throws EXistException {
+        if (finished)
+            {return;}
+        try {
+            commit();
+        } finally {
+            finished = true;
+            time = System.currentTimeMillis() - start;
+        }
+        LOG.info("Loaded " + loaded + " resources in " + time + "ms (" + getDocumentsPerSecond() + " docs/sec)");
+    }
+
+    /**
+     * Returns the number of resources stored so far.
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Returns the time in milliseconds spent on loading the documents, or the
+     * time elapsed so far if the loader has not finished yet.
+     */
+    public long getTime() {
+        if (!finished)
+            {return System.currentTimeMillis() - start;}
+        return time;
+    }
+
+    public double getDocumentsPerSecond() {
+        final long time = getTime();
+        return time == 0 ? loaded : loaded * 1000.0 / time;
+    }
+
+    private Document parse(InputSource source) throws SAXException, IOException {
+        final XMLReader reader = broker.getBrokerPool().getParserPool().borrowXMLReader();
+        try {
+            final SAXAdapter adapter = new SAXAdapter();
+            reader.setContentHandler(adapter);
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler", adapter);
+            reader.setErrorHandler(new ParseErrorHandler());
+            reader.parse(source);
+            return adapter.getDocument();
+        } finally {
+            broker.getBrokerPool().getParserPool().returnXMLReader(reader);
+        }
+    }
+
+    private Collection getCollection(Collection root, XmldbURI relativePath)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException {
+        if (relativePath.numSegments() == 0)
+            {return root;}
+        final XmldbURI path = root.getURI().append(relativePath);
+        Collection collection = broker.getCollection(path);
+        if (collection == null) {
+            final Txn txn = getTransaction();
+            collection = broker.getOrCreateCollection(txn, path);
+            broker.saveCollection(txn, collection);
+        }
+        return collection;
+    }
+
+    private Txn getTransaction() {
+        if (transaction == null)
+            {transaction = transact.beginTransaction();}
+        return transaction;
+    }
+
+    private void nextInBatch() throws EXistException {
+        if (++inBatch >= batchSize)
+            {commit();}
+    }
+
+    private void commit() throws EXistException {
+        if (transaction == null)
+            {return;}
+        try {
+            transact.commit(transaction);
+        } catch (final TransactionException e) {
+            transact.abort(transaction);
+            throw new EXistException("Failed to commit bulk load transaction: " + e.getMessage(), e);
+        } finally {
+            transact.close(transaction);
+            transaction = null;
+            inBatch = 0;
+        }
+    }
+
+    private void checkFinished() throws EXistException {
+        if (finished)
+            {throw new EXistException("The bulk loader has already finished");}
+    }
+
+    private static class ParseErrorHandler implements ErrorHandler {
+
+        public void warning(SAXParseException e) throws SAXException {
+            LOG.debug("warning at (" + e.getLineNumber() + "," + e.getColumnNumber() + ") : " + e.getMessage());
+        }
+
+        public void error(SAXParseException e) throws SAXException {
+            throw new SAXException("error at (" + e.getLineNumber() + "," + e.getColumnNumber() + ") : " +
+                e.getMessage(), e);
+        }
+
+        public void fatalError(SAXParseException e) throws SAXException {
+            throw new SAXException("fatal error at (" + e.getLineNumber() + "," + e.getColumnNumber() + ") : " +
+                e.getMessage(), e);
+        }
+    }
+}
@@ -52,6 +52,7 @@ public class ConsistencyCheckTask implements SystemTask {
     private boolean incremental = false;
     private boolean incrementalCheck = false;
     private int maxInc = -1;
+    private int threads = 1;
 
     private File lastExportedBackup = null;
 
@@ -63,6 +64,7 @@ public class ConsistencyCheckTask implements SystemTask {
     public final static String INCREMENTAL_PROP_NAME = "incremental";
     public final static String INCREMENTAL_CHECK_PROP_NAME = "incremental-check";
     public final static String MAX_PROP_NAME = "max";
+    public final static String THREADS_PROP_NAME = "threads";
 
     private final static LoggingCallback logCallback = new LoggingCallback();
     
@@ -103,6 +105,13 @@ public class ConsistencyCheckTask implements SystemTask {
         } catch (final NumberFormatException e) {
             throw new EXistException("Parameter 'max' has to be an integer");
         }
+
+        final String threadsParam = properties.getProperty(THREADS_PROP_NAME, "1");
+        try {
+            threads = Integer.parseInt(threadsParam);
+        } catch (final NumberFormatException e) {
+            throw new EXistException("Parameter 'threads' has to be an integer");
+        }
     }
 
     @Override
@@ -158,6 +167,7 @@ public class ConsistencyCheckTask implements SystemTask {
                 LOG.info("Starting backup...");
 
                 final SystemExport sysexport = new SystemExport(broker, logCallback, monitor, false);
+                sysexport.setThreads(threads);
                 lastExportedBackup = sysexport.export(exportDir, incremental, maxInc, createZip, errors);
                 agentInstance.changeStatus(brokerPool, new TaskStatus(TaskStatus.Status.RUNNING_BACKUP));
 
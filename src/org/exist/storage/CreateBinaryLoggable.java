@@ -76,7 +76,8 @@ public class CreateBinaryLoggable extends AbstractLoggable {
     }
     
     public void undo() throws LogException {
-       if (!original.delete()) {
+       // the file may be missing from a hot backup which was copied before it was created
+       if (original.exists() && !original.delete()) {
           throw new LogException("Cannot delete binary resource "+original);
        }
     }
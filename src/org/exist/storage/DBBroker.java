@@ -585,6 +585,11 @@ public abstract class DBBroker extends Observable {
     public abstract void readBinaryResource(final BinaryDocument blob,
         final OutputStream os) throws IOException;
 
+    /**
+     * Returns the file holding the content of a binary resource. The file
+     * may be shared with other resources of the same content and must be
+     * treated as read-only.
+     */
     public abstract File getBinaryFile(final BinaryDocument blob) throws IOException;
 
 	public abstract InputStream getBinaryResource(final BinaryDocument blob)
@@ -25,7 +25,10 @@ import org.apache.log4j.Logger;
 
 import org.exist.management.Agent;
 import org.exist.management.AgentFactory;
+import org.exist.storage.cache.BTreeCache;
 import org.exist.storage.cache.Cache;
+import org.exist.storage.cache.ConcurrentClockCache;
+import org.exist.storage.cache.LRUCache;
 import org.exist.util.DatabaseConfigurationException;
 
 import java.text.NumberFormat;
@@ -74,6 +77,11 @@ public class DefaultCacheManager implements CacheManager
     public static final String  SHRINK_THRESHOLD_ATTRIBUTE     		 	= "cacheShrinkThreshold";
     public static final String  SHRINK_THRESHOLD_PROPERTY      			= "db-connection.cache-shrink-threshold";
 
+    public static final String  PAGE_CACHE_ATTRIBUTE           			= "pageCache";
+    public static final String  PROPERTY_PAGE_CACHE             			= "db-connection.page-cache";
+    public static final String  PAGE_CACHE_DEFAULT              			= "default";
+    public static final String  PAGE_CACHE_CONCURRENT           			= "concurrent";
+
     /** Caches maintained by this class. */
     private List<Cache>         caches                          = new ArrayList<Cache>();
 
@@ -83,7 +91,7 @@ public class DefaultCacheManager implements CacheManager
     private int                 totalPageCount;
 
     /** The number of pages currently used by the active caches. */
-    private int                 currentPageCount                = 0;
+    private volatile int        currentPageCount                = 0;
 
     /** The maximum number of pages that can be allocated by a single cache. */
     private int                 maxCacheSize;
@@ -101,10 +109,13 @@ public class DefaultCacheManager implements CacheManager
      * Signals that a resize had been requested by a cache, but the request could not be accepted during normal operations. The manager might try to
      * shrink the largest cache during the next sync event.
      */
-    private Cache               lastRequest                     = null;
+    private volatile Cache      lastRequest                     = null;
 
     private String              instanceName;
 
+    /** Create {@link ConcurrentClockCache} instances for btree and data pages? */
+    private boolean             concurrentCaches                = false;
+
     public DefaultCacheManager( BrokerPool pool )
     {
         this.instanceName = pool.getId();
@@ -122,6 +133,9 @@ public class DefaultCacheManager implements CacheManager
 
         shrinkThreshold = pool.getConfiguration().getInteger( SHRINK_THRESHOLD_PROPERTY );
 
+        final String pageCache = (String)pool.getConfiguration().getProperty( PROPERTY_PAGE_CACHE );
+        concurrentCaches = PAGE_CACHE_CONCURRENT.equalsIgnoreCase( pageCache );
+
         totalMem        = cacheSize * 1024L * 1024L;
         
         final Boolean checkMaxCache = (Boolean)pool.getConfiguration().getProperty( PROPERTY_CACHE_CHECK_MAX_SIZE );
@@ -150,14 +164,48 @@ public class DefaultCacheManager implements CacheManager
         
         LOG.info( "Cache settings: " + nf.format( totalMem / 1024L ) + "k; totalPages: " + nf.format( totalPageCount ) + 
         	      "; maxCacheSize: " + nf.format( maxCacheSize ) + 
-        	      "; cacheShrinkThreshold: " + nf.format( shrinkThreshold ) 
+        	      "; cacheShrinkThreshold: " + nf.format( shrinkThreshold ) +
+        	      "; pageCache: " + ( concurrentCaches ? PAGE_CACHE_CONCURRENT : PAGE_CACHE_DEFAULT )
         );
         
         registerMBean();
     }
 
+    /**
+     * Create a new page cache of the given type. Depending on the configuration, this is either a {@link ConcurrentClockCache}, which can
+     * be accessed by concurrent threads, or one of the single-threaded implementations: {@link BTreeCache} for btree pages and
+     * {@link LRUCache} for data pages.
+     *
+     * <p>The cache still needs to be registered via {@link #registerCache(Cache)}.</p>
+     *
+     * @param   type             one of {@link CacheManager#BTREE_CACHE} or {@link CacheManager#DATA_CACHE}
+     * @param   size             initial size of the cache in pages
+     * @param   growthFactor     factor by which the cache grows if more memory is requested
+     * @param   growthThreshold  amount of thrashing which triggers a request for more memory
+     *
+     * @return  the new cache
+     */
+    public Cache createCache( String type, int size, double growthFactor, double growthThreshold )
+    {
+        if( concurrentCaches ) {
+            return( new ConcurrentClockCache( size, growthFactor, growthThreshold, type ) );
+        }
+
+        if( BTREE_CACHE.equals( type ) ) {
+            return( new BTreeCache( size, growthFactor, growthThreshold, type ) );
+        }
+        return( new LRUCache( size, growthFactor, growthThreshold, type ) );
+    }
+
+
+    public boolean isConcurrentCaches()
+    {
+        return( concurrentCaches );
+    }
+
+
     @Override
-    public void registerCache( Cache cache )
+    public synchronized void registerCache( Cache cache )
     {
         currentPageCount += cache.getBuffers();
         caches.add( cache );
@@ -167,7 +215,7 @@ public class DefaultCacheManager implements CacheManager
 
 
     @Override
-    public void deregisterCache( Cache cache )
+    public synchronized void deregisterCache( Cache cache )
     {
         Cache next;
 
@@ -246,7 +294,7 @@ public class DefaultCacheManager implements CacheManager
      * <p>If shrinked, the cache will be reset to the default initial cache size.</p>
      */
     @Override
-    public void checkCaches()
+    public synchronized void checkCaches()
     {
         final int   minSize = (int)( totalPageCount * MIN_SHRINK_FACTOR );
         Cache cache;
@@ -277,7 +325,7 @@ public class DefaultCacheManager implements CacheManager
 
 
     @Override
-    public void checkDistribution()
+    public synchronized void checkDistribution()
     {
         if( lastRequest == null ) {
             return;
@@ -0,0 +1,232 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import org.apache.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.backup.RawDataBackup;
+import org.exist.storage.journal.Journal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the data files of a running database into a directory, without
+ * waiting for the database to become idle as the {@link DataBackup} system task does.
+ *
+ * The data files are copied page by page while other transactions continue to
+ * modify them, so the copy is not consistent by itself. While the backup is running,
+ * the {@link Journal} defers checkpoints. After all data files have been copied,
+ * the current journal file is appended to the backup. It contains all changes since
+ * the last checkpoint before the backup started. When the database is started on
+ * the backup directory, the recovery manager redoes these changes and rolls back
+ * transactions which were not committed when the journal was copied.
+ *
+ * To restore a backup, copy the contents of the backup directory into an empty
+ * data directory. If the journal is configured to use a separate directory, the
+ * journal file (*.log) has to be moved there.
+ */
+public class HotBackup {
+
+    private final static Logger LOG = Logger.getLogger(HotBackup.class);
+
+    private final BrokerPool pool;
+
+    // guarded by this
+    private boolean running = false;
+    private Date lastStart = null;
+    private Date lastEnd = null;
+    private File lastDirectory = null;
+    private String lastError = null;
+    private long lastBytes = 0;
+    private int backups = 0;
+
+    /** bytes copied by the running or last backup */
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    public HotBackup(BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Create a backup in a new sub directory of the output directory. The name of the
+     * sub directory is the creation time of the backup.
+     *
+     * @param outputDir the output directory. A relative path is interpreted relative to
+     *                  the data directory.
+     * @return the directory containing the backup
+     * @throws EXistException if the backup failed or another backup is already running
+     */
+    public File backup(File outputDir) throws EXistException {
+        final Journal journal = pool.getTransactionManager().getJournal();
+        if (!pool.isTransactional() || journal == null)
+            {throw new EXistException("Hot backup requires the journal to be enabled");}
+        if (!outputDir.isAbsolute())
+            {outputDir = new File((String) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR), outputDir.getPath());}
+
+        final String creationDate;
+        synchronized (DataBackup.creationDateFormat) {
+            creationDate = DataBackup.creationDateFormat.format(Calendar.getInstance().getTime());
+        }
+        final File target = new File(outputDir, creationDate);
+        synchronized (this) {
+            if (running)
+                {throw new EXistException("A hot backup is already running");}
+            running = true;
+            lastStart = new Date();
+            lastEnd = null;
+            lastDirectory = target;
+            lastError = null;
+            bytesCopied.set(0);
+        }
+        LOG.info("Starting hot backup into " + target.getAbsolutePath());
+
+        DBBroker broker = null;
+        journal.beginHotBackup();
+        try {
+            if (!target.mkdirs())
+                {throw new IOException("Cannot create backup directory " + target.getAbsolutePath());}
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final DirectoryBackup callback = new DirectoryBackup(target);
+            broker.backupToArchive(callback);
+            journal.backupToArchive(callback);
+            return target;
+        } catch (final IOException e) {
+            synchronized (this) {
+                lastError = e.getMessage();
+            }
+            LOG.warn("Hot backup failed: " + e.getMessage(), e);
+            throw new EXistException("Hot backup failed: " + e.getMessage(), e);
+        } finally {
+            journal.endHotBackup();
+            pool.release(broker);
+            synchronized (this) {
+                running = false;
+                lastEnd = new Date();
+                lastBytes = bytesCopied.get();
+                backups++;
+            }
+            if (LOG.isInfoEnabled())
+                {LOG.info("Hot backup finished. Copied " + bytesCopied.get() + " bytes in " +
+                    (lastEnd.getTime() - lastStart.getTime()) + "ms.");}
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized Date getLastStart() {
+        return lastStart;
+    }
+
+    public synchronized Date getLastEnd() {
+        return lastEnd;
+    }
+
+    public synchronized File getLastDirectory() {
+        return lastDirectory;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    public synchronized int getBackupCount() {
+        return backups;
+    }
+
+    /**
+     * Returns the number of bytes copied by the running backup or, if no
+     * backup is running, by the last backup.
+     */
+    public synchronized long getBytesCopied() {
+        return running ? bytesCopied.get() : lastBytes;
+    }
+
+    /**
+     * Returns the throughput of the running or last backup in bytes per second.
+     */
+    public synchronized long getThroughput() {
+        if (lastStart == null)
+            {return 0;}
+        final long end = running || lastEnd == null ? System.currentTimeMillis() : lastEnd.getTime();
+        final long elapsed = Math.max(1, end - lastStart.getTime());
+        return getBytesCopied() * 1000 / elapsed;
+    }
+
+    /**
+     * Writes each entry of the archive into a file below the target directory.
+     */
+    private class DirectoryBackup implements RawDataBackup {
+
+        private final File dir;
+        private OutputStream os = null;
+
+        private DirectoryBackup(File dir) {
+            this.dir = dir;
+        }
+
+        public OutputStream newEntry(String name) throws IOException {
+            closeEntry();
+            final File file = new File(dir, name);
+            final File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs())
+                {throw new IOException("Cannot create backup directory " + parent.getAbsolutePath());}
+            os = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            return os;
+        }
+
+        public void closeEntry() throws IOException {
+            if (os != null) {
+                os.close();
+                os = null;
+            }
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesCopied.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesCopied.addAndGet(len);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import java.io.File;
+import java.util.Map;
+
+import org.exist.EXistException;
+import org.exist.scheduler.JobException;
+import org.exist.scheduler.JobException.JobExceptionAction;
+import org.exist.scheduler.UserJavaJob;
+
+/**
+ * Scheduler job which creates a {@link HotBackup} of the data files. Unlike the
+ * {@link DataBackup} system task, the job does not wait for the database to
+ * become idle.
+ *
+ * Parameters:
+ * <ul>
+ *  <li>output-dir: the directory to write the backups to. A relative path
+ *  is interpreted relative to the data directory. Default: backup.</li>
+ * </ul>
+ */
+public class HotBackupJob extends UserJavaJob {
+
+    private String name = "HotBackup";
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void execute(BrokerPool brokerpool, Map<String, ?> params) throws JobException {
+        String dir = params == null ? null : (String) params.get("output-dir");
+        if (dir == null)
+            {dir = "backup";}
+        try {
+            brokerpool.getHotBackup().backup(new File(dir));
+        } catch (final EXistException e) {
+            throw new JobException(JobExceptionAction.JOB_ABORT, e.getMessage());
+        }
+    }
+}
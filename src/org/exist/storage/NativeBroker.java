@@ -21,10 +21,11 @@
  */
 package org.exist.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -150,14 +151,20 @@ public class NativeBroker extends DBBroker {
     public static final byte COLLECTIONS_DBX_ID = 0;
     public static final byte VALUES_DBX_ID = 2;
     public static final byte DOM_DBX_ID = 3;
+    public static final byte BLOBS_DBX_ID = 4;
     //Note : no ID for symbols ? Too bad...
 
     public static final String PAGE_SIZE_ATTRIBUTE = "pageSize";
     public static final String INDEX_DEPTH_ATTRIBUTE = "index-depth"; 
 
     public static final String PROPERTY_INDEX_DEPTH = "indexer.index-depth";
+
+    public static final String REINDEX_THREADS_ATTRIBUTE = "reindex-threads";
+    public static final String PROPERTY_REINDEX_THREADS = "indexer.reindex-threads";
+    public static final String REINDEX_BATCH_SIZE_ATTRIBUTE = "reindex-batch-size";
+    public static final String PROPERTY_REINDEX_BATCH_SIZE = "indexer.reindex-batch-size";
     private static final byte[] ALL_STORAGE_FILES = {
-    	COLLECTIONS_DBX_ID, VALUES_DBX_ID, DOM_DBX_ID
+    	COLLECTIONS_DBX_ID, VALUES_DBX_ID, DOM_DBX_ID, BLOBS_DBX_ID
     };
 
     //private static final String TEMP_FRAGMENT_REMOVE_ERROR = "Could not remove temporary fragment";
@@ -167,6 +174,7 @@ public class NativeBroker extends DBBroker {
     
     public static final String DEFAULT_DATA_DIR = "data";
     public static final int DEFAULT_INDEX_DEPTH = 1;
+    public static final int DEFAULT_REINDEX_BATCH_SIZE = 100;
     public static final int DEFAULT_MIN_MEMORY = 5000000;
     public static final long TEMP_FRAGMENT_TIMEOUT = 60000;
     /** default buffer size setting */
@@ -190,6 +198,12 @@ public class NativeBroker extends DBBroker {
 
     protected int defaultIndexDepth;
 
+    /** number of threads used to reindex a collection. 1 selects the serial reindex */
+    protected int reindexThreads = 1;
+
+    /** number of documents reindexed within one transaction by the parallel reindex */
+    protected int reindexBatchSize = DEFAULT_REINDEX_BATCH_SIZE;
+
     protected Serializer xmlSerializer;
 
     /** used to count the nodes inserted after the last memory check */
@@ -200,6 +214,7 @@ public class NativeBroker extends DBBroker {
     protected String dataDir;
     protected File fsDir;
     protected File fsBackupDir;
+    protected BinaryContentStore binaryStore;
     protected int pageSize;
 
     protected byte prepend;
@@ -254,6 +269,13 @@ public class NativeBroker extends DBBroker {
         if (defaultIndexDepth < 0)
             {defaultIndexDepth = DEFAULT_INDEX_DEPTH;}
 
+        final Integer threads = (Integer) config.getProperty(PROPERTY_REINDEX_THREADS);
+        if (threads != null && threads.intValue() > 0)
+            {reindexThreads = threads.intValue();}
+        final Integer batchSize = (Integer) config.getProperty(PROPERTY_REINDEX_BATCH_SIZE);
+        if (batchSize != null && batchSize.intValue() > 0)
+            {reindexBatchSize = batchSize.intValue();}
+
 		final String docIdProp = (String) config.getProperty(BrokerPool.DOC_ID_MODE_PROPERTY);
 		if (docIdProp != null) {
 			incrementalDocIds = docIdProp.equalsIgnoreCase("incremental");
@@ -285,6 +307,10 @@ public class NativeBroker extends DBBroker {
                 LOG.warn(collectionsDb.getFile().getName() + " is read-only!");
                 pool.setReadOnly();
             }
+            //Initialize binary content storage
+            binaryStore = (BinaryContentStore) config.getProperty(BinaryContentStore.CONFIG_KEY);
+            if (binaryStore == null)
+                {binaryStore = new BinaryContentStore(pool, BLOBS_DBX_ID, dataDir, fsBackupDir, config);}
             valueIndex = new NativeValueIndex(this, VALUES_DBX_ID, dataDir, config);
             if (pool.isReadOnly())
                 {LOG.info("Database runs in read-only mode");}
@@ -488,6 +514,8 @@ public class NativeBroker extends DBBroker {
             return collectionsDb;
         case VALUES_DBX_ID :
             return valueIndex.dbValues;
+        case BLOBS_DBX_ID :
+            return binaryStore.getReferences();
         default:
             return null;
         }
@@ -515,6 +543,7 @@ public class NativeBroker extends DBBroker {
         }
         pool.getSymbols().backupToArchive(backup);
         backupBinary(backup, fsDir, "");
+        backupBinary(backup, binaryStore.getDirectory(), "");
         pool.getIndexManager().backupToArchive(backup);
         //TODO backup counters
         //TODO USE zip64 or tar to create snapshots larger then 4Gb
@@ -523,12 +552,23 @@ public class NativeBroker extends DBBroker {
     private void backupBinary(RawDataBackup backup, File file, String path) throws IOException {
         path = path + "/" + file.getName();
         if (file.isDirectory()) {
-            for (final File f : file.listFiles()) {
+            final File[] files = file.listFiles();
+            if (files == null) {
+                // removed by a concurrent transaction during a hot backup
+                return;
+            }
+            for (final File f : files) {
                 backupBinary(backup, f, path);
             }
         } else {
+            final InputStream is;
+            try {
+                is = new FileInputStream(file);
+            } catch (final FileNotFoundException e) {
+                LOG.debug("Binary resource removed during backup: " + file);
+                return;
+            }
             final OutputStream os = backup.newEntry(path);
-            final InputStream is = new FileInputStream(file);
             final byte[] buf = new byte[4096];
             int len;
             while ((len = is.read(buf)) > 0) {
@@ -1294,6 +1334,9 @@ public class NativeBroker extends DBBroker {
             final XmldbURI dstURI = destination.getURI().append(newName);
 
         	pool.getCollectionTrigger().beforeMoveCollection(this, transaction, collection, dstURI);
+
+            // the documents leave their current collection
+            notifyUpdate(collection, UpdateListener.REMOVE);
 	
             final XmldbURI parentName = collection.getParentURI();
             final Collection parent = openCollection(parentName, Lock.WRITE_LOCK);
@@ -1330,6 +1373,8 @@ public class NativeBroker extends DBBroker {
                 lock.release(Lock.WRITE_LOCK);
             }
             pool.getCollectionTrigger().afterMoveCollection(this, transaction, collection, srcURI);
+
+            notifyUpdate(collection, UpdateListener.ADD);
             
             for(final Iterator<XmldbURI> i = collection.collectionIterator(this); i.hasNext(); ) {
                 final XmldbURI childName = i.next();
@@ -1348,6 +1393,16 @@ public class NativeBroker extends DBBroker {
         }
     }
 
+    /**
+     * Notifies the update listeners of an event concerning all the documents of a collection.
+     */
+    private void notifyUpdate(Collection collection, int event) throws PermissionDeniedException {
+        final NotificationService notifier = pool.getNotificationService();
+        for(final Iterator<DocumentImpl> i = collection.iterator(this); i.hasNext(); ) {
+            notifier.notifyUpdate(i.next(), event);
+        }
+    }
+
     /**
      * Removes a collection and all child collections and resources
      * 
@@ -1556,7 +1611,13 @@ public class NativeBroker extends DBBroker {
                         }
                     }.run();
                     
+                    if(doc.getResourceType() == DocumentImpl.BINARY_FILE) {
+                        binaryStore.remove(this, transaction, (BinaryDocument)doc);
+                    }
+
                     pool.getDocumentTrigger().afterDeleteDocument(this, transaction, doc.getURI());
+
+                    pool.getNotificationService().notifyUpdate(doc, UpdateListener.REMOVE);
                     
                     //Make doc's id available again
                     freeResourceId(transaction, doc.getDocId());
@@ -1773,6 +1834,10 @@ public class NativeBroker extends DBBroker {
     }
 
     public void reindexCollection(Collection collection, int mode) throws PermissionDeniedException {
+        if (mode == NodeProcessor.MODE_STORE && reindexThreads > 1) {
+            new ParallelReindexer(this, reindexThreads, reindexBatchSize).reindex(collection);
+            return;
+        }
         final TransactionManager transact = pool.getTransactionManager();
         final Txn transaction = transact.beginTransaction();
         long start = System.currentTimeMillis();
@@ -2056,6 +2121,12 @@ public class NativeBroker extends DBBroker {
        return getCollectionFile(dir,null,uri,create);
     }
     
+    /**
+     * Returns the path below the <code>fs</code> directory, where binary resources
+     * were stored before they were stored by content. Use
+     * {@link #getBinaryFile(BinaryDocument)} to locate the content of a resource.
+     */
+    @Deprecated
     public File getCollectionBinaryFileFsPath(XmldbURI uri) {
         return new File(fsDir, uri.getURI().toString());
     }
@@ -2088,73 +2159,16 @@ public class NativeBroker extends DBBroker {
     @Override
     public void storeBinaryResource(final Txn transaction, final BinaryDocument blob, final byte[] data)
             throws IOException {
-       blob.setPage(Page.NO_PAGE);
-       final File binFile = getCollectionFile(fsDir,blob.getURI(),true);
-       File backupFile = null;
-       final boolean exists = binFile.exists();
-       if (exists) {
-          backupFile = getCollectionFile(fsBackupDir,transaction,blob.getURI(),true);
-          if (!binFile.renameTo(backupFile)) {
-             throw new IOException("Cannot backup binary resource for journal to "+backupFile);
-          }
-       }
-       final OutputStream os = new FileOutputStream(binFile);
-       os.write(data,0,data.length);
-       os.close();
-       if (exists) {
-          final Loggable loggable = new UpdateBinaryLoggable(this,transaction,binFile,backupFile);
-          try {
-             logManager.writeToLog(loggable);
-          } catch (final TransactionException e) {
-             LOG.warn(e.getMessage(), e);
-          }
-       } else {
-          final Loggable loggable = new CreateBinaryLoggable(this,transaction,binFile);
-          try {
-             logManager.writeToLog(loggable);
-          } catch (final TransactionException e) {
-             LOG.warn(e.getMessage(), e);
-          }
-       }
+       storeBinaryResource(transaction, blob, new ByteArrayInputStream(data));
     }
 
     @Override
     public void storeBinaryResource(final Txn transaction, final BinaryDocument blob, final InputStream is)
     throws IOException {
        blob.setPage(Page.NO_PAGE);
-       final File binFile = getCollectionFile(fsDir,blob.getURI(),true);
-       File backupFile = null;
-       final boolean exists = binFile.exists();
-       if (exists) {
-          backupFile = getCollectionFile(fsBackupDir,transaction,blob.getURI(),true);
-          if (!binFile.renameTo(backupFile)) {
-             throw new IOException("Cannot backup binary resource for journal to "+backupFile);
-          }
-       }
-       final byte [] buffer = new byte[65536];
-       final OutputStream os = new FileOutputStream(binFile);
-       int len;
-       while ((len = is.read(buffer))>=0) {
-          if (len>0) {
-             os.write(buffer,0,len);
-          }
-       }
-       os.close();
-       if (exists) {
-          final Loggable loggable = new UpdateBinaryLoggable(this,transaction,binFile,backupFile);
-          try {
-             logManager.writeToLog(loggable);
-          } catch (final TransactionException e) {
-             LOG.warn(e.getMessage(), e);
-          }
-       } else {
-          final Loggable loggable = new CreateBinaryLoggable(this,transaction,binFile);
-          try {
-             logManager.writeToLog(loggable);
-          } catch (final TransactionException e) {
-             LOG.warn(e.getMessage(), e);
-          }
-       }
+       // the content of a resource stored before the content store was introduced
+       removeBinaryFsFile(transaction, blob);
+       binaryStore.store(this, transaction, blob, is);
     }
 
     public Document getXMLResource(XmldbURI fileName) throws PermissionDeniedException {
@@ -2256,37 +2270,25 @@ public class NativeBroker extends DBBroker {
     @Override
     public void readBinaryResource(final BinaryDocument blob, final OutputStream os) 
             throws IOException {
-       InputStream is = null;
-       try {
-           is = getBinaryResource(blob);
-           final byte [] buffer = new byte[655360];
-           int len;
-           while ((len=is.read(buffer))>=0) {
-              os.write(buffer,0,len);
-           }
-       } finally {
-           if(is != null)
-               {is.close();}
-       }
+       binaryStore.read(getBinaryFile(blob), os);
     }
 
     @Override
     public long getBinaryResourceSize(final BinaryDocument blob) 
             throws IOException {
-        final File binFile = getCollectionFile(fsDir,blob.getURI(),false);
-        return binFile.length();
+        return getBinaryFile(blob).length();
     }
 
     @Override
     public File getBinaryFile(final BinaryDocument blob) throws IOException {
-        return getCollectionFile(fsDir, blob.getURI(), false);
+        final File file = binaryStore.getFile(blob);
+        return file == null ? getCollectionFile(fsDir, blob.getURI(), false) : file;
     }
 
     @Override
     public InputStream getBinaryResource(final BinaryDocument blob) 
             throws IOException {
-        final File binFile = getCollectionFile(fsDir,blob.getURI(),false);
-        return new FileInputStream(binFile);
+        return binaryStore.openStream(blob, getBinaryFile(blob));
     }
 
     //TODO : consider a better cooperation with Collection -pb
@@ -2603,7 +2605,7 @@ public class NativeBroker extends DBBroker {
         
         
         /* Copy reference to original document */
-        final File fsOriginalDocument = getCollectionFile(fsDir, doc.getURI(), true);
+        final File fsOriginalDocument = getCollectionFile(fsDir, doc.getURI(), false);
 
         
         final XmldbURI oldName = doc.getFileURI();
@@ -2635,7 +2637,12 @@ public class NativeBroker extends DBBroker {
                 */
 
                 pool.getDocumentTrigger().beforeDeleteDocument(this, transaction, oldDoc);
+                if(oldDoc.getResourceType() == DocumentImpl.BINARY_FILE) {
+                    binaryStore.remove(this, transaction, (BinaryDocument)oldDoc);
+                    removeBinaryFsFile(transaction, (BinaryDocument)oldDoc);
+                }
                 pool.getDocumentTrigger().afterDeleteDocument(this, transaction, oldDoc.getURI());
+                pool.getNotificationService().notifyUpdate(oldDoc, UpdateListener.REMOVE);
             }
 
             boolean renameOnly = collection.getId() == destination.getId();
@@ -2648,6 +2655,8 @@ public class NativeBroker extends DBBroker {
             final DocumentTriggersVisitor triggersVisitor = collection.getConfiguration(this).getDocumentTriggerProxies().instantiateVisitor(this);
             triggersVisitor.beforeMoveDocument(this, transaction, doc, newURI);
             
+            // the document leaves its current location
+            pool.getNotificationService().notifyUpdate(doc, UpdateListener.REMOVE);
             collection.unlinkDocument(this, doc);
             removeResourceMetadata(transaction, doc);
             doc.setFileURI(newName);
@@ -2667,25 +2676,30 @@ public class NativeBroker extends DBBroker {
                 // binary resource
             	doc.setCollection(destination);
                 destination.addDocument(transaction, this, doc);
-                final File colDir = getCollectionFile(fsDir,destination.getURI(),true);
-                final File binFile = new File(colDir,newName.lastSegment().toString());
-                final File sourceFile = getCollectionFile(fsDir,doc.getURI(),false);
-                /* Create required directories */
-                binFile.getParentFile().mkdirs();
-                /* Rename original file to new location */
-                if(fsOriginalDocument.renameTo(binFile)) {
-                   final Loggable loggable = new RenameBinaryLoggable(this,transaction,sourceFile,binFile);
-                   try {
-                      logManager.writeToLog(loggable);
-                   } catch (final TransactionException e) {
-                      LOG.warn(e.getMessage(), e);
-                   }
-                } else {
-                   LOG.fatal("Cannot rename "+sourceFile+" to "+binFile+" for journaling of binary resource move.");
+                // content stored by digest does not depend on the location of the resource
+                if(fsOriginalDocument.exists()) {
+                    final File colDir = getCollectionFile(fsDir,destination.getURI(),true);
+                    final File binFile = new File(colDir,newName.lastSegment().toString());
+                    final File sourceFile = getCollectionFile(fsDir,doc.getURI(),false);
+                    /* Create required directories */
+                    binFile.getParentFile().mkdirs();
+                    /* Rename original file to new location */
+                    if(fsOriginalDocument.renameTo(binFile)) {
+                       final Loggable loggable = new RenameBinaryLoggable(this,transaction,sourceFile,binFile);
+                       try {
+                          logManager.writeToLog(loggable);
+                       } catch (final TransactionException e) {
+                          LOG.warn(e.getMessage(), e);
+                       }
+                    } else {
+                       LOG.fatal("Cannot rename "+sourceFile+" to "+binFile+" for journaling of binary resource move.");
+                    }
                 }
             }
             storeXMLResource(transaction, doc);
             saveCollection(transaction, destination);
+
+            pool.getNotificationService().notifyUpdate(doc, UpdateListener.ADD);
             
             pool.getDocumentTrigger().afterMoveDocument(this, transaction, doc, oldURI);
             
@@ -2778,7 +2792,20 @@ public class NativeBroker extends DBBroker {
         if(LOG.isDebugEnabled()) {
             LOG.debug("removing binary resource " + blob.getDocId() + "...");
         }
+
+        binaryStore.remove(this, transaction, blob);
+        removeBinaryFsFile(transaction, blob);
+        removeResourceMetadata(transaction, blob);
         
+        getIndexController().setDocument(blob, StreamListener.REMOVE_BINARY);
+        getIndexController().flush();
+    }
+
+    /**
+     * Move the file of a binary resource stored below the <code>fs</code> directory
+     * into the journal's backup directory.
+     */
+    private void removeBinaryFsFile(final Txn transaction, final BinaryDocument blob) throws IOException {
         final File binFile = getCollectionFile(fsDir,blob.getURI(),false);
         if (binFile.exists()) {
             final File binBackupFile = getCollectionFile(fsBackupDir, transaction, blob.getURI(), true);
@@ -2803,10 +2830,6 @@ public class NativeBroker extends DBBroker {
                 LOG.warn(e.getMessage(), e);
             }
         }
-        removeResourceMetadata(transaction, blob);
-        
-        getIndexController().setDocument(blob, StreamListener.REMOVE_BINARY);
-        getIndexController().flush();
     }
 
     /**
@@ -2971,6 +2994,16 @@ public class NativeBroker extends DBBroker {
             {doc.getCollection().setCollectionConfigEnabled(true);}
     }
 
+    /**
+     * Replace the index entries of a single document: all entries are dropped
+     * and recreated from the stored nodes. Used by the {@link ParallelReindexer}.
+     * The caller should hold a write lock on the document.
+     */
+    void reindexDocument(Txn transaction, DocumentImpl doc) throws ReadOnlyException {
+        dropIndex(transaction, doc);
+        reindexXMLResource(transaction, doc, NodeProcessor.MODE_STORE);
+    }
+
     @Override
     public void defragXMLResource(final Txn transaction, final DocumentImpl doc) {
         //TODO : use dedicated function in XmldbURI
@@ -3663,6 +3696,7 @@ public class NativeBroker extends DBBroker {
                 } finally {
                     lock.release(Lock.WRITE_LOCK);
                 }
+                binaryStore.flush();
                 notifySync();
                 pool.getIndexManager().sync();
                 final NumberFormat nf = NumberFormat.getNumberInstance();
@@ -3671,6 +3705,7 @@ public class NativeBroker extends DBBroker {
                         nf.format(run.freeMemory() / 1024) + "K free");
                 domDb.printStatistics();
                 collectionsDb.printStatistics();
+                binaryStore.printStatistics();
                 notifyPrintStatistics();
             }
         } catch (final DBException dbe) {
@@ -3686,6 +3721,7 @@ public class NativeBroker extends DBBroker {
             sync(Sync.MAJOR_SYNC);
             domDb.close();
             collectionsDb.close();
+            binaryStore.close();
             notifyClose();
         } catch (final Exception e) {
             LOG.warn(e.getMessage(), e);
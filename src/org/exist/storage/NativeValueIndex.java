@@ -1242,6 +1242,101 @@ public class NativeValueIndex implements ContentLoadingObserver {
     }
 
 
+    /**
+     * Scan the index keys of the nodes in the given node set, which all have to be indexed by the given QName. Only index
+     * keys of the given type are considered. The values of the nodes are thus read from the index without loading the
+     * nodes themselves.
+     *
+     * <p>The scan has to read the postings of every key of the QName, so it only pays off if the node set covers a large
+     * share of the postings. If there are more keys than nodes in the node set, <code>null</code> is returned without
+     * reading any postings and the caller should atomize the nodes instead.</p>
+     *
+     * @param   docs   set of documents to scan
+     * @param   nodes  the nodes to look up. All nodes must have the given QName.
+     * @param   qname  the QName on which the range index is defined
+     * @param   type   the type of the range index
+     *
+     * @return  a list of ValueOccurrences, each counting the nodes having the value, or <code>null</code> if the node set
+     *          is too small compared to the number of keys or not all nodes were found in the index, e.g. because their
+     *          value could not be converted to the index type
+     */
+    public ValueOccurrences[] scanIndexKeys( DocumentSet docs, NodeSet nodes, QName qname, int type )
+    {
+        final int nodeCount = nodes.getItemCount();
+
+        try {
+            // only count the keys first: this does not read the postings
+            if( !queryIndexKeys( docs, qname, type, new KeyCountCallback( nodeCount ) ) ) {
+                return( null );
+            }
+        }
+        catch( final TerminatedException e ) {
+            if( LOG.isDebugEnabled() ) {
+                LOG.debug( "More than " + nodeCount + " keys for " + qname + ". Not scanning the index." );
+            }
+            return( null );
+        }
+
+        final NodeKeysCallback cb = new NodeKeysCallback( docs, nodes );
+
+        try {
+            if( !queryIndexKeys( docs, qname, type, cb ) ) {
+                return( null );
+            }
+        }
+        catch( final TerminatedException e ) {
+            LOG.warn( e.getMessage(), e );
+            return( null );
+        }
+
+        if( cb.found != nodeCount ) {
+            return( null );
+        }
+        final ValueOccurrences[] result = new ValueOccurrences[cb.map.size()];
+        return( cb.map.values().toArray( result ) );
+    }
+
+
+    /**
+     * Pass all keys of the given type indexed by the QName in the collections of the document set to the callback.
+     *
+     * @return  false if the index could not be read
+     */
+    private boolean queryIndexKeys( DocumentSet docs, QName qname, int type, BTreeCallback cb ) throws TerminatedException
+    {
+        final Lock lock = dbValues.getLock();
+
+        for( final Iterator<Collection> i = docs.getCollectionIterator(); i.hasNext(); ) {
+
+            try {
+                lock.acquire( Lock.READ_LOCK );
+                final int collectionId = i.next().getId();
+
+                //All keys of the given type start with this prefix
+                final Value      prefixKey = new QNamePrefixValue( collectionId, qname, type, broker.getBrokerPool().getSymbols() );
+                final IndexQuery query     = new IndexQuery( IndexQuery.TRUNC_RIGHT, prefixKey );
+                dbValues.query( query, cb );
+            }
+            catch( final LockException e ) {
+                LOG.warn( "Failed to acquire lock for '" + dbValues.getFile().getName() + "'", e );
+                return( false );
+            }
+            catch( final IOException e ) {
+                LOG.error( e.getMessage(), e );
+                return( false );
+            }
+            catch( final BTreeException e ) {
+                LOG.error( e.getMessage(), e );
+                return( false );
+            }
+            finally {
+                lock.release( Lock.READ_LOCK );
+            }
+        }
+        return( true );
+    }
+
+
     protected List<QName> getDefinedIndexes( DocumentSet docs )
     {
         final List<QName> qnames = new ArrayList<QName>();
@@ -1633,6 +1728,113 @@ public class NativeValueIndex implements ContentLoadingObserver {
     }
 
 
+    /**
+     * Counts index keys. Throws a TerminatedException as soon as the maximum number of keys is exceeded.
+     */
+    private final static class KeyCountCallback implements BTreeCallback
+    {
+        private final int maxKeys;
+        private int       count = 0;
+
+        KeyCountCallback( int maxKeys )
+        {
+            this.maxKeys = maxKeys;
+        }
+
+        public boolean indexInfo( Value key, long pointer ) throws TerminatedException
+        {
+            if( ++count > maxKeys ) {
+                throw( new TerminatedException( "Too many index keys" ) );
+            }
+            return( true );
+        }
+    }
+
+
+    /**
+     * Counts the nodes of a node set found for each index key. Used by
+     * {@link NativeValueIndex#scanIndexKeys(DocumentSet, NodeSet, QName, int)}.
+     */
+    private final class NodeKeysCallback implements BTreeCallback
+    {
+        private final DocumentSet                        docs;
+        private final NodeSet                            nodes;
+        private final Map<AtomicValue, ValueOccurrences> map   = new TreeMap<AtomicValue, ValueOccurrences>();
+        // total number of nodes found
+        private int                                      found = 0;
+
+        NodeKeysCallback( DocumentSet docs, NodeSet nodes )
+        {
+            this.docs  = docs;
+            this.nodes = nodes;
+        }
+
+        public boolean indexInfo( Value key, long pointer ) throws TerminatedException
+        {
+            AtomicValue atomic;
+
+            try {
+                atomic = ( AtomicValue )QNameValue.deserialize( key.data(), key.start(), key.getLength() );
+            }
+            catch( final EXistException e ) {
+                LOG.error( e.getMessage(), e );
+                return( true );
+            }
+            VariableByteInput is;
+
+            try {
+                is = dbValues.getAsStream( pointer );
+            }
+            catch( final IOException e ) {
+                LOG.error( e.getMessage(), e );
+                return( true );
+            }
+            int count = 0;
+
+            try {
+
+                while( is.available() > 0 ) {
+                    final int          storedDocId    = is.readInt();
+                    final int          gidsCount      = is.readInt();
+                    final int          size           = is.readFixedInt();
+                    final DocumentImpl storedDocument = docs.getDoc( storedDocId );
+
+                    //Exit if the document is not concerned
+                    if( storedDocument == null ) {
+                        is.skipBytes( size );
+                        continue;
+                    }
+                    NodeId previous = null;
+
+                    for( int j = 0; j < gidsCount; j++ ) {
+                        final NodeId nodeId = broker.getBrokerPool().getNodeFactory().createFromStream( previous, is );
+                        previous = nodeId;
+
+                        if( nodes.get( storedDocument, nodeId ) != null ) {
+                            ++count;
+                        }
+                    }
+                }
+            }
+            catch( final IOException e ) {
+                LOG.error( e.getMessage(), e );
+            }
+
+            if( count > 0 ) {
+                ValueOccurrences oc = map.get( atomic );
+
+                if( oc == null ) {
+                    oc = new ValueOccurrences( atomic );
+                    map.put( atomic, oc );
+                }
+                oc.addOccurrences( count );
+                found += count;
+            }
+            return( true );
+        }
+    }
+
+
     private final class IndexScanCallback implements BTreeCallback
     {
         private DocumentSet docs;
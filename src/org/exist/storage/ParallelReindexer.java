@@ -0,0 +1,281 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.dom.DocumentImpl;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.util.ReadOnlyException;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Reindexes a collection and its descendants online, using a pool of worker
+ * threads. Each worker obtains its own broker from the {@link BrokerPool} and
+ * processes the documents in batches, committing one transaction per batch.
+ *
+ * Contrary to the serial reindex in {@link NativeBroker}, the index of the
+ * collection is not dropped in advance. Instead, the index entries of every
+ * single document are removed and recreated while a write lock is held on the
+ * document. Queries can thus continue to use the existing index entries of all
+ * other documents while the reindex is running.
+ *
+ * Progress is reported through the {@link ProcessMonitor}: the job info shows the
+ * number of documents processed so far. If the job is stopped (e.g. on shutdown),
+ * the workers finish their current document and terminate.
+ */
+public class ParallelReindexer {
+
+    private final static Logger LOG = Logger.getLogger(ParallelReindexer.class);
+
+    private final BrokerPool pool;
+    private final DBBroker broker;
+    private final Subject subject;
+    private final int threads;
+    private final int batchSize;
+
+    private final ProcessMonitor.Monitor monitor = new ProcessMonitor.Monitor();
+
+    private final AtomicInteger processed = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private volatile int total = 0;
+
+    private XmldbURI root = null;
+
+    /**
+     * @param broker the broker of the calling thread, used to traverse the collections
+     * @param threads the number of worker threads
+     * @param batchSize the number of documents to reindex within one transaction
+     */
+    public ParallelReindexer(DBBroker broker, int threads, int batchSize) {
+        this.broker = broker;
+        this.pool = broker.getBrokerPool();
+        this.subject = broker.getSubject();
+        // every worker needs a broker, and the calling thread holds one already
+        this.threads = Math.max(1, Math.min(threads, pool.getMax() - 1));
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Reindex all documents in the given collection and its sub-collections.
+     * The method returns after all documents have been processed.
+     *
+     * @param collection the collection to reindex
+     * @throws PermissionDeniedException if the user has no write access to one of
+     *  the collections
+     */
+    public void reindex(Collection collection) throws PermissionDeniedException {
+        root = collection.getURI();
+        final long start = System.currentTimeMillis();
+        LOG.info("Start indexing collection " + root + " using " + threads + " threads");
+        pool.getProcessMonitor().startJob(ProcessMonitor.ACTION_REINDEX_COLLECTION, this, monitor);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ReindexThreadFactory());
+        final List<Future<?>> batches = new ArrayList<Future<?>>();
+        try {
+            submitCollection(collection, executor, batches);
+            for (final Future<?> batch : batches) {
+                try {
+                    batch.get();
+                } catch (final ExecutionException e) {
+                    LOG.warn("An error occurred during reindex: " + e.getCause().getMessage(), e.getCause());
+                } catch (final InterruptedException e) {
+                    LOG.warn("Interrupted while waiting for reindex to complete", e);
+                    monitor.stop();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                //ignore
+            }
+            pool.getProcessMonitor().endJob();
+            LOG.info("Finished indexing collection " + root + " in " + (System.currentTimeMillis() - start) +
+                " msec. Documents: " + processed.get() + "; failed: " + failed.get());
+        }
+    }
+
+    /**
+     * Returns the number of documents which have been reindexed so far.
+     */
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the number of documents which could not be reindexed.
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return root + " (" + processed.get() + " of " + total + " documents)";
+    }
+
+    private void submitCollection(Collection collection, ExecutorService executor, List<Future<?>> batches)
+            throws PermissionDeniedException {
+        if (!collection.getPermissions().validate(subject, Permission.WRITE))
+            {throw new PermissionDeniedException("Account " + subject.getName() + " have insufficient privileges on collection " + collection.getURI());}
+        LOG.debug("Reindexing collection " + collection.getURI());
+        final List<XmldbURI> children = new ArrayList<XmldbURI>();
+        List<DocumentImpl> batch = new ArrayList<DocumentImpl>(batchSize);
+        try {
+            collection.getLock().acquire(Lock.READ_LOCK);
+            try {
+                for (final Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+                    final DocumentImpl doc = i.next();
+                    if (doc.getResourceType() == DocumentImpl.BINARY_FILE)
+                        {continue;}
+                    batch.add(doc);
+                    total++;
+                    if (batch.size() == batchSize) {
+                        batches.add(executor.submit(new ReindexBatch(collection, batch)));
+                        batch = new ArrayList<DocumentImpl>(batchSize);
+                    }
+                }
+                for (final Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+                    children.add(i.next());
+                }
+            } finally {
+                collection.getLock().release(Lock.READ_LOCK);
+            }
+        } catch (final LockException e) {
+            LOG.warn("Failed to acquire lock on collection " + collection.getURI(), e);
+            return;
+        }
+        if (!batch.isEmpty())
+            {batches.add(executor.submit(new ReindexBatch(collection, batch)));}
+        for (final XmldbURI child : children) {
+            final Collection childCollection = broker.getCollection(collection.getURI().append(child));
+            if (childCollection == null)
+                {LOG.warn("Collection '" + child + "' not found");}
+            else
+                {submitCollection(childCollection, executor, batches);}
+        }
+    }
+
+    /**
+     * Reindexes a batch of documents within a single transaction.
+     */
+    private class ReindexBatch implements Runnable {
+
+        private final Collection collection;
+        private final List<DocumentImpl> documents;
+
+        ReindexBatch(Collection collection, List<DocumentImpl> documents) {
+            this.collection = collection;
+            this.documents = documents;
+        }
+
+        public void run() {
+            if (!monitor.proceed())
+                {return;}
+            DBBroker workerBroker = null;
+            try {
+                workerBroker = pool.get(subject);
+                final TransactionManager transact = pool.getTransactionManager();
+                final Txn transaction = transact.beginTransaction();
+                try {
+                    for (final DocumentImpl doc : documents) {
+                        if (!monitor.proceed())
+                            {break;}
+                        reindexDocument((NativeBroker) workerBroker, transaction, doc);
+                    }
+                    transact.commit(transaction);
+                } catch (final TransactionException e) {
+                    transact.abort(transaction);
+                    LOG.warn("An error occurred during reindex: " + e.getMessage(), e);
+                } finally {
+                    transact.close(transaction);
+                }
+            } catch (final EXistException e) {
+                LOG.warn("Failed to obtain a broker for reindex: " + e.getMessage(), e);
+                failed.addAndGet(documents.size());
+            } finally {
+                pool.release(workerBroker);
+            }
+        }
+
+        private void reindexDocument(NativeBroker workerBroker, Txn transaction, DocumentImpl doc) {
+            final Lock lock = doc.getUpdateLock();
+            try {
+                lock.acquire(Lock.WRITE_LOCK);
+            } catch (final LockException e) {
+                LOG.warn("Failed to acquire lock on document " + doc.getURI(), e);
+                failed.incrementAndGet();
+                return;
+            }
+            try {
+                // skip documents which have been removed or replaced in the meantime
+                if (collection.getDocument(workerBroker, doc.getFileURI()) != doc)
+                    {return;}
+                workerBroker.reindexDocument(transaction, doc);
+                processed.incrementAndGet();
+            } catch (final PermissionDeniedException e) {
+                LOG.warn("Failed to reindex document " + doc.getURI() + ": " + e.getMessage());
+                failed.incrementAndGet();
+            } catch (final ReadOnlyException e) {
+                LOG.warn("Failed to reindex document " + doc.getURI() + ": " + e.getMessage());
+                failed.incrementAndGet();
+            } catch (final RuntimeException e) {
+                LOG.warn("Failed to reindex document " + doc.getURI() + ": " + e.getMessage(), e);
+                failed.incrementAndGet();
+            } finally {
+                lock.release(Lock.WRITE_LOCK);
+            }
+        }
+    }
+
+    private class ReindexThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger id = new AtomicInteger(0);
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "reindex-" + pool.getId() + "-" + id.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
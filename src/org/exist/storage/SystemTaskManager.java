@@ -59,7 +59,7 @@ public class SystemTaskManager {
             DBBroker broker = null;
             Subject oldUser = null;
             try {
-                broker = pool.get(null);
+                broker = pool.getSystemBroker();
                 oldUser = broker.getSubject();
                 broker.setSubject(pool.getSecurityManager().getSystemSubject());
                 while (!waitingSystemTasks.isEmpty()) {
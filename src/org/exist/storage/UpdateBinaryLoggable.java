@@ -87,8 +87,10 @@ public class UpdateBinaryLoggable extends AbstractLoggable {
     
     public void undo() throws LogException {
        try {
+          // copy to a new file and move it into place instead of overwriting the resource file
+          final File temp = File.createTempFile("undo", ".tmp", backup.getParentFile());
           final FileInputStream is = new FileInputStream(backup);
-          final FileOutputStream os = new FileOutputStream(original);
+          final FileOutputStream os = new FileOutputStream(temp);
           final byte [] buffer = new byte[4096];
           int len;
           while ((len=is.read(buffer))>=0) {
@@ -96,6 +98,14 @@ public class UpdateBinaryLoggable extends AbstractLoggable {
           }
           os.close();
           is.close();
+          if (original.exists() && !original.delete()) {
+             temp.delete();
+             throw new LogException("Cannot delete binary resource "+original);
+          }
+          if (!temp.renameTo(original)) {
+             temp.delete();
+             throw new LogException("Cannot restore binary resource "+original);
+          }
        } catch (final IOException ex) {
           
        }
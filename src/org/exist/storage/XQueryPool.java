@@ -24,6 +24,11 @@ package org.exist.storage;
 
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.exist.config.annotation.ConfigurationClass;
@@ -32,7 +37,6 @@ import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
 import org.exist.source.Source;
 import org.exist.util.Configuration;
-import org.exist.util.hashtable.Object2ObjectHashMap;
 import org.exist.xquery.*;
 
 /**
@@ -42,11 +46,16 @@ import org.exist.xquery.*;
  * {@link #MAX_STACK_SIZE} compiled expressions are kept in the pool. An XQuery
  * expression will be removed from the pool if it has not been used for a
  * pre-defined timeout. These settings can be configured in conf.xml.
+ *
+ * The pool can be accessed concurrently: each source maps to a lock-free queue
+ * of compiled expressions. If the maximum number of sources is reached, the entry
+ * which is cheapest to recompile (compilation time weighted by the number of hits)
+ * is evicted, unless the new expression is even cheaper to compile.
  * 
  * @author wolf
  */
 @ConfigurationClass("query-pool")
-public class XQueryPool extends Object2ObjectHashMap {
+public class XQueryPool {
 
 	public final static int MAX_POOL_SIZE = 128;
 
@@ -58,7 +67,17 @@ public class XQueryPool extends Object2ObjectHashMap {
 
 	private final static Logger LOG = Logger.getLogger(XQueryPool.class);
 
-	private long lastTimeOutCheck;
+	private volatile long lastTimeOutCheck;
+
+	private final AtomicBoolean timeoutCheckRunning = new AtomicBoolean(false);
+
+	private final ConcurrentHashMap<Source, PoolEntry> entries = new ConcurrentHashMap<Source, PoolEntry>(27);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong compilations = new AtomicLong();
+	private final AtomicLong compileTime = new AtomicLong();
 
 	@ConfigurationFieldAsAttribute("size")
 	private int maxPoolSize;
@@ -87,7 +106,6 @@ public class XQueryPool extends Object2ObjectHashMap {
 	 * @param conf
 	 */
 	public XQueryPool(Configuration conf) {
-		super(27);
 		lastTimeOutCheck = System.currentTimeMillis();
 
 		final Integer maxStSz = (Integer) conf.getProperty(PROPERTY_MAX_STACK_SIZE);
@@ -126,7 +144,7 @@ public class XQueryPool extends Object2ObjectHashMap {
 
 	public void returnCompiledXQuery(Source source, CompiledXQuery xquery) {
 		// returnModules(xquery.getContext(), null);
-		returnObject(source, xquery);
+		returnObject(source, xquery, xquery.getContext().getCompilationTime());
 	}
 
 	private void returnModules(XQueryContext context, ExternalModule self) {
@@ -137,66 +155,67 @@ public class XQueryPool extends Object2ObjectHashMap {
 				// ((ModuleContext)extModule.getContext()).setParentContext(null);
 				// Don't return recursively, since all modules are listed in the
 				// top-level context
-				returnObject(extModule.getSource(), extModule);
+				returnObject(extModule.getSource(), extModule, extModule.getContext().getCompilationTime());
 			}
 		}
 	}
 
-	private synchronized void returnObject(Source source, Object o) {
-		if (size() >= maxPoolSize)
-			{timeoutCheck();}
-		if (size() < maxPoolSize) {
-			Stack stack = (Stack) get(source);
-			if (stack == null) {
-				stack = new Stack();
-				source.setCacheTimestamp(System.currentTimeMillis());
-				put(source, stack);
-			}
-			if (stack.size() < maxStackSize) {
-				for (int i = 0; i < stack.size(); i++) {
-					if (stack.get(i) == o)
-						// query already in pool. may happen for modules.
-						// don't add it a second time.
-						{return;}
-				}
-				stack.push(o);
-			}
+	private void returnObject(Source source, Object o, long cost) {
+		PoolEntry entry = entries.get(source);
+		if (entry == null) {
+			if (entries.size() >= maxPoolSize)
+				{timeoutCheck();}
+			if (entries.size() >= maxPoolSize && !evict(cost))
+				{return;}
+			entry = new PoolEntry(source, cost);
+			final PoolEntry previous = entries.putIfAbsent(source, entry);
+			if (previous == null)
+				{source.setCacheTimestamp(System.currentTimeMillis());}
+			else
+				{entry = previous;}
 		}
+		entry.push(o, maxStackSize);
 	}
 
-	private synchronized Object borrowObject(DBBroker broker, Source source) {
-		final int idx = getIndex(source);
-		if (idx < 0) {
+	private Object borrowObject(DBBroker broker, Source source) {
+		final PoolEntry entry = entries.get(source);
+		if (entry == null) {
+			misses.incrementAndGet();
 			return null;
 		}
-		final Source key = (Source) keys[idx];
+		final Source key = entry.key;
 		int validity = key.isValid(broker);
 		if (validity == Source.UNKNOWN)
 			{validity = key.isValid(source);}
 		if (validity == Source.INVALID || validity == Source.UNKNOWN) {
-			keys[idx] = REMOVED;
-			values[idx] = null;
+			entries.remove(source, entry);
 			LOG.debug(source.getKey() + " is invalid");
+			misses.incrementAndGet();
 			return null;
 		}
-		final Stack stack = (Stack) values[idx];
-		if (stack == null || stack.isEmpty())
-			{return null;}
-		// now check if the compiled expression is valid
-		// it might become invalid if an imported module has changed.
-		final CompiledXQuery query = (CompiledXQuery) stack.pop();
-		final XQueryContext context = query.getContext();
-		//context.setBroker(broker);
-		if (!query.isValid()) {
-			// the compiled query is no longer valid: one of the imported
-			// modules may have changed
-			remove(key);
+		final Object o = entry.pop();
+		if (o == null) {
+			misses.incrementAndGet();
 			return null;
-		} else
-			{return query;}
+		}
+		if (o instanceof CompiledXQuery) {
+			// now check if the compiled expression is valid
+			// it might become invalid if an imported module has changed.
+			final CompiledXQuery query = (CompiledXQuery) o;
+			if (!query.isValid()) {
+				// the compiled query is no longer valid: one of the imported
+				// modules may have changed
+				entries.remove(source, entry);
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+		entry.hits.incrementAndGet();
+		hits.incrementAndGet();
+		return o;
 	}
 
-	public synchronized CompiledXQuery borrowCompiledXQuery(DBBroker broker, Source source) throws PermissionDeniedException {
+	public CompiledXQuery borrowCompiledXQuery(DBBroker broker, Source source) throws PermissionDeniedException {
 		final CompiledXQuery query = (CompiledXQuery) borrowObject(broker, source);
 		if (query == null)
 			{return null;}
@@ -204,35 +223,10 @@ public class XQueryPool extends Object2ObjectHashMap {
 		//check execution permission
 		source.validate(broker.getSubject(), Permission.EXECUTE);
 		
-		// now check if the compiled expression is valid
-		// it might become invalid if an imported module has changed.
-		final XQueryContext context = query.getContext();
-		//context.setBroker(broker);
 		return query;
-		// if (!borrowModules(broker, context)) {
-		// // the compiled query is no longer valid: one of the imported
-		// // modules may have changed
-		// remove(source);
-		// return null;
-		// } else {
-		// if (query instanceof PathExpr) try {
-		// // This is necessary because eXist performs whole-expression
-		// analysis, so a function
-		// // can only be analyzed as part of the expression it's called from.
-		// It might be better
-		// // to make module functions more stand-alone, so they only need to be
-		// analyzed
-		// // once.
-		// context.analyzeAndOptimizeIfModulesChanged((PathExpr) query);
-		// } catch (XPathException e) {
-		// remove(source);
-		// return null;
-		// }
-		// return query;
-		// }
 	}
 
-	private synchronized boolean borrowModules(DBBroker broker, XQueryContext context) {
+	private boolean borrowModules(DBBroker broker, XQueryContext context) {
 		final Map<String, Module> borrowedModules = new TreeMap<String, Module>();
 		for (final Iterator<Module> it = context.getAllModules(); it.hasNext();) {
 			final Module module = it.next();
@@ -242,16 +236,16 @@ public class XQueryPool extends Object2ObjectHashMap {
 				if (borrowedModule == null) {
 					for (final Iterator<Module> it2 = borrowedModules.values().iterator(); it2.hasNext();) {
 						final ExternalModule moduleToReturn = (ExternalModule) it2.next();
-						returnObject(moduleToReturn.getSource(), moduleToReturn);
+						returnObject(moduleToReturn.getSource(), moduleToReturn, moduleToReturn.getContext().getCompilationTime());
 					}
 					return false;
 				}
 				borrowedModules.put(extModule.getNamespaceURI(), borrowedModule);
 			}
 		}
-		for (final Iterator it = borrowedModules.entrySet().iterator(); it.hasNext();) {
-			final Map.Entry entry = (Map.Entry) it.next();
-			final String moduleNamespace = (String) entry.getKey();
+		for (final Iterator<Map.Entry<String, Module>> it = borrowedModules.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<String, Module> entry = it.next();
+			final String moduleNamespace = entry.getKey();
 			final ExternalModule module = (ExternalModule) entry.getValue();
 			// Modules that don't appear in the root context will be set in
 			// context.allModules by
@@ -276,7 +270,7 @@ public class XQueryPool extends Object2ObjectHashMap {
 		return true;
 	}
 
-	public synchronized ExternalModule borrowModule(DBBroker broker, Source source, XQueryContext rootContext) {
+	public ExternalModule borrowModule(DBBroker broker, Source source, XQueryContext rootContext) {
 		final ExternalModule module = (ExternalModule) borrowObject(broker, source);
 		if (module == null)
 			{return null;}
@@ -284,7 +278,7 @@ public class XQueryPool extends Object2ObjectHashMap {
 		//context.setBroker(broker);
 		if (!module.moduleIsValid(broker)) {
 			LOG.debug("Module with URI " + module.getNamespaceURI() + " has changed and needs to be reloaded");
-			remove(source);
+			entries.remove(source);
 			return null;
 		} else {
 			// check all modules imported by the borrowed module and update them
@@ -301,13 +295,73 @@ public class XQueryPool extends Object2ObjectHashMap {
 		}
 	}
 
-    public synchronized void clear() {
-        for (final Iterator i = iterator(); i.hasNext();) {
-            final Source next = (Source) i.next();
-            remove(next);
-        }
+	/**
+	 * Record the time spent compiling an expression.
+	 *
+	 * @param time compilation time in milliseconds
+	 */
+	public void compiled(long time) {
+		compilations.incrementAndGet();
+		compileTime.addAndGet(time);
+	}
+
+	/**
+	 * Returns the number of sources for which compiled expressions are pooled.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getCompilations() {
+		return compilations.get();
+	}
+
+	/**
+	 * Returns the total time (in milliseconds) spent compiling expressions.
+	 */
+	public long getCompileTime() {
+		return compileTime.get();
+	}
+
+    public void clear() {
+        entries.clear();
     }
 
+	/**
+	 * Evict the entry which is cheapest to recreate to make room for a new
+	 * entry with the given compilation cost.
+	 *
+	 * @return false if all entries are more expensive than the new one
+	 */
+	private boolean evict(long cost) {
+		PoolEntry victim = null;
+		long victimCost = Long.MAX_VALUE;
+		for (final PoolEntry entry : entries.values()) {
+			final long entryCost = entry.cost * (entry.hits.get() + 1);
+			if (entryCost < victimCost) {
+				victim = entry;
+				victimCost = entryCost;
+			}
+		}
+		if (victim == null || victimCost > cost)
+			{return false;}
+		if (entries.remove(victim.key, victim))
+			{evictions.incrementAndGet();}
+		return true;
+	}
+
 	private void timeoutCheck() {
 		final long currentTime = System.currentTimeMillis();
 
@@ -317,11 +371,58 @@ public class XQueryPool extends Object2ObjectHashMap {
 		if (currentTime - lastTimeOutCheck < timeoutCheckInterval)
 			{return;}
 
-		for (final Iterator i = iterator(); i.hasNext();) {
-			final Source next = (Source) i.next();
-			if (currentTime - next.getCacheTimestamp() > timeout) {
-				remove(next);
+		// only one thread needs to do the check
+		if (!timeoutCheckRunning.compareAndSet(false, true))
+			{return;}
+		try {
+			for (final Iterator<PoolEntry> i = entries.values().iterator(); i.hasNext();) {
+				final PoolEntry next = i.next();
+				if (currentTime - next.key.getCacheTimestamp() > timeout) {
+					i.remove();
+				}
+			}
+			lastTimeOutCheck = currentTime;
+		} finally {
+			timeoutCheckRunning.set(false);
+		}
+	}
+
+	/**
+	 * The compiled expressions pooled for a single source.
+	 */
+	private final static class PoolEntry {
+
+		final Source key;
+		final long cost;
+		final AtomicLong hits = new AtomicLong();
+
+		private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+		private final AtomicInteger stackSize = new AtomicInteger();
+
+		PoolEntry(Source key, long cost) {
+			this.key = key;
+			this.cost = cost;
+		}
+
+		void push(Object o, int maxStackSize) {
+			for (final Object pooled : queue) {
+				if (pooled == o)
+					// query already in pool. may happen for modules.
+					// don't add it a second time.
+					{return;}
 			}
+			if (stackSize.incrementAndGet() > maxStackSize) {
+				stackSize.decrementAndGet();
+				return;
+			}
+			queue.offer(o);
+		}
+
+		Object pop() {
+			final Object o = queue.poll();
+			if (o != null)
+				{stackSize.decrementAndGet();}
+			return o;
 		}
 	}
 }
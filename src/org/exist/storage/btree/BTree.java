@@ -231,8 +231,8 @@ public class BTree extends Paged {
     }
 
     protected void initCache() {
-        cache = new BTreeCache(cacheManager.getDefaultInitialSize(), 1.5,
-            0, CacheManager.BTREE_CACHE);
+        cache = cacheManager.createCache(CacheManager.BTREE_CACHE,
+            cacheManager.getDefaultInitialSize(), 1.5, 0);
         cache.setFileName(getFile().getName());
         cacheManager.registerCache(cache);
     }
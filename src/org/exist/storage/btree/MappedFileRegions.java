@@ -0,0 +1,115 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory-mapped view of a paged file. The file is mapped in
+ * regions of a fixed size, which are mapped lazily on first access. Only
+ * regions lying completely within the current file size are mapped; reads
+ * touching the tail of the file, or crossing a region boundary, are rejected
+ * and have to be served by a positional read on the channel instead.
+ *
+ * Writes always go through the channel. The mapped regions share the
+ * operating system's page cache with the channel, so they see the changes.
+ */
+public class MappedFileRegions {
+
+    public final static int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int regionSize;
+
+    private MappedByteBuffer[] regions = new MappedByteBuffer[16];
+
+    // the known size of the file
+    private long fileSize;
+
+    public MappedFileRegions(FileChannel channel, int regionSize) throws IOException {
+        this.channel = channel;
+        this.regionSize = regionSize;
+        this.fileSize = channel.size();
+    }
+
+    /**
+     * Try to read len bytes at the given file position from the mapped regions.
+     *
+     * @param dest the array to copy into
+     * @param offset offset into dest
+     * @param len number of bytes to read
+     * @param position the position in the file
+     * @return true if the data could be read from a mapped region, false if the
+     *  caller needs to fall back to a regular read
+     * @throws IOException
+     */
+    public synchronized boolean read(byte[] dest, int offset, int len, long position) throws IOException {
+        final long regionNum = position / regionSize;
+        final int regionOffset = (int) (position % regionSize);
+        if (regionOffset + len > regionSize || regionNum >= Integer.MAX_VALUE)
+            {return false;}
+        final ByteBuffer region = getRegion((int) regionNum);
+        if (region == null)
+            {return false;}
+        final ByteBuffer view = region.duplicate();
+        view.position(regionOffset);
+        view.get(dest, offset, len);
+        return true;
+    }
+
+    /**
+     * Notify the mapping that the file has been written up to the given
+     * position, so regions which became complete can be mapped.
+     *
+     * @param position end position of the last write
+     */
+    public synchronized void written(long position) {
+        if (position > fileSize)
+            {fileSize = position;}
+    }
+
+    /**
+     * Release all mapped regions. The regions are unmapped by the
+     * garbage collector once they are no longer referenced.
+     */
+    public synchronized void close() {
+        regions = new MappedByteBuffer[0];
+    }
+
+    private MappedByteBuffer getRegion(int regionNum) throws IOException {
+        if (regionNum < regions.length && regions[regionNum] != null)
+            {return regions[regionNum];}
+        final long start = (long) regionNum * regionSize;
+        if (start + regionSize > fileSize)
+            {return null;}
+        if (regionNum >= regions.length) {
+            final MappedByteBuffer[] t = new MappedByteBuffer[Math.max(regionNum + 1, regions.length * 2)];
+            System.arraycopy(regions, 0, t, 0, regions.length);
+            regions = t;
+        }
+        regions[regionNum] = channel.map(FileChannel.MapMode.READ_ONLY, start, regionSize);
+        return regions[regionNum];
+    }
+}
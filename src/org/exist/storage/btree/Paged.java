@@ -75,17 +75,22 @@ package org.exist.storage.btree;
 import org.apache.log4j.Logger;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.journal.Lsn;
+import org.exist.storage.lock.Lock;
 import org.exist.util.ByteConversion;
+import org.exist.util.LockException;
+import org.exist.util.Lockable;
 import org.exist.xquery.Constants;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  *  Paged is a paged file foundation that is used by the BTree class and
@@ -125,7 +130,29 @@ public abstract class Paged {
 
     protected static int PAGE_SIZE = 4096;
 
+    /** number of pages copied at once by {@link #backupToStream(OutputStream)} */
+    private final static int BACKUP_CHUNK_PAGES = 64;
+
+    public final static String CONFIGURATION_PAGE_IO_ELEMENT = "page-io";
+    public final static String CONFIGURATION_PAGE_IO_FILE_ELEMENT = "file";
+    public final static String PAGE_IO_DEFAULT_ATTRIBUTE = "default";
+    public final static String PAGE_IO_NAME_ATTRIBUTE = "name";
+    public final static String PAGE_IO_MODE_ATTRIBUTE = "mode";
+    public final static String PROPERTY_PAGE_IO_DEFAULT = "db-connection.page-io.default";
+    public final static String PROPERTY_PAGE_IO_FILES = "db-connection.page-io.files";
+
+    /** Read and write pages with seek/read/write calls on a RandomAccessFile (default) */
+    public final static String IO_MODE_RAF = "raf";
+    /** Read and write pages with positional FileChannel calls */
+    public final static String IO_MODE_CHANNEL = "channel";
+    /** Read pages from memory-mapped regions of the file, write through the FileChannel */
+    public final static String IO_MODE_MMAP = "mmap";
+
     private RandomAccessFile raf;
+    private FileChannel channel = null;
+    private MappedFileRegions mappedRegions = null;
+    private String ioMode = IO_MODE_RAF;
+    private final BrokerPool pool;
     private File file;
     private FileHeader fileHeader;
     private boolean readOnly = false;
@@ -135,6 +162,7 @@ public abstract class Paged {
     private byte[] tempHeaderData = null;
 	
     public Paged(BrokerPool pool) {
+        this.pool = pool;
         fileHeader = createFileHeader(pool.getPageSize());
         tempPageData = new byte[fileHeader.pageSize];
         tempHeaderData = new byte[fileHeader.pageHeaderSize];
@@ -162,6 +190,8 @@ public abstract class Paged {
      */
     public boolean close() throws DBException {
         try {
+            if (mappedRegions != null)
+                {mappedRegions.close();}
             raf.close();
         } catch (final IOException e) {
             throw new DBException("an error occurred while closing database file: " + e.getMessage());
@@ -221,15 +251,42 @@ public abstract class Paged {
      * Backup the entire contents of the underlying file to 
      * an output stream.
      * 
+     * The file is read with positional reads, so the backup can run while the
+     * file is in use. If the file is {@link Lockable}, each chunk of pages is read
+     * while holding a read lock, so no page is copied while it is being written.
+     * 
      * @param os
      * @throws IOException
      */
     public void backupToStream(OutputStream os) throws IOException {
-        raf.seek(0);
-        final byte[] buf = new byte[4096];
-        int len;
-        while ((len = raf.read(buf)) > 0) {
-            os.write(buf, 0, len);
+        final FileChannel fc = raf.getChannel();
+        final Lock lock = this instanceof Lockable ? ((Lockable) this).getLock() : null;
+        final ByteBuffer buf = ByteBuffer.allocate(BACKUP_CHUNK_PAGES * fileHeader.getPageSize());
+        long position = 0;
+        while (true) {
+            buf.clear();
+            if (lock != null) {
+                try {
+                    lock.acquire(Lock.READ_LOCK);
+                } catch (final LockException e) {
+                    throw new IOException("Failed to acquire lock on " + file.getName(), e);
+                }
+            }
+            try {
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, position + buf.position()) < 0)
+                        {break;}
+                }
+            } finally {
+                if (lock != null)
+                    {lock.release(Lock.READ_LOCK);}
+            }
+            if (buf.position() == 0)
+                {break;}
+            os.write(buf.array(), 0, buf.position());
+            position += buf.position();
+            if (buf.hasRemaining())
+                {break;}
         }
     }
 
@@ -258,6 +315,8 @@ public abstract class Paged {
      */
     public void closeAndRemove() {
         try {
+            if (mappedRegions != null)
+                {mappedRegions.close();}
             raf.close();
         } catch (final IOException e) {
             //TODO : forward the exception ? -pb
@@ -405,6 +464,85 @@ public abstract class Paged {
             LOG.warn("An exception occured while opening database file " +
                 file.getAbsolutePath() + ": " + e.getMessage(), e);
         }
+        if (raf != null)
+            {setIOMode(getConfiguredIOMode(file.getName()));}
+    }
+
+    /**
+     * Returns the I/O mode used to access the pages of this file: one of
+     * {@link #IO_MODE_RAF}, {@link #IO_MODE_CHANNEL} or {@link #IO_MODE_MMAP}.
+     */
+    public final String getIOMode() {
+        return ioMode;
+    }
+
+    private String getConfiguredIOMode(String fileName) {
+        if (pool == null || pool.getConfiguration() == null)
+            {return IO_MODE_RAF;}
+        final Map<?, ?> files = (Map<?, ?>) pool.getConfiguration().getProperty(PROPERTY_PAGE_IO_FILES);
+        if (files != null && files.get(fileName) != null)
+            {return (String) files.get(fileName);}
+        final String mode = (String) pool.getConfiguration().getProperty(PROPERTY_PAGE_IO_DEFAULT);
+        return mode == null ? IO_MODE_RAF : mode;
+    }
+
+    private void setIOMode(String mode) {
+        if (IO_MODE_CHANNEL.equals(mode) || IO_MODE_MMAP.equals(mode)) {
+            channel = raf.getChannel();
+            if (IO_MODE_MMAP.equals(mode)) {
+                try {
+                    mappedRegions = new MappedFileRegions(channel, MappedFileRegions.DEFAULT_REGION_SIZE);
+                } catch (final IOException e) {
+                    LOG.warn("Failed to memory map " + file.getName() + ". Falling back to channel I/O: " +
+                        e.getMessage(), e);
+                    mode = IO_MODE_CHANNEL;
+                }
+            }
+            ioMode = mode;
+            LOG.debug("Using " + ioMode + " page I/O for " + file.getName());
+        } else if (!IO_MODE_RAF.equals(mode)) {
+            LOG.warn("Unknown page I/O mode for " + file.getName() + ": " + mode + ". Using " + IO_MODE_RAF);
+        }
+    }
+
+    /**
+     * Read len bytes starting at the given file position into buf. Depending
+     * on the I/O mode, the data is copied from a memory-mapped region of the file,
+     * read with a positional read on the file channel or read through the
+     * RandomAccessFile.
+     */
+    private void readAt(byte[] buf, int len, long position) throws IOException {
+        if (channel == null) {
+            if (raf.getFilePointer() != position)
+                {raf.seek(position);}
+            raf.read(buf, 0, len);
+            return;
+        }
+        if (mappedRegions != null && mappedRegions.read(buf, 0, len, position))
+            {return;}
+        final ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0)
+                {break;}
+        }
+    }
+
+    /**
+     * Write len bytes of buf at the given file position.
+     */
+    private void writeAt(byte[] buf, int len, long position) throws IOException {
+        if (channel == null) {
+            if (raf.getFilePointer() != position)
+                {raf.seek(position);}
+            raf.write(buf, 0, len);
+            return;
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) {
+            channel.write(bb, position + bb.position());
+        }
+        if (mappedRegions != null)
+            {mappedRegions.written(position + len);}
     }
 
     /**
@@ -683,8 +821,7 @@ public abstract class Paged {
         }
 
         public final synchronized void read() throws IOException {
-            raf.seek(0);
-            raf.read(buf);
+            readAt(buf, buf.length, 0);
             read(buf);
             calculateWorkSize();
             dirty = false;
@@ -820,9 +957,8 @@ public abstract class Paged {
         }
 
         public final synchronized void write() throws IOException {
-            raf.seek(0);
             write(buf);
-            raf.write(buf);
+            writeAt(buf, buf.length, 0);
             dirty = false;
         }
 
@@ -917,16 +1053,13 @@ public abstract class Paged {
 
         public byte[] read() throws IOException {
             try {
-                if (raf.getFilePointer() != offset) {
-                    raf.seek(offset);
-                }
                 Arrays.fill(tempHeaderData, (byte)0);
-                raf.read(tempHeaderData);
+                readAt(tempHeaderData, tempHeaderData.length, offset);
                 // Read in the header
                 header.read(tempHeaderData, 0);
                 // Read the working data
                 final byte[] workData = new byte[header.dataLen];
-                raf.read(workData);
+                readAt(workData, workData.length, offset + tempHeaderData.length);
                 return workData;
             } catch(final Exception e) {
                 LOG.warn("error while reading page: " + getPageInfo(), e);
@@ -960,9 +1093,7 @@ public abstract class Paged {
                     System.arraycopy(data, 0, tempPageData, fileHeader.pageHeaderSize, data.length);
                 }
             }
-            if (raf.getFilePointer() != offset)
-                {raf.seek(offset);}
-            raf.write(tempPageData);
+            writeAt(tempPageData, tempPageData.length, offset);
         }
 
         /* (non-Javadoc)
@@ -985,10 +1116,8 @@ public abstract class Paged {
         }
 
         public void dumpPage() throws IOException {
-            if (raf.getFilePointer() != offset)
-                {raf.seek(offset);}
             final byte[] data = new byte[fileHeader.pageSize];
-            raf.read(data);
+            readAt(data, data.length, offset);
             LOG.debug("Contents of page " + pageNum + ": " + hexDump(data));
         }
     }
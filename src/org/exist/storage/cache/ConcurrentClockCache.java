@@ -0,0 +1,554 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exist.storage.CacheManager;
+import org.exist.util.hashtable.Long2ObjectHashMap;
+
+/**
+ * Thread-safe cache implementation which can be shared by concurrent readers
+ * without an external lock.
+ *
+ * The cache is split into a number of segments, selected by the hash of the
+ * key. Each segment has its own lock, so threads accessing different pages
+ * do not block each other. Within a segment, pages are replaced using a clock
+ * algorithm: the clock hand sweeps over the slots, halving the reference count
+ * of each page it passes and replaces the first page whose count has dropped
+ * to 0 and which allows to be unloaded.
+ *
+ * Every segment keeps a small, periodically aged table of access frequencies,
+ * which also remembers pages that have already been replaced. A page
+ * which is loaded again shortly after it was removed thus enters the cache
+ * with a higher reference count and will survive longer than pages which are
+ * read only once (e.g. during a scan). Contrary to a classical admission policy,
+ * new pages are always added: callers expect a page to stay in the cache until
+ * it has been written.
+ *
+ * If the cached objects are btree pages, inner pages are skipped by the clock
+ * hand during the first two rounds, similar to {@link BTreeCache}.
+ *
+ * Resizing the cache (called by the {@link org.exist.storage.CacheManager})
+ * locks all segments and redistributes the pages.
+ */
+public class ConcurrentClockCache implements Cache {
+
+    /** Minimum number of pages in a single segment */
+    public final static int MIN_SEGMENT_SIZE = 32;
+
+    /** Upper limit for the number of segments */
+    public final static int MAX_SEGMENTS = 64;
+
+    private final static int MAX_FREQUENCY = 15;
+
+    private volatile Segment[] segments;
+
+    private volatile int size;
+
+    private final double growthFactor;
+    private final double growthThreshold;
+
+    private final AtomicBoolean resizeRequested = new AtomicBoolean(false);
+
+    private final Object resizeLock = new Object();
+
+    private int hitsOld = -1;
+
+    // hits and misses counted by segments dropped during a resize
+    private volatile int retiredHits = 0;
+    private volatile int retiredMisses = 0;
+
+    private CacheManager cacheManager = null;
+    private String fileName = "unknown";
+
+    private final String type;
+
+    public ConcurrentClockCache(int size, double growthFactor, double growthThreshold, String type) {
+        this.size = size;
+        this.growthFactor = growthFactor;
+        this.growthThreshold = growthThreshold;
+        this.type = type;
+        this.segments = createSegments(size);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void add(Cacheable item) {
+        add(item, 1);
+    }
+
+    public void add(Cacheable item, int initialRefCount) {
+        final long key = item.getKey();
+        boolean replaced;
+        while (true) {
+            final Segment segment = segmentFor(key);
+            segment.lock.lock();
+            try {
+                if (segment.retired)
+                    {continue;}
+                replaced = segment.add(item, initialRefCount);
+            } finally {
+                segment.lock.unlock();
+            }
+            break;
+        }
+        // ask for more memory outside the segment lock: the cache manager
+        // may call back into resize()
+        if (replaced)
+            {checkResize();}
+    }
+
+    public Cacheable get(Cacheable item) {
+        return get(item.getKey());
+    }
+
+    public Cacheable get(long key) {
+        while (true) {
+            final Segment segment = segmentFor(key);
+            segment.lock.lock();
+            try {
+                if (segment.retired)
+                    {continue;}
+                return segment.get(key);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public void remove(Cacheable item) {
+        final long key = item.getKey();
+        while (true) {
+            final Segment segment = segmentFor(key);
+            segment.lock.lock();
+            try {
+                if (segment.retired)
+                    {continue;}
+                segment.remove(key);
+                return;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public boolean flush() {
+        boolean flushed = false;
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].lock.lock();
+            try {
+                flushed |= segs[i].flush();
+            } finally {
+                segs[i].lock.unlock();
+            }
+        }
+        return flushed;
+    }
+
+    public boolean hasDirtyItems() {
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].lock.lock();
+            try {
+                if (segs[i].hasDirtyItems())
+                    {return true;}
+            } finally {
+                segs[i].lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    public int getBuffers() {
+        return size;
+    }
+
+    public int getUsedBuffers() {
+        int used = 0;
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            used += segs[i].used;
+        }
+        return used;
+    }
+
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    public int getHits() {
+        int hits = retiredHits;
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            hits += segs[i].accounting.getHits();
+        }
+        return hits;
+    }
+
+    public int getFails() {
+        int misses = retiredMisses;
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            misses += segs[i].accounting.getMisses();
+        }
+        return misses;
+    }
+
+    public int getThrashing() {
+        int thrashing = 0;
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            thrashing += segs[i].accounting.getThrashing();
+        }
+        return thrashing;
+    }
+
+    /**
+     * Returns the number of segments the cache is currently split into.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public synchronized int getLoad() {
+        final int hits = getHits();
+        if (hitsOld < 0) {
+            hitsOld = hits;
+            return Integer.MAX_VALUE;
+        }
+        final int load = hits - hitsOld;
+        hitsOld = hits;
+        return load;
+    }
+
+    public void setCacheManager(CacheManager manager) {
+        this.cacheManager = manager;
+    }
+
+    public void resize(int newSize) {
+        synchronized (resizeLock) {
+            final Segment[] old = segments;
+            for (int i = 0; i < old.length; i++) {
+                old[i].lock.lock();
+            }
+            try {
+                final List<Cacheable> items = new ArrayList<Cacheable>(size);
+                for (int i = 0; i < old.length; i++) {
+                    if (newSize < size)
+                        {old[i].flush();}
+                    old[i].collect(items);
+                }
+                final Segment[] segs = createSegments(newSize);
+                final int mask = segs.length - 1;
+                for (final Cacheable item : items) {
+                    final Segment segment = segs[indexFor(item.getKey(), mask)];
+                    if (segment.used < segment.capacity)
+                        {segment.insert(item, item.getReferenceCount());}
+                    else
+                        {item.sync(true);}
+                }
+                int hits = 0;
+                int misses = 0;
+                for (int i = 0; i < old.length; i++) {
+                    old[i].retired = true;
+                    hits += old[i].accounting.getHits();
+                    misses += old[i].accounting.getMisses();
+                }
+                this.retiredHits += hits;
+                this.retiredMisses += misses;
+                this.size = newSize;
+                this.segments = segs;
+            } finally {
+                for (int i = old.length - 1; i >= 0; i--) {
+                    old[i].lock.unlock();
+                }
+            }
+        }
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    private void checkResize() {
+        if (growthFactor <= 1.0 || cacheManager == null)
+            {return;}
+        boolean needed = false;
+        final Segment[] segs = segments;
+        for (int i = 0; i < segs.length && !needed; i++) {
+            needed = segs[i].resizeNeeded;
+        }
+        // only one thread at a time should bother the cache manager
+        if (needed && resizeRequested.compareAndSet(false, true)) {
+            try {
+                cacheManager.requestMem(this);
+            } finally {
+                resizeRequested.set(false);
+            }
+        }
+    }
+
+    private Segment segmentFor(long key) {
+        final Segment[] segs = segments;
+        return segs[indexFor(key, segs.length - 1)];
+    }
+
+    private static int indexFor(long key, int mask) {
+        return hash(key) & mask;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    private Segment[] createSegments(int cacheSize) {
+        final int maxSegments = Math.min(MAX_SEGMENTS, Runtime.getRuntime().availableProcessors() * 2);
+        int count = Integer.highestOneBit(Math.max(1, Math.min(maxSegments, cacheSize / MIN_SEGMENT_SIZE)));
+        final Segment[] segs = new Segment[count];
+        final int segmentSize = cacheSize / count;
+        final int remainder = cacheSize % count;
+        for (int i = 0; i < count; i++) {
+            segs[i] = new Segment(Math.max(1, segmentSize + (i < remainder ? 1 : 0)));
+        }
+        return segs;
+    }
+
+    /**
+     * A slot in the clock of a segment.
+     */
+    private final static class Entry {
+
+        Cacheable item;
+        final int slot;
+
+        Entry(Cacheable item, int slot) {
+            this.item = item;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A part of the cache, guarded by its own lock. All methods expect
+     * the caller to hold the lock.
+     */
+    private final class Segment {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        final int capacity;
+        Entry[] slots;
+        final Long2ObjectHashMap<Entry> map;
+        int used = 0;
+        int hand = 0;
+
+        // frequency table: 4-bit counters packed into a long[]
+        final long[] frequencies;
+        final int frequencyMask;
+        int additions = 0;
+
+        final Accounting accounting;
+        boolean resizeNeeded = false;
+
+        // set if the segment has been replaced by a resize
+        boolean retired = false;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.slots = new Entry[capacity];
+            this.map = new Long2ObjectHashMap<Entry>(capacity * 2);
+            final int counters = Math.max(64, Integer.highestOneBit(capacity * 4 - 1) << 1);
+            this.frequencies = new long[counters / 16];
+            this.frequencyMask = counters - 1;
+            this.accounting = new Accounting(growthThreshold);
+            this.accounting.setTotalSize(capacity);
+        }
+
+        Cacheable get(long key) {
+            final Entry entry = map.get(key);
+            if (entry == null) {
+                accounting.missesIncrement();
+                return null;
+            }
+            accounting.hitIncrement();
+            return entry.item;
+        }
+
+        /**
+         * Add the item or update its reference count. Returns true if
+         * another page had to be replaced.
+         */
+        boolean add(Cacheable item, int initialRefCount) {
+            final long key = item.getKey();
+            recordAccess(key);
+            final Entry entry = map.get(key);
+            if (entry != null) {
+                if (entry.item != item) {
+                    item.setReferenceCount(entry.item.getReferenceCount());
+                    entry.item = item;
+                }
+                item.incReferenceCount();
+                return false;
+            }
+            final int frequency = frequency(key);
+            final int refCount = frequency > 1 ? initialRefCount + frequency : initialRefCount;
+            if (used < slots.length) {
+                insert(item, refCount);
+                return false;
+            }
+            replace(item, refCount);
+            return true;
+        }
+
+        void insert(Cacheable item, int refCount) {
+            item.setReferenceCount(refCount);
+            int slot = hand;
+            while (slots[slot] != null) {
+                slot = (slot + 1) % slots.length;
+            }
+            final Entry entry = new Entry(item, slot);
+            slots[slot] = entry;
+            map.put(item.getKey(), entry);
+            used++;
+        }
+
+        void replace(Cacheable item, int refCount) {
+            final long key = item.getKey();
+            int scanned = 0;
+            int candidates = 0;
+            while (true) {
+                final int slot = hand;
+                hand = (hand + 1) % slots.length;
+                final Entry entry = slots[slot];
+                ++scanned;
+                final Cacheable cached = entry.item;
+                if (cached.getKey() != key && cached.allowUnload()) {
+                    final boolean inner = cached instanceof BTreeCacheable &&
+                        ((BTreeCacheable) cached).isInnerPage();
+                    if (!inner || scanned > slots.length * 2) {
+                        ++candidates;
+                        final int ref = cached.getReferenceCount();
+                        if (ref < 1) {
+                            cached.sync(true);
+                            map.remove(cached.getKey());
+                            item.setReferenceCount(refCount);
+                            final Entry newEntry = new Entry(item, slot);
+                            slots[slot] = newEntry;
+                            map.put(key, newEntry);
+                            break;
+                        }
+                        cached.setReferenceCount(ref >> 1);
+                    }
+                }
+                if (scanned % slots.length == 0 && scanned > slots.length * 2) {
+                    if (candidates == 0) {
+                        // all pages are locked: temporarily exceed the capacity
+                        LOG.debug(fileName + ": no page can be unloaded. Growing segment.");
+                        grow();
+                        insert(item, refCount);
+                        break;
+                    }
+                    candidates = 0;
+                }
+            }
+            accounting.replacedPage(item);
+            resizeNeeded = accounting.resizeNeeded();
+        }
+
+        void remove(long key) {
+            final Entry entry = map.remove(key);
+            if (entry == null)
+                {return;}
+            slots[entry.slot] = null;
+            used--;
+        }
+
+        boolean flush() {
+            boolean flushed = false;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null && slots[i].item.isDirty()) {
+                    flushed |= slots[i].item.sync(false);
+                }
+            }
+            return flushed;
+        }
+
+        boolean hasDirtyItems() {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null && slots[i].item.isDirty())
+                    {return true;}
+            }
+            return false;
+        }
+
+        void collect(List<Cacheable> items) {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null)
+                    {items.add(slots[i].item);}
+            }
+        }
+
+        private void grow() {
+            final Entry[] t = new Entry[slots.length + 1];
+            System.arraycopy(slots, 0, t, 0, slots.length);
+            hand = slots.length;
+            slots = t;
+        }
+
+        // the low bits of the hash select the segment, so use the high bits here
+        private int frequencyIndex(long key) {
+            return Integer.rotateRight(hash(key), 16) & frequencyMask;
+        }
+
+        private void recordAccess(long key) {
+            final int index = frequencyIndex(key);
+            final int word = index >>> 4;
+            final int shift = (index & 15) << 2;
+            if (((frequencies[word] >>> shift) & 0xF) < MAX_FREQUENCY)
+                {frequencies[word] += 1L << shift;}
+            // age the counters once enough samples have been collected
+            if (++additions >= capacity * 10) {
+                for (int i = 0; i < frequencies.length; i++) {
+                    frequencies[i] = (frequencies[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions = 0;
+            }
+        }
+
+        private int frequency(long key) {
+            final int index = frequencyIndex(key);
+            return (int) ((frequencies[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+        }
+    }
+}
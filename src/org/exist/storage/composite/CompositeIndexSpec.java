@@ -0,0 +1,312 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.storage.composite;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.exist.EXistException;
+import org.exist.dom.QName;
+import org.exist.storage.ElementValue;
+import org.exist.storage.ValueIndexFactory;
+import org.exist.util.ByteConversion;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.UTF8;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.AbstractDateTimeValue;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.NumericValue;
+import org.exist.xquery.value.Type;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Configuration of a composite range index, which indexes the values of several
+ * attributes or child elements of an element together:
+ *
+ * <pre>
+ * &lt;composite qname="order"&gt;
+ *     &lt;field qname="@customer" type="xs:string"/&gt;
+ *     &lt;field qname="date" type="xs:date"/&gt;
+ * &lt;/composite&gt;
+ * </pre>
+ *
+ * Each field is encoded into a byte sequence which sorts in the same order as
+ * the values, so a key made of the fields sorts by the first field, then by the
+ * second and so on. A lookup can thus compare the first fields for equality and
+ * the next one by range in one scan of the index.
+ *
+ * Numeric fields are stored as xs:double. If an element has no value for a field,
+ * or the value cannot be converted to the type of the field, the field is stored as
+ * missing, which sorts before all values.
+ */
+public class CompositeIndexSpec {
+
+    public final static String COMPOSITE_ELEMENT = "composite";
+    public final static String FIELD_ELEMENT = "field";
+    public final static String QNAME_ATTRIBUTE = "qname";
+    public final static String TYPE_ATTRIBUTE = "type";
+
+    /** Marks a field without a value */
+    public final static byte MISSING = 0;
+    /** Precedes the encoded value of a field */
+    public final static byte PRESENT = 1;
+
+    // longer strings are truncated, the truncated key still sorts correctly
+    private final static int MAX_STRING_LENGTH = 256;
+
+    private final QName qname;
+    private final QName fields[];
+    private final int types[];
+
+    public CompositeIndexSpec(Map<String, String> namespaces, Element config) throws DatabaseConfigurationException {
+        qname = parseQName(namespaces, config.getAttribute(QNAME_ATTRIBUTE));
+        if (qname.getNameType() != ElementValue.ELEMENT)
+            {throw new DatabaseConfigurationException("Composite index must be defined on an element: " +
+                config.getAttribute(QNAME_ATTRIBUTE));}
+        int count = 0;
+        final NodeList children = config.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (isField(children.item(i)))
+                {count++;}
+        }
+        if (count == 0)
+            {throw new DatabaseConfigurationException("Composite index on " + qname + " does not define any field");}
+        fields = new QName[count];
+        types = new int[count];
+        count = 0;
+        for (int i = 0; i < children.getLength(); i++) {
+            final Node child = children.item(i);
+            if (!isField(child))
+                {continue;}
+            final Element field = (Element) child;
+            fields[count] = parseQName(namespaces, field.getAttribute(QNAME_ATTRIBUTE));
+            types[count] = parseType(field.getAttribute(TYPE_ATTRIBUTE));
+            count++;
+        }
+    }
+
+    private static boolean isField(Node node) {
+        return node.getNodeType() == Node.ELEMENT_NODE && FIELD_ELEMENT.equals(node.getLocalName());
+    }
+
+    private static QName parseQName(Map<String, String> namespaces, String name) throws DatabaseConfigurationException {
+        if (name == null || name.length() == 0)
+            {throw new DatabaseConfigurationException("Composite index: missing attribute " + QNAME_ATTRIBUTE);}
+        boolean isAttribute = false;
+        if (name.startsWith("@")) {
+            isAttribute = true;
+            name = name.substring(1);
+        }
+        try {
+            final String prefix = QName.extractPrefix(name);
+            final String localName = QName.extractLocalName(name);
+            String namespaceURI = "";
+            if (prefix != null) {
+                namespaceURI = namespaces.get(prefix);
+                if (namespaceURI == null)
+                    {throw new DatabaseConfigurationException("Composite index: no namespace defined for prefix: " +
+                        prefix);}
+            }
+            final QName qn = new QName(localName, namespaceURI, prefix);
+            if (isAttribute)
+                {qn.setNameType(ElementValue.ATTRIBUTE);}
+            return qn;
+        } catch (final IllegalArgumentException e) {
+            throw new DatabaseConfigurationException("Composite index: " + e.getMessage(), e);
+        }
+    }
+
+    private static int parseType(String typeStr) throws DatabaseConfigurationException {
+        int type;
+        try {
+            type = Type.getType(typeStr);
+        } catch (final XPathException e) {
+            throw new DatabaseConfigurationException("Composite index: unknown type: " + typeStr);
+        }
+        if (Type.subTypeOf(type, Type.STRING))
+            {return Type.STRING;}
+        if (Type.subTypeOf(type, Type.NUMBER))
+            {return Type.DOUBLE;}
+        if (type == Type.DATE || type == Type.DATE_TIME)
+            {return type;}
+        throw new DatabaseConfigurationException("Composite index: unsupported field type: " + typeStr);
+    }
+
+    /**
+     * Returns the name of the elements indexed.
+     */
+    public QName getQName() {
+        return qname;
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * Returns the name of the attribute or child element providing the value of the
+     * given field.
+     */
+    public QName getField(int field) {
+        return fields[field];
+    }
+
+    /**
+     * Returns the type in which the values of the field are stored: xs:string,
+     * xs:double, xs:date or xs:dateTime.
+     */
+    public int getType(int field) {
+        return types[field];
+    }
+
+    /**
+     * Returns the position of the field with the given name or -1.
+     */
+    public int getFieldIndex(QName name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].compareTo(name) == 0)
+                {return i;}
+        }
+        return -1;
+    }
+
+    /**
+     * Check if a general comparison of the field with a value of the given type
+     * compares the values as the index does: strings are compared with strings,
+     * numbers with numbers and dates with dates.
+     */
+    public boolean isComparable(int field, int keyType) {
+        switch (types[field]) {
+            case Type.STRING:
+                return Type.subTypeOf(keyType, Type.STRING) || keyType == Type.UNTYPED_ATOMIC ||
+                    keyType == Type.ANY_URI;
+            case Type.DOUBLE:
+                return Type.subTypeOf(keyType, Type.NUMBER);
+            default:
+                return keyType == types[field];
+        }
+    }
+
+    /**
+     * Encode the value of a field. The value is converted to the type of the field.
+     *
+     * @return the encoded value, starting with {@link #PRESENT}, or null if the value
+     *  cannot be stored in the index
+     */
+    public byte[] encode(int field, AtomicValue value) {
+        try {
+            final AtomicValue v = value.convertTo(types[field]);
+            switch (types[field]) {
+                case Type.STRING: {
+                    String s = v.getStringValue();
+                    if (s.length() > MAX_STRING_LENGTH) {
+                        int end = MAX_STRING_LENGTH;
+                        if (Character.isHighSurrogate(s.charAt(end - 1)))
+                            {end--;}
+                        s = s.substring(0, end);
+                    }
+                    // the encoding of a string never contains a 0 byte, which is
+                    // thus used as terminator
+                    final byte data[] = new byte[UTF8.encoded(s) + 2];
+                    data[0] = PRESENT;
+                    UTF8.encode(s, data, 1);
+                    data[data.length - 1] = 0;
+                    return data;
+                }
+                case Type.DOUBLE: {
+                    double d = ((NumericValue) v).getDouble();
+                    if (Double.isNaN(d))
+                        {return null;}
+                    if (d == 0)
+                        {d = 0.0;}   // -0.0 equals 0.0
+                    long bits = Double.doubleToLongBits(d);
+                    bits = bits < 0 ? ~bits : bits ^ 0x8000000000000000L;
+                    final byte data[] = new byte[9];
+                    data[0] = PRESENT;
+                    ByteConversion.longToByte(bits, data, 1);
+                    return data;
+                }
+                default: {
+                    final byte data[] = ValueIndexFactory.serialize((AbstractDateTimeValue) v, 1);
+                    data[0] = PRESENT;
+                    return data;
+                }
+            }
+        } catch (final XPathException e) {
+            return null;
+        } catch (final EXistException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the smallest key which is greater than all keys starting with the
+     * given prefix.
+     */
+    public static byte[] successor(byte prefix[]) {
+        final byte key[] = Arrays.copyOf(prefix, prefix.length);
+        for (int i = key.length - 1; i >= 0; i--) {
+            if (key[i] != (byte) 0xFF) {
+                key[i]++;
+                return Arrays.copyOf(key, i + 1);
+            }
+        }
+        // all bytes are 0xFF: there is no key starting with something greater
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CompositeIndexSpec))
+            {return false;}
+        final CompositeIndexSpec other = (CompositeIndexSpec) obj;
+        if (qname.compareTo(other.qname) != 0 || fields.length != other.fields.length ||
+                !Arrays.equals(types, other.types))
+            {return false;}
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].compareTo(other.fields[i]) != 0)
+                {return false;}
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + Arrays.hashCode(types);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder("composite ");
+        buf.append(qname).append(" (");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                {buf.append(", ");}
+            if (fields[i].getNameType() == ElementValue.ATTRIBUTE)
+                {buf.append('@');}
+            buf.append(fields[i]).append(' ').append(Type.getTypeName(types[i]));
+        }
+        return buf.append(')').toString();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.storage.composite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+import org.exist.backup.RawDataBackup;
+import org.exist.indexing.AbstractIndex;
+import org.exist.indexing.IndexWorker;
+import org.exist.indexing.RawBackupSupport;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.index.BTreeStore;
+import org.exist.storage.lock.Lock;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.LockException;
+import org.w3c.dom.Element;
+
+/**
+ * A range index on several values of an element, e.g. an attribute and a child
+ * element, which are defined by {@link CompositeIndexSpec} in the collection
+ * configuration. The keys of all fields are concatenated into one key of a
+ * {@link BTreeStore}, so a query comparing several fields can be answered
+ * with a single range scan.
+ *
+ * The index is used by the {@link org.exist.xquery.pragmas.Optimize} pragma,
+ * see {@link org.exist.xquery.CompositeRangeLookup}.
+ */
+public class CompositeRangeIndex extends AbstractIndex implements RawBackupSupport {
+
+    protected static final Logger LOG = Logger.getLogger(CompositeRangeIndex.class);
+
+    public final static String ID = CompositeRangeIndex.class.getName();
+    public static final String FILE_NAME = "composite.dbx";
+    public static final byte COMPOSITE_INDEX_ID = 0x11;
+    public static final double DEFAULT_KEY_THRESHOLD = 0.01;
+
+    protected BTreeStore btree;
+
+    private File dataFile;
+
+    public CompositeRangeIndex() {
+        //Nothing to do
+    }
+
+    @Override
+    public void configure(BrokerPool pool, String dataDir, Element config) throws DatabaseConfigurationException {
+        super.configure(pool, dataDir, config);
+        String fileName = FILE_NAME;
+        if (config != null && config.hasAttribute("file"))
+            {fileName = config.getAttribute("file");}
+        dataFile = new File(dataDir, fileName);
+    }
+
+    @Override
+    public void open() throws DatabaseConfigurationException {
+        LOG.debug("Creating '" + dataFile.getName() + "'...");
+        try {
+            btree = new BTreeStore(pool, COMPOSITE_INDEX_ID, false,
+                    dataFile, pool.getCacheManager(), DEFAULT_KEY_THRESHOLD);
+        } catch (final DBException e) {
+            LOG.error("Failed to initialize composite index: " + e.getMessage(), e);
+            throw new DatabaseConfigurationException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws DBException {
+        btree.close();
+        btree = null;
+    }
+
+    @Override
+    public void sync() throws DBException {
+        if (btree == null)
+            {return;}
+        final Lock lock = btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            btree.flush();
+        } catch (final LockException e) {
+            LOG.warn("Failed to acquire lock for '" + btree.getFile().getName() + "'", e);
+        } catch (final DBException e) {
+            LOG.error(e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    @Override
+    public void remove() throws DBException {
+        btree.closeAndRemove();
+    }
+
+    @Override
+    public IndexWorker getWorker(DBBroker broker) {
+        return new CompositeRangeIndexWorker(this, broker);
+    }
+
+    @Override
+    public boolean checkIndex(DBBroker broker) {
+        return false;
+    }
+
+    @Override
+    public void backupToArchive(RawDataBackup backup) throws IOException {
+        final OutputStream os = backup.newEntry(btree.getFile().getName());
+        btree.backupToStream(os);
+        backup.closeEntry();
+    }
+}
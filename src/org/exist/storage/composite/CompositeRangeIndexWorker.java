@@ -0,0 +1,554 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.storage.composite;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.AttrImpl;
+import org.exist.dom.CharacterDataImpl;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.ElementImpl;
+import org.exist.dom.NewArrayNodeSet;
+import org.exist.dom.NodeProxy;
+import org.exist.dom.NodeSet;
+import org.exist.dom.QName;
+import org.exist.dom.StoredNode;
+import org.exist.dom.SymbolTable;
+import org.exist.indexing.AbstractStreamListener;
+import org.exist.indexing.IndexController;
+import org.exist.indexing.IndexWorker;
+import org.exist.indexing.MatchListener;
+import org.exist.indexing.StreamListener;
+import org.exist.numbering.NodeId;
+import org.exist.storage.DBBroker;
+import org.exist.storage.IndexSpec;
+import org.exist.storage.NodePath;
+import org.exist.storage.btree.BTreeCallback;
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.Txn;
+import org.exist.util.ByteConversion;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.LockException;
+import org.exist.util.Occurrences;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.UntypedAtomicValue;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Worker for the {@link CompositeRangeIndex}.
+ *
+ * A key of the index is made of the following parts:
+ *
+ * <pre>
+ * [collection id: 4][spec: 1][local name: 2][namespace: 2][field 1]...[field n][doc id: 4][node id]
+ * </pre>
+ *
+ * where spec is the position of the {@link CompositeIndexSpec} among those defined on
+ * the same element name. The doc id and the number of bits of the node id are stored
+ * in the value pointer, so the node can be read back from the variable length key.
+ *
+ * If a field has several values, e.g. a repeated child element, a key is stored for
+ * every combination of values.
+ */
+public class CompositeRangeIndexWorker implements IndexWorker {
+
+    private static final Logger LOG = Logger.getLogger(CompositeRangeIndexWorker.class);
+
+    // length of collection id, spec, local name and namespace
+    private static final int PREFIX_LENGTH = 9;
+
+    private final CompositeRangeIndex index;
+    private final DBBroker broker;
+
+    private DocumentImpl document = null;
+    private int mode = StreamListener.UNKNOWN;
+    private Map<QName, List<CompositeIndexSpec>> config = null;
+
+    private final List<PendingKey> pending = new ArrayList<PendingKey>();
+    private final CompositeStreamListener listener = new CompositeStreamListener();
+
+    public CompositeRangeIndexWorker(CompositeRangeIndex index, DBBroker broker) {
+        this.index = index;
+        this.broker = broker;
+    }
+
+    @Override
+    public String getIndexId() {
+        return CompositeRangeIndex.ID;
+    }
+
+    @Override
+    public String getIndexName() {
+        return index.getIndexName();
+    }
+
+    @Override
+    public Object configure(IndexController controller, NodeList configNodes, Map<String, String> namespaces)
+            throws DatabaseConfigurationException {
+        Map<QName, List<CompositeIndexSpec>> map = null;
+        for (int i = 0; i < configNodes.getLength(); i++) {
+            final Node node = configNodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE &&
+                    CompositeIndexSpec.COMPOSITE_ELEMENT.equals(node.getLocalName())) {
+                final CompositeIndexSpec spec = new CompositeIndexSpec(namespaces, (Element) node);
+                if (map == null)
+                    {map = new TreeMap<QName, List<CompositeIndexSpec>>();}
+                List<CompositeIndexSpec> specs = map.get(spec.getQName());
+                if (specs == null) {
+                    specs = new ArrayList<CompositeIndexSpec>(2);
+                    map.put(spec.getQName(), specs);
+                }
+                if (specs.size() > Byte.MAX_VALUE)
+                    {throw new DatabaseConfigurationException("Too many composite indexes defined on " +
+                        spec.getQName());}
+                specs.add(spec);
+                if (LOG.isTraceEnabled())
+                    {LOG.trace("Composite index defined: " + spec);}
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the composite indexes configured for the collection.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<QName, List<CompositeIndexSpec>> getConfiguration(DBBroker broker, Collection collection) {
+        final IndexSpec indexConf = collection.getIndexConfiguration(broker);
+        if (indexConf == null)
+            {return null;}
+        return (Map<QName, List<CompositeIndexSpec>>) indexConf.getCustomIndexSpec(CompositeRangeIndex.ID);
+    }
+
+    @Override
+    public void setDocument(DocumentImpl doc) {
+        setDocument(doc, StreamListener.UNKNOWN);
+    }
+
+    @Override
+    public void setDocument(DocumentImpl doc, int mode) {
+        this.document = doc;
+        this.mode = mode;
+        config = getConfiguration(broker, doc.getCollection());
+        listener.reset();
+    }
+
+    @Override
+    public void setMode(int mode) {
+        this.mode = mode;
+    }
+
+    @Override
+    public DocumentImpl getDocument() {
+        return document;
+    }
+
+    @Override
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * The keys of an element are computed from its attributes and children, so
+     * if the element or any of these is modified, the element has to be reindexed.
+     * The modified node itself is checked even if includeSelf is false, as children
+     * may have been added to it.
+     */
+    @Override
+    public StoredNode getReindexRoot(StoredNode node, NodePath path, boolean includeSelf) {
+        if (config == null)
+            {return null;}
+        boolean reindexRequired = false;
+        for (int i = 0; i < path.length(); i++) {
+            if (config.get(path.getComponent(i)) != null) {
+                reindexRequired = true;
+                break;
+            }
+        }
+        if (!reindexRequired)
+            {return null;}
+        StoredNode topMost = null;
+        StoredNode currentNode = node.getNodeType() == Node.ELEMENT_NODE ? node : node.getParentStoredNode();
+        while (currentNode != null && currentNode.getNodeType() == Node.ELEMENT_NODE) {
+            if (config.get(currentNode.getQName()) != null)
+                {topMost = currentNode;}
+            if (currentNode.getDocument().getCollection().isTempCollection() &&
+                    currentNode.getNodeId().getTreeLevel() == 2)
+                {break;}
+            currentNode = currentNode.getParentStoredNode();
+        }
+        return topMost;
+    }
+
+    @Override
+    public StreamListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public MatchListener getMatchListener(DBBroker broker, NodeProxy proxy) {
+        // not applicable to this index
+        return null;
+    }
+
+    @Override
+    public void flush() {
+        if (pending.isEmpty())
+            {return;}
+        final Lock lock = index.btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            for (final PendingKey key : pending) {
+                if (mode == StreamListener.STORE)
+                    {index.btree.addValue(new Value(key.key), key.pointer);}
+                else
+                    {index.btree.removeValue(new Value(key.key));}
+            }
+        } catch (final LockException e) {
+            LOG.warn("Failed to lock composite index: " + e.getMessage(), e);
+        } catch (final Exception e) {
+            LOG.warn("Exception caught while writing to composite index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void removeCollection(Collection collection, DBBroker broker) {
+        if (LOG.isDebugEnabled())
+            {LOG.debug("Dropping composite index for collection " + collection.getURI());}
+        final byte[] fromKey = new byte[4];
+        final byte[] toKey = new byte[4];
+        ByteConversion.intToByteH(collection.getId(), fromKey, 0);
+        ByteConversion.intToByteH(collection.getId() + 1, toKey, 0);
+        final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(toKey));
+        final Lock lock = index.btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            index.btree.remove(query, null);
+        } catch (final LockException e) {
+            LOG.warn("Failed to lock composite index: " + e.getMessage(), e);
+        } catch (final Exception e) {
+            LOG.warn("Exception caught while removing composite index for collection " +
+                collection.getURI() + ": " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    @Override
+    public boolean checkIndex(DBBroker broker) {
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // raw type of the IndexWorker interface
+    public Occurrences[] scanIndex(XQueryContext context, DocumentSet docs, NodeSet contextSet, Map hints) {
+        return new Occurrences[0];
+    }
+
+    /**
+     * Find the elements whose key lies in the given range. The keys passed are the
+     * encoded fields, see {@link CompositeIndexSpec#encode(int, AtomicValue)}.
+     *
+     * @param docs the documents to search
+     * @param contextSet if not null, only elements in the context set are returned
+     * @param spec the index to use, which has to be defined on all collections in docs
+     * @param from the smallest key to return
+     * @param to the key following the largest key to return, or null to return all keys
+     *  greater than from
+     * @return the matching elements
+     */
+    public NodeSet find(DocumentSet docs, NodeSet contextSet, CompositeIndexSpec spec, byte[] from, byte[] to) {
+        final NewArrayNodeSet result = new NewArrayNodeSet();
+        final FindCallback callback = new FindCallback(docs, contextSet, result);
+        final Lock lock = index.btree.getLock();
+        for (final Iterator<Collection> i = docs.getCollectionIterator(); i.hasNext(); ) {
+            final Collection collection = i.next();
+            final byte[] prefix = computePrefix(collection, spec);
+            if (prefix == null)
+                {continue;}
+            final byte[] fromKey = concat(prefix, from);
+            final byte[] toKey = to == null ? CompositeIndexSpec.successor(prefix) : concat(prefix, to);
+            final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(toKey));
+            try {
+                lock.acquire(Lock.READ_LOCK);
+                index.btree.query(query, callback);
+            } catch (final LockException e) {
+                LOG.warn("Failed to lock composite index: " + e.getMessage(), e);
+            } catch (final Exception e) {
+                LOG.error("Error while searching composite index: " + e.getMessage(), e);
+            } finally {
+                lock.release(Lock.READ_LOCK);
+            }
+        }
+        return result;
+    }
+
+    private byte[] computePrefix(Collection collection, CompositeIndexSpec spec) {
+        final Map<QName, List<CompositeIndexSpec>> collectionConfig = getConfiguration(broker, collection);
+        if (collectionConfig == null)
+            {return null;}
+        final List<CompositeIndexSpec> specs = collectionConfig.get(spec.getQName());
+        if (specs == null)
+            {return null;}
+        final int specIdx = specs.indexOf(spec);
+        if (specIdx < 0)
+            {return null;}
+        return computePrefix(collection.getId(), specIdx, spec.getQName());
+    }
+
+    private byte[] computePrefix(int collectionId, int specIdx, QName qname) {
+        final SymbolTable symbols = index.getBrokerPool().getSymbols();
+        final byte[] data = new byte[PREFIX_LENGTH];
+        ByteConversion.intToByteH(collectionId, data, 0);
+        data[4] = (byte) specIdx;
+        ByteConversion.shortToByteH(symbols.getSymbol(qname.getLocalName()), data, 5);
+        ByteConversion.shortToByteH(symbols.getNSSymbol(qname.getNamespaceURI()), data, 7);
+        return data;
+    }
+
+    private static byte[] concat(byte[] prefix, byte[] suffix) {
+        final byte[] data = new byte[prefix.length + suffix.length];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        System.arraycopy(suffix, 0, data, prefix.length, suffix.length);
+        return data;
+    }
+
+    /**
+     * Compute the keys of an element from the collected values of its fields.
+     */
+    private void addKeys(OpenElement element) {
+        final int collectionId = document.getCollection().getId();
+        final long pointer = ((long) document.getDocId() << 32) | element.nodeId.units();
+        for (int s = 0; s < element.specs.size(); s++) {
+            final CompositeIndexSpec spec = element.specs.get(s);
+            final List<AtomicValue> values[] = element.values[s];
+            final List<List<byte[]>> encoded = new ArrayList<List<byte[]>>(values.length);
+            for (int f = 0; f < values.length; f++) {
+                final List<byte[]> fieldKeys = new ArrayList<byte[]>(1);
+                if (values[f] != null) {
+                    for (final AtomicValue value : values[f]) {
+                        final byte[] data = spec.encode(f, value);
+                        if (data != null)
+                            {fieldKeys.add(data);}
+                    }
+                }
+                if (fieldKeys.isEmpty())
+                    {fieldKeys.add(new byte[] { CompositeIndexSpec.MISSING });}
+                encoded.add(fieldKeys);
+            }
+            final byte[] prefix = computePrefix(collectionId, s, spec.getQName());
+            addKeys(prefix, encoded, 0, element.nodeId, pointer);
+        }
+    }
+
+    private void addKeys(byte[] prefix, List<List<byte[]>> encoded, int field, NodeId nodeId, long pointer) {
+        if (field == encoded.size()) {
+            final byte[] key = new byte[prefix.length + 4 + nodeId.size()];
+            System.arraycopy(prefix, 0, key, 0, prefix.length);
+            ByteConversion.intToByteH(document.getDocId(), key, prefix.length);
+            nodeId.serialize(key, prefix.length + 4);
+            pending.add(new PendingKey(key, pointer));
+            return;
+        }
+        for (final byte[] data : encoded.get(field)) {
+            addKeys(concat(prefix, data), encoded, field + 1, nodeId, pointer);
+        }
+    }
+
+    private static class PendingKey {
+
+        final byte[] key;
+        final long pointer;
+
+        PendingKey(byte[] key, long pointer) {
+            this.key = key;
+            this.pointer = pointer;
+        }
+    }
+
+    private class FindCallback implements BTreeCallback {
+
+        private final DocumentSet docs;
+        private final NodeSet contextSet;
+        private final NodeSet result;
+
+        FindCallback(DocumentSet docs, NodeSet contextSet, NodeSet result) {
+            this.docs = docs;
+            this.contextSet = contextSet;
+            this.result = result;
+        }
+
+        @Override
+        public boolean indexInfo(Value value, long pointer) {
+            final byte[] key = value.getData();
+            final int docId = (int) (pointer >>> 32);
+            final int units = (int) pointer;
+            final int nodeIdOffset = key.length - (units + 7) / 8;
+            final DocumentImpl doc = docs.getDoc(docId);
+            if (doc == null)
+                {return true;}
+            final NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromData(units, key, nodeIdOffset);
+            if (contextSet != null) {
+                final NodeProxy contextNode = contextSet.get(doc, nodeId);
+                if (contextNode != null)
+                    {result.add(contextNode);}
+            } else
+                {result.add(new NodeProxy(doc, nodeId, Node.ELEMENT_NODE));}
+            return true;
+        }
+    }
+
+    /**
+     * An element on which a composite index is defined, whose fields are being
+     * collected.
+     */
+    private static class OpenElement {
+
+        final NodeId nodeId;
+        final List<CompositeIndexSpec> specs;
+        final List<AtomicValue> values[][];
+
+        @SuppressWarnings("unchecked")
+        OpenElement(NodeId nodeId, List<CompositeIndexSpec> specs) {
+            this.nodeId = nodeId;
+            this.specs = specs;
+            this.values = (List<AtomicValue>[][]) new List<?>[specs.size()][];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (List<AtomicValue>[]) new List<?>[specs.get(i).getFieldCount()];
+            }
+        }
+
+        boolean isField(QName qname) {
+            for (final CompositeIndexSpec spec : specs) {
+                if (spec.getFieldIndex(qname) > -1)
+                    {return true;}
+            }
+            return false;
+        }
+
+        void addValue(QName qname, AtomicValue value) {
+            for (int s = 0; s < specs.size(); s++) {
+                final int field = specs.get(s).getFieldIndex(qname);
+                if (field < 0)
+                    {continue;}
+                if (values[s][field] == null)
+                    {values[s][field] = new ArrayList<AtomicValue>(1);}
+                values[s][field].add(value);
+            }
+        }
+    }
+
+    /**
+     * A child element providing the value of a field. Its string value is collected
+     * from the text nodes below it.
+     */
+    private static class OpenField {
+
+        final OpenElement owner;
+        final NodeId nodeId;
+        final QName qname;
+        final StringBuilder text = new StringBuilder();
+
+        OpenField(OpenElement owner, NodeId nodeId, QName qname) {
+            this.owner = owner;
+            this.nodeId = nodeId;
+            this.qname = qname;
+        }
+    }
+
+    private class CompositeStreamListener extends AbstractStreamListener {
+
+        private final Stack<OpenElement> elements = new Stack<OpenElement>();
+        private final Stack<OpenField> fields = new Stack<OpenField>();
+
+        void reset() {
+            elements.clear();
+            fields.clear();
+        }
+
+        @Override
+        public void startElement(Txn transaction, ElementImpl element, NodePath path) {
+            if (config != null) {
+                final QName qname = element.getQName();
+                if (!elements.isEmpty()) {
+                    final OpenElement parent = elements.peek();
+                    if (element.getNodeId().isChildOf(parent.nodeId) && parent.isField(qname))
+                        {fields.push(new OpenField(parent, element.getNodeId(), qname));}
+                }
+                final List<CompositeIndexSpec> specs = config.get(qname);
+                if (specs != null)
+                    {elements.push(new OpenElement(element.getNodeId(), specs));}
+            }
+            super.startElement(transaction, element, path);
+        }
+
+        @Override
+        public void attribute(Txn transaction, AttrImpl attrib, NodePath path) {
+            if (config != null && !elements.isEmpty()) {
+                final OpenElement parent = elements.peek();
+                if (attrib.getNodeId().isChildOf(parent.nodeId))
+                    {parent.addValue(attrib.getQName(), new UntypedAtomicValue(attrib.getValue()));}
+            }
+            super.attribute(transaction, attrib, path);
+        }
+
+        @Override
+        public void characters(Txn transaction, CharacterDataImpl text, NodePath path) {
+            for (final OpenField field : fields) {
+                field.text.append(text.getXMLString().toString());
+            }
+            super.characters(transaction, text, path);
+        }
+
+        @Override
+        public void endElement(Txn transaction, ElementImpl element, NodePath path) {
+            if (!elements.isEmpty() && elements.peek().nodeId.equals(element.getNodeId()))
+                {addKeys(elements.pop());}
+            if (!fields.isEmpty() && fields.peek().nodeId.equals(element.getNodeId())) {
+                final OpenField field = fields.pop();
+                field.owner.addValue(field.qname, new UntypedAtomicValue(field.text.toString()));
+            }
+            super.endElement(transaction, element, path);
+        }
+
+        @Override
+        public IndexWorker getWorker() {
+            return CompositeRangeIndexWorker.this;
+        }
+    }
+}
@@ -29,6 +29,9 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -59,7 +62,6 @@ import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.cache.Cache;
 import org.exist.storage.cache.Cacheable;
-import org.exist.storage.cache.LRUCache;
 import org.exist.storage.journal.LogEntryTypes;
 import org.exist.storage.journal.Loggable;
 import org.exist.storage.journal.Lsn;
@@ -120,6 +122,11 @@ public class DOMFile extends BTree implements Lockable {
     public static final String FILE_NAME = "dom.dbx";
     public static final String  CONFIG_KEY_FOR_FILE = "db-connection.dom";
 
+    public static final String COMPRESSION_ATTRIBUTE = "domCompression";
+    public static final String PROPERTY_COMPRESSION = "db-connection.dom-compression";
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
     public static final int LENGTH_TID = 2; //sizeof short
     public static final int LENGTH_DATA_LENGTH = 2; //sizeof short
     public static final int LENGTH_LINK = 8; //sizeof long
@@ -171,6 +178,10 @@ public class DOMFile extends BTree implements Lockable {
     //Data length for overflow pages
     public final static short OVERFLOW = 0;
 
+    //Compression flags stored in the page header
+    public final static byte PAGE_UNCOMPRESSED = 0;
+    public final static byte PAGE_DEFLATED = 1;
+
     public final static long DATA_SYNC_PERIOD = 4200;
 
     private final Cache dataCache;
@@ -187,15 +198,36 @@ public class DOMFile extends BTree implements Lockable {
 
     private final AddValueLoggable addValueLog = new AddValueLoggable();
 
+    /*
+     * Page compression: if enabled, the data section of a page is deflated
+     * before it is written to disk. Pages in the cache are always kept
+     * uncompressed, so the journal and all page operations continue
+     * to work on the plain page layout.
+     */
+    private final boolean compressPages;
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+    private byte[] compressBuffer = null;
+    private long pagesCompressed = 0;
+    private long bytesBeforeCompression = 0;
+    private long bytesAfterCompression = 0;
+
     public DOMFile(BrokerPool pool, byte id, String dataDir, Configuration config) throws DBException {
         super(pool, id, true, pool.getCacheManager(), 0.01);
         lock = new ReentrantReadWriteLock(getFileName());
         fileHeader = (BTreeFileHeader)getFileHeader();
         fileHeader.setPageCount(0);
         fileHeader.setTotalCount(0);
-        dataCache = new LRUCache(256, 0.0, 1.0, CacheManager.DATA_CACHE);
+        dataCache = cacheManager.createCache(CacheManager.DATA_CACHE, 256, 0.0, 1.0);
         dataCache.setFileName(getFileName());
         cacheManager.registerCache(dataCache);
+        final String compression = (String) config.getProperty(PROPERTY_COMPRESSION);
+        compressPages = COMPRESSION_DEFLATE.equalsIgnoreCase(compression);
+        if (compressPages) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            compressBuffer = new byte[fileHeader.getWorkSize()];
+            LOG.info("Page compression enabled for " + getFileName());
+        }
         final File file = new File(dataDir + File.separatorChar + getFileName());
         setFile(file);
         if (exists()) {
@@ -306,9 +338,89 @@ public class DOMFile extends BTree implements Lockable {
         if (!isReadOnly())
             {flush();}
         super.close();
+        if (deflater != null)
+            {deflater.end();}
+        if (inflater != null)
+            {inflater.end();}
         return true;
     }
 
+    /**
+     * Returns true if pages are compressed before they are written
+     * to disk.
+     */
+    public boolean isCompressingPages() {
+        return compressPages;
+    }
+
+    /**
+     * Write the data section of a page to disk. If page compression is enabled and
+     * the deflated data is smaller than the original, the compressed bytes are written
+     * and the page header is flagged accordingly. Otherwise the data is written as is.
+     * 
+     * @param page the page to write
+     * @param data the page data
+     * @param len number of bytes in data which need to be compressed. If the page
+     *  is stored uncompressed, the full data array is written.
+     * @throws IOException
+     */
+    private void writePageData(Page page, byte[] data, int len) throws IOException {
+        final DOMFilePageHeader pageHeader = (DOMFilePageHeader) page.getPageHeader();
+        if (compressPages && len > 0) {
+            deflater.reset();
+            deflater.setInput(data, 0, len);
+            deflater.finish();
+            final int compressedLen = deflater.deflate(compressBuffer);
+            if (deflater.finished() && compressedLen < len) {
+                pagesCompressed++;
+                bytesBeforeCompression += len;
+                bytesAfterCompression += compressedLen;
+                pageHeader.setCompression(PAGE_DEFLATED);
+                final byte[] compressed = new byte[compressedLen];
+                System.arraycopy(compressBuffer, 0, compressed, 0, compressedLen);
+                writeValue(page, compressed);
+                return;
+            }
+        }
+        pageHeader.setCompression(PAGE_UNCOMPRESSED);
+        writeValue(page, data);
+    }
+
+    private void writePageData(Page page, Value value) throws IOException {
+        final byte[] data = value.getData();
+        writePageData(page, data, data.length);
+    }
+
+    /**
+     * Read the data section of a page from disk. Compressed pages are inflated
+     * transparently.
+     * 
+     * @param page the page to read
+     * @return the uncompressed page data
+     * @throws IOException
+     */
+    private byte[] readPageData(Page page) throws IOException {
+        final byte[] data = page.read();
+        final DOMFilePageHeader pageHeader = (DOMFilePageHeader) page.getPageHeader();
+        if (pageHeader.getCompression() != PAGE_DEFLATED || data.length == 0)
+            {return data;}
+        if (inflater == null)
+            {inflater = new Inflater();}
+        inflater.reset();
+        inflater.setInput(data);
+        final byte[] buf = new byte[fileHeader.getWorkSize()];
+        try {
+            final int len = inflater.inflate(buf);
+            if (!inflater.finished())
+                {throw new IOException("Compressed data exceeds page size: " + page.getPageInfo());}
+            final byte[] chunk = new byte[len];
+            System.arraycopy(buf, 0, chunk, 0, len);
+            return chunk;
+        } catch (final DataFormatException e) {
+            throw new IOException("Failed to decompress page " + page.getPageInfo() + ": " + e.getMessage());
+        }
+    }
+
     public void closeAndRemove() {
         if (!lock.isLockedForWrite())
             {LOG.warn("The file doesn't own a write lock");}
@@ -1226,6 +1338,8 @@ public class DOMFile extends BTree implements Lockable {
     }
 
     protected void unlinkPages(Page page) throws IOException {
+        // reset the compression flag so the page can be safely reused
+        ((DOMFilePageHeader) page.getPageHeader()).setCompression(PAGE_UNCOMPRESSED);
         super.unlinkPages(page);
     }
 
@@ -1366,6 +1480,14 @@ public class DOMFile extends BTree implements Lockable {
         {buf.append("N/A");}
         else
         {buf.append(nf1.format(dataCache.getHits()/(float)(dataCache.getFails() + dataCache.getHits())));}
+        if (compressPages) {
+            buf.append(" Compressed pages written : ").append(nf2.format(pagesCompressed));
+            buf.append(" Compression ratio : ");
+            if (bytesBeforeCompression == 0)
+                {buf.append("N/A");}
+            else
+                {buf.append(nf1.format(bytesAfterCompression / (float) bytesBeforeCompression));}
+        }
         LOGSTATS.info(buf.toString());
 }
 
@@ -2511,7 +2633,7 @@ public class DOMFile extends BTree implements Lockable {
                     pageHeader.setNextPage(loggable.nextPage);
                 }
                 pageHeader.setLsn(loggable.getLsn());
-                writeValue(page, loggable.value);
+                writePageData(page, loggable.value);
             }
         } catch (final IOException e) {
             LOG.warn("Failed to redo " + loggable.dump() + ": " + e.getMessage(), e);
@@ -2556,7 +2678,7 @@ public class DOMFile extends BTree implements Lockable {
             } else {
                 pageHeader.setNextPage(loggable.nextPage);
             }
-            writeValue(page, loggable.oldData);
+            writePageData(page, loggable.oldData, loggable.oldData.length);
         } catch (final IOException e) {
             LOG.warn("Failed to redo " + loggable.dump() + ": "	+ e.getMessage(), e);
           //TODO : throw exception ? -pb
@@ -2832,12 +2954,14 @@ public class DOMFile extends BTree implements Lockable {
         protected long previousDataPage = Page.NO_PAGE;
         protected short tupleID = ItemId.UNKNOWN_ID;
         protected short records = 0;
+        protected byte compression = PAGE_UNCOMPRESSED;
 
         public final static short LENGTH_RECORDS_COUNT = 2; //sizeof short
         public final static int LENGTH_DATA_LENGTH = 4; //sizeof int
         public final static long LENGTH_NEXT_PAGE_POINTER = 8; //sizeof long
         public final static long LENGTH_PREV_PAGE_POINTER = 8; //sizeof long
         public final static short LENGTH_CURRENT_TID = 2; //sizeof short
+        public final static short LENGTH_COMPRESSION = 1; //sizeof byte
 
         public DOMFilePageHeader() {
             super();
@@ -2904,7 +3028,9 @@ public class DOMFile extends BTree implements Lockable {
             previousDataPage = ByteConversion.byteToLong(data, offset);
             offset += LENGTH_PREV_PAGE_POINTER;
             tupleID = ByteConversion.byteToShort(data, offset);
-            return offset + LENGTH_CURRENT_TID;
+            offset += LENGTH_CURRENT_TID;
+            compression = data[offset];
+            return offset + LENGTH_COMPRESSION;
         }
 
         public int write(byte[] data, int offset) throws IOException {
@@ -2918,7 +3044,9 @@ public class DOMFile extends BTree implements Lockable {
             ByteConversion.longToByte(previousDataPage, data, offset);
             offset += LENGTH_PREV_PAGE_POINTER;
             ByteConversion.shortToByte(tupleID, data, offset);
-            return offset + LENGTH_CURRENT_TID;
+            offset += LENGTH_CURRENT_TID;
+            data[offset] = compression;
+            return offset + LENGTH_COMPRESSION;
         }
 
         public void setDataLength(int dataLength) {
@@ -2940,6 +3068,18 @@ public class DOMFile extends BTree implements Lockable {
         public void setRecordCount(short recs) {
             records = recs;
         }
+
+        /**
+         * Returns the compression method used for the data section
+         * of this page as stored on disk.
+         */
+        public byte getCompression() {
+            return compression;
+        }
+
+        public void setCompression(byte compression) {
+            this.compression = compression;
+        }
     }
 
     protected final class DOMPage implements Cacheable {
@@ -3001,6 +3141,7 @@ public class DOMFile extends BTree implements Lockable {
                 pageHeader.setNextTupleID(ItemId.UNKNOWN_ID);
                 pageHeader.setDataLength(0);
                 pageHeader.setRecordCount((short) 0);
+                pageHeader.setCompression(PAGE_UNCOMPRESSED);
                 if (currentDocument != null)
                     {currentDocument.getMetadata().incPageCount();}
                 return page;
@@ -3124,7 +3265,7 @@ public class DOMFile extends BTree implements Lockable {
 
         private void load(Page page) {
             try {
-                data = page.read();
+                data = readPageData(page);
                 pageHeader = (DOMFilePageHeader) page.getPageHeader();
                 len = pageHeader.getDataLength();
                 if (data.length == 0) {
@@ -3132,6 +3273,12 @@ public class DOMFile extends BTree implements Lockable {
                     len = 0;
                     return;
                 }
+                if (data.length < fileHeader.getWorkSize()) {
+                    // a page which has been stored compressed
+                    final byte[] expanded = new byte[fileHeader.getWorkSize()];
+                    System.arraycopy(data, 0, expanded, 0, data.length);
+                    data = expanded;
+                }
             } catch (final IOException ioe) {
                 LOG.error(ioe);
                 ioe.printStackTrace();
@@ -3146,7 +3293,7 @@ public class DOMFile extends BTree implements Lockable {
                 if (!pageHeader.isDirty())
                     {return;}
                 pageHeader.setDataLength(len);
-                writeValue(page, data);
+                writePageData(page, data, len);
                 setDirty(false);
             } catch (final IOException ioe) {
                 LOG.error(ioe);
@@ -3265,6 +3412,7 @@ public class DOMFile extends BTree implements Lockable {
                 pageHeader.setNextTupleID(ItemId.UNKNOWN_ID);
                 pageHeader.setDataLength(0);
                 pageHeader.setRecordCount((short) 0);
+                pageHeader.setCompression(PAGE_UNCOMPRESSED);
                 if (currentDocument != null)
                     {currentDocument.getMetadata().incPageCount();}
                 return page;
@@ -3304,7 +3452,7 @@ public class DOMFile extends BTree implements Lockable {
                                 nextPageNum , value);
                             writeToLog(loggable, currentPage);
                         }
-                        writeValue(currentPage, value);
+                        writePageData(currentPage, value);
                         pageCount++;
                         currentPage = nextPage;
                         fullbuf=null;
@@ -3339,7 +3487,7 @@ public class DOMFile extends BTree implements Lockable {
                             transaction, currentPage.getPageNum(), nextPageNum , value);
                         writeToLog(loggable, currentPage);
                     }
-                    writeValue(currentPage, value);
+                    writePageData(currentPage, value);
                     pageCount++;
                 }
                 // TODO what if remaining length == 0 ?
@@ -3375,7 +3523,7 @@ public class DOMFile extends BTree implements Lockable {
                             remaining > 0 ? nextPage.getPageNum() : Page.NO_PAGE, value);
                         writeToLog(loggable, currentPage);
                     }
-                    writeValue(currentPage, value);
+                    writePageData(currentPage, value);
                     pos += chunkSize;
                     currentPage = nextPage;
                     ++pageCount;
@@ -3398,7 +3546,7 @@ public class DOMFile extends BTree implements Lockable {
             int count = 0;
             while (page != null) {
                 try {
-                    final byte[] chunk = page.read();
+                    final byte[] chunk = readPageData(page);
                     os.write(chunk);
                     final long nextPageNumber = page.getPageHeader().getNextPage();
                     page = (nextPageNumber == Page.NO_PAGE) ? null : getPage(nextPageNumber);
@@ -3418,7 +3566,7 @@ public class DOMFile extends BTree implements Lockable {
                 LOG.debug("Removing overflow page " + page.getPageNum());
                 final long nextPageNumber = page.getPageHeader().getNextPage();
                 if (isTransactional && transaction != null) {
-                    final byte[] chunk = page.read();
+                    final byte[] chunk = readPageData(page);
                     final Loggable loggable = new RemoveOverflowLoggable(transaction,
                         page.getPageNum(), nextPageNumber, chunk);
                     writeToLog(loggable, page);
@@ -36,7 +36,6 @@ import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.cache.Cache;
 import org.exist.storage.cache.Cacheable;
-import org.exist.storage.cache.LRUCache;
 import org.exist.storage.io.VariableByteArrayInput;
 import org.exist.storage.io.VariableByteInput;
 import org.exist.storage.io.VariableByteOutputStream;
@@ -52,6 +51,7 @@ import org.exist.util.ByteConversion;
 import org.exist.util.FixedByteArray;
 import org.exist.util.IndexCallback;
 import org.exist.util.LockException;
+import org.exist.util.Lockable;
 import org.exist.util.ReadOnlyException;
 import org.exist.util.sanity.SanityCheck;
 import org.exist.xquery.Constants;
@@ -84,7 +84,7 @@ import java.util.Arrays;
  * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
-public class BFile extends BTree {
+public class BFile extends BTree implements Lockable {
 
     protected final static Logger LOGSTATS = Logger.getLogger( NativeBroker.EXIST_STATISTICS_LOGGER );
 
@@ -154,7 +154,7 @@ public class BFile extends BTree {
             double cacheGrowth, double thresholdBTree, double thresholdData) throws DBException {
         super(pool, fileId, transactional, cacheManager, file, thresholdBTree);
         fileHeader = (BFileHeader) getFileHeader();
-        dataCache = new LRUCache(64, cacheGrowth, thresholdData, CacheManager.DATA_CACHE);
+        dataCache = cacheManager.createCache(CacheManager.DATA_CACHE, 64, cacheGrowth, thresholdData);
         dataCache.setFileName(file.getName());
         cacheManager.registerCache(dataCache);
         minFree = PAGE_MIN_FREE;
@@ -6,10 +6,11 @@ import org.exist.storage.btree.BTree;
 import org.exist.storage.btree.DBException;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.util.Lockable;
 
 import java.io.File;
 
-public class BTreeStore extends BTree {
+public class BTreeStore extends BTree implements Lockable {
 
     public final static short FILE_FORMAT_VERSION_ID = 2;
 
@@ -0,0 +1,175 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.index;
+
+import org.exist.dom.DocumentImpl;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.Value;
+import org.exist.storage.txn.Txn;
+import org.exist.util.ByteConversion;
+
+import java.io.File;
+
+/**
+ * Journaled table of the binary content stored by
+ * {@link org.exist.storage.BinaryContentStore} (blobs.dbx). For every binary
+ * resource, it records the digest of the content, and for every digest the
+ * number of resources referring to it.
+ *
+ * Callers must hold the write lock of the file while they change a reference.
+ */
+public class BinaryReferenceStore extends BFile {
+
+    public static final String FILE_NAME = "blobs.dbx";
+
+    public final static byte KEY_TYPE_DOCUMENT = 0;
+    public final static byte KEY_TYPE_CONTENT = 1;
+
+    public BinaryReferenceStore(BrokerPool pool, byte id, String dataDir) throws DBException {
+        super(pool, id, true, new File(dataDir + File.separatorChar + getFileName()),
+                pool.getCacheManager(), 1.25, 0.01, 0.03);
+    }
+
+    public static String getFileName() {
+        return FILE_NAME;
+    }
+
+    @Override
+    public boolean flush() throws DBException {
+        boolean flushed = false;
+        if (!BrokerPool.FORCE_CORRUPTION) {
+            flushed = flushed | dataCache.flush();
+            flushed = flushed | super.flush();
+        }
+        return flushed;
+    }
+
+    /**
+     * Returns the digest of the content of the binary resource, or null if
+     * the resource is not stored by content.
+     */
+    public byte[] getDigest(int docId) {
+        final Value value = get(new DocumentKey(docId));
+        if (value == null)
+            {return null;}
+        // copy the data: the value points into the page, which is changed by the next write
+        final byte[] digest = new byte[value.getLength()];
+        System.arraycopy(value.data(), value.start(), digest, 0, digest.length);
+        return digest;
+    }
+
+    /**
+     * Records the digest of the content of the binary resource.
+     *
+     * @return the digest recorded before, or null
+     */
+    public byte[] setDigest(Txn transaction, int docId, byte[] digest) {
+        final DocumentKey key = new DocumentKey(docId);
+        final byte[] old = getDigest(docId);
+        put(transaction, key, digest, true);
+        return old;
+    }
+
+    /**
+     * Removes the digest recorded for the binary resource.
+     *
+     * @return the digest recorded before, or null
+     */
+    public byte[] removeDigest(Txn transaction, int docId) {
+        final byte[] old = getDigest(docId);
+        if (old == null)
+            {return null;}
+        remove(transaction, new DocumentKey(docId));
+        return old;
+    }
+
+    /**
+     * Returns the number of resources referring to the content.
+     */
+    public int getReferenceCount(byte[] digest) {
+        final Value value = get(new ContentKey(digest));
+        return value == null ? 0 : ByteConversion.byteToInt(value.data(), value.start());
+    }
+
+    /**
+     * Adds a reference to the content.
+     *
+     * @return the new number of references
+     */
+    public int addReference(Txn transaction, byte[] digest) {
+        final int count = getReferenceCount(digest) + 1;
+        final byte[] data = new byte[4];
+        ByteConversion.intToByte(count, data, 0);
+        put(transaction, new ContentKey(digest), data, true);
+        return count;
+    }
+
+    /**
+     * Removes a reference to the content. The entry of the content is removed
+     * together with its last reference.
+     *
+     * @return the number of references left
+     */
+    public int removeReference(Txn transaction, byte[] digest) {
+        final ContentKey key = new ContentKey(digest);
+        final int count = getReferenceCount(digest) - 1;
+        if (count <= 0) {
+            remove(transaction, key);
+            return 0;
+        }
+        final byte[] data = new byte[4];
+        ByteConversion.intToByte(count, data, 0);
+        put(transaction, key, data, true);
+        return count;
+    }
+
+    public static class DocumentKey extends Value {
+
+        public static int OFFSET_TYPE = 0;
+        public static int LENGTH_TYPE = 1; //sizeof byte
+        public static int OFFSET_DOCUMENT_ID = OFFSET_TYPE + LENGTH_TYPE; //1
+
+        public DocumentKey(int docId) {
+            data = new byte[LENGTH_TYPE + DocumentImpl.LENGTH_DOCUMENT_ID];
+            data[OFFSET_TYPE] = KEY_TYPE_DOCUMENT;
+            ByteConversion.intToByte(docId, data, OFFSET_DOCUMENT_ID);
+            len = data.length;
+            pos = OFFSET_TYPE;
+        }
+    }
+
+    public static class ContentKey extends Value {
+
+        public static int OFFSET_TYPE = 0;
+        public static int LENGTH_TYPE = 1; //sizeof byte
+        public static int OFFSET_DIGEST = OFFSET_TYPE + LENGTH_TYPE; //1
+
+        public ContentKey(byte[] digest) {
+            data = new byte[LENGTH_TYPE + digest.length];
+            data[OFFSET_TYPE] = KEY_TYPE_CONTENT;
+            System.arraycopy(digest, 0, data, OFFSET_DIGEST, digest.length);
+            len = data.length;
+            pos = OFFSET_TYPE;
+        }
+    }
+}
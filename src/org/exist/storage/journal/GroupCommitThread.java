@@ -0,0 +1,183 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.journal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes and syncs the journal on behalf of committing transactions. Instead of
+ * forcing the journal to disk for every single commit, committers register the LSN
+ * of their commit record and wait until the journal has been synced up to this LSN.
+ * The thread collects all commits arriving within the configured latency (and
+ * while a sync is in progress) and syncs them with a single call to
+ * {@link java.nio.channels.FileChannel#force(boolean)}.
+ *
+ * Unlike the group-commit option of the {@link org.exist.storage.txn.TransactionManager},
+ * a commit does not return before its commit record is on disk.
+ */
+public class GroupCommitThread extends Thread {
+
+    private final Journal journal;
+
+    /** maximum time in milliseconds a batch waits for further commits */
+    private final long maxLatency;
+
+    // guarded by this
+    private long requestedLsn = Lsn.LSN_INVALID;
+    private long syncedLsn = Lsn.LSN_INVALID;
+    private int pending = 0;
+
+    // used as termination flag, volatile semantics are sufficient
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLong syncTime = new AtomicLong();
+
+    public GroupCommitThread(Journal journal, long maxLatency) {
+        super("JournalGroupCommitThread");
+        this.journal = journal;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * Wait until the journal has been written and synced up to the
+     * given LSN.
+     *
+     * @param lsn the LSN of the commit record
+     */
+    public synchronized void waitForSync(long lsn) {
+        commits.incrementAndGet();
+        if (lsn <= syncedLsn)
+            {return;}
+        if (lsn > requestedLsn)
+            {requestedLsn = lsn;}
+        pending++;
+        notifyAll();
+        boolean interrupted = false;
+        while (lsn > syncedLsn && !shutdown) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            {Thread.currentThread().interrupt();}
+    }
+
+    /**
+     * Shutdown the thread. Pending commits are synced before it exits.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!shutdown) {
+            int batchSize;
+            synchronized (this) {
+                while (requestedLsn <= syncedLsn && !shutdown) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        //Nothing to do
+                    }
+                }
+                if (shutdown)
+                    {break;}
+                // give other committers a chance to join the batch
+                final long deadline = System.currentTimeMillis() + maxLatency;
+                long remaining = maxLatency;
+                while (remaining > 0 && !shutdown) {
+                    try {
+                        wait(remaining);
+                    } catch (final InterruptedException e) {
+                        //Nothing to do
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                batchSize = pending;
+                pending = 0;
+            }
+            sync(batchSize);
+        }
+        // shutdown: sync outstanding commits and release waiting threads
+        final int batchSize;
+        synchronized (this) {
+            batchSize = pending;
+        }
+        if (batchSize > 0)
+            {sync(batchSize);}
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void sync(int batchSize) {
+        final long start = System.currentTimeMillis();
+        final long lsn = journal.syncToLog();
+        syncTime.addAndGet(System.currentTimeMillis() - start);
+        batches.incrementAndGet();
+        long max = maxBatchSize.get();
+        while (batchSize > max && !maxBatchSize.compareAndSet(max, batchSize)) {
+            max = maxBatchSize.get();
+        }
+        synchronized (this) {
+            if (lsn > syncedLsn)
+                {syncedLsn = lsn;}
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of syncs done by this thread.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Returns the number of commits which were synced by this thread, including
+     * commits already covered by a previous sync. Together with {@link #getBatches()},
+     * this gives the average batch size.
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    /**
+     * Returns the total time in milliseconds spent writing and syncing the journal.
+     */
+    public long getSyncTime() {
+        return syncTime.get();
+    }
+}
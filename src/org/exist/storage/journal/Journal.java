@@ -23,16 +23,21 @@ package org.exist.storage.journal;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DateFormat;
 
 import org.apache.log4j.Logger;
 import org.exist.EXistException;
+import org.exist.backup.RawDataBackup;
 import org.exist.config.annotation.ConfigurationClass;
 import org.exist.config.annotation.ConfigurationFieldAsAttribute;
 import org.exist.storage.BrokerPool;
@@ -52,6 +57,7 @@ import org.exist.util.sanity.SanityCheck;
  * 
  * A buffer is used to temporarily buffer journal entries. To guarantee consistency, the buffer will be flushed
  * and the journal is synched after every commit or whenever a db page is written to disk.
+ * If a group commit latency is configured, commits are synced in batches by a {@link GroupCommitThread}.
  * 
  * Each entry has the structure:
  * 
@@ -79,10 +85,12 @@ public class Journal {
     public final static String RECOVERY_SYNC_ON_COMMIT_ATTRIBUTE = "sync-on-commit";
     public final static String RECOVERY_JOURNAL_DIR_ATTRIBUTE = "journal-dir";
     public final static String RECOVERY_SIZE_LIMIT_ATTRIBUTE = "size"; 
+    public final static String RECOVERY_GROUP_COMMIT_LATENCY_ATTRIBUTE = "group-commit-latency";
 
     public final static String PROPERTY_RECOVERY_SIZE_LIMIT = "db-connection.recovery.size-limit";
     public final static String PROPERTY_RECOVERY_JOURNAL_DIR = "db-connection.recovery.journal-dir";
     public final static String PROPERTY_RECOVERY_SYNC_ON_COMMIT = "db-connection.recovery.sync-on-commit";
+    public final static String PROPERTY_RECOVERY_GROUP_COMMIT_LATENCY = "db-connection.recovery.group-commit-latency";
 
     public final static String LOG_FILE_SUFFIX = "log";
     public final static String BAK_FILE_SUFFIX = ".bak";
@@ -116,6 +124,9 @@ public class Journal {
     /** Synching the journal is done by a background thread */
     private FileSyncThread syncThread;
 
+    /** Syncs commits in batches if group commit is enabled, null otherwise */
+    private GroupCommitThread groupCommitThread = null;
+
     /** latch used to synchronize writes to the channel */
     private Object latch = new Object();
 
@@ -155,8 +166,21 @@ public class Journal {
     //TODO: conf.xml refactoring <recovery sync-on-commit=""> => <journal sync-on-commit="">
     private boolean syncOnCommit = true;
 
+    /**
+     * maximum time in milliseconds a commit waits for other commits to be
+     * synced together. A negative value disables group commit.
+     */
+    @ConfigurationFieldAsAttribute("group-commit-latency")
+    private int groupCommitLatency = -1;
+
     private File fsJournalDir;
 
+    /** number of hot backups in progress. Checkpoints are deferred while a backup is running. */
+    private int hotBackups = 0;
+
+    /** the journal file which was current when the first running hot backup started */
+    private int hotBackupFile = -1;
+
     public Journal(BrokerPool pool, File directory) throws EXistException {
         this.dir = directory;
         this.pool = pool;
@@ -174,6 +198,16 @@ public class Journal {
                 {LOG.debug("SyncOnCommit = " + syncOnCommit);}
         }
 
+        final Integer latencyOpt = (Integer) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_GROUP_COMMIT_LATENCY);
+        if (latencyOpt != null)
+            {groupCommitLatency = latencyOpt.intValue();}
+        if (syncOnCommit && groupCommitLatency > -1) {
+            if (LOG.isDebugEnabled())
+                {LOG.debug("Group commit enabled. Max latency: " + groupCommitLatency + "ms");}
+            groupCommitThread = new GroupCommitThread(this, groupCommitLatency);
+            groupCommitThread.start();
+        }
+
         final String logDir = (String) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_JOURNAL_DIR);
         if (logDir != null) {
             File f = new File(logDir);
@@ -283,6 +317,92 @@ public class Journal {
             syncThread.triggerSync();
             lastSyncLsn = currentLsn;
         }
+        checkSizeLimit();
+    }
+
+    /**
+     * Returns true if commits are synced in batches by a
+     * {@link GroupCommitThread}.
+     */
+    public boolean isGroupCommitEnabled() {
+        return groupCommitThread != null;
+    }
+
+    /**
+     * Make sure the journal is written and synced to disk up to the given LSN.
+     * If group commit is enabled, the calling thread waits until the group commit
+     * thread has synced the journal. Otherwise, the buffer is flushed and a sync
+     * is triggered as in {@link #flushToLog(boolean)}.
+     *
+     * The caller should not hold any locks which would prevent other transactions
+     * from committing, otherwise no batches can be formed.
+     *
+     * @param lsn the LSN of the commit record
+     */
+    public void commit(long lsn) {
+        if (groupCommitThread == null)
+            {flushToLog(true);}
+        else
+            {groupCommitThread.waitForSync(lsn);}
+    }
+
+    /**
+     * Flush the current buffer and force the journal to disk. Other than
+     * {@link #flushToLog(boolean, boolean)}, the method returns after the sync has
+     * completed. Called by the {@link GroupCommitThread}.
+     *
+     * @return the LSN up to which the journal has been synced
+     */
+    protected long syncToLog() {
+        final long lsn;
+        synchronized (this) {
+            flushBuffer();
+            lsn = currentLsn;
+            lastSyncLsn = currentLsn;
+        }
+        synchronized (latch) {
+            if (channel != null && channel.isOpen()) {
+                try {
+                    channel.force(false);
+                } catch (final IOException e) {
+                    LOG.warn("Failed to sync journal: " + e.getMessage(), e);
+                }
+            }
+        }
+        checkSizeLimit();
+        return lsn;
+    }
+
+    /**
+     * Returns the number of syncs done by the group commit thread.
+     */
+    public long getGroupCommitBatches() {
+        return groupCommitThread == null ? 0 : groupCommitThread.getBatches();
+    }
+
+    /**
+     * Returns the number of commits synced by the group commit thread.
+     */
+    public long getGroupCommits() {
+        return groupCommitThread == null ? 0 : groupCommitThread.getCommits();
+    }
+
+    /**
+     * Returns the largest number of commits synced together.
+     */
+    public long getMaxGroupCommitBatch() {
+        return groupCommitThread == null ? 0 : groupCommitThread.getMaxBatchSize();
+    }
+
+    /**
+     * Returns the total time in milliseconds the group commit thread spent
+     * writing and syncing the journal.
+     */
+    public long getGroupCommitSyncTime() {
+        return groupCommitThread == null ? 0 : groupCommitThread.getSyncTime();
+    }
+
+    private void checkSizeLimit() {
         try {
             if (channel != null && channel.size() >= journalSizeLimit)
                 {pool.triggerCheckpoint();}
@@ -326,7 +446,11 @@ public class Journal {
      * @param switchLogFiles
      * @throws TransactionException
      */
-    public void checkpoint(long txnId, boolean switchLogFiles) throws TransactionException {
+    public synchronized void checkpoint(long txnId, boolean switchLogFiles) throws TransactionException {
+        if (hotBackups > 0) {
+            LOG.debug("Hot backup in progress. Checkpoint deferred.");
+            return;
+        }
         LOG.debug("Checkpoint reached");
         writeToLog(new Checkpoint(txnId));
         if (switchLogFiles)
@@ -352,6 +476,91 @@ public class Journal {
         }
     }
 
+    /**
+     * Start a hot backup. Until {@link #endHotBackup()} is called, no checkpoints
+     * are written and the journal is not switched to a new file. Recovery
+     * of the backup can thus start at the last checkpoint before the backup began
+     * and redo all changes made while the data files were copied.
+     */
+    public synchronized void beginHotBackup() {
+        if (hotBackups++ == 0)
+            {hotBackupFile = currentFile;}
+    }
+
+    public synchronized void endHotBackup() {
+        if (--hotBackups == 0)
+            {hotBackupFile = -1;}
+    }
+
+    public synchronized boolean isHotBackupRunning() {
+        return hotBackups > 0;
+    }
+
+    /**
+     * Copy the current journal file and the backup files of binary resources
+     * to the archive. Must be called after all data files have been copied,
+     * while the hot backup is still running.
+     *
+     * @param backup the archive
+     * @throws IOException
+     */
+    public void backupToArchive(RawDataBackup backup) throws IOException {
+        final File file;
+        final long length;
+        synchronized (this) {
+            if (hotBackups == 0 || currentFile != hotBackupFile)
+                {throw new IOException("Journal file changed during hot backup");}
+            // binary backup files are created before the log record referring to them:
+            // copy them while no records can be written
+            backupDirectory(backup, fsJournalDir, fsJournalDir.getName());
+            flushToLog(true, true);
+            file = getFile(currentFile);
+            length = inFilePos;
+        }
+        // the journal is only appended to, so the part up to length can be copied without locking
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final OutputStream os = backup.newEntry(file.getName());
+            final FileChannel in = is.getChannel();
+            final WritableByteChannel out = Channels.newChannel(os);
+            long position = 0;
+            while (position < length) {
+                final long count = in.transferTo(position, length - position, out);
+                if (count <= 0)
+                    {break;}
+                position += count;
+            }
+            backup.closeEntry();
+        } finally {
+            is.close();
+        }
+    }
+
+    private void backupDirectory(RawDataBackup backup, File directory, String path) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null)
+            {return;}
+        for (final File file : files) {
+            final String name = path + '/' + file.getName();
+            if (file.isDirectory()) {
+                backupDirectory(backup, file, name);
+            } else {
+                final FileInputStream is = new FileInputStream(file);
+                try {
+                    final OutputStream os = backup.newEntry(name);
+                    final byte[] buf = new byte[4096];
+                    int len;
+                    while ((len = is.read(buf)) > 0) {
+                        os.write(buf, 0, len);
+                    }
+                    backup.closeEntry();
+                } finally {
+                    is.close();
+                }
+            }
+        }
+    }
+
     /**
      * Set the file number of the last file used.
      * 
@@ -490,6 +699,14 @@ public class Journal {
             }
             flushBuffer();
         }
+        if (groupCommitThread != null) {
+            groupCommitThread.shutdown();
+            try {
+                groupCommitThread.join();
+            } catch (final InterruptedException e) {
+                //Nothing to do
+            }
+        }
         fileLock.release();
         syncThread.shutdown();
         try {
@@ -27,10 +27,18 @@ import java.util.List;
  * 5336 paragraphs below them. The second number indicates the size of the largest element,
  * expressed as the number of descendant elements below the node. The largest p node in this
  * distribution has 820 elements below it.
+ *
+ * For attributes and elements containing text, the guide also records the number of values
+ * and an estimate of the number of distinct values, which allows the query optimizer to
+ * estimate the selectivity of a comparison.
  */
 public class DataGuide {
 
-    private final static int BYTES_PER_NODE = 16;
+    /**
+     * Version of the file format. Written as a negative number in place of the
+     * root's child count, so files written by older versions can still be read.
+     */
+    private final static int FORMAT_VERSION = 2;
 
     // the (virtual) root of the tree whose name will always be null.
     private NodeStats root = new NodeStatsRoot();
@@ -59,7 +67,9 @@ public class DataGuide {
         NodeStats current = root;
         for (int i = 0; i < path.length(); i++) {
             final QName qn = path.getComponent(i);
-            if (qn.getNameType() != ElementValue.ELEMENT) {
+            // only the last component of a path may be an attribute
+            if (qn.getNameType() != ElementValue.ELEMENT &&
+                    (qn.getNameType() != ElementValue.ATTRIBUTE || i < path.length() - 1)) {
                 return null;
             }
             current = current.addChild(qn);
@@ -83,12 +93,43 @@ public class DataGuide {
         return other;
     }
 
+    /**
+     * Add an attribute below the element described by the given
+     * node stats and record its value.
+     */
+    public NodeStats addAttribute(NodeStats element, QName qname, String value) {
+        final NodeStats stats = element.addChild(qname);
+        stats.addOccurrence();
+        stats.addValue(value);
+        return stats;
+    }
+
     public int getMaxParentDepth(QName qname) {
         final NodeStats temp = new NodeStats(qname);
         root.getMaxParentDepth(qname, temp);
         return temp.getMaxDepth();
     }
 
+    /**
+     * Returns the total number of nodes with the given name
+     * in all paths of the data guide.
+     */
+    public int getNodeCount(QName qname) {
+        final NodeStats temp = new NodeStats(qname);
+        root.collect(qname, temp);
+        return temp.getNodeCount();
+    }
+
+    /**
+     * Returns the estimated number of distinct values found for nodes with
+     * the given name or -1 if no values were recorded.
+     */
+    public long getDistinctValues(QName qname) {
+        final NodeStats temp = new NodeStats(qname);
+        root.collect(qname, temp);
+        return temp.getDistinctValues();
+    }
+
     public String toString() {
         final List<StringBuilder> paths = new ArrayList<StringBuilder>();
         root.dump(new StringBuilder(), paths);
@@ -106,8 +147,7 @@ public class DataGuide {
     }
 
     public void write(FileChannel fc, SymbolTable symbols) throws IOException {
-        final int nodeCount = root.getSize();
-        final ByteBuffer buffer = ByteBuffer.allocate(nodeCount * BYTES_PER_NODE + 4);
+        final ByteBuffer buffer = ByteBuffer.allocate(root.getStorageSize());
         root.write(buffer, symbols);
         buffer.flip();
         fc.write(buffer);
@@ -117,7 +157,7 @@ public class DataGuide {
         final ByteBuffer buffer = ByteBuffer.allocate((int) fc.size());
         fc.read(buffer);
         buffer.flip();
-        root.read(buffer, symbols);
+        root.read(buffer, symbols, false);
     }
 
     private static class NodeStatsRoot extends NodeStats {
@@ -126,7 +166,18 @@ public class DataGuide {
             super(null);
         }
 
+        protected int getStorageSize() {
+            int s = 8;
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    s += children[i].getStorageSize();
+                }
+            }
+            return s;
+        }
+
         protected void write(ByteBuffer buffer, SymbolTable symbols) {
+            buffer.putInt(-FORMAT_VERSION);
             if (children == null)
                 {buffer.putInt(0);}
             else {
@@ -137,13 +188,16 @@ public class DataGuide {
             }
         }
 
-        protected void read(ByteBuffer buffer, SymbolTable symbols) {
-            final int childCount = buffer.getInt();
+        protected void read(ByteBuffer buffer, SymbolTable symbols, boolean legacy) {
+            int childCount = buffer.getInt();
+            legacy = childCount >= 0;
+            if (!legacy)
+                {childCount = buffer.getInt();}
             if (childCount > 0) {
                 children = new NodeStats[childCount];
                 for (int i = 0; i < childCount; i++) {
                     children[i] = new NodeStats(null);
-                    children[i].read(buffer, symbols);
+                    children[i].read(buffer, symbols, legacy);
                 }
             }
         }
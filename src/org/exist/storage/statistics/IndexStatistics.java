@@ -51,18 +51,33 @@ public class IndexStatistics extends AbstractIndex implements RawBackupSupport {
         return dataGuide.getMaxParentDepth(qname);
     }
 
-    protected void mergeStats(DataGuide other) {
+    /**
+     * Returns the number of nodes with the given name in the database.
+     */
+    public synchronized int getNodeCount(QName qname) {
+        return dataGuide.getNodeCount(qname);
+    }
+
+    /**
+     * Returns the estimated number of distinct values of nodes with the
+     * given name or -1 if no values were recorded.
+     */
+    public synchronized long getDistinctValues(QName qname) {
+        return dataGuide.getDistinctValues(qname);
+    }
+
+    protected synchronized void mergeStats(DataGuide other) {
         dataGuide = other.mergeInto(dataGuide);
     }
 
-    protected void updateStats(DataGuide newGuide) {
+    protected synchronized void updateStats(DataGuide newGuide) {
         dataGuide = newGuide;
     }
 
     public void configure(BrokerPool pool, String dataDir, Element config) throws DatabaseConfigurationException {
         super.configure(pool, dataDir, config);
         String fileName = "stats.dbx";
-        if (config.hasAttribute("file"))
+        if (config != null && config.hasAttribute("file"))
             {fileName = config.getAttribute("file");}
         dataFile = new File(dataDir, fileName);
     }
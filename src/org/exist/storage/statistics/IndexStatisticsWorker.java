@@ -1,6 +1,8 @@
 package org.exist.storage.statistics;
 
 import org.exist.collections.Collection;
+import org.exist.dom.AttrImpl;
+import org.exist.dom.CharacterDataImpl;
 import org.exist.dom.DocumentImpl;
 import org.exist.dom.DocumentSet;
 import org.exist.dom.ElementImpl;
@@ -26,6 +28,7 @@ import org.exist.util.DatabaseConfigurationException;
 import org.exist.util.Occurrences;
 import org.exist.xquery.TerminatedException;
 import org.exist.xquery.XQueryContext;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.xml.stream.XMLStreamException;
@@ -138,6 +141,16 @@ public class IndexStatisticsWorker implements IndexWorker {
                         path.addComponent(qname);
                         final NodeStats nodeStats = perDocGuide.add(path);
                         stack.push(nodeStats);
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            final QName attrQName = broker.getBrokerPool().getSymbols().getQName(Node.ATTRIBUTE_NODE,
+                                reader.getAttributeNamespace(i), reader.getAttributeLocalName(i), "");
+                            perDocGuide.addAttribute(nodeStats, attrQName, reader.getAttributeValue(i));
+                        }
+                        break;
+                    case XMLStreamReader.CHARACTERS:
+                    case XMLStreamReader.CDATA:
+                        if (!stack.isEmpty())
+                            {stack.peek().addValue(reader.getText());}
                         break;
                     case XMLStreamReader.END_ELEMENT:
                         path.removeLastComponent();
@@ -180,6 +193,20 @@ public class IndexStatisticsWorker implements IndexWorker {
             }
         }
 
+        public void attribute(Txn transaction, AttrImpl attrib, NodePath path) {
+            super.attribute(transaction, attrib, path);
+            if (perDocGuide != null && !stack.isEmpty()) {
+                perDocGuide.addAttribute(stack.peek(), attrib.getQName(), attrib.getValue());
+            }
+        }
+
+        public void characters(Txn transaction, CharacterDataImpl text, NodePath path) {
+            super.characters(transaction, text, path);
+            if (perDocGuide != null && !stack.isEmpty()) {
+                stack.peek().addValue(text.getXMLString());
+            }
+        }
+
         public void endElement(Txn transaction, ElementImpl element, NodePath path) {
             super.endElement(transaction, element, path);
             if (perDocGuide != null) {
@@ -3,6 +3,7 @@ package org.exist.storage.statistics;
 import org.exist.Namespaces;
 import org.exist.dom.QName;
 import org.exist.dom.SymbolTable;
+import org.exist.storage.ElementValue;
 import org.exist.storage.NodePath;
 import org.w3c.dom.Node;
 import org.xml.sax.ContentHandler;
@@ -14,12 +15,22 @@ import java.util.List;
 
 /**
  * Collects statistics for a single node in the data guide.
+ *
+ * Besides the number of occurrences and the maximum depth, a node records how
+ * many (non-whitespace) values were found for it and keeps a small HyperLogLog
+ * sketch to estimate the number of distinct values.
  */
 class NodeStats {
 
+    /** Number of registers in the distinct values sketch. Must be a power of 2. */
+    protected final static int SKETCH_REGISTERS = 64;
+    private final static int SKETCH_BITS = 6;
+
     private QName qname;
     private int nodeCount = 0;
     private int maxDepth = 0;
+    private int valueCount = 0;
+    private byte[] sketch = null;
 
     transient private int depth = 0;
 
@@ -53,11 +64,99 @@ class NodeStats {
         nodeCount++;
     }
 
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * Record a value (the string value of an attribute or a text
+     * node) for this node. Whitespace-only values are ignored.
+     */
+    protected void addValue(CharSequence value) {
+        if (isWhitespace(value))
+            {return;}
+        valueCount++;
+        if (sketch == null)
+            {sketch = new byte[SKETCH_REGISTERS];}
+        final long hash = hash(value);
+        final int register = (int) (hash >>> (64 - SKETCH_BITS));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(hash << SKETCH_BITS) + 1);
+        if (rank > sketch[register])
+            {sketch[register] = rank;}
+    }
+
+    /**
+     * Merge the distinct values sketch of this node into the given
+     * registers.
+     *
+     * @return true if this node had any values
+     */
+    protected boolean mergeSketch(byte[] registers) {
+        if (sketch == null)
+            {return false;}
+        for (int i = 0; i < SKETCH_REGISTERS; i++) {
+            if (sketch[i] > registers[i])
+                {registers[i] = sketch[i];}
+        }
+        return true;
+    }
+
+    /**
+     * Estimate the number of distinct values from the given sketch registers.
+     */
+    protected static long estimateDistinct(byte[] registers) {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < SKETCH_REGISTERS; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0)
+                {zeros++;}
+        }
+        final double m = SKETCH_REGISTERS;
+        double estimate = 0.709 * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0)
+            // small range correction: use linear counting
+            {estimate = m * Math.log(m / zeros);}
+        return Math.round(estimate);
+    }
+
+    private static boolean isWhitespace(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isWhitespace(value.charAt(i)))
+                {return false;}
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a hash, followed by a final mix step to spread the
+     * bits used for register selection.
+     */
+    private static long hash(CharSequence value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    protected static boolean matches(QName qname, QName other) {
+        return qname.getNameType() == other.getNameType() && qname.equalsSimple(other);
+    }
+
     protected NodeStats addChild(QName qn) {
         if (children != null) {
             for (int i = 0; i < children.length; i++) {
                 final NodeStats child = children[i];
-                if (child.qname.equalsSimple(qn)) {
+                if (matches(child.qname, qn)) {
                     return child;
                 }
             }
@@ -95,6 +194,12 @@ class NodeStats {
         nodeCount += other.nodeCount;
         if (other.maxDepth > maxDepth)
             {maxDepth = other.maxDepth;}
+        if (other.sketch != null) {
+            valueCount += other.valueCount;
+            if (sketch == null)
+                {sketch = new byte[SKETCH_REGISTERS];}
+            other.mergeSketch(sketch);
+        }
     }
 
     protected int getSize() {
@@ -107,8 +212,24 @@ class NodeStats {
         return s;
     }
 
+    /**
+     * Returns the size of this node and its descendants in the
+     * serialized form written by {@link #write(ByteBuffer, SymbolTable)}.
+     */
+    protected int getStorageSize() {
+        int s = 21;
+        if (sketch != null)
+            {s += SKETCH_REGISTERS;}
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                s += children[i].getStorageSize();
+            }
+        }
+        return s;
+    }
+
     protected void getMaxParentDepth(QName name, NodeStats max) {
-        if (parent != null && qname != null && qname.equalsSimple(name)) {
+        if (parent != null && qname != null && matches(qname, name)) {
             max.maxDepth = Math.max(parent.maxDepth, max.maxDepth);
         }
         if (children != null) {
@@ -118,11 +239,49 @@ class NodeStats {
         }
     }
 
+    /**
+     * Collect statistics for all nodes matching the given name.
+     *
+     * @param name the name to look for
+     * @param total receives the summed node count and value count as well
+     *  as the merged distinct values sketch
+     */
+    protected void collect(QName name, NodeStats total) {
+        if (qname != null && matches(qname, name)) {
+            total.nodeCount += nodeCount;
+            if (sketch != null) {
+                total.valueCount += valueCount;
+                if (total.sketch == null)
+                    {total.sketch = new byte[SKETCH_REGISTERS];}
+                mergeSketch(total.sketch);
+            }
+        }
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                children[i].collect(name, total);
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct values recorded for
+     * this node or -1 if no values were seen.
+     */
+    protected long getDistinctValues() {
+        if (sketch == null)
+            {return -1;}
+        return Math.min(valueCount, estimateDistinct(sketch));
+    }
+
     protected void write(ByteBuffer buffer, SymbolTable symbols) {
         buffer.putShort(symbols.getNSSymbol(qname.getNamespaceURI()));
         buffer.putShort(symbols.getSymbol(qname.getLocalName()));
+        buffer.put(qname.getNameType());
         buffer.putInt(nodeCount);
         buffer.putInt(maxDepth);
+        buffer.putInt(sketch == null ? 0 : valueCount);
+        if (sketch != null)
+            {buffer.put(sketch);}
 
         buffer.putInt(children == null ? 0: children.length);
         if (children != null) {
@@ -132,22 +291,36 @@ class NodeStats {
         }
     }
 
-    protected void read(ByteBuffer buffer, SymbolTable symbols) {
+    /**
+     * Read the node and its descendants.
+     *
+     * @param legacy true if the data was written by a version without
+     *  node types and value statistics
+     */
+    protected void read(ByteBuffer buffer, SymbolTable symbols, boolean legacy) {
         final short nsid = buffer.getShort();
         final short localid = buffer.getShort();
         final String namespaceURI = symbols.getNamespace(nsid);
         final String localName = symbols.getName(localid);
-        qname = symbols.getQName(Node.ELEMENT_NODE, namespaceURI,
-            localName, "");
+        final byte type = legacy ? ElementValue.ELEMENT : buffer.get();
+        qname = symbols.getQName(type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE,
+            namespaceURI, localName, "");
         nodeCount = buffer.getInt();
         maxDepth = buffer.getInt();
+        if (!legacy) {
+            valueCount = buffer.getInt();
+            if (valueCount > 0) {
+                sketch = new byte[SKETCH_REGISTERS];
+                buffer.get(sketch);
+            }
+        }
 
         final int childCount = buffer.getInt();
         if (childCount > 0) {
             children = new NodeStats[childCount];
             for (int i = 0; i < childCount; i++) {
                 children[i] = new NodeStats(this, null);
-                children[i].read(buffer, symbols);
+                children[i].read(buffer, symbols, legacy);
             }
         }
     }
@@ -160,9 +333,14 @@ class NodeStats {
             newPath = new StringBuilder(currentPath);
             if (newPath.length() > 0)
                 {newPath.append(" -> ");}
+            if (qname.getNameType() == ElementValue.ATTRIBUTE)
+                {newPath.append('@');}
             newPath.append(qname);
             newPath.append('[').append(nodeCount).append(',');
-            newPath.append(maxDepth).append(']');
+            newPath.append(maxDepth);
+            if (sketch != null)
+                {newPath.append(',').append(getDistinctValues());}
+            newPath.append(']');
         }
         paths.add(newPath);
         if (children != null) {
@@ -179,6 +357,12 @@ class NodeStats {
         attribs.addAttribute("", "namespace", "namespace", "CDATA", qname.getNamespaceURI());
         attribs.addAttribute("", "node-count", "node-count", "CDATA", Integer.toString(nodeCount));
         attribs.addAttribute("", "max-depth", "max-depth", "CDATA", Integer.toString(maxDepth));
+        if (qname.getNameType() == ElementValue.ATTRIBUTE)
+            {attribs.addAttribute("", "type", "type", "CDATA", "attribute");}
+        if (sketch != null) {
+            attribs.addAttribute("", "value-count", "value-count", "CDATA", Integer.toString(valueCount));
+            attribs.addAttribute("", "distinct-values", "distinct-values", "CDATA", Long.toString(getDistinctValues()));
+        }
         handler.startElement(Namespaces.EXIST_NS, "node", "node", attribs);
         if (children != null) {
             for (int i = 0; i < children.length; i++) {
@@ -54,6 +54,9 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
      * It will be fast for bulk-loading a large node set, but slow if you need to operate on a small
      * context set.
      *
+     * If no selector is given, all nodes found are returned in a {@link PackedNodeSet}, which
+     * stores the node ids read from the index keys without creating a node proxy for each node.
+     *
      * @param type
      * @param docs
      * @param qname
@@ -62,8 +65,17 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
      */
     public NodeSet findElementsByTagName(byte type, DocumentSet docs, QName qname, NodeSelector selector) {
         final Lock lock = index.btree.getLock();
-        final NewArrayNodeSet result = new NewArrayNodeSet(docs.getDocumentCount(), 256);
-        final FindElementsCallback callback = new FindElementsCallback(type, result, docs, selector);
+        final FindElementsCallback callback;
+        final NodeSet result;
+        if (selector == null) {
+            final PackedNodeSet packed = new PackedNodeSet(256);
+            callback = new FindElementsCallback(type, packed, docs);
+            result = packed;
+        } else {
+            final NewArrayNodeSet selected = new NewArrayNodeSet(docs.getDocumentCount(), 256);
+            callback = new FindElementsCallback(type, selected, docs, selector);
+            result = selected;
+        }
         // scan the document set to find document id ranges to query
         final List<Range> ranges = new ArrayList<Range>();
         Range next = null;
@@ -246,6 +258,7 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         byte type;
         DocumentSet docs;
         NewArrayNodeSet result;
+        PackedNodeSet packedResult;
         NodeSelector selector;
 
         FindElementsCallback(byte type, NewArrayNodeSet result, DocumentSet docs, NodeSelector selector) {
@@ -255,17 +268,22 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
             this.selector = selector;
         }
 
+        FindElementsCallback(byte type, PackedNodeSet result, DocumentSet docs) {
+            this.type = type;
+            this.packedResult = result;
+            this.docs = docs;
+        }
+
         public boolean indexInfo(Value value, long pointer) throws TerminatedException {
             final byte[] key = value.getData();
-            final NodeId nodeId = readNodeId(key, pointer);
             final DocumentImpl doc = docs.getDoc(readDocId(key));
             if (doc != null) {
                 if (selector == null) {
-                    final NodeProxy storedNode = new NodeProxy(doc, nodeId,
+                    // copy the node id from the key, no need to create a NodeId
+                    packedResult.add(doc, key, 9, readNodeIdUnits(key, pointer),
                         type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE, pointer);
-                    result.add(storedNode);
                 } else {
-                    final NodeProxy storedNode = selector.match(doc, nodeId);
+                    final NodeProxy storedNode = selector.match(doc, readNodeId(key, pointer));
                     if (storedNode != null) {
                         storedNode.setNodeType(type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE);
                         storedNode.setInternalAddress(pointer);
@@ -631,13 +649,16 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
     }
 
     private NodeId readNodeId(byte[] key, long value) {
+        return index.getBrokerPool().getNodeFactory().createFromData(readNodeIdUnits(key, value), key, 9);
+    }
+
+    private int readNodeIdUnits(byte[] key, long value) {
         // extra number of bits of the node id is encoded in the long address
         short bits = (short)((value >>> 24) & 0xFFL);
         if (bits == 0)
             {bits = 8;}
         // compute total number of bits for node id
-        final int units = (key.length - 10) * 8 + bits;
-        return index.getBrokerPool().getNodeFactory().createFromData(units, key, 9);
+        return (key.length - 10) * 8 + bits;
     }
 
     private QName readQName(byte[] key) {
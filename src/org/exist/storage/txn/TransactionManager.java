@@ -32,6 +32,7 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.SystemTask;
 import org.exist.storage.SystemTaskManager;
 import org.exist.storage.journal.Journal;
+import org.exist.storage.journal.Lsn;
 import org.exist.storage.recovery.RecoveryManager;
 import org.exist.util.ReadOnlyException;
 import org.exist.xmldb.XmldbURI;
@@ -181,25 +182,35 @@ public class TransactionManager {
             return;
         }
 
-        new RunWithLock<Object>() {
-        	public Object execute() {
+        final Long commitLsn = new RunWithLock<Long>() {
+        	public Long execute() {
+                long lsn = Lsn.LSN_INVALID;
                 if (enabled) {
+                    final TxnCommit commit = new TxnCommit(txn.getId());
                     try {
-						journal.writeToLog(new TxnCommit(txn.getId()));
+						journal.writeToLog(commit);
 					} catch (final TransactionException e) {
 						LOG.error("transaction manager caught exception while committing", e);
 					}
-                    if (!groupCommit)
-                        {journal.flushToLog(true);}
+                    if (!groupCommit) {
+                        if (journal.isGroupCommitEnabled())
+                            // wait for the sync after releasing the lock, so other
+                            // transactions can join the same batch
+                            {lsn = commit.getLsn();}
+                        else
+                            {journal.flushToLog(true);}
+                    }
                 }
                 txn.signalCommit();
                 txn.releaseAll();
                 transactions.remove(txn.getId());
                 processSystemTasks();
                 LOG.debug("Committed transaction: " + txn.getId());
-                return null;
+                return Long.valueOf(lsn);
         	}
         }.run();
+        if (commitLsn != null && commitLsn.longValue() != Lsn.LSN_INVALID)
+            {journal.commit(commitLsn.longValue());}
     }
 	
     public void abort(final Txn txn) {
@@ -215,7 +226,9 @@ public class TransactionManager {
                 } catch (final TransactionException e) {
                     LOG.warn("Failed to write abort record to journal: " + e.getMessage());
                 }
-                if (!groupCommit)
+                // an abort record does not need to be synced: after a crash,
+                // the transaction will be rolled back anyway
+                if (!groupCommit && !journal.isGroupCommitEnabled())
                     {journal.flushToLog(true);}
                 txn.signalAbort();
                 txn.releaseAll();
@@ -364,7 +377,7 @@ public class TransactionManager {
     			// we first need to get a broker for the current thread
     			// before we acquire the transaction manager lock. Otherwise
     			// a deadlock may occur.
-    			broker = pool.get(null);
+    			broker = pool.getSystemBroker();
     			
     			try {
     				lock.lock();
@@ -54,6 +54,8 @@ import org.exist.storage.NativeBroker;
 import org.exist.storage.NativeValueIndex;
 import org.exist.storage.TextSearchEngine;
 import org.exist.storage.XQueryPool;
+import org.exist.storage.btree.Paged;
+import org.exist.storage.dom.DOMFile;
 import org.exist.storage.journal.Journal;
 import org.exist.storage.serializers.CustomMatchListenerFactory;
 import org.exist.storage.serializers.Serializer;
@@ -65,6 +67,7 @@ import org.exist.xquery.FunctionFactory;
 import org.exist.xquery.PerformanceStats;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.XQueryWatchDog;
+import org.exist.xquery.value.OrderedValueSequence;
 import org.exist.xslt.TransformerFactoryAllocator;
 
 import java.io.File;
@@ -338,6 +341,19 @@ public class Configuration implements ErrorHandler
         config.put( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL, Configuration.parseBoolean( raiseErrorOnFailedRetrieval, XQueryContext.XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT ) );
         LOG.debug( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL + ": " + config.get( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL ) );
 
+        final String orderByRunSize = getConfigAttributeValue( xquery, OrderedValueSequence.RUN_SIZE_ATTRIBUTE );
+
+        if( orderByRunSize != null ) {
+
+            try {
+                config.put( OrderedValueSequence.PROPERTY_RUN_SIZE, Integer.valueOf( orderByRunSize ) );
+                LOG.debug( OrderedValueSequence.PROPERTY_RUN_SIZE + ": " + config.get( OrderedValueSequence.PROPERTY_RUN_SIZE ) );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
         final String trace = getConfigAttributeValue( xquery, PerformanceStats.CONFIG_ATTR_TRACE );
         config.put( PerformanceStats.CONFIG_PROPERTY_TRACE, trace );
 
@@ -814,6 +830,14 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        String pageCache = getConfigAttributeValue( con, DefaultCacheManager.PAGE_CACHE_ATTRIBUTE );
+
+        if( pageCache == null ) {
+            pageCache = DefaultCacheManager.PAGE_CACHE_DEFAULT;
+        }
+        config.put( DefaultCacheManager.PROPERTY_PAGE_CACHE, pageCache );
+        LOG.debug( DefaultCacheManager.PROPERTY_PAGE_CACHE + ": " + config.get( DefaultCacheManager.PROPERTY_PAGE_CACHE ) );
+
         String collectionCache = getConfigAttributeValue( con, CollectionCacheManager.CACHE_SIZE_ATTRIBUTE );
 
         if( collectionCache != null ) {
@@ -844,6 +868,18 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String domCompression = getConfigAttributeValue( con, DOMFile.COMPRESSION_ATTRIBUTE );
+
+        if( domCompression != null ) {
+
+            if( DOMFile.COMPRESSION_DEFLATE.equalsIgnoreCase( domCompression ) || DOMFile.COMPRESSION_NONE.equalsIgnoreCase( domCompression ) ) {
+                config.put( DOMFile.PROPERTY_COMPRESSION, domCompression.toLowerCase() );
+                LOG.debug( DOMFile.PROPERTY_COMPRESSION + ": " + config.get( DOMFile.PROPERTY_COMPRESSION ) );
+            } else {
+                LOG.warn( "Unknown value for " + DOMFile.COMPRESSION_ATTRIBUTE + ": " + domCompression + ". Page compression disabled." );
+            }
+        }
+
         //Not clear : rather looks like a buffers count
         final String collCacheSize = getConfigAttributeValue( con, BrokerPool.COLLECTION_CACHE_SIZE_ATTRIBUTE );
 
@@ -1023,6 +1059,46 @@ public class Configuration implements ErrorHandler
         if( recoveries.getLength() > 0 ) {
             configureRecovery( dbHome, (Element)recoveries.item( 0 ) );
         }
+
+        final NodeList pageIO = con.getElementsByTagName( Paged.CONFIGURATION_PAGE_IO_ELEMENT );
+
+        if( pageIO.getLength() > 0 ) {
+            configurePageIO( (Element)pageIO.item( 0 ) );
+        }
+    }
+
+
+    /**
+     * Reads the I/O mode to be used for the paged database files: a default
+     * mode and optional per-file settings.
+     *
+     * @param  pageIO
+     */
+    private void configurePageIO( Element pageIO )
+    {
+        final String defaultMode = getConfigAttributeValue( pageIO, Paged.PAGE_IO_DEFAULT_ATTRIBUTE );
+
+        if( defaultMode != null ) {
+            config.put( Paged.PROPERTY_PAGE_IO_DEFAULT, defaultMode );
+            LOG.debug( Paged.PROPERTY_PAGE_IO_DEFAULT + ": " + config.get( Paged.PROPERTY_PAGE_IO_DEFAULT ) );
+        }
+
+        final Map<String, String> files = new HashMap<String, String>();
+        final NodeList nlFiles = pageIO.getElementsByTagName( Paged.CONFIGURATION_PAGE_IO_FILE_ELEMENT );
+
+        for( int i = 0; i < nlFiles.getLength(); i++ ) {
+            final Element file = (Element)nlFiles.item( i );
+            final String  name = getConfigAttributeValue( file, Paged.PAGE_IO_NAME_ATTRIBUTE );
+            final String  mode = getConfigAttributeValue( file, Paged.PAGE_IO_MODE_ATTRIBUTE );
+
+            if( name == null || mode == null ) {
+                LOG.warn( "Ignoring " + Paged.CONFIGURATION_PAGE_IO_FILE_ELEMENT + " element without name or mode" );
+                continue;
+            }
+            files.put( name, mode );
+            LOG.debug( Paged.PROPERTY_PAGE_IO_FILES + ": " + name + " = " + mode );
+        }
+        config.put( Paged.PROPERTY_PAGE_IO_FILES, files );
     }
 
 
@@ -1072,6 +1148,19 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        option = getConfigAttributeValue( recovery, Journal.RECOVERY_GROUP_COMMIT_LATENCY_ATTRIBUTE );
+
+        if( option != null ) {
+
+            try {
+                setProperty( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_LATENCY, new Integer( option ) );
+                LOG.debug( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_LATENCY + ": " + config.get( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_LATENCY ) );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "group-commit-latency attribute in recovery section needs to be a number" ) );
+            }
+        }
+
         option = getConfigAttributeValue( recovery, TransactionManager.RECOVERY_FORCE_RESTART_ATTRIBUTE );
         boolean value = false;
 
@@ -1291,6 +1380,32 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String waitTimeout = getConfigAttributeValue( pool, BrokerPool.WAIT_TIMEOUT_ATTRIBUTE );
+
+        if( waitTimeout != null ) {
+
+            try {
+                config.put( BrokerPool.PROPERTY_WAIT_TIMEOUT, Long.valueOf(waitTimeout) );
+                LOG.debug( BrokerPool.PROPERTY_WAIT_TIMEOUT + ": " + config.get( BrokerPool.PROPERTY_WAIT_TIMEOUT ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
+        final String reserved = getConfigAttributeValue( pool, BrokerPool.RESERVED_BROKERS_ATTRIBUTE );
+
+        if( reserved != null ) {
+
+            try {
+                config.put( BrokerPool.PROPERTY_RESERVED_BROKERS, Integer.valueOf(reserved) );
+                LOG.debug( BrokerPool.PROPERTY_RESERVED_BROKERS + ": " + config.get( BrokerPool.PROPERTY_RESERVED_BROKERS ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
         final String maxShutdownWait = getConfigAttributeValue( pool, BrokerPool.SHUTDOWN_DELAY_ATTRIBUTE );
 
         if( maxShutdownWait != null ) {
@@ -1376,6 +1491,32 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String reindexThreads = getConfigAttributeValue( indexer, NativeBroker.REINDEX_THREADS_ATTRIBUTE );
+
+        if( reindexThreads != null ) {
+
+            try {
+                config.put( NativeBroker.PROPERTY_REINDEX_THREADS, Integer.valueOf(reindexThreads) );
+                LOG.debug( NativeBroker.PROPERTY_REINDEX_THREADS + ": " + config.get( NativeBroker.PROPERTY_REINDEX_THREADS ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
+        final String reindexBatchSize = getConfigAttributeValue( indexer, NativeBroker.REINDEX_BATCH_SIZE_ATTRIBUTE );
+
+        if( reindexBatchSize != null ) {
+
+            try {
+                config.put( NativeBroker.PROPERTY_REINDEX_BATCH_SIZE, Integer.valueOf(reindexBatchSize) );
+                LOG.debug( NativeBroker.PROPERTY_REINDEX_BATCH_SIZE + ": " + config.get( NativeBroker.PROPERTY_REINDEX_BATCH_SIZE ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
         final String suppressWS = getConfigAttributeValue( indexer, Indexer.SUPPRESS_WHITESPACE_ATTRIBUTE );
 
         if( suppressWS != null ) {
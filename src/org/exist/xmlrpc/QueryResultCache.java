@@ -56,6 +56,12 @@ public class QueryResultCache {
     	return (acr!=null && acr instanceof SerializedResult)?(SerializedResult)acr:null;
     }
     
+    public StreamedResult getStreamedResult(int pos) {
+    	final AbstractCachedResult acr = get(pos);
+    	
+    	return (acr!=null && acr instanceof StreamedResult)?(StreamedResult)acr:null;
+    }
+    
     public void remove(int pos) {
         if (pos > -1 && pos < results.length) {
         	// Perhaps we should not free resources here
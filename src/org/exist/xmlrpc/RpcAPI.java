@@ -340,6 +340,21 @@ public interface RpcAPI {
 	public byte[] retrieveAll(int resultId, HashMap<String, Object> parameters)
 	throws EXistException, PermissionDeniedException;
 	
+	/**
+	 *  Retrieve all items of the result-set identified by resultId, wrapped
+	 *  into an exist:result element. The result is serialized lazily: only the
+	 *  first chunk is serialized by this call, the next ones are serialized
+	 *  while they are fetched using getNextChunk or getNextExtendedChunk with
+	 *  the returned handle. The chunks have to be fetched in sequence,
+	 *  i.e. the offset passed must be the offset returned by the previous call.
+	 *
+	 *@param  resultId                       the result-set
+	 *@param  parameters                     the serialization parameters
+	 *@return                                a map with the data of the first chunk, the offset
+	 *  of the next chunk or 0 if there is none, and the handle to fetch the next chunks
+	 *@exception  EXistException             Description of the Exception
+	 *@exception  PermissionDeniedException  Description of the Exception
+	 */
 	public HashMap<String, Object> retrieveAllFirstChunk(int resultId, HashMap<String, Object> parameters)
 		throws EXistException, PermissionDeniedException;
 	
@@ -556,6 +571,25 @@ public interface RpcAPI {
 	
 	public boolean parseLocalExt(String localFile, String docName, boolean replace, String mimeType, boolean treatAsXML, Date created, Date modified)
             throws EXistException, PermissionDeniedException, SAXException, URISyntaxException;
+
+	/**
+	 * Store all entries of a zip archive previously uploaded with upload()
+	 * into a collection, using the bulk loader: the documents are parsed once
+	 * and stored in batches of transactions. Directories in the archive are
+	 * stored as sub-collections.
+	 * 
+	 * The temporary file will be removed.
+	 * 
+	 * @param localFile the file name returned by upload
+	 * @param collectionName the target collection
+	 * @param batchSize the number of documents stored within one transaction
+	 * @return a map with the number of resources stored ("documents"), the time
+	 * taken in milliseconds ("time") and the resulting rate ("documents-per-second")
+	 * @throws EXistException
+	 * @throws PermissionDeniedException
+	 */
+	HashMap<String, Object> bulkLoad(String localFile, String collectionName, int batchSize)
+            throws EXistException, PermissionDeniedException, URISyntaxException;
 	
 	/**
 	 * Store data as a binary resource.
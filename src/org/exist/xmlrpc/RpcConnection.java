@@ -62,6 +62,7 @@ import org.exist.security.xacml.AccessContext;
 import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.BulkLoader;
 import org.exist.storage.DBBroker;
 import org.exist.storage.DataBackup;
 import org.exist.storage.XQueryPool;
@@ -1027,6 +1028,18 @@ public class RpcConnection implements RpcAPI {
     {
     	try {
     		final int resultId = Integer.parseInt(handle);
+    		final StreamedResult stream = factory.resultSets.getStreamedResult(resultId);
+    		if(stream != null) {
+    			final HashMap<String, Object> result = getNextStreamedChunk(resultId, stream, offset);
+    			final long nextChunk = ((Long) result.get("offset")).longValue();
+    			if(nextChunk > (long)Integer.MAX_VALUE) {
+    				factory.resultSets.remove(resultId);
+    				result.put("offset", Integer.valueOf(0));
+    			} else
+    				{result.put("offset", Integer.valueOf((int)nextChunk));}
+    			result.put("handle", handle);
+    			return result;
+    		}
     		final SerializedResult sr = factory.resultSets.getSerializedResult(resultId);
 
     		if(sr==null)
@@ -1071,6 +1084,13 @@ public class RpcConnection implements RpcAPI {
     {
     	try {
     		final int resultId = Integer.parseInt(handle);
+    		final StreamedResult stream = factory.resultSets.getStreamedResult(resultId);
+    		if(stream != null) {
+    			final HashMap<String, Object> result = getNextStreamedChunk(resultId, stream, Long.parseLong(offset));
+    			result.put("offset", result.get("offset").toString());
+    			result.put("handle", handle);
+    			return result;
+    		}
     		final SerializedResult sr = factory.resultSets.getSerializedResult(resultId);
 
     		if(sr==null)
@@ -1103,6 +1123,37 @@ public class RpcConnection implements RpcAPI {
     	}
     }
 	
+    /**
+     * Serializes the next chunk of a result which is retrieved in chunks.
+     * The offset has to be the number of bytes retrieved so far. The
+     * returned offset is 0 if the result has been retrieved completely.
+     */
+    private HashMap<String, Object> getNextStreamedChunk(int resultId, StreamedResult stream, long offset)
+    	throws Exception
+    {
+    	if(offset <= 0 || offset != stream.getOffset()) {
+    		factory.resultSets.remove(resultId);
+    		throw new EXistException("Chunks of a query result have to be retrieved in sequence");
+    	}
+    	// This will keep the result in the cache
+    	stream.touch();
+    	DBBroker broker = null;
+    	try {
+    		broker = factory.getBrokerPool().get(user);
+    		final byte[] chunk = stream.nextChunk(broker);
+    		final HashMap<String, Object> result = new HashMap<String, Object>();
+    		result.put("data", chunk);
+    		if(stream.isFinished()) {
+    			factory.resultSets.remove(resultId);
+    			result.put("offset", Long.valueOf(0));
+    		} else
+    			{result.put("offset", Long.valueOf(stream.getOffset()));}
+    		return result;
+    	} finally {
+    		factory.getBrokerPool().release(broker);
+    	}
+    }
+
     /**
      * The method <code>getBinaryResource</code>
      *
@@ -2486,6 +2537,74 @@ public class RpcConnection implements RpcAPI {
 
     	return true; // when arrived here, insert/update was successful
     }
+
+    /**
+     * The method <code>bulkLoad</code>
+     *
+     * @param localFile the handle of the uploaded zip archive or a local file name
+     * @param collectionName the target collection
+     * @param batchSize the number of documents stored within one transaction
+     * @return a map containing the number of documents stored and the time taken
+     * @exception EXistException if an error occurs
+     * @exception PermissionDeniedException if an error occurs
+     * @exception URISyntaxException if an error occurs
+     */
+    @Override
+    public HashMap<String, Object> bulkLoad(String localFile, String collectionName, int batchSize)
+            throws EXistException, PermissionDeniedException, URISyntaxException {
+        final XmldbURI collUri = XmldbURI.xmldbUriFor(collectionName);
+        VirtualTempFileInputSource source = null;
+        try {
+            final int handle = Integer.parseInt(localFile);
+            final SerializedResult sr = factory.resultSets.getSerializedResult(handle);
+            if (sr == null)
+                {throw new EXistException("Invalid handle specified");}
+            source = new VirtualTempFileInputSource(sr.result);
+            sr.result = null;
+            factory.resultSets.remove(handle);
+        } catch (final NumberFormatException nfe) {
+            final File file = new File(localFile);
+            if (!file.canRead())
+                {throw new EXistException("unable to read file " + file.getAbsolutePath());}
+            source = new VirtualTempFileInputSource(file);
+        } catch (final IOException ioe) {
+            throw new EXistException("Error preparing virtual temp file for parsing");
+        }
+
+        final HashMap<String, Object> result = new HashMap<String, Object>();
+        DBBroker broker = null;
+        BulkLoader loader = null;
+        try {
+            broker = factory.getBrokerPool().get(user);
+            final Collection collection = broker.getCollection(collUri);
+            if (collection == null)
+                {throw new EXistException("Collection " + collUri + " not found");}
+            loader = new BulkLoader(broker, batchSize);
+            final InputStream is = source.getByteStream();
+            try {
+                loader.storeZip(collection, is);
+            } finally {
+                is.close();
+            }
+            loader.finish();
+            result.put("documents", Integer.valueOf(loader.getLoaded()));
+            result.put("time", Integer.valueOf((int) loader.getTime()));
+            result.put("documents-per-second", Double.valueOf(loader.getDocumentsPerSecond()));
+        } catch (final Throwable e) {
+            handleException(e);
+        } finally {
+            if (loader != null) {
+                try {
+                    loader.finish();
+                } catch (final EXistException e) {
+                    LOG.warn("Failed to finish bulk load: " + e.getMessage(), e);
+                }
+            }
+            factory.getBrokerPool().release(broker);
+            source.free();
+        }
+        return result;
+    }
     
     /**
      * The method <code>storeBinary</code>
@@ -3631,89 +3750,25 @@ public class RpcConnection implements RpcAPI {
     		if (qr == null)
     			{throw new EXistException("result set unknown or timed out");}
     		qr.touch();
-    		final Serializer serializer = broker.getSerializer();
-    		serializer.reset();
     		for (final Map.Entry<Object, Object> entry : qr.serialization.entrySet()) {
     			parameters.put(entry.getKey().toString(), entry.getValue().toString());
     		}
-    		serializer.setProperties(parameters);
-    		final SAXSerializer handler = (SAXSerializer) SerializerPool.getInstance().borrowObject(SAXSerializer.class);
+    		if("yes".equals(compression))
+    			{LOG.debug("get result with compression");}
 
+    		// the result is serialized while the client retrieves it
+    		final StreamedResult sr = new StreamedResult(qr, parameters, getProperties(parameters), encoding,
+    				"yes".equals(compression), MAX_DOWNLOAD_CHUNK_SIZE);
     		final HashMap<String, Object> result = new HashMap<String, Object>();
-    		VirtualTempFile vtempFile = new VirtualTempFile(MAX_DOWNLOAD_CHUNK_SIZE,MAX_DOWNLOAD_CHUNK_SIZE);
-    		vtempFile.setTempPrefix("eXistRPCC");
-    		vtempFile.setTempPostfix(".xml");
-
-    		OutputStream os=null;
-    		if("yes".equals(compression)) {
-    			LOG.debug("get result with compression");
-    			os = new DeflaterOutputStream(vtempFile);
-    		} else {
-    			os = vtempFile;
-    		}
-    		try {
-    			final Writer writer = new OutputStreamWriter(os, encoding);
-    			try {
-    				handler.setOutput(writer, getProperties(parameters));
-
-    				// serialize results
-    				handler.startDocument();
-    				handler.startPrefixMapping("exist", Namespaces.EXIST_NS);
-    				final AttributesImpl attribs = new AttributesImpl();
-    				attribs.addAttribute(
-    						"",
-    						"hitCount",
-    						"hitCount",
-    						"CDATA",
-    						Integer.toString(qr.result.getItemCount()));
-    				handler.startElement(
-    						Namespaces.EXIST_NS,
-    						"result",
-    						"exist:result",
-    						attribs);
-    				Item current;
-    				char[] value;
-    				for(final SequenceIterator i = qr.result.iterate(); i.hasNext(); ) {
-    					current = i.nextItem();
-    					if(Type.subTypeOf(current.getType(), Type.NODE))
-    						{((NodeValue)current).toSAX(broker, handler, null);}
-    					else {
-    						value = current.toString().toCharArray();
-    						handler.characters(value, 0, value.length);
-    					}
-    				}
-    				handler.endElement(Namespaces.EXIST_NS, "result", "exist:result");
-    				handler.endPrefixMapping("exist");
-    				handler.endDocument();
-    				SerializerPool.getInstance().returnObject(handler);
-    			} finally {
-    				writer.close();
-    			}
-    		} finally {
-    			try {
-    				os.close();
-    			} catch(final IOException ioe) {
-    				//IgnoreIT(R)
-    			}
-    			if(os!=vtempFile)
-    				try {
-    					vtempFile.close();
-    				} catch(final IOException ioe) {
-    					//IgnoreIT(R)
-    				}
-    		}
-
-    		final byte[] firstChunk = vtempFile.getChunk(0);
+    		final byte[] firstChunk = sr.nextChunk(broker);
     		result.put("data", firstChunk);
     		int offset = 0;
-    		if(vtempFile.length() > MAX_DOWNLOAD_CHUNK_SIZE) {
+    		if(!sr.isFinished()) {
     			offset = firstChunk.length;
 
-    			final int handle = factory.resultSets.add(new SerializedResult(vtempFile));
+    			final int handle = factory.resultSets.add(sr);
     			result.put("handle", Integer.toString(handle));
     			result.put("supports-long-offset", Boolean.TRUE);
-    		} else {
-    			vtempFile.delete();
     		}
     		result.put("offset", Integer.valueOf(offset));
     		return result;
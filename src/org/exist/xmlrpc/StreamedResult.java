@@ -0,0 +1,181 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xmlrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.zip.DeflaterOutputStream;
+
+import org.exist.Namespaces;
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.Serializer;
+import org.exist.util.serializer.SAXSerializer;
+import org.exist.util.serializer.SerializerPool;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * A query result which is serialized lazily while the client retrieves it
+ * chunk by chunk. Each call to {@link #nextChunk(DBBroker)} serializes the next
+ * items of the result sequence until at least a chunk of data is available, so
+ * the memory used by the cached result is bounded by the chunk size plus the
+ * size of a single item, and the first chunk can be sent before the
+ * whole result has been serialized.
+ *
+ * The chunks must be read sequentially: the offset of the next chunk is the
+ * number of bytes returned so far.
+ */
+public class StreamedResult extends AbstractCachedResult {
+
+	private QueryResult queryResult;
+	private final HashMap<String, Object> parameters;
+	private final int chunkSize;
+
+	private final ChunkBuffer buffer = new ChunkBuffer();
+	private OutputStream os;
+	private Writer writer;
+	private SAXSerializer handler = null;
+	private SequenceIterator iterator = null;
+
+	private long offset = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param queryResult the result to serialize
+	 * @param parameters the serialization parameters
+	 * @param outputProperties the output properties of the SAX serializer
+	 * @param encoding the character encoding
+	 * @param compress if true, the output is compressed using a deflater
+	 * @param chunkSize the minimum size of a chunk
+	 */
+	public StreamedResult(QueryResult queryResult, HashMap<String, Object> parameters, Properties outputProperties,
+			String encoding, boolean compress, int chunkSize) throws IOException {
+		super(queryResult.getQueryTime());
+		this.queryResult = queryResult;
+		this.parameters = parameters;
+		this.chunkSize = chunkSize;
+		os = compress ? new DeflaterOutputStream(buffer) : buffer;
+		writer = new OutputStreamWriter(os, encoding);
+		handler = (SAXSerializer) SerializerPool.getInstance().borrowObject(SAXSerializer.class);
+		handler.setOutput(writer, outputProperties);
+	}
+
+	/**
+	 * Serializes the next items of the result and returns the data written,
+	 * an empty array if the whole result has been returned already.
+	 */
+	public synchronized byte[] nextChunk(DBBroker broker) throws SAXException, IOException, XPathException {
+		if (finished)
+			{return buffer.drain();}
+		final Serializer serializer = broker.getSerializer();
+		serializer.reset();
+		serializer.setProperties(parameters);
+		if (iterator == null) {
+			iterator = queryResult.result.iterate();
+			handler.startDocument();
+			handler.startPrefixMapping("exist", Namespaces.EXIST_NS);
+			final AttributesImpl attribs = new AttributesImpl();
+			attribs.addAttribute("", "hitCount", "hitCount", "CDATA",
+				Integer.toString(queryResult.result.getItemCount()));
+			handler.startElement(Namespaces.EXIST_NS, "result", "exist:result", attribs);
+		}
+		while (buffer.size() < chunkSize && iterator.hasNext()) {
+			final Item current = iterator.nextItem();
+			if (Type.subTypeOf(current.getType(), Type.NODE))
+				{((NodeValue) current).toSAX(broker, handler, null);}
+			else {
+				final char[] value = current.toString().toCharArray();
+				handler.characters(value, 0, value.length);
+			}
+			writer.flush();
+		}
+		if (!iterator.hasNext()) {
+			handler.endElement(Namespaces.EXIST_NS, "result", "exist:result");
+			handler.endPrefixMapping("exist");
+			handler.endDocument();
+			writer.close();
+			release();
+			finished = true;
+		}
+		final byte[] chunk = buffer.drain();
+		offset += chunk.length;
+		return chunk;
+	}
+
+	/**
+	 * @return true if the last chunk has been returned
+	 */
+	public synchronized boolean isFinished() {
+		return finished && buffer.size() == 0;
+	}
+
+	/**
+	 * @return the number of bytes returned so far, which is the offset of the
+	 * next chunk
+	 */
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	private void release() {
+		if (handler != null) {
+			SerializerPool.getInstance().returnObject(handler);
+			handler = null;
+		}
+		queryResult = null;
+		iterator = null;
+	}
+
+	@Override
+	public synchronized void free() {
+		release();
+		finished = true;
+		buffer.drain();
+	}
+
+	@Override
+	public Object getResult() {
+		return queryResult;
+	}
+
+	/**
+	 * A byte array stream which can be emptied after each chunk.
+	 */
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+
+		private byte[] drain() {
+			final byte[] data = toByteArray();
+			reset();
+			return data;
+		}
+	}
+}
@@ -52,6 +52,15 @@ public abstract class BinaryOp extends PathExpr {
         steps.add(1, expr);
     }
 
+    /**
+     * Exchange the left and the right operand.
+     */
+    public void swapOperands() {
+        final Expression left = steps.get(0);
+        steps.set(0, steps.get(1));
+        steps.set(1, left);
+    }
+
     public void setContextDocSet(DocumentSet contextSet) {
     	super.setContextDocSet(contextSet);
     	getLeft().setContextDocSet(contextSet);
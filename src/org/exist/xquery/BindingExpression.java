@@ -36,6 +36,7 @@ import org.exist.storage.UpdateListener;
 import org.exist.xquery.value.BooleanValue;
 import org.exist.xquery.value.GroupedValueSequenceTable;
 import org.exist.xquery.value.Item;
+import org.exist.xquery.value.OrderedValueSequence;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceIterator;
 import org.exist.xquery.value.SequenceType;
@@ -71,6 +72,10 @@ public abstract class BindingExpression extends AbstractExpression implements Re
 	protected String toGroupVarName;   
 	private ExprUpdateListener listener;
 
+	// number of leading items of the next result which will be used,
+	// 0 if all items are used
+	private int orderLimit = 0;
+
 
     public BindingExpression(XQueryContext context) {
 		super(context);
@@ -234,6 +239,55 @@ public abstract class BindingExpression extends AbstractExpression implements Re
 		}
 	}
 
+	/**
+	 * Signal that only the first <code>limit</code> items of the result
+	 * of the next call to eval will be used by the enclosing expression.
+	 * The "order by" clause will then only keep those items.
+	 * 
+	 * @param limit the number of items used
+	 */
+	public void setOrderLimit(int limit) {
+		this.orderLimit = limit;
+	}
+
+	/**
+	 * Returns the limit set by {@link #setOrderLimit(int)} and resets it.
+	 * Must be called at the start of eval.
+	 */
+	protected int takeOrderLimit() {
+		final int limit = orderLimit;
+		orderLimit = 0;
+		return limit;
+	}
+
+	/**
+	 * Create the result sequence for the "order by" clause.
+	 * 
+	 * @param size expected number of items
+	 * @param limit number of items used, or 0 if all are used
+	 */
+	protected OrderedValueSequence createOrderedSequence(int size, int limit) {
+		final OrderedValueSequence sequence = new OrderedValueSequence(orderSpecs, size, context);
+		if (limit > 0)
+			{sequence.setLimit(limit);}
+		return sequence;
+	}
+
+	/**
+	 * Returns the binding expression with an "order by" clause if the given
+	 * expression is such a FLWOR expression, possibly in parentheses.
+	 * 
+	 * @return the binding expression or null
+	 */
+	public static BindingExpression getOrderedExpression(Expression expr) {
+		while (expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+			expr = ((PathExpr) expr).getExpression(0);
+		}
+		if (expr instanceof BindingExpression && ((BindingExpression) expr).orderSpecs != null)
+			{return (BindingExpression) expr;}
+		return null;
+	}
+
 	/**
 	 * Check all order specs to see if we can process them in
 	 * one single step. In general, this is possible if all order 
@@ -267,6 +321,7 @@ public abstract class BindingExpression extends AbstractExpression implements Re
 	 */
 	public void resetState(boolean postOptimization) {
 		super.resetState(postOptimization);
+		orderLimit = 0;
 		inputSequence.resetState(postOptimization);
 		if(whereExpr != null) {whereExpr.resetState(postOptimization);}
 		returnExpr.resetState(postOptimization);
@@ -0,0 +1,434 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.NewArrayNodeSet;
+import org.exist.dom.NodeSet;
+import org.exist.dom.QName;
+import org.exist.storage.ElementValue;
+import org.exist.storage.composite.CompositeIndexSpec;
+import org.exist.storage.composite.CompositeRangeIndex;
+import org.exist.storage.composite.CompositeRangeIndexWorker;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+
+/**
+ * Pre-selects the nodes of a location step by a lookup in a
+ * {@link org.exist.storage.composite.CompositeRangeIndex}, replacing the general
+ * comparisons in the predicates of the step which compare the fields of the index.
+ *
+ * For example, with a composite index on order(@customer, date), the expression
+ * <code>//order[@customer = 'c1'][date &gt;= xs:date('2013-01-01')]</code> is answered
+ * by a single range scan of the keys starting with 'c1', instead of intersecting the
+ * orders of the customer with all the orders in the date range. The equality
+ * comparisons have to cover a leading run of fields, the following field can be
+ * compared by range.
+ *
+ * The expression is created by {@link org.exist.xquery.pragmas.Optimize} when it is
+ * evaluated, because only then the collections and thus the available indexes are
+ * known. It is never part of the compiled expression tree. The predicates are still
+ * evaluated on the nodes found, so the lookup may return more nodes than required.
+ */
+public class CompositeRangeLookup extends AbstractExpression implements Optimizable {
+
+    private final static Logger LOG = Logger.getLogger(CompositeRangeLookup.class);
+
+    private final CompositeIndexSpec spec;
+    // equality comparisons on the leading fields of the index, in field order
+    private final GeneralComparison equals[];
+    // comparisons on the field following the equality comparisons, may be null
+    private final GeneralComparison lower;
+    private final GeneralComparison upper;
+
+    private CompositeRangeLookup(XQueryContext context, CompositeIndexSpec spec, GeneralComparison equals[],
+            GeneralComparison lower, GeneralComparison upper) {
+        super(context);
+        this.spec = spec;
+        this.equals = equals;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Returns the general comparisons in the leading predicates of the context step.
+     * Each of them filters the nodes selected by the step.
+     */
+    public static List<GeneralComparison> findComparisons(LocationStep contextStep) {
+        final List<GeneralComparison> comparisons = new ArrayList<GeneralComparison>(4);
+        if (contextStep == null || contextStep.getTest().getType() != Type.ELEMENT ||
+                contextStep.getTest().isWildcardTest() || contextStep.getTest().getName() == null)
+            {return comparisons;}
+        // a predicate following a positional predicate does not filter the nodes
+        // of the step, so stop at the first predicate which is not a comparison
+        for (final Predicate predicate : contextStep.getPredicates()) {
+            if (predicate.getLength() != 1 || !addComparisons(predicate.getExpression(0), comparisons))
+                {break;}
+        }
+        return comparisons;
+    }
+
+    private static boolean addComparisons(Expression expr, List<GeneralComparison> comparisons) {
+        while (expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+            expr = ((PathExpr) expr).getExpression(0);
+        }
+        if (expr instanceof OpAnd) {
+            final OpAnd and = (OpAnd) expr;
+            return addComparisons(and.getLeft(), comparisons) & addComparisons(and.getRight(), comparisons);
+        }
+        if (expr.getClass() != GeneralComparison.class)
+            {return false;}
+        comparisons.add((GeneralComparison) expr);
+        return true;
+    }
+
+    /**
+     * Check if the comparison compares an attribute or child of the context node with
+     * values independent of the context node, as the index does.
+     */
+    private static boolean isIndexable(GeneralComparison comparison) {
+        return comparison.optimizeOnChild() && !comparison.optimizeOnSelf() &&
+            comparison.getContextQName() != null &&
+            comparison.truncation == Constants.TRUNC_NONE && comparison.collationArg == null &&
+            !Dependency.dependsOn(comparison.rightOpDeps, Dependency.CONTEXT_ITEM);
+    }
+
+    /**
+     * Check if some of the given comparisons can be answered by a composite index
+     * defined on all collections in the context.
+     *
+     * @param context the query context
+     * @param contextStep the step whose nodes are selected
+     * @param comparisons the comparisons found by {@link #findComparisons(LocationStep)}
+     * @param optimizables the optimizable expressions found in the predicates
+     * @param contextSequence the context sequence
+     * @return the optimizable expressions to use: the composite lookup, followed by
+     *  the optimizables not covered by it, or the unchanged optimizables if no
+     *  composite index is usable
+     */
+    public static Optimizable[] select(XQueryContext context, LocationStep contextStep,
+            List<GeneralComparison> comparisons, Optimizable optimizables[], Sequence contextSequence) {
+        if (comparisons == null || comparisons.isEmpty() || contextSequence == null)
+            {return optimizables;}
+        if (context.getBroker().getIndexController().getWorkerByIndexId(CompositeRangeIndex.ID) == null)
+            {return optimizables;}
+        final QName qname = new QName(contextStep.getTest().getName());
+        qname.setNameType(ElementValue.ELEMENT);
+        final List<CompositeIndexSpec> specs = getCommonSpecs(context, contextSequence, qname);
+        if (specs == null || specs.isEmpty())
+            {return optimizables;}
+        CompositeRangeLookup best = null;
+        int bestScore = 0;
+        for (final CompositeIndexSpec spec : specs) {
+            final List<GeneralComparison> equals = new ArrayList<GeneralComparison>(spec.getFieldCount());
+            GeneralComparison lower = null;
+            GeneralComparison upper = null;
+            for (int field = 0; field < spec.getFieldCount(); field++) {
+                final GeneralComparison eq = findComparison(comparisons, spec.getField(field), Constants.EQ);
+                if (eq != null) {
+                    equals.add(eq);
+                    continue;
+                }
+                lower = findComparison(comparisons, spec.getField(field), Constants.GT);
+                if (lower == null)
+                    {lower = findComparison(comparisons, spec.getField(field), Constants.GTEQ);}
+                upper = findComparison(comparisons, spec.getField(field), Constants.LT);
+                if (upper == null)
+                    {upper = findComparison(comparisons, spec.getField(field), Constants.LTEQ);}
+                break;
+            }
+            // prefer a longer run of equality comparisons
+            final int score = equals.size() * 2 + (lower != null || upper != null ? 1 : 0);
+            if (score > bestScore) {
+                bestScore = score;
+                best = new CompositeRangeLookup(context, spec,
+                    equals.toArray(new GeneralComparison[equals.size()]), lower, upper);
+            }
+        }
+        if (best == null)
+            {return optimizables;}
+        if (LOG.isTraceEnabled())
+            {LOG.trace("exist:optimize: using " + best);}
+        final List<Optimizable> result = new ArrayList<Optimizable>(1 + (optimizables == null ? 0 : optimizables.length));
+        result.add(best);
+        if (optimizables != null) {
+            for (int i = 0; i < optimizables.length; i++) {
+                final Optimizable optimizable = optimizables[i];
+                if (best.covers(optimizable))
+                    {continue;}
+                // a comparison on the context step only reduces the nodes to check: it can
+                // be skipped if there's no index for it
+                if (comparisons.contains(optimizable) && !optimizable.canOptimize(contextSequence))
+                    {continue;}
+                result.add(optimizable);
+            }
+        }
+        return result.toArray(new Optimizable[result.size()]);
+    }
+
+    /**
+     * Returns the composite indexes on qname defined on all collections of the
+     * context sequence.
+     */
+    private static List<CompositeIndexSpec> getCommonSpecs(XQueryContext context, Sequence contextSequence,
+            QName qname) {
+        List<CompositeIndexSpec> common = null;
+        for (final Iterator<Collection> i = contextSequence.getCollectionIterator(); i.hasNext(); ) {
+            final Collection collection = i.next();
+            if (collection.getURI().startsWith(XmldbURI.SYSTEM))
+                {continue;}
+            final Map<QName, List<CompositeIndexSpec>> config =
+                CompositeRangeIndexWorker.getConfiguration(context.getBroker(), collection);
+            final List<CompositeIndexSpec> specs = config == null ? null : config.get(qname);
+            if (specs == null)
+                {return null;}
+            if (common == null)
+                {common = new ArrayList<CompositeIndexSpec>(specs);}
+            else
+                {common.retainAll(specs);}
+            if (common.isEmpty())
+                {return null;}
+        }
+        return common;
+    }
+
+    private static GeneralComparison findComparison(List<GeneralComparison> comparisons, QName field, int relation) {
+        for (final GeneralComparison comparison : comparisons) {
+            if (comparison.getRelation() == relation && isIndexable(comparison) &&
+                    comparison.getContextQName().compareTo(field) == 0)
+                {return comparison;}
+        }
+        return null;
+    }
+
+    private boolean covers(Optimizable optimizable) {
+        if (optimizable == lower || optimizable == upper)
+            {return true;}
+        for (int i = 0; i < equals.length; i++) {
+            if (equals[i] == optimizable)
+                {return true;}
+        }
+        return false;
+    }
+
+    @Override
+    public boolean canOptimize(Sequence contextSequence) {
+        return true;
+    }
+
+    @Override
+    public boolean optimizeOnSelf() {
+        return true;
+    }
+
+    @Override
+    public boolean optimizeOnChild() {
+        return false;
+    }
+
+    @Override
+    public int getOptimizeAxis() {
+        return Constants.SELF_AXIS;
+    }
+
+    @Override
+    public NodeSet preSelect(Sequence contextSequence, boolean useContext) throws XPathException {
+        final long start = System.currentTimeMillis();
+        final NodeSet contextSet = useContext ? contextSequence.toNodeSet() : null;
+        // encode the keys of the equality comparisons
+        final List<List<byte[]>> keys = new ArrayList<List<byte[]>>(equals.length);
+        for (int field = 0; field < equals.length; field++) {
+            final List<byte[]> fieldKeys = encodeKeys(field, equals[field], contextSequence);
+            if (fieldKeys == null)
+                {break;}
+            if (fieldKeys.isEmpty())
+                {return NodeSet.EMPTY_SET;}
+            keys.add(fieldKeys);
+        }
+        byte lowerKey[] = null;
+        byte upperKey[] = null;
+        if (keys.size() == equals.length) {
+            if (lower != null) {
+                final List<byte[]> fieldKeys = encodeKeys(equals.length, lower, contextSequence);
+                if (fieldKeys != null && fieldKeys.isEmpty())
+                    {return NodeSet.EMPTY_SET;}
+                // a comparison with a sequence is true if any value matches
+                lowerKey = fieldKeys == null ? null : min(fieldKeys);
+            }
+            if (upper != null) {
+                final List<byte[]> fieldKeys = encodeKeys(equals.length, upper, contextSequence);
+                if (fieldKeys != null && fieldKeys.isEmpty())
+                    {return NodeSet.EMPTY_SET;}
+                upperKey = fieldKeys == null ? null : max(fieldKeys);
+            }
+        }
+        NodeSet result;
+        if (keys.isEmpty() && lowerKey == null && upperKey == null) {
+            // the keys cannot be compared with the index: return all candidates
+            if (LOG.isDebugEnabled())
+                {LOG.debug("Keys cannot be compared using " + spec + ". Returning all " + spec.getQName() + " elements");}
+            result = context.getBroker().getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT,
+                contextSequence.getDocumentSet(), spec.getQName(), null);
+        } else {
+            final CompositeRangeIndexWorker worker = (CompositeRangeIndexWorker)
+                context.getBroker().getIndexController().getWorkerByIndexId(CompositeRangeIndex.ID);
+            result = new NewArrayNodeSet();
+            lookup(worker, contextSequence, contextSet, keys, 0, new byte[0], lowerKey, upperKey, result);
+        }
+        if (context.getProfiler().isEnabled())
+            {context.getProfiler().message(this, Profiler.OPTIMIZATIONS, "OPTIMIZATION",
+                "Using " + spec + ": found " + result.getLength() + " in " +
+                (System.currentTimeMillis() - start) + "ms");}
+        return result;
+    }
+
+    /**
+     * Scan the index for every combination of the values compared for equality.
+     */
+    private void lookup(CompositeRangeIndexWorker worker, Sequence contextSequence, NodeSet contextSet,
+            List<List<byte[]>> keys, int field, byte prefix[], byte lowerKey[], byte upperKey[], NodeSet result) {
+        if (field < keys.size()) {
+            for (final byte key[] : keys.get(field)) {
+                lookup(worker, contextSequence, contextSet, keys, field + 1, concat(prefix, key),
+                    lowerKey, upperKey, result);
+            }
+            return;
+        }
+        byte from[];
+        byte to[];
+        if (lowerKey == null && upperKey == null) {
+            from = prefix;
+            to = CompositeIndexSpec.successor(prefix);
+        } else {
+            // skip missing values, which sort first
+            final byte present[] = { CompositeIndexSpec.PRESENT };
+            from = concat(prefix, lowerKey == null ? present : lowerKey);
+            to = CompositeIndexSpec.successor(concat(prefix, upperKey == null ? present : upperKey));
+        }
+        result.addAll(worker.find(contextSequence.getDocumentSet(), contextSet, spec, from, to));
+    }
+
+    /**
+     * Evaluate the right operand of a comparison and encode the values.
+     *
+     * @return the encoded values or null if a value cannot be compared using the index
+     */
+    private List<byte[]> encodeKeys(int field, GeneralComparison comparison, Sequence contextSequence)
+            throws XPathException {
+        final Sequence rightSeq = comparison.getRight().eval(contextSequence);
+        final List<byte[]> keys = new ArrayList<byte[]>(rightSeq.getItemCount());
+        for (final SequenceIterator i = rightSeq.iterate(); i.hasNext(); ) {
+            final AtomicValue key = i.nextItem().atomize();
+            if (!spec.isComparable(field, key.getType()))
+                {return null;}
+            final byte data[] = spec.encode(field, key);
+            if (data == null)
+                {return null;}
+            keys.add(data);
+        }
+        return keys;
+    }
+
+    private static byte[] min(List<byte[]> keys) {
+        byte min[] = keys.get(0);
+        for (final byte key[] : keys) {
+            if (compare(key, min) < 0)
+                {min = key;}
+        }
+        return min;
+    }
+
+    private static byte[] max(List<byte[]> keys) {
+        byte max[] = keys.get(0);
+        for (final byte key[] : keys) {
+            if (compare(key, max) > 0)
+                {max = key;}
+        }
+        return max;
+    }
+
+    // compares as org.exist.storage.btree.Value does
+    private static int compare(byte k1[], byte k2[]) {
+        final int len = Math.min(k1.length, k2.length);
+        for (int i = 0; i < len; i++) {
+            if (k1[i] != k2[i])
+                {return (k1[i] & 0xFF) - (k2[i] & 0xFF);}
+        }
+        return k1.length - k2.length;
+    }
+
+    private static byte[] concat(byte prefix[], byte suffix[]) {
+        final byte data[] = new byte[prefix.length + suffix.length];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        System.arraycopy(suffix, 0, data, prefix.length, suffix.length);
+        return data;
+    }
+
+    @Override
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        // created after analysis, nothing to do
+    }
+
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        if (contextItem != null)
+            {contextSequence = contextItem.toSequence();}
+        return preSelect(contextSequence, false);
+    }
+
+    @Override
+    public int returnsType() {
+        return Type.NODE;
+    }
+
+    @Override
+    public void dump(ExpressionDumper dumper) {
+        dumper.display(toString());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(spec).append('[');
+        for (int i = 0; i < equals.length; i++) {
+            if (i > 0)
+                {buf.append(", ");}
+            buf.append(equals[i]);
+        }
+        if (lower != null)
+            {buf.append(equals.length > 0 ? ", " : "").append(lower);}
+        if (upper != null)
+            {buf.append(equals.length > 0 || lower != null ? ", " : "").append(upper);}
+        return buf.append(']').toString();
+    }
+}
@@ -80,6 +80,10 @@ public class ElementConstructor extends NodeConstructor {
     public Expression getNameExpr() {
         return qnameExpr;
     }
+
+    public AttributeConstructor[] getAttributes() {
+        return attributes;
+    }
     
     public void addAttribute(AttributeConstructor attr) throws XPathException {
         if(attr.isNamespaceDeclaration()) {
@@ -22,11 +22,13 @@
  */
 package org.exist.xquery;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.exist.dom.NodeSet;
 import org.exist.memtree.NodeImpl;
+import org.exist.xquery.functions.fn.FunPosition;
 import org.exist.xquery.util.ExpressionDumper;
 import org.exist.xquery.value.*;
 
@@ -43,6 +45,10 @@ public class FilteredExpression extends AbstractExpression {
     protected boolean abbreviated = false;
     final protected List<Predicate> predicates = new ArrayList<Predicate>(2);
     private Expression parent;
+    // the FLWOR expression with an "order by" clause which is filtered, if any
+    private BindingExpression orderedSource = null;
+    // number of leading items of the ordered expression selected by the first predicate
+    private int orderLimit = 0;
 
     /**
      * @param context
@@ -80,6 +86,60 @@ public class FilteredExpression extends AbstractExpression {
             for (final Predicate pred : predicates) {
                 pred.analyze(newContext);
             }
+            orderedSource = BindingExpression.getOrderedExpression(expression);
+            if (orderedSource != null)
+                {orderLimit = getPositionLimit(predicates.get(0));}
+        }
+    }
+
+    /**
+     * If the predicate only selects the first n items, i.e. it is of the form [n],
+     * [position() = n], [position() le n] or [position() lt n + 1] with a literal n,
+     * return n. Otherwise return 0.
+     */
+    private static int getPositionLimit(Predicate pred) {
+        if (pred.getLength() != 1)
+            {return 0;}
+        final Expression inner = unwrap(pred.getExpression(0));
+        if (inner instanceof LiteralValue)
+            {return getLiteralInt(inner);}
+        if (!(inner instanceof GeneralComparison))
+            {return 0;}
+        final GeneralComparison comparison = (GeneralComparison) inner;
+        final Expression left = unwrap(comparison.getLeft());
+        if (!(left instanceof InternalFunctionCall &&
+                ((InternalFunctionCall) left).getFunction() instanceof FunPosition))
+            {return 0;}
+        final int n = getLiteralInt(unwrap(comparison.getRight()));
+        switch (comparison.getRelation()) {
+        case Constants.EQ:
+        case Constants.LTEQ:
+            return n;
+        case Constants.LT:
+            return n > 0 ? n - 1 : 0;
+        default:
+            return 0;
+        }
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+            expr = ((PathExpr) expr).getExpression(0);
+        }
+        return expr;
+    }
+
+    private static int getLiteralInt(Expression expr) {
+        if (!(expr instanceof LiteralValue))
+            {return 0;}
+        final AtomicValue value = ((LiteralValue) expr).getValue();
+        if (!(value instanceof IntegerValue))
+            {return 0;}
+        try {
+            final BigInteger n = value.toJavaObject(BigInteger.class);
+            return n.signum() > 0 && n.bitLength() < 31 ? n.intValue() : 0;
+        } catch (final XPathException e) {
+            return 0;
         }
     }
 
@@ -101,6 +161,8 @@ public class FilteredExpression extends AbstractExpression {
         if (contextItem != null)
             {contextSequence = contextItem.toSequence();}
         Sequence result;
+        if (orderLimit > 0 && !abbreviated)
+            {orderedSource.setOrderLimit(orderLimit);}
         final Sequence seq = expression.eval(contextSequence, contextItem);
         if (seq.isEmpty())
             {result = Sequence.EMPTY_SEQUENCE;}
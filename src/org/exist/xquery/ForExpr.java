@@ -48,6 +48,10 @@ public class ForExpr extends BindingExpression {
 
     private String positionalVariable = null;
 
+    // aggregates computed while grouping, see GroupAggregate
+    private GroupAggregate groupAggregates[] = null;
+    private boolean groupAggregatesChecked = false;
+
     public ForExpr(XQueryContext context) {
         super(context);
     }
@@ -147,6 +151,10 @@ public class ForExpr extends BindingExpression {
             // restore the local variable stack
             context.popLocalVariables(mark);
         }
+        if (groupSpecs != null && !groupAggregatesChecked) {
+            groupAggregates = GroupAggregate.rewrite(context, varName, groupReturnExpr, orderBy);
+            groupAggregatesChecked = true;
+        }
     }
 
     /**
@@ -174,6 +182,7 @@ public class ForExpr extends BindingExpression {
                 "RESULT SEQUENCE", resultSequence);}
         }
         context.expressionStart(this);
+        final int orderLimit = takeOrderLimit();
         // bv - Declare grouping variables and initiate grouped sequence
         LocalVariable groupKeyVar[] = null; 
         if (groupSpecs != null){ 
@@ -196,6 +205,8 @@ public class ForExpr extends BindingExpression {
             // Evaluate the "in" expression
             in = inputSequence.eval(contextSequence, null);
             clearContext(getExpressionId(), in);
+            if (groupSpecs != null && GroupAggregate.canAggregate(groupAggregates, in))
+                {groupedSequence.setAggregates(groupAggregates);}
             // Declare the iteration variable
             var = new LocalVariable(QName.parse(context, varName, null));
             var.setSequenceType(sequenceType);
@@ -249,7 +260,7 @@ public class ForExpr extends BindingExpression {
             // order expressions for every item when it is added to the result sequence.
             if (resultSequence == null) {
                 if (orderSpecs != null && !fastOrderBy) {
-                    resultSequence = new OrderedValueSequence(orderSpecs, in.getItemCount());
+                    resultSequence = createOrderedSequence(in.getItemCount(), orderLimit);
                 } else {
                     resultSequence = new ValueSequence();
                     ((ValueSequence)resultSequence).keepUnOrdered(unordered);
@@ -331,12 +342,14 @@ public class ForExpr extends BindingExpression {
         if (groupSpecs!=null){
             mark = context.markLocalVariables(false);
             context.declareVariableBinding(var);
-            for (final Iterator<String> it = groupedSequence.iterate(); it.hasNext(); ){
-                final GroupedValueSequence currentGroup = groupedSequence.get(it.next());
+            for (final Iterator<GroupedValueSequence> it = groupedSequence.iterate(); it.hasNext(); ){
+                final GroupedValueSequence currentGroup = it.next();
                 context.proceed(this);
                 // set binding variable to current group
                 var.setValue(currentGroup);
-                var.checkType();
+                // an aggregated group does not contain any items
+                if (!currentGroup.isAggregated())
+                    {var.checkType();}
                 //set value of grouping keys for the current group 
                 for (int i=0; i< groupKeyVar.length ; i ++) {
                     groupKeyVar[i].setValue(currentGroup.getGroupKey().itemAt(i).toSequence());
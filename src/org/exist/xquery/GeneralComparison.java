@@ -306,6 +306,16 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Returns the name of the nodes compared by this expression as determined
+     * during static analysis, or null if the name could not be determined.
+     */
+    public QName getContextQName()
+    {
+        return( contextQName );
+    }
+
+
     public NodeSet preSelect( Sequence contextSequence, boolean useContext ) throws XPathException
     {
         // the expression can be called multiple times, so we need to clear the previous preselectResult
@@ -1241,7 +1251,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
         for( final Iterator<Collection> i = contextSequence.getCollectionIterator(); i.hasNext(); ) {
             final Collection collection = i.next();
 
-            if( collection.getURI().equalsInternal( XmldbURI.SYSTEM_COLLECTION_URI ) ) {
+            if( collection.getURI().equalsInternal( XmldbURI.SYSTEM ) ) {
                 continue;
             }
             final IndexSpec idxcfg = collection.getIndexConfiguration( context.getBroker() );
@@ -0,0 +1,457 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exist.dom.NodeSet;
+import org.exist.xquery.functions.fn.ExtFulltext;
+import org.exist.xquery.functions.fn.FunCount;
+import org.exist.xquery.functions.fn.FunMax;
+import org.exist.xquery.functions.fn.FunMin;
+import org.exist.xquery.functions.fn.FunSum;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.AbstractSequence;
+import org.exist.xquery.value.GroupedValueSequence;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.MemoryNodeSet;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Replaces the argument of a call to fn:count, fn:sum, fn:min or fn:max in the
+ * return clause of a "group by", if the argument only depends on the grouped
+ * variable, e.g. <code>count($x)</code> or <code>sum($x/@price)</code>.
+ *
+ * While the groups are being built, the argument is evaluated for every item
+ * added to a group and the result is folded into a {@link State} kept by the
+ * group, so the items of the group do not need to be kept. For sum, min and max,
+ * the values are collected and reduced to a single value by calling the
+ * function itself whenever {@link #COMPACT_THRESHOLD} values have been collected.
+ * When the return clause is evaluated, the argument returns the reduced values
+ * of the current group.
+ *
+ * If the groups do keep their items, the expression just evaluates the original
+ * argument.
+ */
+public class GroupAggregate extends AbstractExpression {
+
+    /** number of values collected before they are reduced */
+    public final static int COMPACT_THRESHOLD = 256;
+
+    /**
+     * The state of one aggregate for one group.
+     */
+    public final static class State {
+
+        private long count = 0;
+        private ValueSequence values = null;
+        // false if reducing the values failed. The error is reported when the
+        // function is evaluated for the group.
+        private boolean compactable = true;
+    }
+
+    private final Function function;
+    private final Expression argument;
+    private final String varName;
+    private final boolean isCount;
+    // true if the argument is a path starting at the grouped variable
+    private final boolean isPath;
+    private final int index;
+
+    // the state which is being reduced
+    private State compacting = null;
+
+    private GroupAggregate(XQueryContext context, Function function, String varName, boolean isPath, int index) {
+        super(context);
+        this.function = function;
+        this.argument = function.getArgument(0);
+        this.varName = varName;
+        this.isCount = function instanceof FunCount;
+        this.isPath = isPath;
+        this.index = index;
+    }
+
+    /**
+     * Find the aggregate function calls in the return clause of a "group by" which can
+     * be computed while grouping and replace their arguments. This is only possible
+     * if the grouped variable is not used anywhere else in the return clause or in the
+     * order by clause.
+     *
+     * @param context the query context
+     * @param varName name of the grouped variable
+     * @param groupReturnExpr the return clause
+     * @param orderBy the order specs of the FLWOR expression or null
+     * @return the aggregates or null if the groups have to keep their items
+     */
+    public static GroupAggregate[] rewrite(XQueryContext context, String varName,
+            Expression groupReturnExpr, OrderSpec orderBy[]) {
+        final VariableReferenceCounter references = new VariableReferenceCounter(varName);
+        groupReturnExpr.accept(references);
+        if (orderBy != null) {
+            for (final OrderSpec spec : orderBy) {
+                spec.getSortExpression().accept(references);
+            }
+        }
+        if (!references.complete || references.count == 0)
+            {return null;}
+
+        final List<Function> functions = new ArrayList<Function>();
+        final List<Boolean> paths = new ArrayList<Boolean>();
+        groupReturnExpr.accept(new DefaultExpressionVisitor() {
+            public void visitBuiltinFunction(Function function) {
+                if ((function instanceof FunCount || function instanceof FunSum ||
+                        function instanceof FunMin || function instanceof FunMax) &&
+                        function.getArgumentCount() == 1) {
+                    final int type = argumentType(function.getArgument(0), varName);
+                    if (type != NO_AGGREGATE) {
+                        functions.add(function);
+                        paths.add(Boolean.valueOf(type == PATH_AGGREGATE));
+                        return;
+                    }
+                }
+                super.visitBuiltinFunction(function);
+            }
+        });
+        final VariableReferenceCounter found = new VariableReferenceCounter(varName);
+        for (final Function function : functions) {
+            function.getArgument(0).accept(found);
+        }
+        // the variable is referenced outside of the aggregates
+        if (found.count != references.count)
+            {return null;}
+
+        final GroupAggregate aggregates[] = new GroupAggregate[functions.size()];
+        for (int i = 0; i < aggregates.length; i++) {
+            final Function function = functions.get(i);
+            aggregates[i] = new GroupAggregate(context, function, varName, paths.get(i).booleanValue(), i);
+            function.replace(function.getArgument(0), aggregates[i]);
+        }
+        return aggregates;
+    }
+
+    /**
+     * Check if the aggregates can be computed for the given input sequence of the
+     * grouped variable. Aggregates over a path expression are only computed if the
+     * input is a node set, i.e. does not contain duplicates.
+     */
+    public static boolean canAggregate(GroupAggregate aggregates[], Sequence input) {
+        if (aggregates == null)
+            {return false;}
+        if (input instanceof NodeSet)
+            {return true;}
+        for (final GroupAggregate aggregate : aggregates) {
+            if (aggregate.isPath)
+                {return false;}
+        }
+        return true;
+    }
+
+    private final static int NO_AGGREGATE = 0;
+    private final static int VARIABLE_AGGREGATE = 1;
+    private final static int PATH_AGGREGATE = 2;
+
+    private static int argumentType(Expression expr, String varName) {
+        // skip the checks added by Function.checkArgument
+        while (expr instanceof DynamicCardinalityCheck || expr instanceof Atomize ||
+                expr instanceof UntypedValueCheck || expr instanceof DynamicTypeCheck) {
+            expr = expr.getSubExpression(0);
+        }
+        if (expr instanceof VariableReference)
+            {return ((VariableReference) expr).getName().equals(varName) ? VARIABLE_AGGREGATE : NO_AGGREGATE;}
+        if (expr.getClass() != PathExpr.class)
+            {return NO_AGGREGATE;}
+        final PathExpr path = (PathExpr) expr;
+        if (path.getLength() < 2 || !(path.getExpression(0) instanceof VariableReference) ||
+                !((VariableReference) path.getExpression(0)).getName().equals(varName))
+            {return NO_AGGREGATE;}
+        // child and attribute steps of different nodes never select the same node
+        for (int i = 1; i < path.getLength(); i++) {
+            final Expression step = path.getExpression(i);
+            if (!(step instanceof LocationStep))
+                {return NO_AGGREGATE;}
+            final LocationStep locationStep = (LocationStep) step;
+            if (locationStep.hasPredicates() ||
+                    (locationStep.getAxis() != Constants.CHILD_AXIS &&
+                    locationStep.getAxis() != Constants.ATTRIBUTE_AXIS))
+                {return NO_AGGREGATE;}
+        }
+        return PATH_AGGREGATE;
+    }
+
+    /**
+     * Counts the references to a variable. If the visitor meets an expression
+     * it cannot look into, the count is marked as incomplete.
+     */
+    private final static class VariableReferenceCounter extends DefaultExpressionVisitor {
+
+        private final String varName;
+        private int count = 0;
+        private boolean complete = true;
+
+        VariableReferenceCounter(String varName) {
+            this.varName = varName;
+        }
+
+        @Override
+        public void visit(Expression expression) {
+            if (expression instanceof LiteralValue || expression instanceof RootNode)
+                {return;}
+            if (expression.getSubExpressionCount() == 0) {
+                complete = false;
+                return;
+            }
+            for (int i = 0; i < expression.getSubExpressionCount(); i++) {
+                expression.getSubExpression(i).accept(this);
+            }
+        }
+
+        @Override
+        public void visitVariableReference(VariableReference ref) {
+            if (ref.getName().equals(varName))
+                {count++;}
+        }
+
+        @Override
+        public void visitFunctionCall(FunctionCall call) {
+            // the function body cannot see the variable
+            for (int i = 0; i < call.getArgumentCount(); i++) {
+                call.getArgument(i).accept(this);
+            }
+        }
+
+        @Override
+        public void visitGeneralComparison(GeneralComparison comparison) {
+            comparison.getLeft().accept(this);
+            comparison.getRight().accept(this);
+        }
+
+        @Override
+        public void visitAndExpr(OpAnd and) {
+            and.getLeft().accept(this);
+            and.getRight().accept(this);
+        }
+
+        @Override
+        public void visitOrExpr(OpOr or) {
+            or.getLeft().accept(this);
+            or.getRight().accept(this);
+        }
+
+        @Override
+        public void visitFilteredExpr(FilteredExpression filtered) {
+            filtered.getExpression().accept(this);
+            for (final Predicate predicate : filtered.getPredicates()) {
+                predicate.accept(this);
+            }
+        }
+
+        @Override
+        public void visitElementConstructor(ElementConstructor constructor) {
+            final AttributeConstructor attributes[] = constructor.getAttributes();
+            if (attributes != null) {
+                for (final AttributeConstructor attribute : attributes) {
+                    visitAttribConstructor(attribute);
+                }
+            }
+            super.visitElementConstructor(constructor);
+        }
+
+        @Override
+        public void visitCastExpr(CastExpression expression) {
+            complete = false;
+        }
+
+        @Override
+        public void visitFtExpression(ExtFulltext fulltext) {
+            complete = false;
+        }
+
+        @Override
+        public void visitTryCatch(TryCatchExpression tryCatch) {
+            complete = false;
+        }
+    }
+
+    /**
+     * Add the current item of the grouped variable to the state of a group.
+     */
+    public void add(State state) throws XPathException {
+        if (isCount && !isPath) {
+            state.count++;
+            return;
+        }
+        final Sequence values = argument.eval(null, null);
+        if (isCount) {
+            state.count += values.getItemCount();
+            return;
+        }
+        if (state.values == null)
+            {state.values = new ValueSequence();}
+        state.values.addAll(values);
+        if (state.compactable && state.values.getItemCount() >= COMPACT_THRESHOLD)
+            {compact(state);}
+    }
+
+    private void compact(State state) {
+        final Sequence result;
+        compacting = state;
+        try {
+            result = function.eval(null, null);
+        } catch (final XPathException e) {
+            state.compactable = false;
+            return;
+        } finally {
+            compacting = null;
+        }
+        state.values = new ValueSequence();
+        try {
+            state.values.addAll(result);
+        } catch (final XPathException e) {
+            // cannot happen for a value sequence
+        }
+    }
+
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        argument.analyze(contextInfo);
+    }
+
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        if (compacting != null)
+            {return compacting.values;}
+        final Sequence group = context.resolveVariable(varName).getValue();
+        if (group instanceof GroupedValueSequence && ((GroupedValueSequence) group).isAggregated()) {
+            final State state = ((GroupedValueSequence) group).getAggregateState(index);
+            if (isCount)
+                {return new CountedSequence(state.count);}
+            return state.values == null ? Sequence.EMPTY_SEQUENCE : state.values;
+        }
+        return argument.eval(contextSequence, contextItem);
+    }
+
+    public int returnsType() {
+        return argument.returnsType();
+    }
+
+    public int getCardinality() {
+        return argument.getCardinality();
+    }
+
+    public int getDependencies() {
+        return argument.getDependencies();
+    }
+
+    public void resetState(boolean postOptimization) {
+        super.resetState(postOptimization);
+        argument.resetState(postOptimization);
+    }
+
+    public void accept(ExpressionVisitor visitor) {
+        argument.accept(visitor);
+    }
+
+    public void dump(ExpressionDumper dumper) {
+        argument.dump(dumper);
+    }
+
+    public String toString() {
+        return argument.toString();
+    }
+
+    public int getLine() {
+        return argument.getLine();
+    }
+
+    public int getColumn() {
+        return argument.getColumn();
+    }
+
+    public int getSubExpressionCount() {
+        return 1;
+    }
+
+    public Expression getSubExpression(int index) {
+        if (index == 0) {return argument;}
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + getSubExpressionCount());
+    }
+
+    /**
+     * Passed to fn:count instead of the items of a group, which are not available.
+     */
+    private static class CountedSequence extends AbstractSequence {
+
+        private final long count;
+
+        private CountedSequence(long count) {
+            this.count = count;
+            this.isEmpty = count == 0;
+            this.hasOne = count == 1;
+        }
+
+        public int getItemType() {
+            return Type.ITEM;
+        }
+
+        public int getItemCount() {
+            return (int) count;
+        }
+
+        public boolean isEmpty() {
+            return isEmpty;
+        }
+
+        public boolean hasOne() {
+            return hasOne;
+        }
+
+        public SequenceIterator iterate() throws XPathException {
+            throw new XPathException("The items of the group are not available");
+        }
+
+        public SequenceIterator unorderedIterator() throws XPathException {
+            return iterate();
+        }
+
+        public void add(Item item) throws XPathException {
+            throw new XPathException("Cannot add items to the group");
+        }
+
+        public Item itemAt(int pos) {
+            return null;
+        }
+
+        public NodeSet toNodeSet() throws XPathException {
+            throw new XPathException("The items of the group are not available");
+        }
+
+        public MemoryNodeSet toMemNodeSet() throws XPathException {
+            throw new XPathException("The items of the group are not available");
+        }
+
+        public void removeDuplicates() {
+            // nothing to do
+        }
+    }
+}
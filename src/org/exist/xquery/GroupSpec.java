@@ -59,6 +59,10 @@ public class GroupSpec {
         this.collation = collation;
     }
 
+    public String getCollation() {
+        return collation;
+    }
+
     public void analyze(AnalyzeContextInfo contextInfo) throws XPathException { 
         expression.analyze(contextInfo); 
     }
@@ -118,6 +118,7 @@ public class LetExpr extends BindingExpression {
                     "RESULT SEQUENCE", resultSequence);}
         }
         context.expressionStart(this);
+        final int orderLimit = takeOrderLimit();
         context.pushDocumentContext();
         try {
             //bv : Declare grouping variables and initiate grouped sequence
@@ -176,7 +177,7 @@ public class LetExpr extends BindingExpression {
                 //order expressions for every item when it is added to the result sequence.
                 if (resultSequence == null) {
                     if(orderSpecs != null && !fastOrderBy)
-                        {resultSequence = new OrderedValueSequence(orderSpecs, in.getItemCount());}
+                        {resultSequence = createOrderedSequence(in.getItemCount(), orderLimit);}
                 }
                 if (groupedSequence==null){
                     if (returnExpr instanceof BindingExpression) {
@@ -248,8 +249,8 @@ public class LetExpr extends BindingExpression {
             if (groupSpecs!=null) {
                 mark = context.markLocalVariables(false);
                 context.declareVariableBinding(var);
-                for (final Iterator<String> it = groupedSequence.iterate(); it.hasNext();){ 
-                    final GroupedValueSequence currentGroup = groupedSequence.get(it.next()); 
+                for (final Iterator<GroupedValueSequence> it = groupedSequence.iterate(); it.hasNext();){ 
+                    final GroupedValueSequence currentGroup = it.next(); 
                     context.proceed(this);
                     // set binding variable to current group
                     var.setValue(currentGroup);
@@ -25,6 +25,7 @@ import org.exist.xquery.pragmas.Optimize;
 import org.apache.log4j.Logger;
 import org.exist.xquery.functions.fn.ExtFulltext;
 import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.Type;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -46,6 +47,9 @@ import java.util.List;
  *
  * <pre>declare option exist:optimize "enable=yes|no";</pre>
  *
+ * If index statistics are available, the optimizer also reorders the operands of a logical
+ * and, so the operand which is expected to select the fewest nodes is evaluated first
+ * (see {@link SelectivityEstimator}).
  */
 public class Optimizer extends DefaultExpressionVisitor {
 
@@ -56,6 +60,8 @@ public class Optimizer extends DefaultExpressionVisitor {
     private int predicates = 0;
 
     private boolean hasOptimized = false;
+
+    private SelectivityEstimator estimator = null;
     
     public Optimizer(XQueryContext context) {
         this.context = context;
@@ -215,17 +221,51 @@ public class Optimizer extends DefaultExpressionVisitor {
                 }
                 predicate = (Predicate) parent;
             }
+            final List<Expression> operands = new ArrayList<Expression>();
+            collectOperands(and, operands);
+            for (final Expression operand : operands) {
+                // [a and position() = 1] is not equivalent to [a][position() = 1]
+                if (isPositional(operand))
+                    {return;}
+            }
             if (LOG.isTraceEnabled())
                 {LOG.trace("Rewriting boolean expression: " + ExpressionDumper.dump(and));}
             hasOptimized = true;
             final LocationStep step = (LocationStep) predicate.getParent();
-            final Predicate newPred = new Predicate(context);
-            newPred.add(and.getRight());
-            step.insertPredicate(predicate, newPred);
-            path.replace(and, and.getLeft());
+            if (operands.size() > 2 && canReorder(operands)) {
+                // split the whole chain into separate predicates, the most
+                // selective one first
+                orderBySelectivity(operands);
+                Predicate previous = predicate;
+                for (int i = 1; i < operands.size(); i++) {
+                    final Predicate newPred = new Predicate(context);
+                    newPred.add(operands.get(i));
+                    step.insertPredicate(previous, newPred);
+                    previous = newPred;
+                }
+                path.replace(and, operands.get(0));
+            } else {
+                Expression first = and.getLeft();
+                Expression second = and.getRight();
+                if (canReorder(operands) && isMoreSelective(second, first)) {
+                    first = and.getRight();
+                    second = and.getLeft();
+                }
+                final Predicate newPred = new Predicate(context);
+                newPred.add(second);
+                step.insertPredicate(predicate, newPred);
+                path.replace(and, first);
+            }
         } else if (and.isRewritable()) {
-        	and.getLeft().accept(this);
-			and.getRight().accept(this);
+            // evaluate the more selective operand first, e.g. in the condition of an if expression
+            if (isMoreSelective(and.getRight(), and.getLeft())) {
+                if (LOG.isTraceEnabled())
+                    {LOG.trace("Swapping operands of: " + ExpressionDumper.dump(and));}
+                and.swapOperands();
+                hasOptimized = true;
+            }
+            and.getLeft().accept(this);
+            and.getRight().accept(this);
         }
     }
 
@@ -260,6 +300,98 @@ public class Optimizer extends DefaultExpressionVisitor {
         --predicates;
     }
 
+    /**
+     * Flatten a chain of logical and expressions into a list of operands.
+     */
+    private void collectOperands(Expression expr, List<Expression> operands) {
+        if (expr instanceof OpAnd) {
+            collectOperands(((OpAnd) expr).getLeft(), operands);
+            collectOperands(((OpAnd) expr).getRight(), operands);
+        } else if (expr instanceof PathExpr && ((PathExpr) expr).getLength() == 1 &&
+                ((PathExpr) expr).getExpression(0) instanceof OpAnd) {
+            collectOperands(((PathExpr) expr).getExpression(0), operands);
+        } else
+            {operands.add(expr);}
+    }
+
+    /**
+     * Returns true if the expression refers to the context position, e.g.
+     * by calling position() or last().
+     */
+    private boolean isPositional(Expression expr) {
+        if (Dependency.dependsOn(expr, Dependency.CONTEXT_POSITION))
+            {return true;}
+        if (expr instanceof PathExpr) {
+            final PathExpr path = (PathExpr) expr;
+            for (int i = 0; i < path.getLength(); i++) {
+                if (isPositional(path.getExpression(i)))
+                    {return true;}
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Operands of a logical and may only be reordered if an estimate is
+     * available for each of them. They may only be moved into separate predicates
+     * if they are not numeric.
+     */
+    private boolean canReorder(List<Expression> operands) {
+        if (!getEstimator().isAvailable())
+            {return false;}
+        for (final Expression operand : operands) {
+            if (getEstimator().estimate(operand) == SelectivityEstimator.UNKNOWN)
+                {return false;}
+            final int type = operand.returnsType();
+            if (!(Type.subTypeOf(type, Type.NODE) || Type.subTypeOf(type, Type.BOOLEAN)))
+                {return false;}
+        }
+        return true;
+    }
+
+    /**
+     * Sort the operands by the estimated number of nodes they select.
+     */
+    private void orderBySelectivity(List<Expression> operands) {
+        final double[] estimates = new double[operands.size()];
+        for (int i = 0; i < estimates.length; i++) {
+            estimates[i] = getEstimator().estimate(operands.get(i));
+        }
+        // insertion sort: the list is short and the sort needs to be stable
+        for (int i = 1; i < estimates.length; i++) {
+            final double estimate = estimates[i];
+            final Expression operand = operands.get(i);
+            int j = i - 1;
+            while (j >= 0 && estimates[j] > estimate) {
+                estimates[j + 1] = estimates[j];
+                operands.set(j + 1, operands.get(j));
+                j--;
+            }
+            estimates[j + 1] = estimate;
+            operands.set(j + 1, operand);
+        }
+        if (LOG.isTraceEnabled())
+            {LOG.trace("Reordered operands of logical and: " + operands);}
+    }
+
+    /**
+     * Returns true if both expressions can be estimated and the first one is
+     * expected to select fewer nodes.
+     */
+    private boolean isMoreSelective(Expression expr, Expression other) {
+        final double estimate = getEstimator().estimate(expr);
+        if (estimate == SelectivityEstimator.UNKNOWN)
+            {return false;}
+        final double otherEstimate = getEstimator().estimate(other);
+        return otherEstimate != SelectivityEstimator.UNKNOWN && estimate < otherEstimate;
+    }
+
+    private SelectivityEstimator getEstimator() {
+        if (estimator == null)
+            {estimator = new SelectivityEstimator(context);}
+        return estimator;
+    }
+
     private boolean canOptimize(List<Optimizable> list) {
         for (final Optimizable optimizable : list) {
             final int axis = optimizable.getOptimizeAxis();
@@ -0,0 +1,137 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import org.exist.dom.QName;
+import org.exist.storage.ElementValue;
+import org.exist.storage.statistics.IndexStatistics;
+
+import java.util.List;
+
+/**
+ * Estimates the number of nodes selected by an expression, based on the
+ * statistics collected by {@link IndexStatistics}. Used by the {@link Optimizer}
+ * and the {@link org.exist.xquery.pragmas.Optimize} pragma to decide on the
+ * evaluation order of predicates and on the use of index pre-selection.
+ *
+ * Currently only general comparisons on a named node are estimated:
+ * an equality comparison is expected to select 1/n of the nodes, where n is the
+ * estimated number of distinct values. Other comparisons are assumed to select
+ * a third of the nodes.
+ */
+public class SelectivityEstimator {
+
+    /** Returned if no estimate can be given for an expression */
+    public final static double UNKNOWN = -1;
+
+    private final static double RANGE_SELECTIVITY = 1.0 / 3;
+
+    private final IndexStatistics stats;
+
+    public SelectivityEstimator(XQueryContext context) {
+        stats = (IndexStatistics) context.getBroker().getBrokerPool().getIndexManager().getIndexById(IndexStatistics.ID);
+    }
+
+    /**
+     * Returns true if statistics are available.
+     */
+    public boolean isAvailable() {
+        return stats != null;
+    }
+
+    /**
+     * Returns the number of nodes with the given name in the database
+     * or {@link #UNKNOWN} if no statistics are available.
+     */
+    public double getNodeCount(QName qname) {
+        if (stats == null || qname == null)
+            {return UNKNOWN;}
+        return stats.getNodeCount(qname);
+    }
+
+    /**
+     * Returns the estimated fraction of nodes selected by the comparison or
+     * {@link #UNKNOWN}.
+     */
+    public double getSelectivity(GeneralComparison comparison) {
+        final QName qname = getComparedQName(comparison);
+        if (stats == null || qname == null)
+            {return UNKNOWN;}
+        final long distinct = stats.getDistinctValues(qname);
+        if (distinct <= 0)
+            {return UNKNOWN;}
+        switch (comparison.getRelation()) {
+            case Constants.EQ:
+                return 1.0 / distinct;
+            case Constants.NEQ:
+                return 1.0 - 1.0 / distinct;
+            default:
+                return RANGE_SELECTIVITY;
+        }
+    }
+
+    /**
+     * Returns the estimated number of nodes selected by the expression or
+     * {@link #UNKNOWN}. Logical operators are estimated from their operands.
+     */
+    public double estimate(Expression expr) {
+        if (stats == null)
+            {return UNKNOWN;}
+        if (expr instanceof GeneralComparison) {
+            final GeneralComparison comparison = (GeneralComparison) expr;
+            final double selectivity = getSelectivity(comparison);
+            if (selectivity == UNKNOWN)
+                {return UNKNOWN;}
+            return selectivity * stats.getNodeCount(getComparedQName(comparison));
+        } else if (expr instanceof OpAnd || expr instanceof OpOr) {
+            final double left = estimate(((LogicalOp) expr).getLeft());
+            final double right = estimate(((LogicalOp) expr).getRight());
+            if (left == UNKNOWN || right == UNKNOWN)
+                {return UNKNOWN;}
+            return expr instanceof OpAnd ? Math.min(left, right) : left + right;
+        } else if (expr instanceof PathExpr && ((PathExpr) expr).getLength() == 1) {
+            return estimate(((PathExpr) expr).getExpression(0));
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Determine the name of the nodes compared by the comparison. If static analysis did
+     * not record the name, e.g. because the path starts with a variable, use the name
+     * of the last location step.
+     */
+    private QName getComparedQName(GeneralComparison comparison) {
+        final QName qname = comparison.getContextQName();
+        if (qname != null)
+            {return qname;}
+        final List<LocationStep> steps = BasicExpressionVisitor.findLocationSteps(comparison.getLeft());
+        if (steps.isEmpty())
+            {return null;}
+        final LocationStep last = steps.get(steps.size() - 1);
+        if (last == null || last.getTest().isWildcardTest() || last.getTest().getName() == null)
+            {return null;}
+        final QName name = new QName(last.getTest().getName());
+        if (last.getAxis() == Constants.ATTRIBUTE_AXIS || last.getAxis() == Constants.DESCENDANT_ATTRIBUTE_AXIS)
+            {name.setNameType(ElementValue.ATTRIBUTE);}
+        return name;
+    }
+}
@@ -175,9 +175,12 @@ public class XQuery {
                 }
             }
             
+            final long compilationTime = System.currentTimeMillis() - start;
+            context.setCompilationTime(compilationTime);
+            getXQueryPool().compiled(compilationTime);
             if (LOG.isDebugEnabled()) {
             	final NumberFormat nf = NumberFormat.getNumberInstance();
-            	LOG.debug("Compilation took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
+            	LOG.debug("Compilation took "  +  nf.format(compilationTime) + " ms");
             }
             
             return expr;
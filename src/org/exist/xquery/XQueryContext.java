@@ -307,6 +307,9 @@ public class XQueryContext implements BinaryValueManager, Context
     private boolean                                    isShared                      = false;
 
     private Source source = null;
+
+    /** time spent compiling the expression, used by the XQueryPool to rate entries */
+    private long                                       compilationTime               = 0;
     
     private XACMLSource                                xacmlSource                        = null;
 
@@ -2859,6 +2862,7 @@ public class XQueryContext implements BinaryValueManager, Context
     {
         LOG.debug( "Loading module from " + location );
 
+        final long start = System.currentTimeMillis();
         Reader reader;
 
         try {
@@ -2917,6 +2921,7 @@ public class XQueryContext implements BinaryValueManager, Context
 
             modExternal.setSource( source );
             modContext.setSource(source);
+            modContext.setCompilationTime(System.currentTimeMillis() - start);
             modExternal.setIsReady(true);
             return( modExternal );
         }
@@ -3546,6 +3551,17 @@ public class XQueryContext implements BinaryValueManager, Context
         this.source = source;
     }
 
+    /**
+     * Returns the time in milliseconds it took to compile the query.
+     */
+    public long getCompilationTime() {
+        return compilationTime;
+    }
+
+    public void setCompilationTime(final long compilationTime) {
+        this.compilationTime = compilationTime;
+    }
+
 
     // ====================================================================================
 
@@ -28,6 +28,7 @@ import java.util.Comparator;
 import java.util.TreeSet;
 
 import org.exist.dom.QName;
+import org.exist.xquery.AnalyzeContextInfo;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.Constants;
 import org.exist.xquery.Dependency;
@@ -86,10 +87,21 @@ public class FunDistinctValues extends CollatingFunction {
         )
     };
 
+    // set if the values can be read from a range index
+    private IndexedValues indexedValues = null;
+
     public FunDistinctValues(XQueryContext context, FunctionSignature signature) {
         super(context, signature);
     }
 
+    /* (non-Javadoc)
+     * @see org.exist.xquery.Function#analyze(org.exist.xquery.AnalyzeContextInfo)
+     */
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        super.analyze(contextInfo);
+        indexedValues = IndexedValues.create(context, getArgument(0), false);
+    }
+
     /* (non-Javadoc)
      * @see org.exist.xquery.PathExpr#returnsType()
      */
@@ -113,7 +125,9 @@ public class FunDistinctValues extends CollatingFunction {
                 {context.getProfiler().message(this, Profiler.START_SEQUENCES,
                     "CONTEXT ITEM", contextItem.toSequence());}
         }
-        final Sequence seq = getArgument(0).eval(contextSequence, contextItem);
+        final Sequence seq = indexedValues != null ?
+            indexedValues.eval(this, contextSequence, contextItem) :
+            getArgument(0).eval(contextSequence, contextItem);
         final Collator collator = getCollator(contextSequence, contextItem, 2);		
         final TreeSet<AtomicValue> set = new TreeSet<AtomicValue>(new ValueComparator(collator));
         final ValueSequence result = new ValueSequence();
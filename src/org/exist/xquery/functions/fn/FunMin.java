@@ -25,6 +25,7 @@ import java.text.Collator;
 
 import org.exist.dom.QName;
 import org.exist.util.Collations;
+import org.exist.xquery.AnalyzeContextInfo;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.Dependency;
 import org.exist.xquery.ErrorCodes;
@@ -115,6 +116,9 @@ public class FunMin extends CollatingFunction {
 		)
 	};
 
+	// set if the values can be read from a range index
+	private IndexedValues indexedValues = null;
+
 	/**
 	 * @param context
 	 * @param signature
@@ -123,6 +127,14 @@ public class FunMin extends CollatingFunction {
 		super(context, signature);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.exist.xquery.Function#analyze(org.exist.xquery.AnalyzeContextInfo)
+	 */
+	public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+		super.analyze(contextInfo);
+		indexedValues = IndexedValues.create(context, getArgument(0), true);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.Expression#eval(org.exist.dom.DocumentSet, org.exist.xquery.value.Sequence, org.exist.xquery.value.Item)
 	 */
@@ -138,7 +150,9 @@ public class FunMin extends CollatingFunction {
         
 		boolean computableProcessing = false;
         Sequence result;
-		final Sequence arg = getArgument(0).eval(contextSequence, contextItem);
+		final Sequence arg = indexedValues != null ?
+			indexedValues.eval(this, contextSequence, contextItem) :
+			getArgument(0).eval(contextSequence, contextItem);
 		if (arg.isEmpty())
 			{result = Sequence.EMPTY_SEQUENCE;}
         else {
@@ -42,6 +42,10 @@ import org.exist.xquery.value.ValueSequence;
  */
 public class FunSubSequence extends Function {
 
+    // the FLWOR expression with an "order by" clause passed as source, if any.
+    // Only the items up to the end of the subsequence need to be sorted.
+    private BindingExpression orderedSource = null;
+
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
                     new QName("subsequence", Function.BUILTIN_FUNCTION_NS),
@@ -87,6 +91,13 @@ public class FunSubSequence extends Function {
             if (i == 0)
                 {contextInfo.setStaticReturnType(argContextInfo.getStaticReturnType());}
         }
+        if (getArgumentCount() == 3) {
+            Expression source = getArgument(0);
+            // the source is declared as item()*, so dropping items cannot violate the check
+            if (source instanceof DynamicCardinalityCheck)
+                {source = source.getSubExpression(0);}
+            orderedSource = BindingExpression.getOrderedExpression(source);
+        }
     }
 
     /*
@@ -110,8 +121,11 @@ public class FunSubSequence extends Function {
         }
 
         Sequence result;
-        final Sequence seq = getArgument(0).eval(contextSequence, contextItem);
-        if (seq.isEmpty())
+        // if the source is sorted, evaluate it after the bounds are known
+        Sequence seq = null;
+        if (orderedSource == null)
+            {seq = getArgument(0).eval(contextSequence, contextItem);}
+        if (seq != null && seq.isEmpty())
             {result = Sequence.EMPTY_SEQUENCE;}
         else {
             int start = ((DoubleValue) getArgument(1).eval(contextSequence,
@@ -133,7 +147,13 @@ public class FunSubSequence extends Function {
                 --start;
             } else
             	{--start;}
-                        
+
+            if (seq == null) {
+                final long end = (long) Math.max(start, 0) + length;
+                if (length > 0 && end < Integer.MAX_VALUE)
+                    {orderedSource.setOrderLimit((int) end);}
+                seq = getArgument(0).eval(contextSequence, contextItem);
+            }
             Sequence tmp;
             if (seq instanceof NodeSet) {
                 tmp = new ExtArrayNodeSet();
@@ -0,0 +1,140 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery.functions.fn;
+
+import org.exist.dom.NodeSet;
+import org.exist.dom.QName;
+import org.exist.storage.ElementValue;
+import org.exist.util.ValueOccurrences;
+import org.exist.xquery.Atomize;
+import org.exist.xquery.DynamicCardinalityCheck;
+import org.exist.xquery.Expression;
+import org.exist.xquery.LocationStep;
+import org.exist.xquery.NodeTest;
+import org.exist.xquery.PathExpr;
+import org.exist.xquery.Profiler;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.pragmas.Optimize;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.UntypedAtomicValue;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Evaluates the argument of fn:distinct-values, fn:min or fn:max on the keys of a
+ * range index by QName instead of atomizing the selected nodes, which would have to
+ * be loaded from the DOM store.
+ *
+ * This is possible if the argument is a path whose last step selects elements or
+ * attributes by name, and a range index is defined on this name. The duplicate
+ * values are not needed by these functions, so the function is called with the
+ * distinct index keys of the selected nodes. With an index of type xs:string, the
+ * keys are the string values of the nodes and are passed as xs:untypedAtomic. For
+ * fn:min and fn:max, a numeric index can be used as well, its keys are passed as
+ * xs:double, which is what the values of the nodes are converted to.
+ *
+ * If there are fewer selected nodes than index keys, reading all postings would cost
+ * more than loading the nodes. In this case, and if not all selected nodes are found in
+ * the index, e.g. because the value of a node could not be converted to the index type,
+ * the nodes are atomized as usual.
+ */
+class IndexedValues {
+
+    private final XQueryContext context;
+    private final Expression path;
+    private final QName qname;
+    private final boolean numeric;
+
+    private IndexedValues(XQueryContext context, Expression path, QName qname, boolean numeric) {
+        this.context = context;
+        this.path = path;
+        this.qname = qname;
+        this.numeric = numeric;
+    }
+
+    /**
+     * Check if the values of the argument could be read from a range index.
+     *
+     * @param context the query context
+     * @param argument the argument of the function
+     * @param numeric true if the values are converted to xs:double by the function,
+     *  i.e. a numeric index can be used as well
+     * @return null if the argument does not select nodes by name
+     */
+    static IndexedValues create(XQueryContext context, Expression argument, boolean numeric) {
+        Expression expr = argument;
+        // skip the checks added by Function.checkArgument
+        while (expr instanceof DynamicCardinalityCheck || expr instanceof Atomize) {
+            expr = expr.getSubExpression(0);
+        }
+        Expression lastStep = expr;
+        if (expr.getClass() == PathExpr.class) {
+            final PathExpr pathExpr = (PathExpr) expr;
+            if (pathExpr.getLength() == 0)
+                {return null;}
+            lastStep = pathExpr.getExpression(pathExpr.getLength() - 1);
+        }
+        if (!(lastStep instanceof LocationStep))
+            {return null;}
+        final NodeTest test = ((LocationStep) lastStep).getTest();
+        if (test.isWildcardTest() || test.getName() == null)
+            {return null;}
+        final QName qname = new QName(test.getName());
+        if (test.getType() == Type.ATTRIBUTE)
+            {qname.setNameType(ElementValue.ATTRIBUTE);}
+        else if (test.getType() != Type.ELEMENT)
+            {return null;}
+        return new IndexedValues(context, expr, qname, numeric);
+    }
+
+    /**
+     * Evaluate the argument and return the atomized values or, if possible, the
+     * distinct index keys of the selected nodes.
+     */
+    Sequence eval(Expression function, Sequence contextSequence, Item contextItem) throws XPathException {
+        final Sequence nodes = path.eval(contextSequence, contextItem);
+        if (nodes.isEmpty() || !nodes.isPersistentSet())
+            {return Atomize.atomize(nodes);}
+        final NodeSet nodeSet = nodes.toNodeSet();
+        final int type = Optimize.getQNameIndexType(context, nodeSet, qname);
+        if (!(type == Type.STRING || (numeric && (type == Type.DOUBLE || type == Type.DECIMAL ||
+                type == Type.INTEGER))))
+            {return Atomize.atomize(nodes);}
+        final ValueOccurrences keys[] = context.getBroker().getValueIndex().scanIndexKeys(
+            nodeSet.getDocumentSet(), nodeSet, qname, type);
+        if (keys == null)
+            {return Atomize.atomize(nodes);}
+        if (context.getProfiler().isEnabled())
+            {context.getProfiler().message(function, Profiler.OPTIMIZATIONS, "OPTIMIZATION",
+                "Using the keys of the range index on " + qname + " instead of the node values");}
+        final ValueSequence values = new ValueSequence(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (type == Type.STRING)
+                {values.add(new UntypedAtomicValue(keys[i].getValue().getStringValue()));}
+            else
+                {values.add(keys[i].getValue().convertTo(Type.DOUBLE));}
+        }
+        return values;
+    }
+}
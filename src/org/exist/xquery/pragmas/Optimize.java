@@ -47,6 +47,7 @@ public class Optimize extends Pragma {
     private boolean enabled = true;
     private XQueryContext context;
     private Optimizable optimizables[];
+    private List<GeneralComparison> contextComparisons = null;
     private Expression innerExpr = null;
     private LocationStep contextStep = null;
     private VariableReference contextVar = null;
@@ -55,6 +56,7 @@ public class Optimize extends Pragma {
     private NodeSet cachedContext = null;
     private int cachedTimestamp;
     private boolean cachedOptimize;
+    private Optimizable cachedOptimizables[];
     
     public Optimize(XQueryContext context, QName pragmaName, String contents, boolean explicit) throws XPathException {
         super(pragmaName, contents);
@@ -82,6 +84,7 @@ public class Optimize extends Pragma {
         boolean useCached = false;
         boolean optimize = false;
         NodeSet originalContext = null;
+        Optimizable selected[] = optimizables;
 
         if (contextSequence == null || contextSequence.isPersistentSet()) {    // don't try to optimize in-memory node sets!
             // contextSequence will be overwritten
@@ -93,12 +96,18 @@ public class Optimize extends Pragma {
             }
             // check if all Optimizable expressions signal that they can indeed optimize
             // in the current context
-            if (useCached)
-                {optimize = cachedOptimize;}
-            else {
-                if (optimizables != null && optimizables.length > 0) {
-                    for (int i = 0; i < optimizables.length; i++) {
-                        if (optimizables[i].canOptimize(contextSequence))
+            if (useCached) {
+                optimize = cachedOptimize;
+                selected = cachedOptimizables;
+            } else {
+                // comparisons on the context step may be replaced by a lookup in a
+                // composite index defined on the collections in the context
+                if (contextStep != null)
+                    {selected = CompositeRangeLookup.select(context, contextStep, contextComparisons,
+                        optimizables, contextSequence);}
+                if (selected != null && selected.length > 0) {
+                    for (int i = 0; i < selected.length; i++) {
+                        if (selected[i].canOptimize(contextSequence))
                             {optimize = true;}
                         else {
                             optimize = false;
@@ -106,16 +115,22 @@ public class Optimize extends Pragma {
                         }
                     }
                 }
+                if (optimize && !isSelective(selected)) {
+                    if (LOG.isTraceEnabled())
+                        {LOG.trace("exist:optimize: index pre-selection is not selective enough. Using structural evaluation.");}
+                    optimize = false;
+                }
             }
         }
         if (optimize) {
             cachedContext = originalContext;
             cachedTimestamp = originalContext == null ? 0 : originalContext.getState();
             cachedOptimize = true;
+            cachedOptimizables = selected;
             NodeSet ancestors;
             NodeSet result = null;
-            for (int current = 0; current < optimizables.length; current++) {
-                NodeSet selection = optimizables[current].preSelect(contextSequence, current > 0);
+            for (int current = 0; current < selected.length; current++) {
+                NodeSet selection = selected[current].preSelect(contextSequence, current > 0);
                 if (LOG.isTraceEnabled())
                     {LOG.trace("exist:optimize: pre-selection: " + selection.getLength());}
                 // determine the set of potential ancestors for which the predicate has to
@@ -131,12 +146,12 @@ public class Optimize extends Pragma {
 //                    selector = new AncestorSelector(selection, contextId, true, false);
                     final StructuralIndex index = context.getBroker().getStructuralIndex();
                     final QName ancestorQN = contextStep.getTest().getName();
-                    if (optimizables[current].optimizeOnSelf()) {
+                    if (selected[current].optimizeOnSelf()) {
                         ancestors = index.findAncestorsByTagName(ancestorQN.getNameType(), ancestorQN, Constants.SELF_AXIS,
                             selection.getDocumentSet(), selection, contextId);
                     } else {
                         ancestors = index.findAncestorsByTagName(ancestorQN.getNameType(), ancestorQN,
-                            optimizables[current].optimizeOnChild() ? Constants.PARENT_AXIS : Constants.ANCESTOR_SELF_AXIS,
+                            selected[current].optimizeOnChild() ? Constants.PARENT_AXIS : Constants.ANCESTOR_SELF_AXIS,
                             selection.getDocumentSet(), selection, contextId);
                     }
                     if (LOG.isTraceEnabled()) {
@@ -173,6 +188,37 @@ public class Optimize extends Pragma {
         }
     }
 
+    /**
+     * Use the index statistics to check if pre-selecting the nodes by index is
+     * worth the effort: if the comparisons are expected to select more nodes than
+     * there are candidates for the context step, evaluating the expression
+     * directly on the context step is cheaper.
+     *
+     * @param selected the optimizable expressions to use
+     * @return false if statistics show that index pre-selection would not reduce
+     *  the number of nodes to be checked
+     */
+    private boolean isSelective(Optimizable selected[]) {
+        if (contextStep == null || contextStep.getTest().getName() == null)
+            {return true;}
+        final SelectivityEstimator estimator = new SelectivityEstimator(context);
+        final double candidates = estimator.getNodeCount(contextStep.getTest().getName());
+        if (candidates == SelectivityEstimator.UNKNOWN || candidates == 0)
+            {return true;}
+        double hits = 0;
+        for (int i = 0; i < selected.length; i++) {
+            if (!(selected[i] instanceof Expression))
+                {return true;}
+            final double estimate = estimator.estimate((Expression) selected[i]);
+            if (estimate == SelectivityEstimator.UNKNOWN)
+                {return true;}
+            hits += estimate;
+        }
+        if (LOG.isTraceEnabled())
+            {LOG.trace("exist:optimize: estimated index hits: " + hits + "; candidates: " + candidates);}
+        return hits <= candidates;
+    }
+
     public void before(XQueryContext context, Expression expression) throws XPathException {
         if (innerExpr != null)
             {return;}
@@ -238,6 +284,7 @@ public class Optimize extends Pragma {
         contextStep = BasicExpressionVisitor.findFirstStep(innerExpr);
         if (contextStep != null && contextStep.getTest().isWildcardTest())
             {contextStep = null;}
+        contextComparisons = CompositeRangeLookup.findComparisons(contextStep);
         if (LOG.isTraceEnabled()) {
             LOG.trace("exist:optimize: context step: " + contextStep);
             LOG.trace("exist:optimize: context var: " + contextVar);
@@ -286,7 +333,7 @@ public class Optimize extends Pragma {
         int indexType = Type.ITEM;
         for (final Iterator<Collection> i = contextSequence.getCollectionIterator(); i.hasNext(); ) {
             final Collection collection = i.next();
-            if (collection.getURI().startsWith(XmldbURI.SYSTEM_COLLECTION_URI))
+            if (collection.getURI().startsWith(XmldbURI.SYSTEM))
                 {continue;}
             final QNameRangeIndexSpec config = collection.getIndexByQNameConfiguration(context.getBroker(), qname);
             if (config == null) {
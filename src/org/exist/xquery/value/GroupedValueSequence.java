@@ -25,10 +25,10 @@ package org.exist.xquery.value;
 import org.exist.dom.ExtArrayNodeSet;
 import org.exist.dom.NodeProxy;
 import org.exist.dom.NodeSet;
+import org.exist.xquery.GroupAggregate;
 import org.exist.xquery.GroupSpec;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
-import org.exist.xquery.util.ExpressionDumper;
 
 
 /** 
@@ -45,9 +45,12 @@ import org.exist.xquery.util.ExpressionDumper;
  
 public class GroupedValueSequence extends AbstractSequence { 
      
-    private Entry[] items = null; 
+    private Item[] items = null; 
     private int count = 0; 
+    // state of the aggregates if the items are not kept
+    private GroupAggregate.State aggregateStates[] = null; 
     //grouping keys values of this group 
+    @SuppressWarnings("unused")
     private GroupSpec groupSpecs[];  
     private Sequence groupKey; 
 //    private XQueryContext context; 
@@ -59,7 +62,7 @@ public class GroupedValueSequence extends AbstractSequence {
      
     public GroupedValueSequence(GroupSpec groupSpecs[], int size, Sequence keySequence, XQueryContext aContext) { 
         this.groupSpecs = groupSpecs; 
-        this.items = new Entry[size]; 
+        this.items = new Item[size]; 
         this.groupKey = keySequence; 
 //        this.context = aContext; //UNDERSTAND: do we need context here??? -shabanovd
         this.groupKeyLength = groupKey.getItemCount();
@@ -89,6 +92,22 @@ public class GroupedValueSequence extends AbstractSequence {
     public Sequence getGroupKey() { 
         return this.groupKey; 
     } 
+
+    /**
+     * Set the state of the aggregates computed for this group. If set, the items of
+     * the group are not kept and only the aggregates can be evaluated.
+     */
+    public void setAggregateStates(GroupAggregate.State states[]) {
+        this.aggregateStates = states;
+    }
+
+    public boolean isAggregated() {
+        return aggregateStates != null;
+    }
+
+    public GroupAggregate.State getAggregateState(int index) {
+        return aggregateStates[index];
+    }
  
     public boolean isEmpty() { 
         return isEmpty; 
@@ -108,11 +127,11 @@ public class GroupedValueSequence extends AbstractSequence {
             {hasOne = true;} 
         isEmpty = false; 
         if(count == items.length) { 
-            Entry newItems[] = new Entry[count * 2]; 
+            Item newItems[] = new Item[count * 2]; 
             System.arraycopy(items, 0, newItems, 0, count); 
             items = newItems; 
         } 
-        items[count++] = new Entry(item); 
+        items[count++] = item; 
         checkItemType(item.getType()); 
     } 
  
@@ -133,7 +152,7 @@ public class GroupedValueSequence extends AbstractSequence {
      
     public Item itemAt(int pos) { 
         if(items != null && pos > -1 && pos < count) 
-            {return items[pos].item;} 
+            {return items[pos];} 
         else 
             {return null;} 
     } 
@@ -165,8 +184,7 @@ public class GroupedValueSequence extends AbstractSequence {
             //NodeSet set = new ArraySet(100); 
             for (int i = 0; i < this.count; i++) { 
                 NodeValue v = null; 
-                final Entry temp = items[i]; 
-                v = (NodeValue)temp.item; 
+                v = (NodeValue)items[i]; 
                     if(v.getImplementationType() != NodeValue.PERSISTENT_NODE) { 
                     set.add((NodeProxy)v); 
                 } else { 
@@ -188,7 +206,7 @@ public class GroupedValueSequence extends AbstractSequence {
 				" a node set. Item type is " + Type.getTypeName(itemType));
         }
         NodeValue v;
-        for (int i = 0; i <= count; i++) {
+        for (int i = 0; i < count; i++) {
             v = (NodeValue)items[i];
             if(v.getImplementationType() == NodeValue.PERSISTENT_NODE)
                 {return null;}
@@ -203,45 +221,6 @@ public class GroupedValueSequence extends AbstractSequence {
         // TODO: is this ever relevant? 
     } 
      
-    private class Entry implements Comparable<Entry> { 
-        Item item; 
-        AtomicValue values[]; 
-        public Entry(Item item) throws XPathException { 
-            this.item = item; 
-            values = new AtomicValue[groupSpecs.length]; 
-            for(int i = 0; i < groupSpecs.length; i++) { 
-                final Sequence seq = groupSpecs[i].getGroupExpression().eval(null); 
-                values[i] = AtomicValue.EMPTY_VALUE; 
-                //TODO : get rid of getLength() 
-                if(seq.hasOne()) { 
-                    values[i] = seq.itemAt(0).atomize(); 
-                } else if(seq.hasMany()) 
-                    {throw new XPathException("expected a single value for group by expression " + 
-                        ExpressionDumper.dump(groupSpecs[i].getGroupExpression()) +  
-                        " ; found: " + seq.getItemCount());} 
-            } 
-        } 
- 
-        /* (non-Javadoc) 
-         * @see java.lang.Comparable#compareTo(java.lang.Object) 
-         */ 
-        public int compareTo(Entry other){ 
-            int cmp = 0; 
-            AtomicValue a, b; 
-            for(int i = 0; i < values.length; i++) { 
-                a = values[i]; 
-                b = other.values[i]; 
-                if(a == AtomicValue.EMPTY_VALUE && b != AtomicValue.EMPTY_VALUE) { 
-                        cmp = 1; 
-                }  
-                else{ 
-                    cmp = a.compareTo(b); 
-                } 
-            } 
-            return cmp; 
-        } 
-    } 
-     
     private class GroupedValueSequenceIterator implements SequenceIterator { 
         int pos = 0; 
         /* (non-Javadoc) 
@@ -256,7 +235,7 @@ public class GroupedValueSequence extends AbstractSequence {
          */ 
         public Item nextItem() { 
             if(pos < count) { 
-                return items[pos++].item; 
+                return items[pos++]; 
             } 
             return null; 
         } 
@@ -1,59 +1,82 @@
-/* 
- *  eXist Open Source Native XML Database 
- *  Copyright (C) 2001-06 The eXist Project 
- *  http://exist-db.org 
- *  http://exist.sourceforge.net 
- *   
- *  This program is free software; you can redistribute it and/or 
- *  modify it under the terms of the GNU Lesser General Public License 
- *  as published by the Free Software Foundation; either version 2 
- *  of the License, or (at your option) any later version. 
- *   
- *  This program is distributed in the hope that it will be useful, 
- *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
- *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
- *  GNU Lesser General Public License for more details. 
- *   
- *  You should have received a copy of the GNU Lesser General Public License 
- *  along with this program; if not, write to the Free Software 
- *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA. 
- *   
- *  $Id$ 
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-06 The eXist Project
+ *  http://exist-db.org
+ *  http://exist.sourceforge.net
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
  */
 package org.exist.xquery.value;
 
-import java.util.Hashtable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.Collator;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.GroupAggregate;
 import org.exist.xquery.GroupSpec;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 
 /**
- * An Hashtable that containts a GroupedValueSequence for each group. Groups are
- * specified by the group specs of a "group by" clause. Used by
- * {@link org.exist.xquery.ForExpr} et al.
- * 
- * WARNING : don't use except for experimental "group by" clause
- * 
+ * Contains a GroupedValueSequence for each group. Groups are specified by the
+ * group specs of a "group by" clause. Used by {@link org.exist.xquery.ForExpr}
+ * et al.
+ *
+ * The atomized values of the grouping keys are hashed directly: numeric values
+ * which compare equal (e.g. 1 and 1.0) end up in the same group, strings are
+ * compared using the collation of the group spec, and values of different types
+ * (e.g. "1" and 1) are kept apart. Groups are returned in the order in which
+ * they were first seen.
+ *
+ * If aggregates are set, the items of a group are not kept. Instead, each
+ * {@link org.exist.xquery.GroupAggregate} updates its state for the group when
+ * an item is added.
+ *
+ * The table is not thread safe. It is used by a single query only.
+ *
  * @author Boris Verhaegen (boris.verhaegen@gmail.com)
  */
+public class GroupedValueSequenceTable {
 
-public class GroupedValueSequenceTable extends
-		Hashtable<String, GroupedValueSequence> {
-
-	private static final long serialVersionUID = 1324942298919800292L;
-
-	private GroupSpec groupSpecs[];
+	private final GroupSpec groupSpecs[];
 	private String toGroupVarName;
-	private XQueryContext context;
+	private final XQueryContext context;
+	private final Collator collators[];
+	private final Map<GroupKey, GroupedValueSequence> groups =
+		new LinkedHashMap<GroupKey, GroupedValueSequence>();
+	// reused to look up the group of each item
+	private final GroupKey probe;
+	private GroupAggregate aggregates[] = null;
 
-	public GroupedValueSequenceTable(GroupSpec groupSpecs[], String varName, XQueryContext aContext) {
-		super(11, (float) 0.75); // Hashtable parameters
+	public GroupedValueSequenceTable(GroupSpec groupSpecs[], String varName, XQueryContext aContext)
+			throws XPathException {
 		this.groupSpecs = groupSpecs;
 		this.toGroupVarName = varName;
-		this.context = aContext; //UNDERSTAND: do we need context here??? -shabanovd
+		this.context = aContext;
+		this.collators = new Collator[groupSpecs.length];
+		for (int i = 0; i < groupSpecs.length; i++) {
+			collators[i] = context.getCollator(groupSpecs[i].getCollation());
+		}
+		this.probe = new GroupKey(groupSpecs.length);
 	}
 
 	public void setToGroupVarName(String varName) {
@@ -64,50 +87,84 @@ public class GroupedValueSequenceTable extends
 		return toGroupVarName;
 	}
 
-	public Iterator<String> iterate() {
-        return this.keySet().iterator();
+	/**
+	 * Compute the given aggregates for each group instead of keeping the items
+	 * of the groups. Must be called before the first item is added.
+	 */
+	public void setAggregates(GroupAggregate aggregates[]) {
+		this.aggregates = aggregates;
+	}
+
+	public boolean isAggregating() {
+		return aggregates != null;
+	}
+
+	/**
+	 * Returns the groups in the order in which they were created.
+	 */
+	public Iterator<GroupedValueSequence> iterate() {
+		return groups.values().iterator();
+	}
+
+	public int size() {
+		return groups.size();
+	}
+
+	public boolean isEmpty() {
+		return groups.isEmpty();
 	}
 
 	/**
 	 * Add <code>item</code> in the correct <code>GroupedValueSequence</code>.
 	 * Create correct GroupedValueSequence if needed. Insertion based on the
 	 * group specs of a "group by" clause.
-	 * 
+	 *
 	 * @throws XPathException
 	 */
 	public void add(Item item) throws XPathException {
-		final Sequence specEvaluation[] = new Sequence[groupSpecs.length];
-		final ValueSequence keySequence = new ValueSequence();
-
+		final Item keyItems[] = new Item[groupSpecs.length];
 		for (int i = 0; i < groupSpecs.length; i++) {
 			// evaluates the values of the grouping keys
-			specEvaluation[i] = groupSpecs[i].getGroupExpression().eval(item.toSequence()); // TODO : too early evaluation !
-			
-			if (specEvaluation[i].isEmpty())
-				{keySequence.add(AtomicValue.EMPTY_VALUE);}
-			else if (specEvaluation[i].hasOne())
-				{keySequence.add(specEvaluation[i].itemAt(0));}
+			final Sequence key = groupSpecs[i].getGroupExpression().eval(item.toSequence()); // TODO : too early evaluation !
+			if (key.isEmpty())
+				{keyItems[i] = AtomicValue.EMPTY_VALUE;}
+			else if (key.hasOne())
+				{keyItems[i] = key.itemAt(0);}
 			else
-				{throw new XPathException(groupSpecs[i].getGroupExpression(), ErrorCodes.XPTY0004, "More that one key values", specEvaluation[i]);}
+				{throw new XPathException(groupSpecs[i].getGroupExpression(), ErrorCodes.XPTY0004, "More that one key values", key);}
+			probe.set(i, keyItems[i], collators[i]);
 		}
+		probe.computeHash();
 
-		final String hashKey = keySequence.getHashKey();
-
-		if (this.containsKey(hashKey)) {
-			final GroupedValueSequence currentGroup = super.get(hashKey);
-			currentGroup.add(item);
-		} else {
+		GroupedValueSequence group = groups.get(probe);
+		if (group == null) {
 			// this group doesn't exists, then creates this group
-			final GroupedValueSequence newGroup = new GroupedValueSequence(
-					groupSpecs, 1, keySequence, context);
-			newGroup.add(item);
-			super.put(hashKey, newGroup);
+			final ValueSequence keySequence = new ValueSequence(keyItems.length);
+			for (int i = 0; i < keyItems.length; i++) {
+				keySequence.add(keyItems[i]);
+			}
+			group = new GroupedValueSequence(groupSpecs, 1, keySequence, context);
+			if (aggregates != null) {
+				final GroupAggregate.State states[] = new GroupAggregate.State[aggregates.length];
+				for (int i = 0; i < aggregates.length; i++) {
+					states[i] = new GroupAggregate.State();
+				}
+				group.setAggregateStates(states);
+			}
+			groups.put(probe.copy(), group);
+		}
+		if (aggregates == null)
+			{group.add(item);}
+		else {
+			for (int i = 0; i < aggregates.length; i++) {
+				aggregates[i].add(group.getAggregateState(i));
+			}
 		}
 	}
 
 	/**
 	 * Add all items of a sequence
-	 * 
+	 *
 	 * @param sequence
 	 * @throws XPathException
 	 */
@@ -116,4 +173,133 @@ public class GroupedValueSequenceTable extends
 			this.add(i.nextItem());
 		}
 	}
+
+	/**
+	 * The atomized values of the grouping keys of a group. Numeric and boolean
+	 * values are stored in a long, everything else as an object which
+	 * implements equals and hashCode.
+	 */
+	private final static class GroupKey {
+
+		private final static byte EMPTY = 0;
+		// a number without fractional part which fits into a long
+		private final static byte INTEGER = 1;
+		// any other double, float or decimal, compared as double
+		private final static byte DOUBLE = 2;
+		// an integer which does not fit into a long, as BigDecimal
+		private final static byte BIG_INTEGER = 3;
+		// a string or collation key
+		private final static byte STRING = 4;
+		private final static byte BOOLEAN = 5;
+		// the string value of any other type; bits contains the type
+		private final static byte OTHER = 6;
+
+		private final static BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+		private final static BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+		private final byte kinds[];
+		private final long bits[];
+		private final Object values[];
+		private int hash;
+
+		private GroupKey(int length) {
+			this.kinds = new byte[length];
+			this.bits = new long[length];
+			this.values = new Object[length];
+		}
+
+		private GroupKey copy() {
+			final GroupKey key = new GroupKey(kinds.length);
+			System.arraycopy(kinds, 0, key.kinds, 0, kinds.length);
+			System.arraycopy(bits, 0, key.bits, 0, bits.length);
+			System.arraycopy(values, 0, key.values, 0, values.length);
+			key.hash = hash;
+			return key;
+		}
+
+		private void set(int i, Item item, Collator collator) throws XPathException {
+			values[i] = null;
+			bits[i] = 0;
+			if (item == AtomicValue.EMPTY_VALUE) {
+				kinds[i] = EMPTY;
+				return;
+			}
+			final AtomicValue value = item.atomize();
+			final int type = value.getType();
+			if (Type.subTypeOf(type, Type.NUMBER))
+				{setNumber(i, (NumericValue) value);}
+			else if (Type.subTypeOf(type, Type.STRING) || type == Type.UNTYPED_ATOMIC ||
+					type == Type.ANY_URI) {
+				kinds[i] = STRING;
+				final String s = value.getStringValue();
+				values[i] = collator == null ? s : collator.getCollationKey(s);
+			} else if (type == Type.BOOLEAN) {
+				kinds[i] = BOOLEAN;
+				bits[i] = value.effectiveBooleanValue() ? 1 : 0;
+			} else {
+				kinds[i] = OTHER;
+				bits[i] = type;
+				values[i] = value.getStringValue();
+			}
+		}
+
+		private void setNumber(int i, NumericValue value) throws XPathException {
+			if (value instanceof IntegerValue) {
+				final BigInteger n = value.toJavaObject(BigInteger.class);
+				if (n.compareTo(MIN_LONG) >= 0 && n.compareTo(MAX_LONG) <= 0) {
+					kinds[i] = INTEGER;
+					bits[i] = n.longValue();
+				} else {
+					kinds[i] = BIG_INTEGER;
+					values[i] = new BigDecimal(n);
+				}
+			} else if (value instanceof DecimalValue && !value.hasFractionalPart()) {
+				final BigInteger n = ((DecimalValue) value).getValue().toBigInteger();
+				if (n.compareTo(MIN_LONG) >= 0 && n.compareTo(MAX_LONG) <= 0) {
+					kinds[i] = INTEGER;
+					bits[i] = n.longValue();
+				} else {
+					kinds[i] = BIG_INTEGER;
+					values[i] = new BigDecimal(n);
+				}
+			} else {
+				final double d = value.getDouble();
+				if (Double.isNaN(d)) {
+					kinds[i] = DOUBLE;
+					bits[i] = Double.doubleToLongBits(Double.NaN);
+				} else if (d == Math.rint(d) && d >= Long.MIN_VALUE && d < Long.MAX_VALUE) {
+					// also maps -0.0 to 0
+					kinds[i] = INTEGER;
+					bits[i] = (long) d;
+				} else {
+					kinds[i] = DOUBLE;
+					bits[i] = Double.doubleToLongBits(d);
+				}
+			}
+		}
+
+		private void computeHash() {
+			int h = 1;
+			for (int i = 0; i < kinds.length; i++) {
+				h = 31 * h + kinds[i];
+				h = 31 * h + (int) (bits[i] ^ (bits[i] >>> 32));
+				h = 31 * h + (values[i] == null ? 0 : values[i].hashCode());
+			}
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GroupKey))
+				{return false;}
+			final GroupKey other = (GroupKey) obj;
+			return hash == other.hash && Arrays.equals(kinds, other.kinds) &&
+				Arrays.equals(bits, other.bits) && Arrays.equals(values, other.values);
+		}
+	}
 }
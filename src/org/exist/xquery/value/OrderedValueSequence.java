@@ -21,16 +21,33 @@
  */
 package org.exist.xquery.value;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
 import org.exist.dom.AVLTreeNodeSet;
 import org.exist.dom.NodeProxy;
 import org.exist.dom.NodeSet;
 import org.exist.memtree.DocumentImpl;
 import org.exist.memtree.NodeImpl;
 import org.exist.numbering.NodeId;
+import org.exist.util.Configuration;
 import org.exist.util.FastQSort;
+import org.exist.util.io.TemporaryFileManager;
 import org.exist.xquery.Constants;
+import org.exist.xquery.ErrorCodes;
 import org.exist.xquery.OrderSpec;
 import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
 import org.exist.xquery.util.ExpressionDumper;
 import org.w3c.dom.Node;
 
@@ -42,10 +59,25 @@ import org.w3c.dom.Node;
  * all order expressions are evaluated once for each item in the sequence 
  * <b>while</b> items are added.
  * 
+ * If only the first items of the sorted sequence are used (see {@link #setLimit(int)}),
+ * the sequence keeps just those items in a bounded heap and drops all others
+ * as they are added.
+ * 
+ * Otherwise, if a run size is configured and the number of items exceeds it, the
+ * sort keys of each run of items are sorted and written to a temporary file. The
+ * runs are merged when the sequence is sorted. The entries and the items themselves
+ * stay in memory, so this only reduces the memory needed for the keys.
+ * 
  * @author wolf
  */
 public class OrderedValueSequence extends AbstractSequence {
 
+    private final static Logger LOG = Logger.getLogger(OrderedValueSequence.class);
+
+    public final static String RUN_SIZE_ATTRIBUTE = "order-by-run-size";
+    public final static String PROPERTY_RUN_SIZE = "xquery.order-by-run-size";
+    public final static int DEFAULT_RUN_SIZE = 0;
+
     private OrderSpec orderSpecs[];
 	private Entry[] items = null;
 	private int count = 0;
@@ -53,7 +85,18 @@ public class OrderedValueSequence extends AbstractSequence {
 
     // used to keep track of the type of added items.
     private int itemType = Type.ANY_TYPE;
-    
+
+    // if > 0, only the first limit items of the sorted sequence are kept
+    private int limit = 0;
+    // number of items added so far, including those dropped by the limit
+    private int added = 0;
+
+    // if > 0, the keys are written to a temporary file every runSize items
+    private int runSize = 0;
+    // position of the first item which has not been written to a run
+    private int runStart = 0;
+    private List<SortRun> runs = null;
+
 	public OrderedValueSequence(OrderSpec orderSpecs[], int size) {
 		this.orderSpecs = orderSpecs;
         if (size == 0)
@@ -61,6 +104,30 @@ public class OrderedValueSequence extends AbstractSequence {
 		this.items = new Entry[size];
 	}
 
+	/**
+	 * Create a sequence which writes its sort keys to temporary files if
+	 * the number of items exceeds the run size configured for the database.
+	 */
+	public OrderedValueSequence(OrderSpec orderSpecs[], int size, XQueryContext context) {
+		this(orderSpecs, size);
+		if (context.getBroker() != null) {
+			final Configuration config = context.getBroker().getConfiguration();
+			runSize = config.getInteger(PROPERTY_RUN_SIZE);
+			if (runSize < 0)
+				{runSize = DEFAULT_RUN_SIZE;}
+		}
+	}
+
+	/**
+	 * Keep only the first <code>limit</code> items of the sorted sequence.
+	 * Must be called before the first item is added.
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+		if (limit > 0 && items.length > limit)
+			{items = new Entry[limit];}
+	}
+
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.Sequence#iterate()
 	 */
@@ -94,6 +161,12 @@ public class OrderedValueSequence extends AbstractSequence {
 	 * @see org.exist.xquery.value.Sequence#add(org.exist.xquery.value.Item)
 	 */
 	public void add(Item item) throws XPathException {
+		if (limit > 0) {
+			addBounded(new Entry(item, added++));
+			checkItemType(item.getType());
+			setHasChanged();
+			return;
+		}
 		if (hasOne)
 			{hasOne = false;}
 		if (isEmpty)
@@ -107,10 +180,100 @@ public class OrderedValueSequence extends AbstractSequence {
 			items = newItems;
 		}
 		items[count] = new Entry(item, count++);
+		added++;
 		checkItemType(item.getType());
         setHasChanged();
+		if (runSize > 0 && count - runStart >= runSize)
+			{writeRun();}
     }
 
+	/**
+	 * Add an entry to the heap of the first items. The root of the heap is the
+	 * greatest of the kept entries, so a new entry is dropped if it is not less
+	 * than the root.
+	 */
+	private void addBounded(Entry entry) {
+		if (count < limit) {
+			if (count == items.length) {
+				final Entry newItems[] = new Entry[Math.min(count * 2, limit)];
+				System.arraycopy(items, 0, newItems, 0, count);
+				items = newItems;
+			}
+			int i = count++;
+			while (i > 0) {
+				final int parent = (i - 1) / 2;
+				if (items[parent].compareTo(entry) >= 0)
+					{break;}
+				items[i] = items[parent];
+				i = parent;
+			}
+			items[i] = entry;
+		} else if (entry.compareTo(items[0]) < 0) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= count)
+					{break;}
+				if (child + 1 < count && items[child + 1].compareTo(items[child]) > 0)
+					{child++;}
+				if (entry.compareTo(items[child]) >= 0)
+					{break;}
+				items[i] = items[child];
+				i = child;
+			}
+			items[i] = entry;
+		}
+		isEmpty = false;
+		hasOne = count == 1;
+	}
+
+	/**
+	 * Sort the keys of the items added since the last run and write them to a
+	 * temporary file. If a key cannot be written, e.g. because it is a QName, or
+	 * the file cannot be written, all remaining items are sorted in memory.
+	 */
+	private void writeRun() {
+		final Entry run[] = new Entry[count - runStart];
+		System.arraycopy(items, runStart, run, 0, run.length);
+		for (int i = 0; i < run.length; i++) {
+			if (!run[i].canWrite()) {
+				LOG.debug("Order by key cannot be written to a temporary file. Sorting in memory.");
+				runSize = 0;
+				return;
+			}
+		}
+		FastQSort.sort(run, 0, run.length - 1);
+		final TemporaryFileManager temp = TemporaryFileManager.getInstance();
+		File file = null;
+		try {
+			file = temp.getTemporaryFile();
+			final DataOutputStream os = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				for (int i = 0; i < run.length; i++) {
+					run[i].write(os);
+				}
+			} finally {
+				os.close();
+			}
+		} catch (final IOException e) {
+			LOG.warn("Failed to write order by keys to a temporary file. Sorting in memory: " +
+				e.getMessage(), e);
+			if (file != null)
+				{temp.returnTemporaryFile(file);}
+			runSize = 0;
+			return;
+		}
+		if (runs == null)
+			{runs = new ArrayList<SortRun>();}
+		runs.add(new SortRun(file, run.length));
+		// the keys are on disk now
+		for (int i = 0; i < run.length; i++) {
+			run[i].values = null;
+		}
+		runStart = count;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.AbstractSequence#addAll(org.exist.xquery.value.Sequence)
 	 */
@@ -126,8 +289,51 @@ public class OrderedValueSequence extends AbstractSequence {
 		} 
 	}
 	
-	public void sort() {
-		FastQSort.sort(items, 0, count - 1);
+	public void sort() throws XPathException {
+		if (runs == null) {
+			FastQSort.sort(items, 0, count - 1);
+			return;
+		}
+		final TemporaryFileManager temp = TemporaryFileManager.getInstance();
+		final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size() + 1);
+		try {
+			for (final SortRun run : runs) {
+				final RunReader reader = new FileRunReader(run);
+				if (reader.next())
+					{queue.add(reader);}
+			}
+			if (runStart < count) {
+				final Entry tail[] = new Entry[count - runStart];
+				System.arraycopy(items, runStart, tail, 0, tail.length);
+				FastQSort.sort(tail, 0, tail.length - 1);
+				final RunReader reader = new MemoryRunReader(tail);
+				if (reader.next())
+					{queue.add(reader);}
+			}
+			// the entries are still in the order in which they were added,
+			// so the position of an entry is its index
+			final Entry sorted[] = new Entry[items.length];
+			int n = 0;
+			while (!queue.isEmpty()) {
+				final RunReader reader = queue.poll();
+				sorted[n++] = items[reader.current.pos];
+				if (reader.next())
+					{queue.add(reader);}
+			}
+			items = sorted;
+		} catch (final IOException e) {
+			throw new XPathException(ErrorCodes.ERROR, "Failed to merge the sorted runs of an order by clause: " +
+				e.getMessage(), e);
+		} finally {
+			for (final RunReader reader : queue) {
+				reader.close();
+			}
+			for (final SortRun run : runs) {
+				temp.returnTemporaryFile(run.file);
+			}
+			runs = null;
+			runStart = count;
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -316,6 +522,54 @@ public class OrderedValueSequence extends AbstractSequence {
 			}
 		}
 
+		/**
+		 * Create an entry for the keys read from a run. The item is not needed
+		 * to merge the runs.
+		 */
+		Entry(int position, AtomicValue values[]) {
+			this.pos = position;
+			this.values = values;
+		}
+
+		boolean canWrite() {
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == AtomicValue.EMPTY_VALUE)
+					{continue;}
+				final int type = values[i].getType();
+				if (!(Type.subTypeOf(type, Type.STRING) || Type.subTypeOf(type, Type.NUMBER) ||
+						Type.subTypeOf(type, Type.DURATION) || type == Type.UNTYPED_ATOMIC ||
+						type == Type.ANY_URI || type == Type.BOOLEAN || type == Type.DATE_TIME ||
+						type == Type.DATE || type == Type.TIME))
+					{return false;}
+			}
+			return true;
+		}
+
+		void write(DataOutputStream os) throws IOException {
+			os.writeInt(pos);
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == AtomicValue.EMPTY_VALUE) {
+					os.writeInt(Type.EMPTY);
+					continue;
+				}
+				final int type = values[i].getType();
+				os.writeInt(type);
+				try {
+					if (type == Type.DOUBLE)
+						{os.writeDouble(((DoubleValue) values[i]).getValue());}
+					else if (type == Type.FLOAT)
+						{os.writeFloat(((FloatValue) values[i]).getValue());}
+					else {
+						final byte data[] = values[i].getStringValue().getBytes("UTF-8");
+						os.writeInt(data.length);
+						os.write(data);
+					}
+				} catch (final XPathException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+		}
+
 		/* (non-Javadoc)
 		 * @see java.lang.Comparable#compareTo(java.lang.Object)
 		 */
@@ -371,7 +625,7 @@ public class OrderedValueSequence extends AbstractSequence {
 			final StringBuilder builder = new StringBuilder();
 			builder.append(item);
     		builder.append(" [");
-    		for (int i = 0; i < values.length; i++) {
+    		for (int i = 0; values != null && i < values.length; i++) {
     			if (i > 0)
     				{builder.append(", ");}
     			builder.append(values[i].toString());
@@ -381,6 +635,111 @@ public class OrderedValueSequence extends AbstractSequence {
 		}
 	}
 	
+	private static class SortRun {
+
+		final File file;
+		final int size;
+
+		SortRun(File file, int size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Reads the entries of a sorted run one by one. Readers are ordered by their
+	 * current entry.
+	 */
+	private abstract class RunReader implements Comparable<RunReader> {
+
+		Entry current = null;
+
+		/**
+		 * Advance to the next entry. Returns false if the run is exhausted.
+		 */
+		abstract boolean next() throws IOException;
+
+		void close() {
+			// nothing to release by default
+		}
+
+		public int compareTo(RunReader other) {
+			return current.compareTo(other.current);
+		}
+	}
+
+	private class MemoryRunReader extends RunReader {
+
+		private final Entry run[];
+		private int next = 0;
+
+		MemoryRunReader(Entry run[]) {
+			this.run = run;
+		}
+
+		boolean next() {
+			if (next == run.length)
+				{return false;}
+			current = run[next++];
+			return true;
+		}
+	}
+
+	private class FileRunReader extends RunReader {
+
+		private final DataInputStream is;
+		private int remaining;
+
+		FileRunReader(SortRun run) throws IOException {
+			this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+			this.remaining = run.size;
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				close();
+				return false;
+			}
+			remaining--;
+			final int pos = is.readInt();
+			final AtomicValue values[] = new AtomicValue[orderSpecs.length];
+			for (int i = 0; i < values.length; i++) {
+				final int type = is.readInt();
+				if (type == Type.EMPTY)
+					{values[i] = AtomicValue.EMPTY_VALUE;}
+				else if (type == Type.DOUBLE)
+					{values[i] = new DoubleValue(is.readDouble());}
+				else if (type == Type.FLOAT)
+					{values[i] = new FloatValue(is.readFloat());}
+				else {
+					final byte data[] = new byte[is.readInt()];
+					is.readFully(data);
+					final String s = new String(data, "UTF-8");
+					try {
+						if (type == Type.STRING)
+							{values[i] = new StringValue(s);}
+						else if (type == Type.UNTYPED_ATOMIC)
+							{values[i] = new UntypedAtomicValue(s);}
+						else
+							{values[i] = new StringValue(s).convertTo(type);}
+					} catch (final XPathException e) {
+						throw new IOException(e.getMessage(), e);
+					}
+				}
+			}
+			current = new Entry(pos, values);
+			return true;
+		}
+
+		void close() {
+			try {
+				is.close();
+			} catch (final IOException e) {
+				LOG.warn("Failed to close order by run: " + e.getMessage(), e);
+			}
+		}
+	}
+
 	private class OrderedValueSequenceIterator implements SequenceIterator {
 		
 		int pos = 0;
@@ -0,0 +1,155 @@
+package org.exist.backup;
+
+import org.exist.backup.restore.listener.DefaultRestoreListener;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.BinaryDocument;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.exist.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Export a collection tree using several threads and restore it.
+ */
+public class ParallelSystemExportTest {
+
+    private static final int COLLECTIONS = 4;
+    private static final int SUB_COLLECTIONS = 3;
+    private static final int DOCUMENTS = 5;
+    private static final byte[] BINARY = "binary data".getBytes();
+
+    private BrokerPool pool;
+    private Database database;
+    private File exportDir;
+
+    @Test
+    public void exportZip() throws Exception {
+        exportAndRestore(true);
+    }
+
+    @Test
+    public void exportDirectory() throws Exception {
+        exportAndRestore(false);
+    }
+
+    private void exportAndRestore(boolean zip) throws Exception {
+        File backup;
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final SystemExport export = new SystemExport(broker, null, null, true);
+            export.setThreads(4);
+            backup = export.export(exportDir.getAbsolutePath(), false, zip, null);
+        } finally {
+            pool.release(broker);
+        }
+        assertNotNull(backup);
+        assertTrue(backup.exists());
+
+        removeCollection();
+
+        final SystemImport restore = new SystemImport(pool);
+        restore.restore(new DefaultRestoreListener(), "admin", "", "", backup, "xmldb:exist://");
+
+        broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence result = broker.getXQueryService().execute(
+                "count(collection('" + TestConstants.TEST_COLLECTION_URI + "')/test)", null, AccessContext.TEST);
+            assertEquals(COLLECTIONS * SUB_COLLECTIONS * DOCUMENTS, Integer.parseInt(result.itemAt(0).getStringValue()));
+
+            for (int i = 0; i < COLLECTIONS; i++) {
+                for (int j = 0; j < SUB_COLLECTIONS; j++) {
+                    final Collection collection = broker.getCollection(
+                        TestConstants.TEST_COLLECTION_URI.append("c" + i).append("s" + j));
+                    assertNotNull(collection);
+                    assertEquals(DOCUMENTS + 1, collection.getDocumentCount(broker));
+                    final BinaryDocument binary = (BinaryDocument) collection.getDocument(broker, XmldbURI.create("data.bin"));
+                    assertNotNull(binary);
+                    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    broker.readBinaryResource(binary, os);
+                    assertArrayEquals(BINARY, os.toByteArray());
+                }
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void removeCollection() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+            assertNull(broker.getCollection(TestConstants.TEST_COLLECTION_URI));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Before
+    public void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+
+        database = (Database) Class.forName("org.exist.xmldb.DatabaseImpl").newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+
+        exportDir = new File(System.getProperty("java.io.tmpdir"), "exist-export-" + System.currentTimeMillis());
+        exportDir.mkdirs();
+
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            for (int i = 0; i < COLLECTIONS; i++) {
+                for (int j = 0; j < SUB_COLLECTIONS; j++) {
+                    final Collection collection = broker.getOrCreateCollection(transaction,
+                        TestConstants.TEST_COLLECTION_URI.append("c" + i).append("s" + j));
+                    broker.saveCollection(transaction, collection);
+                    for (int k = 0; k < DOCUMENTS; k++) {
+                        final String xml = "<test><name>" + i + "-" + j + "-" + k + "</name></test>";
+                        final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create("doc" + k + ".xml"), xml);
+                        collection.store(transaction, broker, info, xml, false);
+                    }
+                    collection.addBinaryResource(transaction, broker, XmldbURI.create("data.bin"), BINARY, "application/octet-stream");
+                }
+            }
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void closeDB() throws Exception {
+        DatabaseManager.deregisterDatabase(database);
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+        FileUtils.delete(exportDir);
+    }
+}
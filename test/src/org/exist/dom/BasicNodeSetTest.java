@@ -56,6 +56,7 @@ import org.xml.sax.SAXException;
 import java.io.File;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test basic {@link org.exist.dom.NodeSet} operations to ensure that
@@ -273,6 +274,62 @@ public class BasicNodeSetTest {
         assertEquals(1, result.getLength());
     }
 	
+    @Test
+    public void packedNodeSet_structuralJoins() throws XPathException, SAXException, PermissionDeniedException {
+        NameTest test = new NameTest(Type.ELEMENT, new QName("para", ""));
+        NodeSet paras = broker.getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT, docs, test.getName(), null);
+        assertTrue(paras instanceof PackedNodeSet);
+        NodeSet arrayParas = new NewArrayNodeSet();
+        arrayParas.addAll(paras);
+        assertEquals(5, arrayParas.getLength());
+
+        // contains nested nodes
+        Sequence sections = executeQuery(broker, "//section[@n = ('1', '1.1', '1.1.1', '1.2')]", 4, null);
+        assertSameNodes(arrayParas.selectParentChild(sections.toNodeSet(), NodeSet.DESCENDANT),
+            paras.selectParentChild(sections.toNodeSet(), NodeSet.DESCENDANT));
+        assertSameNodes(arrayParas.selectParentChild(sections.toNodeSet(), NodeSet.ANCESTOR),
+            paras.selectParentChild(sections.toNodeSet(), NodeSet.ANCESTOR));
+        assertSameNodes(arrayParas.selectAncestorDescendant(sections.toNodeSet(), NodeSet.DESCENDANT, false, -1, true),
+            paras.selectAncestorDescendant(sections.toNodeSet(), NodeSet.DESCENDANT, false, -1, true));
+        assertSameNodes(arrayParas.selectAncestorDescendant(sections.toNodeSet(), NodeSet.ANCESTOR, false, -1, true),
+            paras.selectAncestorDescendant(sections.toNodeSet(), NodeSet.ANCESTOR, false, -1, true));
+
+        Sequence speeches = executeQuery(broker, "//SPEECH/LINE[fn:contains(., 'love')]/ancestor::SPEECH", 187, null);
+        test = new NameTest(Type.ELEMENT, new QName("LINE", ""));
+        NodeSet lines = broker.getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT, docs, test.getName(), null);
+        NodeSet arrayLines = new NewArrayNodeSet();
+        arrayLines.addAll(lines);
+        assertSameNodes(arrayLines.selectParentChild(speeches.toNodeSet(), NodeSet.DESCENDANT),
+            lines.selectParentChild(speeches.toNodeSet(), NodeSet.DESCENDANT));
+        assertSameNodes(arrayLines.selectAncestorDescendant(speeches.toNodeSet(), NodeSet.DESCENDANT, true, -1, true),
+            lines.selectAncestorDescendant(speeches.toNodeSet(), NodeSet.DESCENDANT, true, -1, true));
+    }
+
+    @Test
+    public void packedNodeSet_unordered() throws XPathException, SAXException, PermissionDeniedException {
+        Sequence paras = executeQuery(broker, "//para", 5, null);
+        PackedNodeSet set = new PackedNodeSet();
+        for (int i = paras.getItemCount() - 1; i >= 0; i--) {
+            set.add((NodeProxy) paras.itemAt(i));
+            set.add((NodeProxy) paras.itemAt(i));
+        }
+        assertEquals(5, set.getLength());
+        int i = 0;
+        for (NodeProxy p : set) {
+            assertEquals(0, p.compareTo((NodeProxy) paras.itemAt(i++)));
+            assertTrue(set.contains(p));
+        }
+        assertEquals("<para n=\"1.1.2.1\"/>", serialize(broker, set.get((NodeProxy) paras.itemAt(3))));
+    }
+
+    private static void assertSameNodes(NodeSet expected, NodeSet actual) {
+        assertEquals(expected.getLength(), actual.getLength());
+        NodeSetIterator i = expected.iterator();
+        for (NodeProxy p : actual) {
+            assertEquals(0, p.compareTo(i.next()));
+        }
+    }
+
     @Test
     public void testOptimizations() throws XPathException, SAXException, PermissionDeniedException {
             
@@ -52,6 +52,7 @@ import javax.xml.parsers.SAXParser;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -418,6 +419,74 @@ public class RESTServiceTest {
         assertEquals("doHead: Server returned response code " + r, 200, r);
     }
 
+    @Test
+    public void conditionalGetWithXInclude() throws IOException {
+        int r = uploadData();
+        assertEquals("Server returned response code " + r, 201, r);
+        final String uri = SERVER_URI + XmldbURI.ROOT_COLLECTION + "/test/include.xml";
+        r = uploadData(uri, "<root><xi:include xmlns:xi=\"http://www.w3.org/2001/XInclude\" href=\"test.xml\"/></root>");
+        assertEquals("Server returned response code " + r, 201, r);
+
+        // the expanded document depends on the included one: no entity tag and no 304
+        System.out.println("--- Conditional GET with XInclude ---");
+        HttpURLConnection connect = getConnection(uri);
+        connect.setRequestMethod("GET");
+        connect.setRequestProperty("If-None-Match", "*");
+        connect.connect();
+        r = connect.getResponseCode();
+        assertEquals("Server returned response code " + r, 200, r);
+        assertEquals(null, connect.getHeaderField("ETag"));
+        readResponse(connect.getInputStream());
+    }
+
+    @Test
+    public void conditionalGet() throws IOException {
+        int r = uploadData();
+        assertEquals("Server returned response code " + r, 201, r);
+
+        System.out.println("--- Conditional GET ---");
+        HttpURLConnection connect = getConnection(RESOURCE_URI);
+        connect.setRequestMethod("GET");
+        connect.connect();
+        r = connect.getResponseCode();
+        assertEquals("Server returned response code " + r, 200, r);
+        final String etag = connect.getHeaderField("ETag");
+        assertNotNull(etag);
+        readResponse(connect.getInputStream());
+
+        // unchanged
+        connect = getConnection(RESOURCE_URI);
+        connect.setRequestMethod("GET");
+        connect.setRequestProperty("If-None-Match", "\"foo\", " + etag);
+        connect.connect();
+        r = connect.getResponseCode();
+        assertEquals("Server returned response code " + r, 304, r);
+
+        // other serialization parameters
+        connect = getConnection(RESOURCE_URI + "?_indent=no");
+        connect.setRequestMethod("GET");
+        connect.setRequestProperty("If-None-Match", etag);
+        connect.connect();
+        r = connect.getResponseCode();
+        assertEquals("Server returned response code " + r, 200, r);
+        assertFalse(etag.equals(connect.getHeaderField("ETag")));
+        readResponse(connect.getInputStream());
+
+        // modified
+        connect = preparePost(XUPDATE, RESOURCE_URI);
+        connect.connect();
+        r = connect.getResponseCode();
+        assertEquals("Server returned response code " + r, 200, r);
+
+        connect = getConnection(RESOURCE_URI);
+        connect.setRequestMethod("GET");
+        connect.setRequestProperty("If-None-Match", etag);
+        connect.connect();
+        r = connect.getResponseCode();
+        assertEquals("Server returned response code " + r, 200, r);
+        assertTrue(readResponse(connect.getInputStream()).contains("Inserted paragraph."));
+    }
+
     @Test
     public void xUpdate() throws IOException {
         HttpURLConnection connect = preparePost(XUPDATE, RESOURCE_URI);
@@ -611,14 +680,18 @@ public class RESTServiceTest {
     }
     
     private int uploadData() throws IOException {
+        return uploadData(RESOURCE_URI, XML_DATA);
+    }
+
+    private int uploadData(String uri, String data) throws IOException {
         System.out.println("--- Storing document ---");
-        HttpURLConnection connect = getConnection(RESOURCE_URI);
+        HttpURLConnection connect = getConnection(uri);
         connect.setRequestProperty("Authorization", "Basic " + credentials);
         connect.setRequestMethod("PUT");
         connect.setDoOutput(true);
         connect.setRequestProperty("ContentType", "application/xml");
         Writer writer = new OutputStreamWriter(connect.getOutputStream(), "UTF-8");
-        writer.write(XML_DATA);
+        writer.write(data);
         writer.close();
 
         connect.connect();
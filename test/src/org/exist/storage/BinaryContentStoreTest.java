@@ -0,0 +1,171 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.dom.BinaryDocument;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Check that binary resources with identical content share their storage.
+ */
+public class BinaryContentStoreTest {
+
+    private static final byte[] DATA = "<binary content, stored twice>".getBytes();
+    private static final XmldbURI SUB1 = TestConstants.TEST_COLLECTION_URI.append("sub1");
+    private static final XmldbURI SUB2 = TestConstants.TEST_COLLECTION_URI.append("sub2");
+
+    @Test
+    public void deduplicate() throws Exception {
+        final BrokerPool pool = startDB();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final BinaryContentStore store = ((NativeBroker) broker).binaryStore;
+            final int blobs = countBlobs(store);
+
+            final TransactionManager transact = pool.getTransactionManager();
+            Txn transaction = transact.beginTransaction();
+            final Collection sub1 = broker.getOrCreateCollection(transaction, SUB1);
+            broker.saveCollection(transaction, sub1);
+            final Collection sub2 = broker.getOrCreateCollection(transaction, SUB2);
+            broker.saveCollection(transaction, sub2);
+
+            final BinaryDocument doc1 = sub1.addBinaryResource(transaction, broker, XmldbURI.create("a.bin"), DATA, "application/octet-stream");
+            final BinaryDocument doc2 = sub2.addBinaryResource(transaction, broker, XmldbURI.create("b.bin"), DATA, "application/octet-stream");
+            broker.copyResource(transaction, doc1, sub2, XmldbURI.create("c.bin"));
+            transact.commit(transaction);
+
+            final BinaryDocument copy = (BinaryDocument) sub2.getDocument(broker, XmldbURI.create("c.bin"));
+            assertNotNull(copy);
+            final File file = broker.getBinaryFile(doc1);
+            assertEquals(file, broker.getBinaryFile(doc2));
+            assertEquals(file, broker.getBinaryFile(copy));
+            assertEquals(blobs + 1, countBlobs(store));
+            assertEquals(3, referenceCount(store, doc1));
+
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            broker.readBinaryResource(copy, os);
+            assertArrayEquals(DATA, os.toByteArray());
+
+            // replacing one resource must not change the others
+            transaction = transact.beginTransaction();
+            final BinaryDocument doc4 = sub2.addBinaryResource(transaction, broker, XmldbURI.create("b.bin"), "changed".getBytes(), "application/octet-stream");
+            transact.commit(transaction);
+            os.reset();
+            broker.readBinaryResource(doc4, os);
+            assertEquals("changed", os.toString());
+            os.reset();
+            broker.readBinaryResource(doc1, os);
+            assertArrayEquals(DATA, os.toByteArray());
+            assertEquals(2, referenceCount(store, doc1));
+            assertEquals(blobs + 2, countBlobs(store));
+
+            // moving a resource keeps its content
+            transaction = transact.beginTransaction();
+            broker.moveResource(transaction, copy, sub1, XmldbURI.create("d.bin"));
+            transact.commit(transaction);
+            os.reset();
+            broker.readBinaryResource(copy, os);
+            assertArrayEquals(DATA, os.toByteArray());
+
+            // the content is removed with its last reference
+            transaction = transact.beginTransaction();
+            sub1.removeBinaryResource(transaction, broker, XmldbURI.create("a.bin"));
+            transact.commit(transaction);
+            assertTrue(file.exists());
+            transaction = transact.beginTransaction();
+            broker.removeCollection(transaction, sub1);
+            transact.commit(transaction);
+            assertFalse(file.exists());
+            assertEquals(blobs + 1, countBlobs(store));
+
+            // no temporary files are left behind
+            final File tempDir = new File(((NativeBroker) broker).dataDir, BinaryContentStore.TEMP_DIR);
+            assertEquals(0, tempDir.listFiles().length);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void recoverRemovedContent() throws Exception {
+        BrokerPool.FORCE_CORRUPTION = true;
+        BrokerPool pool = startDB();
+        DBBroker broker = null;
+        File file;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            Txn transaction = transact.beginTransaction();
+            final Collection sub1 = broker.getOrCreateCollection(transaction, SUB1);
+            broker.saveCollection(transaction, sub1);
+            final BinaryDocument doc = sub1.addBinaryResource(transaction, broker, XmldbURI.create("a.bin"), DATA, "application/octet-stream");
+            transact.commit(transaction);
+            file = broker.getBinaryFile(doc);
+
+            // remove the resource, but do not commit
+            transaction = transact.beginTransaction();
+            sub1.removeBinaryResource(transaction, broker, XmldbURI.create("a.bin"));
+            assertFalse(file.exists());
+            transact.getJournal().flushToLog(true);
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+
+        BrokerPool.FORCE_CORRUPTION = false;
+        pool = startDB();
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection sub1 = broker.getCollection(SUB1);
+            final BinaryDocument doc = (BinaryDocument) sub1.getDocument(broker, XmldbURI.create("a.bin"));
+            assertNotNull(doc);
+            assertTrue(file.exists());
+            assertEquals(file, broker.getBinaryFile(doc));
+            assertEquals(1, referenceCount(((NativeBroker) broker).binaryStore, doc));
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            broker.readBinaryResource(doc, os);
+            assertArrayEquals(DATA, os.toByteArray());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private int referenceCount(BinaryContentStore store, BinaryDocument doc) {
+        final byte[] digest = store.getReferences().getDigest(doc.getDocId());
+        assertNotNull(digest);
+        return store.getReferences().getReferenceCount(digest);
+    }
+
+    private int countBlobs(BinaryContentStore store) {
+        int count = 0;
+        for (final File dir : store.getDirectory().listFiles()) {
+            if (dir.isDirectory())
+                {count += dir.listFiles().length;}
+        }
+        return count;
+    }
+
+    private BrokerPool startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void closeDB() {
+        BrokerPool.FORCE_CORRUPTION = false;
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+}
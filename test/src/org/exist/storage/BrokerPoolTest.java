@@ -0,0 +1,148 @@
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.util.Configuration;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Check broker acquisition with reserved brokers and wait timeouts.
+ */
+public class BrokerPoolTest {
+
+    private static final int MAX_BROKERS = 4;
+
+    private BrokerPool pool = null;
+
+    @Test
+    public void reservedBrokers() throws Exception {
+        pool = startDB(1, 500);
+        pool.getQueueStatistics().reset();
+        assertEquals(1, pool.getReservedBrokers());
+
+        // occupy all unreserved brokers
+        final CountDownLatch acquired = new CountDownLatch(MAX_BROKERS - 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread[] holders = new Thread[MAX_BROKERS - 1];
+        for (int i = 0; i < holders.length; i++) {
+            holders[i] = new BrokerHolder(acquired, done);
+            holders[i].start();
+        }
+        acquired.await();
+        assertEquals(MAX_BROKERS - 1, pool.countActiveBrokers());
+
+        // a guest request cannot use the reserved broker and times out
+        try {
+            final DBBroker broker = pool.get(null);
+            pool.release(broker);
+            fail("Expected a timeout");
+        } catch (final EXistException e) {
+            // expected
+        }
+        assertEquals(1, pool.getQueueStatistics().getHistograms().get("guest").getTimeouts());
+        assertEquals(0, pool.countWaitingRequests());
+
+        // system tasks and dba users may still obtain a broker
+        DBBroker broker = pool.getSystemBroker();
+        assertNotNull(broker);
+        pool.release(broker);
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        assertNotNull(broker);
+        pool.release(broker);
+
+        done.countDown();
+        for (int i = 0; i < holders.length; i++) {
+            holders[i].join();
+        }
+        broker = pool.get(null);
+        assertNotNull(broker);
+        pool.release(broker);
+    }
+
+    @Test
+    public void fairQueue() throws Exception {
+        pool = startDB(0, -1);
+        pool.getQueueStatistics().reset();
+        final int threads = 12;
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        DBBroker broker = null;
+                        try {
+                            broker = pool.get(null);
+                            if (pool.countActiveBrokers() > MAX_BROKERS)
+                                {errors.incrementAndGet();}
+                            Thread.sleep(1);
+                        } catch (final Exception e) {
+                            errors.incrementAndGet();
+                        } finally {
+                            pool.release(broker);
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(0, pool.countActiveBrokers());
+        assertEquals(0, pool.countWaitingRequests());
+        assertTrue(pool.total() <= MAX_BROKERS);
+        assertEquals(threads * 50, pool.getQueueStatistics().getHistograms().get("guest").getCount());
+    }
+
+    private class BrokerHolder extends Thread {
+
+        private final CountDownLatch acquired;
+        private final CountDownLatch done;
+
+        BrokerHolder(CountDownLatch acquired, CountDownLatch done) {
+            this.acquired = acquired;
+            this.done = done;
+        }
+
+        public void run() {
+            DBBroker broker = null;
+            try {
+                broker = pool.get(null);
+                acquired.countDown();
+                done.await();
+            } catch (final Exception e) {
+                e.printStackTrace();
+            } finally {
+                pool.release(broker);
+            }
+        }
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+
+    protected BrokerPool startDB(int reserved, long waitTimeout) {
+        try {
+            final Configuration config = new Configuration();
+            config.setProperty(BrokerPool.PROPERTY_MAX_CONNECTIONS, Integer.valueOf(MAX_BROKERS));
+            config.setProperty(BrokerPool.PROPERTY_RESERVED_BROKERS, Integer.valueOf(reserved));
+            config.setProperty(BrokerPool.PROPERTY_WAIT_TIMEOUT, Long.valueOf(waitTimeout));
+            BrokerPool.configure(1, MAX_BROKERS, config);
+            return BrokerPool.getInstance();
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        return null;
+    }
+}
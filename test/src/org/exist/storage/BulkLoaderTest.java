@@ -0,0 +1,198 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.dom.BinaryDocument;
+import org.exist.dom.DefaultDocumentSet;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.QName;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.composite.CompositeIndexSpec;
+import org.exist.storage.composite.CompositeRangeIndex;
+import org.exist.storage.composite.CompositeRangeIndexWorker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Load documents with the bulk loader and check that they are indexed
+ * while they are stored.
+ */
+public class BulkLoaderTest {
+
+    private static final int DOCUMENTS = 50;
+    private static final int CUSTOMERS = 5;
+
+    private static final String CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <composite qname=\"order\">" +
+        "           <field qname=\"@customer\" type=\"xs:string\"/>" +
+        "       </composite>" +
+        "   </index>" +
+        "</collection>";
+
+    private static final String COUNT_ORDERS =
+        "count(collection('" + TestConstants.TEST_COLLECTION_URI + "')//order)";
+
+    @Test
+    public void storeBatches() {
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = startDB();
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection root = createCollection(pool, broker);
+
+            final BulkLoader loader = new BulkLoader(broker, 7);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                loader.store(root, XmldbURI.create("order" + i + ".xml"),
+                    new InputSource(new StringReader(order(i, "c" + i % CUSTOMERS))), null);
+            }
+            assertEquals(DOCUMENTS / CUSTOMERS, lookup(broker, root, "c1"));
+
+            // replace a document in the last, uncommitted batch
+            loader.store(root, XmldbURI.create("order0.xml"),
+                new InputSource(new StringReader(order(0, "c1"))), null);
+            assertEquals(DOCUMENTS + 1, loader.getLoaded());
+
+            final XQuery xquery = broker.getXQueryService();
+            assertEquals(DOCUMENTS, count(xquery, COUNT_ORDERS));
+            assertEquals(DOCUMENTS / CUSTOMERS + 1, lookup(broker, root, "c1"));
+            assertEquals(DOCUMENTS / CUSTOMERS - 1, lookup(broker, root, "c0"));
+
+            loader.finish();
+            assertTrue(loader.getDocumentsPerSecond() > 0);
+
+            // documents stored outside of the loader are indexed the same way
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final String xml = order(DOCUMENTS, "c1");
+            final XmldbURI docName = XmldbURI.create("single.xml");
+            root.store(transaction, broker, root.validateXMLResource(transaction, broker, docName, xml), xml, false);
+            transact.commit(transaction);
+            assertEquals(DOCUMENTS / CUSTOMERS + 2, lookup(broker, root, "c1"));
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool != null)
+                {pool.release(broker);}
+        }
+    }
+
+    @Test
+    public void storeZip() {
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = startDB();
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection root = createCollection(pool, broker);
+
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final ZipOutputStream zos = new ZipOutputStream(data);
+            addEntry(zos, "a.xml", order(1, "c1"));
+            addEntry(zos, "sub/b.xml", order(2, "c1"));
+            addEntry(zos, "sub/c.txt", "Not XML");
+            zos.close();
+
+            final BulkLoader loader = new BulkLoader(broker, BulkLoader.DEFAULT_BATCH_SIZE);
+            assertEquals(3, loader.storeZip(root, new ByteArrayInputStream(data.toByteArray())));
+            loader.finish();
+
+            assertNotNull(root.getDocument(broker, XmldbURI.create("a.xml")));
+            final Collection sub = broker.getCollection(TestConstants.TEST_COLLECTION_URI.append("sub"));
+            assertNotNull(sub);
+            assertNotNull(sub.getDocument(broker, XmldbURI.create("b.xml")));
+            final DocumentImpl binary = sub.getDocument(broker, XmldbURI.create("c.txt"));
+            assertNotNull(binary);
+            assertEquals(DocumentImpl.BINARY_FILE, binary.getResourceType());
+            // the size of a deflated entry is only known once it has been read
+            assertEquals("Not XML".length(), ((BinaryDocument) binary).getContentLength());
+            assertEquals(2, lookup(broker, root, "c1"));
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool != null)
+                {pool.release(broker);}
+        }
+    }
+
+    private Collection createCollection(BrokerPool pool, DBBroker broker) throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, root);
+        pool.getConfigurationManager().addConfiguration(transaction, broker, root, CONFIG);
+        transact.commit(transaction);
+        return root;
+    }
+
+    private static String order(int id, String customer) {
+        return "<order id=\"" + id + "\" customer=\"" + customer + "\"><amount>" + id + "</amount></order>";
+    }
+
+    private static void addEntry(ZipOutputStream zos, String name, String content) throws Exception {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(content.getBytes("UTF-8"));
+        zos.closeEntry();
+    }
+
+    /**
+     * Look up the documents of a customer in the composite index.
+     */
+    private int lookup(DBBroker broker, Collection collection, String customer) throws Exception {
+        final DocumentSet docs = collection.allDocs(broker, new DefaultDocumentSet(), true);
+        final Map<QName, List<CompositeIndexSpec>> config =
+            CompositeRangeIndexWorker.getConfiguration(broker, collection);
+        final CompositeIndexSpec spec = config.get(new QName("order", "")).get(0);
+        final CompositeRangeIndexWorker worker = (CompositeRangeIndexWorker)
+            broker.getIndexController().getWorkerByIndexId(CompositeRangeIndex.ID);
+        final byte key[] = spec.encode(0, new StringValue(customer));
+        return worker.find(docs, null, spec, key, CompositeIndexSpec.successor(key)).getLength();
+    }
+
+    private int count(XQuery xquery, String query) throws Exception {
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        assertEquals(1, result.getItemCount());
+        return Integer.parseInt(result.itemAt(0).getStringValue());
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+
+    protected BrokerPool startDB() {
+        try {
+            final Configuration config = new Configuration();
+            BrokerPool.configure(1, 5, config);
+            return BrokerPool.getInstance();
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        return null;
+    }
+}
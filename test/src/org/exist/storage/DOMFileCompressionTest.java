@@ -0,0 +1,146 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.storage.dom.DOMFile;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Store documents with page compression enabled for dom.dbx and check
+ * that they are intact after a restart or a recovery run.
+ */
+public class DOMFileCompressionTest {
+
+    private static final int ITEMS = 2000;
+
+    private static final int LARGE_TEXT_LENGTH = 40000;
+
+    @Test
+    public void storeAndRecover() {
+        final String xml = createDocument();
+        final String large = createLargeDocument();
+        storeDocument("large.xml", large, false);
+        storeDocument("test.xml", xml, true);
+        restart(xml, large);
+    }
+
+    private String createDocument() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<test>");
+        for (int i = 0; i < ITEMS; i++) {
+            buf.append("<item id=\"").append(i).append("\"><name>Item number ").append(i)
+                .append("</name><description>A rather repetitive description</description></item>");
+        }
+        buf.append("</test>");
+        return buf.toString();
+    }
+
+    private String createLargeDocument() {
+        // contains a text node which does not fit into a single page
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<test><large>");
+        for (int i = 0; i < LARGE_TEXT_LENGTH; i++) {
+            buf.append((char) ('a' + (i % 26)));
+        }
+        buf.append("</large></test>");
+        return buf.toString();
+    }
+
+    /**
+     * Store a document and shut down the db. If crash is true, the page
+     * buffers will not be written to disk on shutdown.
+     */
+    private void storeDocument(String name, String xml, boolean crash) {
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = startDB();
+            assertNotNull(pool);
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            assertTrue(((NativeBroker) broker).getDOMFile().isCompressingPages());
+
+            final TransactionManager transact = pool.getTransactionManager();
+            Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            assertNotNull(root);
+            broker.saveCollection(transaction, root);
+            transact.commit(transaction);
+
+            BrokerPool.FORCE_CORRUPTION = crash;
+            transaction = transact.beginTransaction();
+            final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+            assertNotNull(info);
+            root.store(transaction, broker, info, xml, false);
+            broker.saveCollection(transaction, root);
+            transact.commit(transaction);
+            transact.getJournal().flushToLog(true);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool != null)
+                {pool.release(broker);}
+            BrokerPool.stopAll(false);
+        }
+    }
+
+    private void restart(String xml, String large) {
+        BrokerPool.FORCE_CORRUPTION = false;
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = startDB();
+            assertNotNull(pool);
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection root = broker.openCollection(TestConstants.TEST_COLLECTION_URI, Lock.READ_LOCK);
+            assertNotNull(root);
+            final DocumentImpl doc = root.getDocument(broker, XmldbURI.create("test.xml"));
+            final DocumentImpl largeDoc = root.getDocument(broker, XmldbURI.create("large.xml"));
+            root.release(Lock.READ_LOCK);
+            assertNotNull(doc);
+            assertNotNull(largeDoc);
+
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperty("indent", "no");
+            assertEquals(xml, serializer.serialize(doc));
+            assertEquals(large, serializer.serialize(largeDoc));
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool != null)
+                {pool.release(broker);}
+        }
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+
+    protected BrokerPool startDB() {
+        try {
+            final Configuration config = new Configuration();
+            config.setProperty(DOMFile.PROPERTY_COMPRESSION, DOMFile.COMPRESSION_DEFLATE);
+            BrokerPool.configure(1, 5, config);
+            return BrokerPool.getInstance();
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,158 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.BinaryDocument;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create a backup while documents are being stored and check that the
+ * database can be started on the backup.
+ */
+public class HotBackupTest {
+
+    private static final int DOCUMENTS = 50;
+    private static final byte[] BINARY = "binary data".getBytes();
+
+    private File backupDir = null;
+
+    @Test
+    public void backupWhileWriting() throws Exception {
+        BrokerPool pool = startDB(null);
+        final File outputDir = new File(System.getProperty("java.io.tmpdir"), "exist-hotbackup-" + System.currentTimeMillis());
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            root.addBinaryResource(transaction, broker, XmldbURI.create("data.bin"), BINARY, "application/octet-stream");
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+        for (int i = 0; i < DOCUMENTS; i++) {
+            store(pool, "before" + i + ".xml");
+        }
+
+        // keep writing while the backup runs
+        final BrokerPool db = pool;
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        // do not interrupt the writer: an interrupt closes the file channels it uses
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Thread writer = new Thread() {
+            public void run() {
+                while (!stop.get()) {
+                    try {
+                        store(db, "during" + written.get() + ".xml");
+                        written.incrementAndGet();
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+        };
+        writer.start();
+        while (written.get() < 5) {
+            Thread.sleep(10);
+        }
+        final HotBackup hotBackup = pool.getHotBackup();
+        backupDir = hotBackup.backup(outputDir);
+        stop.set(true);
+        writer.join();
+        assertEquals(0, errors.get());
+        assertFalse(hotBackup.isRunning());
+        assertNull(hotBackup.getLastError());
+        assertTrue(hotBackup.getBytesCopied() > 0);
+        assertFalse(pool.getTransactionManager().getJournal().isHotBackupRunning());
+        assertTrue(new File(backupDir, "dom.dbx").exists());
+
+        // closeDB only cleans up the database running on the backup
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+
+        // start the database on the backup
+        pool = startDB(backupDir);
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence result = broker.getXQueryService().execute(
+                "count(collection('" + TestConstants.TEST_COLLECTION_URI + "')/test[starts-with(name, 'before')])",
+                null, AccessContext.TEST);
+            assertEquals(DOCUMENTS, Integer.parseInt(result.itemAt(0).getStringValue()));
+
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            final BinaryDocument binary = (BinaryDocument) root.getDocument(broker, XmldbURI.create("data.bin"));
+            assertNotNull(binary);
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            broker.readBinaryResource(binary, os);
+            assertArrayEquals(BINARY, os.toByteArray());
+
+            // documents stored during the backup are either complete or missing
+            final Sequence during = broker.getXQueryService().execute(
+                "for $doc in collection('" + TestConstants.TEST_COLLECTION_URI + "')/test[starts-with(name, 'during')] " +
+                "return util:document-name($doc) = concat($doc/name, '')",
+                null, AccessContext.TEST);
+            for (int i = 0; i < during.getItemCount(); i++) {
+                assertEquals("true", during.itemAt(i).getStringValue());
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private static void store(BrokerPool pool, String docName) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.openCollection(TestConstants.TEST_COLLECTION_URI, Lock.NO_LOCK);
+            final String xml = "<test><name>" + docName + "</name></test>";
+            final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create(docName), xml);
+            root.store(transaction, broker, info, xml, false);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+        if (backupDir != null)
+            {FileUtils.delete(backupDir.getParentFile());}
+    }
+
+    protected BrokerPool startDB(File dataDir) throws Exception {
+        final Configuration config = new Configuration();
+        if (dataDir != null) {
+            config.setProperty(BrokerPool.PROPERTY_DATA_DIR, dataDir.getAbsolutePath());
+            config.setProperty(Journal.PROPERTY_RECOVERY_JOURNAL_DIR, dataDir.getAbsolutePath());
+        }
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+}
@@ -0,0 +1,134 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+
+/**
+ * Reindex a collection hierarchy using several worker threads and check
+ * that the new index configuration has been applied to all documents.
+ */
+public class ParallelReindexTest {
+
+    private static final int DOCUMENTS = 25;
+
+    private static final String CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <create qname=\"SPEAKER\" type=\"xs:string\"/>" +
+        "   </index>" +
+        "</collection>";
+
+    private static final String COUNT_INDEXED =
+        "sum(util:index-key-occurrences(collection('" + TestConstants.TEST_COLLECTION_URI + "')//SPEAKER, 'HAMLET'))";
+
+    private static final String COUNT_INDEXED_SUB =
+        "sum(util:index-key-occurrences(collection('" + TestConstants.TEST_COLLECTION_URI + "/sub')//SPEAKER, 'HAMLET'))";
+
+    private static final String COUNT_NODES =
+        "count(collection('" + TestConstants.TEST_COLLECTION_URI + "')//SPEAKER[string(.) eq 'HAMLET'])";
+
+    private static File dir = null;
+    static {
+        final String existHome = System.getProperty("exist.home");
+        final File existDir = existHome == null ? new File(".") : new File(existHome);
+        dir = new File(existDir, "samples/shakespeare");
+    }
+
+    @Test
+    public void reindex() {
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = startDB();
+            assertNotNull(pool);
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            assertNotNull(broker);
+
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            final Collection sub = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI.append("sub"));
+            broker.saveCollection(transaction, sub);
+
+            final String[] plays = { "hamlet.xml", "macbeth.xml", "r_and_j.xml" };
+            for (int i = 0; i < plays.length; i++) {
+                final File f = new File(dir, plays[i]);
+                final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create(plays[i]),
+                        new InputSource(f.toURI().toASCIIString()));
+                root.store(transaction, broker, info, new InputSource(f.toURI().toASCIIString()), false);
+            }
+            for (int i = 0; i < DOCUMENTS; i++) {
+                final String xml = "<SPEECH><SPEAKER>HAMLET</SPEAKER><LINE>Line " + i + "</LINE></SPEECH>";
+                final XmldbURI docName = XmldbURI.create("speech" + i + ".xml");
+                final IndexInfo info = sub.validateXMLResource(transaction, broker, docName, xml);
+                sub.store(transaction, broker, info, xml, false);
+            }
+            pool.getConfigurationManager().addConfiguration(transaction, broker, root, CONFIG);
+            transact.commit(transaction);
+
+            final XQuery xquery = broker.getXQueryService();
+            final int nodes = count(xquery, COUNT_NODES);
+            assertTrue(nodes > DOCUMENTS);
+            assertEquals(0, count(xquery, COUNT_INDEXED));
+
+            broker.reindexCollection(TestConstants.TEST_COLLECTION_URI);
+            final int occurrences = count(xquery, COUNT_INDEXED);
+            assertTrue(occurrences >= nodes);
+            assertTrue(count(xquery, COUNT_INDEXED_SUB) >= DOCUMENTS);
+            assertEquals(nodes, count(xquery, COUNT_NODES));
+
+            // reindexing again must not duplicate index entries
+            broker.reindexCollection(TestConstants.TEST_COLLECTION_URI);
+            assertEquals(occurrences, count(xquery, COUNT_INDEXED));
+            assertEquals(0, pool.getProcessMonitor().runningJobs().length);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool != null)
+                {pool.release(broker);}
+        }
+    }
+
+    private int count(XQuery xquery, String query) throws Exception {
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        assertEquals(1, result.getItemCount());
+        return Integer.parseInt(result.itemAt(0).getStringValue());
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+
+    protected BrokerPool startDB() {
+        try {
+            final Configuration config = new Configuration();
+            config.setProperty(NativeBroker.PROPERTY_REINDEX_THREADS, Integer.valueOf(3));
+            config.setProperty(NativeBroker.PROPERTY_REINDEX_BATCH_SIZE, Integer.valueOf(4));
+            BrokerPool.configure(1, 5, config);
+            return BrokerPool.getInstance();
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        return null;
+    }
+}
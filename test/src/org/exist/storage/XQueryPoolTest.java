@@ -0,0 +1,142 @@
+package org.exist.storage;
+
+import org.exist.security.xacml.AccessContext;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
+import org.exist.util.Configuration;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class XQueryPoolTest {
+
+    private BrokerPool pool;
+    private DBBroker broker;
+    private XQueryPool queryPool;
+
+    @Test
+    public void borrowAndReturn() throws Exception {
+        final Source source = new StringSource("1 + 1");
+        assertNull(queryPool.borrowCompiledXQuery(broker, source));
+        final CompiledXQuery compiled = compile(source, 10);
+        queryPool.returnCompiledXQuery(source, compiled);
+        // returning the same query twice must not duplicate it
+        queryPool.returnCompiledXQuery(source, compiled);
+        assertEquals(1, queryPool.size());
+
+        assertSame(compiled, queryPool.borrowCompiledXQuery(broker, new StringSource("1 + 1")));
+        assertNull(queryPool.borrowCompiledXQuery(broker, source));
+        assertEquals(1, queryPool.getHits());
+        assertEquals(2, queryPool.getMisses());
+        assertTrue(pool.getXQueryPool().getCompilations() > 0);
+    }
+
+    @Test
+    public void maxStackSize() throws Exception {
+        final Source source = new StringSource("2 + 2");
+        for (int i = 0; i < 5; i++) {
+            queryPool.returnCompiledXQuery(source, compile(source, 1));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(queryPool.borrowCompiledXQuery(broker, source));
+        }
+        assertNull(queryPool.borrowCompiledXQuery(broker, source));
+    }
+
+    @Test
+    public void evictCheapest() throws Exception {
+        final Source[] sources = new Source[4];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new StringSource(i + " * 2");
+            queryPool.returnCompiledXQuery(sources[i], compile(sources[i], (i + 1) * 10));
+        }
+        assertEquals(4, queryPool.size());
+
+        // an expensive query replaces the cheapest one
+        final Source expensive = new StringSource("'expensive'");
+        queryPool.returnCompiledXQuery(expensive, compile(expensive, 100));
+        assertEquals(4, queryPool.size());
+        assertEquals(1, queryPool.getEvictions());
+        assertNull(queryPool.borrowCompiledXQuery(broker, sources[0]));
+        assertNotNull(queryPool.borrowCompiledXQuery(broker, expensive));
+
+        // a query which is cheaper than all pooled ones is not added
+        final Source cheap = new StringSource("'cheap'");
+        queryPool.returnCompiledXQuery(cheap, compile(cheap, 0));
+        assertNull(queryPool.borrowCompiledXQuery(broker, cheap));
+        assertEquals(1, queryPool.getEvictions());
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        final Source source = new StringSource("3 + 3");
+        final CompiledXQuery[] queries = new CompiledXQuery[3];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = compile(source, 1);
+            queryPool.returnCompiledXQuery(source, queries[i]);
+        }
+        final AtomicInteger borrowed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        try {
+                            final CompiledXQuery query = queryPool.borrowCompiledXQuery(broker, source);
+                            if (query != null) {
+                                if (borrowed.incrementAndGet() > queries.length)
+                                    {errors.incrementAndGet();}
+                                borrowed.decrementAndGet();
+                                queryPool.returnCompiledXQuery(source, query);
+                            }
+                        } catch (final Exception e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertEquals(0, errors.get());
+        for (int i = 0; i < queries.length; i++) {
+            assertNotNull(queryPool.borrowCompiledXQuery(broker, source));
+        }
+        assertNull(queryPool.borrowCompiledXQuery(broker, source));
+    }
+
+    private CompiledXQuery compile(Source source, long compilationTime) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final XQueryContext context = xquery.newContext(AccessContext.TEST);
+        final CompiledXQuery compiled = xquery.compile(context, source);
+        context.setCompilationTime(compilationTime);
+        return compiled;
+    }
+
+    @Before
+    public void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        config.setProperty(XQueryPool.PROPERTY_POOL_SIZE, Integer.valueOf(4));
+        config.setProperty(XQueryPool.PROPERTY_MAX_STACK_SIZE, Integer.valueOf(3));
+        queryPool = new XQueryPool(config);
+    }
+
+    @After
+    public void stopDB() {
+        pool.release(broker);
+        BrokerPool.stopAll(false);
+    }
+}
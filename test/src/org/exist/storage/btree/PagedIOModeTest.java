@@ -0,0 +1,136 @@
+package org.exist.storage.btree;
+
+import org.exist.storage.BrokerPool;
+import org.exist.util.Configuration;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Check that the different page I/O modes of {@link Paged} read back
+ * what has been written.
+ */
+public class PagedIOModeTest {
+
+    private static final int COUNT = 20000;
+
+    private BrokerPool pool;
+    private File file = null;
+    private int count = 0;
+
+    @Test
+    public void raf() throws Exception {
+        storeAndQuery(Paged.IO_MODE_RAF);
+    }
+
+    @Test
+    public void channel() throws Exception {
+        storeAndQuery(Paged.IO_MODE_CHANNEL);
+    }
+
+    @Test
+    public void mmap() throws Exception {
+        storeAndQuery(Paged.IO_MODE_MMAP);
+    }
+
+    @Test
+    public void mappedRegions() throws Exception {
+        final File regionFile = new File(file.getParentFile(), "regions.dbx");
+        final RandomAccessFile raf = new RandomAccessFile(regionFile, "rw");
+        try {
+            final byte[] data = new byte[1024 * 10 + 100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            raf.write(data);
+            final MappedFileRegions regions = new MappedFileRegions(raf.getChannel(), 1024);
+            final byte[] buf = new byte[100];
+            // inside a complete region
+            assertTrue(regions.read(buf, 0, buf.length, 2048));
+            assertEquals((byte) 2048, buf[0]);
+            assertEquals((byte) (2048 + 99), buf[99]);
+            // crossing a region boundary
+            assertFalse(regions.read(buf, 0, buf.length, 1000));
+            // the incomplete region at the end of the file
+            assertFalse(regions.read(buf, 0, buf.length, 1024 * 10));
+            // extend the file to complete the last region
+            raf.seek(data.length);
+            raf.write(new byte[1024]);
+            regions.written(data.length + 1024);
+            assertTrue(regions.read(buf, 0, buf.length, 1024 * 10));
+            assertEquals((byte) (1024 * 10), buf[0]);
+            regions.close();
+        } finally {
+            raf.close();
+            regionFile.delete();
+        }
+    }
+
+    private void storeAndQuery(String mode) throws Exception {
+        final Map<String, String> files = new HashMap<String, String>();
+        files.put(file.getName(), mode);
+        pool.getConfiguration().setProperty(Paged.PROPERTY_PAGE_IO_FILES, files);
+
+        BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        btree.create((short) -1);
+        assertEquals(mode, btree.getIOMode());
+        for (int i = 1; i <= COUNT; i++) {
+            btree.addValue(new Value("K" + i), i);
+        }
+        btree.flush();
+        btree.close();
+
+        // reopen and read back all keys from disk
+        btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        assertTrue(btree.open((short) -1));
+        assertEquals(mode, btree.getIOMode());
+        for (int i = 1; i <= COUNT; i += 97) {
+            assertEquals(i, btree.findValue(new Value("K" + i)));
+        }
+        final IndexQuery query = new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value("K"));
+        count = 0;
+        btree.query(query, new BTreeCallback() {
+            public boolean indexInfo(Value value, long pointer) {
+                count++;
+                return true;
+            }
+        });
+        assertEquals(COUNT, count);
+        btree.close();
+    }
+
+    @Before
+    public void initialize() {
+        try {
+            final Configuration config = new Configuration();
+            BrokerPool.configure(1, 5, config);
+            pool = BrokerPool.getInstance();
+
+            file = new File(System.getProperty("exist.home", ".") + "/test/junit/test.dbx");
+            file.getParentFile().mkdirs();
+            assertFalse(file.exists());
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        try {
+            BrokerPool.stopAll(false);
+            file.delete();
+        } catch (final Exception e) {
+            fail(e.getMessage());
+        }
+        pool = null;
+        file = null;
+    }
+}
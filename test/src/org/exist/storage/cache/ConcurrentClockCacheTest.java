@@ -0,0 +1,244 @@
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentClockCacheTest {
+
+    @Test
+    public void addAndGet() {
+        final ConcurrentClockCache cache = new ConcurrentClockCache(256, 0.0, 1.0, CacheManager.DATA_CACHE);
+        for (int i = 0; i < 200; i++) {
+            cache.add(new TestItem(i));
+        }
+        assertEquals(200, cache.getUsedBuffers());
+        for (int i = 0; i < 200; i++) {
+            final Cacheable item = cache.get(i);
+            assertNotNull(item);
+            assertEquals(i, item.getKey());
+        }
+        assertNull(cache.get(1000));
+        assertEquals(200, cache.getHits());
+        assertEquals(1, cache.getFails());
+
+        cache.remove(new TestItem(10));
+        assertNull(cache.get(10));
+        assertEquals(199, cache.getUsedBuffers());
+    }
+
+    @Test
+    public void replace() {
+        final ConcurrentClockCache cache = new ConcurrentClockCache(64, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final List<TestItem> items = new ArrayList<TestItem>();
+        for (int i = 0; i < 1000; i++) {
+            final TestItem item = new TestItem(i);
+            item.dirty = true;
+            items.add(item);
+            cache.add(item);
+            assertTrue(cache.getUsedBuffers() <= 64);
+        }
+        // replaced pages must have been written
+        int synced = 0;
+        for (final TestItem item : items) {
+            if (cache.get(item.getKey()) == null) {
+                assertFalse(item.dirty);
+                synced++;
+            }
+        }
+        assertEquals(1000 - cache.getUsedBuffers(), synced);
+        assertTrue(cache.flush());
+        assertFalse(cache.hasDirtyItems());
+    }
+
+    @Test
+    public void locked() {
+        final ConcurrentClockCache cache = new ConcurrentClockCache(8, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final TestItem locked = new TestItem(0);
+        locked.allowUnload = false;
+        cache.add(locked);
+        for (int i = 1; i < 100; i++) {
+            cache.add(new TestItem(i));
+        }
+        assertSame(locked, cache.get(0));
+    }
+
+    @Test
+    public void frequentlyUsed() {
+        final ConcurrentClockCache cache = new ConcurrentClockCache(32, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final TestItem hot = new TestItem(0);
+        for (int i = 1; i < 2000; i++) {
+            // access the hot page before every new page
+            final Cacheable cached = cache.get(0);
+            cache.add(cached == null ? hot : cached);
+            cache.add(new TestItem(i));
+        }
+        assertNotNull(cache.get(0));
+    }
+
+    @Test
+    public void resize() {
+        final TestCacheManager manager = new TestCacheManager();
+        final ConcurrentClockCache cache = new ConcurrentClockCache(32, 2.0, 0.0, CacheManager.BTREE_CACHE);
+        cache.setCacheManager(manager);
+        for (int i = 0; i < 32; i++) {
+            cache.add(new TestItem(i));
+        }
+        // thrashing: reload pages which have just been replaced
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 64; i++) {
+                if (cache.get(i) == null)
+                    {cache.add(new TestItem(i));}
+            }
+        }
+        assertTrue(manager.requests.get() > 0);
+        assertTrue(cache.getBuffers() > 32);
+        for (int i = 0; i < 64; i++) {
+            cache.add(new TestItem(i));
+        }
+        final int used = cache.getUsedBuffers();
+        cache.resize(16);
+        assertEquals(16, cache.getBuffers());
+        assertTrue(cache.getUsedBuffers() <= 16);
+        assertTrue(used >= cache.getUsedBuffers());
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        final ConcurrentClockCache cache = new ConcurrentClockCache(512, 1.5, 0.0, CacheManager.BTREE_CACHE);
+        final TestCacheManager manager = new TestCacheManager();
+        cache.setCacheManager(manager);
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    final Random random = new Random(seed);
+                    for (int i = 0; i < 50000; i++) {
+                        final long key = random.nextInt(4096);
+                        Cacheable item = cache.get(key);
+                        if (item == null)
+                            {item = new TestItem(key);}
+                        else if (item.getKey() != key)
+                            {errors.incrementAndGet();}
+                        cache.add(item);
+                        if (i % 1000 == 0)
+                            {cache.remove(item);}
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertEquals(0, errors.get());
+        assertTrue(cache.getUsedBuffers() <= cache.getBuffers());
+    }
+
+    private static class TestItem implements BTreeCacheable {
+
+        private final long key;
+        private int refCount = 0;
+        private int timestamp = 0;
+        boolean dirty = false;
+        boolean allowUnload = true;
+
+        TestItem(long key) {
+            this.key = key;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public int getReferenceCount() {
+            return refCount;
+        }
+
+        public int incReferenceCount() {
+            if (refCount < MAX_REF)
+                {++refCount;}
+            return refCount;
+        }
+
+        public int decReferenceCount() {
+            return refCount > 0 ? --refCount : 0;
+        }
+
+        public void setReferenceCount(int count) {
+            refCount = count;
+        }
+
+        public void setTimestamp(int timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        public boolean sync(boolean syncJournal) {
+            final boolean wasDirty = dirty;
+            dirty = false;
+            return wasDirty;
+        }
+
+        public boolean allowUnload() {
+            return allowUnload;
+        }
+
+        public boolean isDirty() {
+            return dirty;
+        }
+
+        public boolean isInnerPage() {
+            return key % 16 == 0;
+        }
+    }
+
+    private static class TestCacheManager implements CacheManager {
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        public void registerCache(Cache cache) {
+        }
+
+        public void deregisterCache(Cache cache) {
+        }
+
+        public synchronized int requestMem(Cache cache) {
+            requests.incrementAndGet();
+            final int newSize = (int) (cache.getBuffers() * cache.getGrowthFactor());
+            if (newSize > 2048)
+                {return -1;}
+            cache.resize(newSize);
+            return newSize;
+        }
+
+        public void checkCaches() {
+        }
+
+        public void checkDistribution() {
+        }
+
+        public long getMaxTotal() {
+            return 2048;
+        }
+
+        public long getMaxSingle() {
+            return 2048;
+        }
+
+        public long getCurrentSize() {
+            return 0;
+        }
+    }
+}
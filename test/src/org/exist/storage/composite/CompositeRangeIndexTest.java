@@ -0,0 +1,302 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.storage.composite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.collections.Collection;
+import org.exist.dom.DefaultDocumentSet;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.QName;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.exist.xmldb.IndexQueryService;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.StringValue;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.Resource;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.CollectionManagementService;
+import org.xmldb.api.modules.XQueryService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Tests the composite range index: the results of queries answered by the index
+ * are compared with the results computed from the test data.
+ */
+public class CompositeRangeIndexTest {
+
+    private static final int ORDERS = 300;
+    private static final int CUSTOMERS = 10;
+
+    private static final String CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <composite qname=\"order\">" +
+        "           <field qname=\"@customer\" type=\"xs:string\"/>" +
+        "           <field qname=\"date\" type=\"xs:date\"/>" +
+        "       </composite>" +
+        "       <composite qname=\"order\">" +
+        "           <field qname=\"@customer\" type=\"xs:string\"/>" +
+        "           <field qname=\"amount\" type=\"xs:integer\"/>" +
+        "       </composite>" +
+        "   </index>" +
+        "</collection>";
+
+    private static org.xmldb.api.base.Collection testCollection;
+
+    private List<Order> orders;
+
+    @Test
+    public void equality() throws XMLDBException {
+        assertQuery("//order[@customer = 'c3']", new Filter() {
+            public boolean accept(Order order) {
+                return "c3".equals(order.customer);
+            }
+        });
+        assertQuery("//order[@customer = ('c1', 'c4')]", new Filter() {
+            public boolean accept(Order order) {
+                return "c1".equals(order.customer) || "c4".equals(order.customer);
+            }
+        });
+        assertQuery("//order[@customer = 'c3'][date = xs:date('2013-05-01')]", new Filter() {
+            public boolean accept(Order order) {
+                return "c3".equals(order.customer) && "2013-05-01".equals(order.date);
+            }
+        });
+        assertQuery("//order[@customer = 'none']", new Filter() {
+            public boolean accept(Order order) {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    public void range() throws XMLDBException {
+        final Filter dateRange = new Filter() {
+            public boolean accept(Order order) {
+                return "c3".equals(order.customer) && order.date != null &&
+                    order.date.compareTo("2013-03-01") >= 0 && order.date.compareTo("2013-06-01") < 0;
+            }
+        };
+        assertQuery("//order[@customer = 'c3'][date >= xs:date('2013-03-01')][date < xs:date('2013-06-01')]",
+            dateRange);
+        assertQuery("//order[@customer = 'c3' and date >= xs:date('2013-03-01') and date < xs:date('2013-06-01')]",
+            dateRange);
+        assertQuery("(# exist:optimize #) { //order[@customer = 'c3'][date >= xs:date('2013-03-01')]" +
+                "[date < xs:date('2013-06-01')] }", dateRange);
+        assertQuery("//order[@customer = ('c2', 'c5')][amount > 80]", new Filter() {
+            public boolean accept(Order order) {
+                if (!"c2".equals(order.customer) && !"c5".equals(order.customer))
+                    {return false;}
+                for (final int amount : order.amounts) {
+                    if (amount > 80)
+                        {return true;}
+                }
+                return false;
+            }
+        });
+        assertQuery("//order[@customer = 'c1'][amount <= 10]", new Filter() {
+            public boolean accept(Order order) {
+                if (!"c1".equals(order.customer))
+                    {return false;}
+                for (final int amount : order.amounts) {
+                    if (amount <= 10)
+                        {return true;}
+                }
+                return false;
+            }
+        });
+        // range on the first field
+        assertQuery("//order[@customer > 'c7']", new Filter() {
+            public boolean accept(Order order) {
+                return order.customer.compareTo("c7") > 0;
+            }
+        });
+        // a string is not compared with the numeric index
+        assertQuery("//order[@customer = 'c4'][amount = '13']", new Filter() {
+            public boolean accept(Order order) {
+                return "c4".equals(order.customer) && order.amounts.contains(13);
+            }
+        });
+    }
+
+    @Test
+    public void update() throws Exception {
+        // order 5 has no date
+        query("update value //order[@id = '5']/@customer with 'c3'");
+        orders.get(5).customer = "c3";
+        query("update insert <date>2013-05-01</date> into //order[@id = '5']");
+        orders.get(5).date = "2013-05-01";
+        query("update replace //order[@id = '40']/date with <date>2013-07-01</date>");
+        orders.get(40).date = "2013-07-01";
+        query("update value //order[@id = '99']/date with '2013-05-01'");
+        orders.get(99).date = "2013-05-01";
+        query("update delete //order[@id = '100']");
+        orders.get(100).customer = "deleted";
+        assertQuery("//order[@customer = 'c3'][date = xs:date('2013-05-01')]", new Filter() {
+            public boolean accept(Order order) {
+                return "c3".equals(order.customer) && "2013-05-01".equals(order.date);
+            }
+        });
+        assertEquals(count("c3"), lookup("c3"));
+        assertEquals(count("c5"), lookup("c5"));
+    }
+
+    @Test
+    public void removeDocument() throws Exception {
+        assertEquals(count("c3"), lookup("c3"));
+        testCollection.removeResource(testCollection.getResource("orders.xml"));
+        assertEquals(0, lookup("c3"));
+    }
+
+    private int count(String customer) {
+        int count = 0;
+        for (final Order order : orders) {
+            if (customer.equals(order.customer))
+                {count++;}
+        }
+        return count;
+    }
+
+    /**
+     * Look up the elements of a customer in the index.
+     */
+    private int lookup(String customer) throws Exception {
+        final BrokerPool pool = BrokerPool.getInstance();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection collection = broker.getCollection(XmldbURI.create("/db/test"));
+            final DocumentSet docs = collection.allDocs(broker, new DefaultDocumentSet(), true);
+            final Map<QName, List<CompositeIndexSpec>> config =
+                CompositeRangeIndexWorker.getConfiguration(broker, collection);
+            final CompositeIndexSpec spec = config.get(new QName("order", "")).get(0);
+            final CompositeRangeIndexWorker worker = (CompositeRangeIndexWorker)
+                broker.getIndexController().getWorkerByIndexId(CompositeRangeIndex.ID);
+            final byte key[] = spec.encode(0, new StringValue(customer));
+            return worker.find(docs, null, spec, key, CompositeIndexSpec.successor(key)).getLength();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void assertQuery(String path, Filter filter) throws XMLDBException {
+        final StringBuilder expected = new StringBuilder();
+        for (final Order order : orders) {
+            if (filter.accept(order)) {
+                if (expected.length() > 0)
+                    {expected.append(' ');}
+                expected.append(order.id);
+            }
+        }
+        assertEquals(path, expected.toString(), query("string-join((" + path + ")/@id, ' ')"));
+    }
+
+    private String query(String query) throws XMLDBException {
+        final XQueryService service = (XQueryService) testCollection.getService("XQueryService", "1.0");
+        final ResourceSet result = service.query(query);
+        return result.getSize() == 0 ? "" : result.getResource(0).getContent().toString();
+    }
+
+    private interface Filter {
+        boolean accept(Order order);
+    }
+
+    private static class Order {
+
+        final int id;
+        String customer;
+        String date;
+        final List<Integer> amounts = new ArrayList<Integer>(2);
+
+        Order(int id) {
+            this.id = id;
+            customer = "c" + (id / 3) % CUSTOMERS;
+            if (id % 17 != 5)
+                {date = String.format("2013-%02d-%02d", 1 + id % 12, 1 + (id * 7) % 28);}
+            amounts.add(id % 100);
+            if (id % 7 == 0)
+                {amounts.add((id * 13) % 100);}
+        }
+    }
+
+    @Before
+    public void storeOrders() throws XMLDBException {
+        orders = new ArrayList<Order>(ORDERS);
+        final StringBuilder xml = new StringBuilder("<orders>");
+        for (int i = 0; i < ORDERS; i++) {
+            final Order order = new Order(i);
+            orders.add(order);
+            xml.append("<order id=\"").append(i).append("\" customer=\"").append(order.customer).append("\">");
+            if (order.date != null)
+                {xml.append("<date>").append(order.date).append("</date>");}
+            for (final int amount : order.amounts) {
+                xml.append("<amount>").append(amount).append("</amount>");
+            }
+            xml.append("</order>");
+        }
+        xml.append("</orders>");
+        final Resource resource = testCollection.createResource("orders.xml", "XMLResource");
+        resource.setContent(xml.toString());
+        testCollection.storeResource(resource);
+    }
+
+    @BeforeClass
+    public static void initDB() throws Exception {
+        final Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        final Database database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+
+        final org.xmldb.api.base.Collection root = DatabaseManager.getCollection("xmldb:exist:///db", "admin", null);
+        final CollectionManagementService service = (CollectionManagementService)
+            root.getService("CollectionManagementService", "1.0");
+        testCollection = service.createCollection("test");
+        assertNotNull(testCollection);
+        final IndexQueryService idxConf = (IndexQueryService)
+            testCollection.getService("IndexQueryService", "1.0");
+        idxConf.configureCollection(CONFIG);
+    }
+
+    @AfterClass
+    public static void stopDB() throws XMLDBException {
+        final org.xmldb.api.base.Collection root = DatabaseManager.getCollection("xmldb:exist:///db", "admin", null);
+        final CollectionManagementService service = (CollectionManagementService)
+            root.getService("CollectionManagementService", "1.0");
+        service.removeCollection("test");
+        final DatabaseInstanceManager mgr = (DatabaseInstanceManager)
+            root.getService("DatabaseInstanceManager", "1.0");
+        mgr.shutdown();
+    }
+}
@@ -0,0 +1,120 @@
+package org.exist.storage.journal;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.exist.TestUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Store small documents from several threads with group commit enabled
+ * and check that the commits were synced in batches.
+ */
+public class GroupCommitTest {
+
+    private static final int THREADS = 6;
+    private static final int DOCUMENTS = 20;
+
+    private BrokerPool pool = null;
+
+    @Test
+    public void concurrentCommits() throws Exception {
+        pool = startDB();
+        final Journal journal = pool.getTransactionManager().getJournal();
+        assertTrue(journal.isGroupCommitEnabled());
+
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+        final long commitsBefore = journal.getGroupCommits();
+
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < DOCUMENTS; j++) {
+                        try {
+                            store("doc" + thread + "_" + j + ".xml");
+                        } catch (final Exception e) {
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < THREADS; i++) {
+            threads[i].join();
+        }
+        assertEquals(0, errors.get());
+
+        final long commits = journal.getGroupCommits() - commitsBefore;
+        assertTrue(commits >= THREADS * DOCUMENTS);
+        assertTrue(journal.getGroupCommitBatches() > 0);
+        assertTrue(journal.getGroupCommitBatches() <= journal.getGroupCommits());
+        assertTrue(journal.getMaxGroupCommitBatch() >= 1);
+
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence result = broker.getXQueryService().execute(
+                "count(collection('" + TestConstants.TEST_COLLECTION_URI + "')/test)", null, AccessContext.TEST);
+            assertEquals(THREADS * DOCUMENTS, Integer.parseInt(result.itemAt(0).getStringValue()));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void store(String docName) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.openCollection(TestConstants.TEST_COLLECTION_URI, Lock.NO_LOCK);
+            final String xml = "<test><name>" + docName + "</name></test>";
+            final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create(docName), xml);
+            root.store(transaction, broker, info, xml, false);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+
+    protected BrokerPool startDB() throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(Journal.PROPERTY_RECOVERY_SYNC_ON_COMMIT, Boolean.TRUE);
+        config.setProperty(Journal.PROPERTY_RECOVERY_GROUP_COMMIT_LATENCY, Integer.valueOf(2));
+        BrokerPool.configure(1, THREADS + 2, config);
+        return BrokerPool.getInstance();
+    }
+}
@@ -0,0 +1,143 @@
+package org.exist.storage.statistics;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.QName;
+import org.exist.indexing.IndexManager;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.ElementValue;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.exist.xmldb.XmldbURI;
+import org.exist.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Check the node and value statistics collected by the data guide.
+ */
+public class IndexStatisticsTest {
+
+    private static final int DOCUMENTS = 10;
+    private static final int ITEMS = 100;
+
+    private static final QName ITEM = new QName("item", "");
+    private static final QName NAME = new QName("name", "");
+    private static final QName CATEGORY = new QName("category", "");
+    private static final QName SKU = new QName("sku", "");
+    static {
+        SKU.setNameType(ElementValue.ATTRIBUTE);
+    }
+
+    private File dataDir = null;
+
+    @Test
+    public void statistics() throws Exception {
+        BrokerPool pool = startDB();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                final StringBuilder xml = new StringBuilder("<items>");
+                for (int j = 0; j < ITEMS; j++) {
+                    final int n = i * ITEMS + j;
+                    xml.append("<item sku=\"i").append(n).append("\">");
+                    xml.append("<name>Item ").append(n).append("</name>");
+                    xml.append("<category>").append(n % 5).append("</category>");
+                    xml.append("</item>");
+                }
+                xml.append("</items>");
+                final XmldbURI docName = XmldbURI.create("items" + i + ".xml");
+                final IndexInfo info = root.validateXMLResource(transaction, broker, docName, xml.toString());
+                root.store(transaction, broker, info, xml.toString(), false);
+            }
+            transact.commit(transaction);
+
+            checkStatistics(pool);
+            pool.release(broker);
+            broker = null;
+
+            // statistics should survive a restart
+            BrokerPool.stopAll(false);
+            pool = startDB();
+            checkStatistics(pool);
+        } finally {
+            if (broker != null)
+                {pool.release(broker);}
+        }
+    }
+
+    private void checkStatistics(BrokerPool pool) {
+        final IndexStatistics stats = (IndexStatistics) pool.getIndexManager().getIndexById(IndexStatistics.ID);
+        assertNotNull(stats);
+        final int total = DOCUMENTS * ITEMS;
+        assertEquals(total, stats.getNodeCount(ITEM));
+        assertEquals(total, stats.getNodeCount(NAME));
+        assertEquals(total, stats.getNodeCount(SKU));
+        // the attribute must not be confused with an element of the same name
+        assertEquals(0, stats.getNodeCount(new QName("sku", "")));
+
+        assertEquals(-1, stats.getDistinctValues(ITEM));
+        assertEquals(5, stats.getDistinctValues(CATEGORY));
+        assertEstimate(total, stats.getDistinctValues(NAME));
+        assertEstimate(total, stats.getDistinctValues(SKU));
+    }
+
+    private void assertEstimate(long expected, long estimate) {
+        assertTrue("Estimate " + estimate + " too far from " + expected,
+            Math.abs(estimate - expected) < expected * 0.4);
+    }
+
+    /**
+     * The statistics module is disabled in the default configuration.
+     */
+    public static void enableStatistics(Configuration config) {
+        final Configuration.IndexModuleConfig[] modules =
+            (Configuration.IndexModuleConfig[]) config.getProperty(IndexManager.PROPERTY_INDEXER_MODULES);
+        final int count = modules == null ? 0 : modules.length;
+        final Configuration.IndexModuleConfig[] newModules = new Configuration.IndexModuleConfig[count + 1];
+        if (modules != null)
+            {System.arraycopy(modules, 0, newModules, 0, count);}
+        newModules[count] = new Configuration.IndexModuleConfig("index-stats", IndexStatistics.class.getName(), null);
+        config.setProperty(IndexManager.PROPERTY_INDEXER_MODULES, newModules);
+    }
+
+    /**
+     * The statistics are not updated when documents are removed, so the test
+     * needs a data directory of its own.
+     */
+    @Before
+    public void createDataDir() {
+        dataDir = new File(System.getProperty("java.io.tmpdir"), "exist-stats-" + System.currentTimeMillis());
+        dataDir.mkdirs();
+    }
+
+    @After
+    public void closeDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+        FileUtils.delete(dataDir);
+    }
+
+    protected BrokerPool startDB() throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(BrokerPool.PROPERTY_DATA_DIR, dataDir.getAbsolutePath());
+        config.setProperty(Journal.PROPERTY_RECOVERY_JOURNAL_DIR, dataDir.getAbsolutePath());
+        enableStatistics(config);
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+}
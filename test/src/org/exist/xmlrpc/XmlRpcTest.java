@@ -38,9 +38,12 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.xml.transform.OutputKeys;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.zip.InflaterInputStream;
 import org.exist.security.Permission;
 
 /**
@@ -502,6 +505,63 @@ public class XmlRpcTest {
 	    }	        
 	}
 	
+	@Test
+	public void testRetrieveAllChunked() throws Exception {
+        System.out.println("---testRetrieveAllChunked");
+        // larger than a chunk
+        final int items = 20000;
+        final String query = "for $i in 1 to " + items + " return <item n='{$i}'>{string-join(('data', string($i)), ' ')}</item>";
+        for (final boolean compress : new boolean[] { false, true }) {
+            XmlRpcClient xmlrpc = getClient();
+            Vector<Object> params = new Vector<Object>();
+            params.addElement(query.getBytes("UTF-8"));
+            params.addElement(new Hashtable<Object, Object>());
+            Integer handle = (Integer) xmlrpc.execute("executeQuery", params);
+            Assert.assertNotNull(handle);
+
+            Hashtable<String, Object> parameters = new Hashtable<String, Object>();
+            parameters.put("indent", "no");
+            parameters.put(EXistOutputKeys.COMPRESS_OUTPUT, compress ? "yes" : "no");
+            params.clear();
+            params.addElement(handle);
+            params.addElement(parameters);
+            Map<?, ?> table = (Map<?, ?>) xmlrpc.execute("retrieveAllFirstChunk", params);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            os.write((byte[]) table.get("data"));
+            long offset = ((Integer) table.get("offset")).intValue();
+            // the compressed result fits into one chunk
+            Assert.assertTrue(compress || offset > 0);
+            int chunks = 1;
+            while (offset > 0) {
+                params.clear();
+                params.addElement(table.get("handle"));
+                params.addElement(Long.toString(offset));
+                table = (Map<?, ?>) xmlrpc.execute("getNextExtendedChunk", params);
+                byte[] data = (byte[]) table.get("data");
+                os.write(data);
+                offset = Long.parseLong((String) table.get("offset"));
+                chunks++;
+            }
+            Assert.assertTrue(compress || chunks > 1);
+
+            byte[] data = os.toByteArray();
+            if (compress) {
+                InputStream is = new InflaterInputStream(new ByteArrayInputStream(data));
+                os = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int l;
+                while ((l = is.read(buf)) > -1) {
+                    os.write(buf, 0, l);
+                }
+                data = os.toByteArray();
+            }
+            String result = new String(data, "UTF-8");
+            Assert.assertTrue(result.contains("hitCount=\"" + items + "\""));
+            Assert.assertTrue(result.contains("<item n=\"1\">data 1</item><item n=\"2\">data 2</item>"));
+            Assert.assertTrue(result.endsWith("<item n=\"" + items + "\">data " + items + "</item></exist:result>"));
+        }
+	}
+
 	@Test
 	public void testQueryModuleExternalVar() {
         System.out.println("---testQueryModuleExternalVar");
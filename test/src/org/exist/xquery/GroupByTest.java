@@ -0,0 +1,184 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery;
+
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.Resource;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.CollectionManagementService;
+import org.xmldb.api.modules.XQueryService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Tests the grouping keys and the aggregates computed while grouping
+ * in "group by".
+ */
+public class GroupByTest {
+
+    // more items per group than GroupAggregate.COMPACT_THRESHOLD
+    private static final int ITEMS = 1000;
+    private static final String[] CATEGORIES = { "a", "b", "c" };
+
+    private static Collection testCollection;
+
+    @Test
+    public void typedKeys() throws XMLDBException {
+        // numbers which are equal end up in the same group, strings and numbers don't
+        assertEquals("1:3 1:1 2:1 true:1 false:1", query(
+            "string-join(" +
+            "for $x in (1, 1.0, xs:double(1), '1', 2.0, true(), false()) " +
+            "group by $k := $x " +
+            "return concat($k, ':', count($x)), ' ')"));
+        assertEquals("NaN:2 0:2", query(
+            "string-join(" +
+            "for $x in (xs:double('NaN'), 0, xs:double('-0'), xs:float('NaN')) " +
+            "group by $k := $x " +
+            "return concat($k, ':', count($x)), ' ')"));
+    }
+
+    @Test
+    public void collation() throws XMLDBException {
+        assertEquals("a:2 b:1", query(
+            "string-join(" +
+            "for $x in ('a', 'A', 'b') " +
+            "group by $k := $x collation '?lang=en&amp;strength=primary' " +
+            "return concat($k, ':', count($x)), ' ')"));
+    }
+
+    @Test
+    public void aggregates() throws XMLDBException {
+        final StringBuilder expected = new StringBuilder();
+        for (int c = 0; c < CATEGORIES.length; c++) {
+            int count = 0;
+            long sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < ITEMS; i++) {
+                if (i % CATEGORIES.length == c) {
+                    count++;
+                    sum += i;
+                    min = Math.min(min, i);
+                    max = Math.max(max, i);
+                }
+            }
+            if (c > 0)
+                {expected.append(' ');}
+            expected.append(CATEGORIES[c]).append(':').append(count).append(':').append(count)
+                .append(':').append(sum).append(':').append(min).append(':').append(max);
+        }
+        // only aggregates: the items are not kept
+        assertEquals(expected.toString(), query(
+            "string-join(" +
+            "for $i in doc('/db/test/items.xml')//item " +
+            "group by $k := $i/@cat " +
+            "return concat($k, ':', count($i), ':', count($i/@qty), ':', sum($i/@qty), ':', min($i/@qty), ':', max($i/qty)), ' ')"));
+        // the grouped variable is used outside of the aggregates
+        assertEquals(expected.toString(), query(
+            "string-join(" +
+            "for $i in doc('/db/test/items.xml')//item " +
+            "group by $k := $i/@cat " +
+            "return concat($k, ':', count($i), ':', count($i/@qty), ':', sum($i/@qty), ':', min($i/@qty), ':', " +
+            "max(for $q in $i/qty return xs:integer($q))), ' ')"));
+        // the grouped variable is only used outside of the aggregates in an attribute
+        final StringBuilder categories = new StringBuilder();
+        for (int c = 0; c < CATEGORIES.length; c++) {
+            if (c > 0)
+                {categories.append(' ');}
+            categories.append(CATEGORIES[c]);
+        }
+        assertEquals(categories.toString(), query(
+            "string-join(" +
+            "for $i in doc('/db/test/items.xml')//item " +
+            "group by $k := $i/@cat " +
+            "return string(<g cat=\"{$i[1]/@cat}\">{count($i)}</g>/@cat), ' ')"));
+    }
+
+    @Test
+    public void aggregateErrors() throws XMLDBException {
+        // reducing the values of the group fails, but the sum is never evaluated
+        assertEquals("ok", query(
+            "string-join(" +
+            "for $x in ('x', 1 to 300) " +
+            "group by $k := 1 " +
+            "return if ($k = 1) then 'ok' else sum($x), ' ')"));
+    }
+
+    @Test(expected = XMLDBException.class)
+    public void aggregateErrorReported() throws XMLDBException {
+        query(
+            "string-join(" +
+            "for $x in ('x', 1 to 300) " +
+            "group by $k := 1 " +
+            "return string(sum($x)), ' ')");
+    }
+
+    private String query(String query) throws XMLDBException {
+        final XQueryService service = (XQueryService) testCollection.getService("XQueryService", "1.0");
+        final ResourceSet result = service.query(query);
+        assertEquals(1, result.getSize());
+        return result.getResource(0).getContent().toString();
+    }
+
+    @BeforeClass
+    public static void initDB() throws Exception {
+        final Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        final Database database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+
+        final Collection root = DatabaseManager.getCollection("xmldb:exist:///db", "admin", null);
+        final CollectionManagementService service = (CollectionManagementService)
+            root.getService("CollectionManagementService", "1.0");
+        testCollection = service.createCollection("test");
+        assertNotNull(testCollection);
+
+        final StringBuilder xml = new StringBuilder("<items>");
+        for (int i = 0; i < ITEMS; i++) {
+            xml.append("<item cat=\"").append(CATEGORIES[i % CATEGORIES.length]).append("\" qty=\"").append(i)
+                .append("\"><qty>").append(i).append("</qty></item>");
+        }
+        xml.append("</items>");
+        final Resource resource = testCollection.createResource("items.xml", "XMLResource");
+        resource.setContent(xml.toString());
+        testCollection.storeResource(resource);
+    }
+
+    @AfterClass
+    public static void stopDB() throws XMLDBException {
+        final Collection root = DatabaseManager.getCollection("xmldb:exist:///db", "admin", null);
+        final CollectionManagementService service = (CollectionManagementService)
+            root.getService("CollectionManagementService", "1.0");
+        service.removeCollection("test");
+        final DatabaseInstanceManager mgr = (DatabaseInstanceManager)
+            root.getService("DatabaseInstanceManager", "1.0");
+        mgr.shutdown();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.exist.TestUtils;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.util.Configuration;
+import org.exist.xquery.value.OrderedValueSequence;
+import org.exist.xquery.value.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the top-k selection used if only the first items of an "order by"
+ * are consumed, and the sorting of runs written to temporary files.
+ */
+public class OrderByTest {
+
+    // number of sort keys kept in memory
+    private static final int RUN_SIZE = 16;
+
+    private static BrokerPool pool;
+
+    @Test
+    public void subsequence() throws Exception {
+        final String flwor = "for $i in 1 to 1000 order by $i mod 7, $i descending return $i";
+        assertEquals(join(firstItems(1000, 7, 0, 20)), query("string-join(subsequence(" + flwor + ", 1, 20), ' ')"));
+        assertEquals(join(firstItems(1000, 7, 10, 10)), query("string-join(subsequence(" + flwor + ", 11, 10), ' ')"));
+        assertEquals(join(firstItems(1000, 7, 0, 3)), query("string-join(subsequence(" + flwor + ", 0, 4), ' ')"));
+        assertEquals("", query("string-join(subsequence(" + flwor + ", 5, 0), ' ')"));
+        // items with equal keys stay in the order of the input
+        assertEquals("2 4 6 8 10", query(
+            "string-join(subsequence(for $i in 1 to 100 order by $i mod 2 return $i, 1, 5), ' ')"));
+        // the return clause returns more than one item for each binding
+        assertEquals("100 100 99", query(
+            "string-join(subsequence(for $i in 1 to 100 order by $i descending return ($i, $i), 1, 3), ' ')"));
+    }
+
+    @Test
+    public void positionalPredicate() throws Exception {
+        final String flwor = "(for $i in 1 to 1000 order by $i mod 7, $i descending return $i)";
+        assertEquals(join(firstItems(1000, 7, 0, 5)), query("string-join(" + flwor + "[position() le 5], ' ')"));
+        assertEquals(join(firstItems(1000, 7, 0, 4)), query("string-join(" + flwor + "[position() < 5], ' ')"));
+        assertEquals(join(firstItems(1000, 7, 2, 1)), query("string-join(" + flwor + "[3], ' ')"));
+        assertEquals(join(firstItems(1000, 7, 3, 1)), query("string-join(" + flwor + "[position() = 4], ' ')"));
+        assertEquals("a b", query(
+            "string-join((let $s := ('c', 'a', 'b') for $x in $s order by $x return $x)[position() le 2], ' ')"));
+    }
+
+    @Test
+    public void externalStrings() throws Exception {
+        final List<Integer> items = range(1000);
+        Collections.sort(items, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return stringKey(b).compareTo(stringKey(a));
+            }
+        });
+        assertEquals(join(items), query(
+            "string-join(for $i in 1 to 1000 order by concat('k', $i mod 37, '-', $i) descending return $i, ' ')"));
+    }
+
+    @Test
+    public void externalNumbers() throws Exception {
+        final List<Integer> items = range(1000);
+        Collections.sort(items, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int cmp = Double.compare((a % 17) * 1.5, (b % 17) * 1.5);
+                return cmp != 0 ? cmp : b.compareTo(a);
+            }
+        });
+        assertEquals(join(items), query(
+            "string-join(for $i in 1 to 1000 order by ($i mod 17) * 1.5, $i descending return $i, ' ')"));
+        Collections.sort(items, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int cmp = Double.compare(1.0 / (a % 23 + 1), 1.0 / (b % 23 + 1));
+                return cmp != 0 ? cmp : a.compareTo(b);
+            }
+        });
+        assertEquals(join(items), query(
+            "string-join(for $i in 1 to 1000 order by 1 div xs:double($i mod 23 + 1), $i return $i, ' ')"));
+    }
+
+    @Test
+    public void externalDates() throws Exception {
+        final List<Integer> items = range(500);
+        Collections.sort(items, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int cmp = Integer.valueOf(a % 50).compareTo(b % 50);
+                return cmp != 0 ? cmp : a.compareTo(b);
+            }
+        });
+        assertEquals(join(items), query(
+            "string-join(for $i in 1 to 500 " +
+            "order by xs:date('2000-01-01') + xs:dayTimeDuration(concat('P', $i mod 50, 'D')), $i return $i, ' ')"));
+    }
+
+    @Test
+    public void externalEmptyKeys() throws Exception {
+        // the empty keys are the least, i.e. last in descending order
+        final List<String> items = new ArrayList<String>();
+        for (int i = 299; i >= 0; i--) {
+            if (i % 10 != 0) {
+                items.add(Integer.toString(i));
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            if (i % 10 == 0) {
+                items.add("e");
+            }
+        }
+        assertEquals(join(items), query(
+            "string-join(for $i in 0 to 299 let $k := if ($i mod 10 = 0) then () else $i " +
+            "order by $k descending empty least return if (empty($k)) then 'e' else $i, ' ')"));
+    }
+
+    @Test
+    public void keysKeptInMemory() throws Exception {
+        // QNames are not written to a temporary file
+        final List<Integer> items = range(100);
+        Collections.sort(items, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.toString(b).compareTo(Integer.toString(a));
+            }
+        });
+        assertEquals(join(items), query(
+            "string-join(for $i in 1 to 100 order by QName('', concat('n', $i)) descending return $i, ' ')"));
+    }
+
+    /**
+     * Returns the items in 1 to n ordered by i mod m and then descending.
+     */
+    private static List<Integer> firstItems(int n, final int m, int offset, int length) {
+        final List<Integer> items = range(n);
+        Collections.sort(items, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int cmp = Integer.valueOf(a % m).compareTo(b % m);
+                return cmp != 0 ? cmp : b.compareTo(a);
+            }
+        });
+        return items.subList(offset, offset + length);
+    }
+
+    private static String stringKey(int i) {
+        return "k" + (i % 37) + "-" + i;
+    }
+
+    private static List<Integer> range(int n) {
+        final List<Integer> items = new ArrayList<Integer>(n);
+        for (int i = 1; i <= n; i++) {
+            items.add(i);
+        }
+        return items;
+    }
+
+    private static String join(List<?> items) {
+        final StringBuilder builder = new StringBuilder();
+        for (final Object item : items) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(item);
+        }
+        return builder.toString();
+    }
+
+    private String query(String query) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence result = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+            assertEquals(1, result.getItemCount());
+            return result.itemAt(0).getStringValue();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(OrderedValueSequence.PROPERTY_RUN_SIZE, Integer.valueOf(RUN_SIZE));
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+}
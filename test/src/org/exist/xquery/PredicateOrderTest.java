@@ -0,0 +1,129 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.statistics.IndexStatisticsTest;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.Sequence;
+import org.exist.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Check that the optimizer evaluates the more selective operand of a logical and
+ * first if index statistics are available.
+ */
+public class PredicateOrderTest {
+
+    private static final int DOCUMENTS = 5;
+    private static final int ITEMS = 100;
+
+    private static final String COLLECTION = "collection('" + TestConstants.TEST_COLLECTION_URI + "')";
+
+    private BrokerPool pool;
+    private DBBroker broker;
+
+    @Test
+    public void splitPredicate() throws Exception {
+        // name has a distinct value per item, category only five
+        final String query = COLLECTION + "//item[category = '1' and name = 'Item 6']";
+        final String optimized = compile(query);
+        assertTrue(optimized, optimized.indexOf("name") < optimized.indexOf("category"));
+        assertTrue(optimized, optimized.indexOf(" and ") < 0);
+        assertEquals(1, execute(query));
+    }
+
+    @Test
+    public void splitChain() throws Exception {
+        final String query = COLLECTION + "//item[category != '1' and category = '2' and name = 'Item 7']";
+        final String optimized = compile(query);
+        assertTrue(optimized, optimized.indexOf("name") < optimized.indexOf("category"));
+        assertTrue(optimized, optimized.indexOf("category = ") < optimized.indexOf("category != "));
+        assertEquals(1, execute(query));
+    }
+
+    @Test
+    public void keepSelectiveOrder() throws Exception {
+        final String query = COLLECTION + "//item[name = 'Item 6' and category = '1']";
+        final String optimized = compile(query);
+        assertTrue(optimized, optimized.indexOf("name") < optimized.indexOf("category"));
+        assertEquals(1, execute(query));
+    }
+
+    @Test
+    public void swapOperands() throws Exception {
+        final String query = "for $i in " + COLLECTION + "//item return if ($i/category = '1' and $i/name = 'Item 6') then $i else ()";
+        final String optimized = compile(query);
+        assertTrue(optimized, optimized.indexOf("name") < optimized.indexOf("category"));
+        assertEquals(1, execute(query));
+    }
+
+    @Test
+    public void positionalPredicate() throws Exception {
+        // [a and position() = 1] is not equivalent to [a][position() = 1]
+        final String query = COLLECTION + "//item[category = '0' and position() = 1]";
+        final String optimized = compile(query);
+        assertTrue(optimized, optimized.indexOf(" and ") > 0);
+        assertEquals(DOCUMENTS, execute(query));
+    }
+
+    private String compile(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final XQueryContext context = xquery.newContext(AccessContext.TEST);
+        final CompiledXQuery compiled = xquery.compile(context, query);
+        return ExpressionDumper.dump((Expression) compiled);
+    }
+
+    private int execute(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        return result.getItemCount();
+    }
+
+    @Before
+    public void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        IndexStatisticsTest.enableStatistics(config);
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, root);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            final StringBuilder xml = new StringBuilder("<items>");
+            for (int j = 0; j < ITEMS; j++) {
+                final int n = i * ITEMS + j;
+                xml.append("<item>");
+                xml.append("<name>Item ").append(n).append("</name>");
+                xml.append("<category>").append(n % 5).append("</category>");
+                xml.append("</item>");
+            }
+            xml.append("</items>");
+            final XmldbURI docName = XmldbURI.create("items" + i + ".xml");
+            final IndexInfo info = root.validateXMLResource(transaction, broker, docName, xml.toString());
+            root.store(transaction, broker, info, xml.toString(), false);
+        }
+        transact.commit(transaction);
+    }
+
+    @After
+    public void closeDB() {
+        if (broker != null)
+            {pool.release(broker);}
+        TestUtils.cleanupDB();
+        BrokerPool.stopAll(false);
+    }
+}
@@ -409,6 +409,42 @@ public class ValueIndexTest extends TestCase {
         }
     }
 
+    public void testIndexedValues() {
+        try {
+            configureCollection(CONFIG_QNAME);
+            XPathQueryService service = storeXMLFileAndGetQueryService("items.xml", "test/src/org/exist/xquery/items.xml");
+            assertQuery(service, "string-join(for $id in distinct-values(//item/@id) order by $id return $id, ',')",
+                "i1,i2,i3,i4,i5");
+            assertQuery(service, "count(distinct-values(//item/name))", "7");
+            assertQuery(service, "count(distinct-values(//item[stock > 0]/name, '?strength=primary'))", "5");
+            assertQuery(service, "min(//item/price)", "-100.1");
+            assertQuery(service, "max(//item/price)", "3000.5");
+            assertQuery(service, "max(//item/stock)", "29");
+            assertQuery(service, "min(//item[price > 500]/stock)", "-5");
+            // fewer selected nodes than index keys: the nodes are atomized
+            assertQuery(service, "max(//item[@id = ('i1', 'i2')]/price)", "1024.99");
+            assertQuery(service, "distinct-values(//item[@id = 'i3']/name)", "Mountainbike");
+            // not indexed
+            assertQuery(service, "count(distinct-values(//item/mixed/span))", "5");
+
+            // a value which could not be converted to the index type is not in the index
+            XMLResource doc = (XMLResource) testCollection.createResource("unknown.xml", "XMLResource");
+            doc.setContent("<items><item><price>unknown</price><stock>100</stock></item></items>");
+            testCollection.storeResource(doc);
+            assertQuery(service, "count(distinct-values(//item/price))", "8");
+            assertQuery(service, "max(//item/stock)", "100");
+        } catch (XMLDBException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    private void assertQuery(XPathQueryService service, String query, String expected) throws XMLDBException {
+        ResourceSet result = service.query(query);
+        assertEquals(query, 1, result.getSize());
+        assertEquals(query, expected, result.getResource(0).getContent().toString());
+    }
+
     public void testIndexScan() {
         try {
             System.out.println("----- testIndexScan -----");